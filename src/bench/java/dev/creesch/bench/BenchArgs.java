@@ -0,0 +1,59 @@
+package dev.creesch.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal {@code --key value} argument parsing for the bench tools.
+ */
+public final class BenchArgs {
+
+    private final Map<String, String> values;
+
+    private BenchArgs(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public static BenchArgs parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException(
+                    "Expected an option starting with --, got: " + arg
+                );
+            }
+
+            String key = arg.substring(2);
+            // Options without a value are flags.
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                values.put(key, args[++i]);
+            } else {
+                values.put(key, "true");
+            }
+        }
+        return new BenchArgs(values);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String key) {
+        return Boolean.parseBoolean(values.get(key));
+    }
+
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+}
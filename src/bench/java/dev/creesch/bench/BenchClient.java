@@ -0,0 +1,250 @@
+package dev.creesch.bench;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import dev.creesch.websocket.CborFrames;
+import dev.creesch.websocket.FrameEncoding;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Headless browser stand-in. Reads frames from {@code /chat} and records end-to-end latency for chat messages by
+ * looking up when the producer created them.
+ *
+ * Slow clients only request the next frame after a delay. The JDK WebSocket applies that as backpressure on the
+ * socket, just like a phone on a bad connection or a frozen background tab would.
+ *
+ * With {@link FrameEncoding#CBOR} the client asks for binary frames the way the web interface does with
+ * {@code ?encoding=cbor}, and decodes them with {@link CborFrames}.
+ */
+public final class BenchClient implements WebSocket.Listener {
+
+    private final int id;
+    private final long slowDelayMillis;
+    private final FrameEncoding encoding;
+    private final ScheduledExecutorService delayExecutor;
+    private final Map<String, Long> sentAtNanos;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder chatMessagesReceived = new LongAdder();
+    // Characters for JSON frames, bytes for binary frames.
+    private final LongAdder charsReceived = new LongAdder();
+    private final StringBuilder partialFrame = new StringBuilder();
+    private final ByteArrayOutputStream partialBinaryFrame =
+        new ByteArrayOutputStream();
+    private volatile Consumer<JsonObject> messageListener = (message) -> {};
+    private volatile WebSocket webSocket;
+    private volatile boolean closed = false;
+
+    public BenchClient(
+        int id,
+        long slowDelayMillis,
+        FrameEncoding encoding,
+        ScheduledExecutorService delayExecutor,
+        Map<String, Long> sentAtNanos
+    ) {
+        this.id = id;
+        this.slowDelayMillis = slowDelayMillis;
+        this.encoding = encoding;
+        this.delayExecutor = delayExecutor;
+        this.sentAtNanos = sentAtNanos;
+    }
+
+    public CompletableFuture<WebSocket> connect(
+        HttpClient httpClient,
+        URI uri
+    ) {
+        WebSocket.Builder builder = httpClient.newWebSocketBuilder();
+        if (encoding == FrameEncoding.CBOR) {
+            builder.subprotocols(
+                FrameEncoding.CBOR_SUBPROTOCOL,
+                FrameEncoding.JSON_SUBPROTOCOL
+            );
+        }
+        return builder
+            .buildAsync(uri, this)
+            .thenApply((socket) -> {
+                webSocket = socket;
+                return socket;
+            });
+    }
+
+    /**
+     * @param name "json" or "cbor"
+     */
+    public static FrameEncoding encoding(String name) {
+        return FrameEncoding.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Receives every parsed message object, after latency has been recorded.
+     */
+    public void setMessageListener(Consumer<JsonObject> messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    public CompletableFuture<WebSocket> sendText(String text) {
+        return webSocket.sendText(text, true);
+    }
+
+    public void close() {
+        if (webSocket != null && !closed) {
+            webSocket.abort();
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        webSocket.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onText(
+        WebSocket webSocket,
+        CharSequence data,
+        boolean last
+    ) {
+        partialFrame.append(data);
+        if (last) {
+            long receivedAt = System.nanoTime();
+            String frame = partialFrame.toString();
+            partialFrame.setLength(0);
+            framesReceived.increment();
+            charsReceived.add(frame.length());
+            handleFrame(JsonParser.parseString(frame), receivedAt);
+        }
+        requestNext(webSocket);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(
+        WebSocket webSocket,
+        ByteBuffer data,
+        boolean last
+    ) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        partialBinaryFrame.writeBytes(bytes);
+        if (last) {
+            long receivedAt = System.nanoTime();
+            byte[] frame = partialBinaryFrame.toByteArray();
+            partialBinaryFrame.reset();
+            framesReceived.increment();
+            charsReceived.add(frame.length);
+            handleFrame(CborFrames.decode(frame), receivedAt);
+        }
+        requestNext(webSocket);
+        return null;
+    }
+
+    private void requestNext(WebSocket webSocket) {
+        if (slowDelayMillis > 0) {
+            delayExecutor.schedule(
+                () -> webSocket.request(1),
+                slowDelayMillis,
+                TimeUnit.MILLISECONDS
+            );
+        } else {
+            webSocket.request(1);
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onClose(
+        WebSocket webSocket,
+        int statusCode,
+        String reason
+    ) {
+        closed = true;
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        closed = true;
+        System.err.println("Client " + id + " error: " + error);
+    }
+
+    private void handleFrame(JsonElement element, long receivedAt) {
+        if (element.isJsonObject()) {
+            handleMessage(element.getAsJsonObject(), receivedAt);
+            return;
+        }
+        // Messages that arrived in a burst come as one array frame.
+        if (element.isJsonArray()) {
+            for (JsonElement message : element.getAsJsonArray()) {
+                if (message.isJsonObject()) {
+                    handleMessage(message.getAsJsonObject(), receivedAt);
+                }
+            }
+        }
+    }
+
+    private void handleMessage(JsonObject message, long receivedAt) {
+        if ("heartbeat".equals(message.get("type").getAsString())) {
+            // Answer like a browser would, or the web interface closes the connection.
+            JsonObject answer = new JsonObject();
+            answer.addProperty("type", "heartbeat");
+            answer.add("payload", message.get("payload"));
+            sendText(answer.toString());
+            return;
+        }
+        if (
+            "chatMessage".equals(message.get("type").getAsString()) &&
+            !message.getAsJsonObject("payload").get("history").getAsBoolean()
+        ) {
+            chatMessagesReceived.increment();
+            String uuid = message
+                .getAsJsonObject("payload")
+                .get("uuid")
+                .getAsString();
+            Long sentAt = sentAtNanos.get(uuid);
+            if (sentAt != null) {
+                latency.record(receivedAt - sentAt);
+            }
+        }
+        messageListener.accept(message);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isSlow() {
+        return slowDelayMillis > 0;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    public long getChatMessagesReceived() {
+        return chatMessagesReceived.sum();
+    }
+
+    public long getCharsReceived() {
+        return charsReceived.sum();
+    }
+}
@@ -0,0 +1,32 @@
+package dev.creesch.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.loader.impl.launch.knot.Knot;
+
+/**
+ * Entry point for the benchmark and load test tooling.
+ *
+ * Web chat classes expect Fabric Loader to be initialized (config directory, remapped Minecraft classes), but the
+ * tooling must not start the actual game. Just like fabric-loader-junit does for unit tests, Knot is initialized
+ * without launching Minecraft and the actual tool is loaded through the Knot class loader.
+ */
+public final class BenchLauncher {
+
+    private BenchLauncher() {}
+
+    public static void main(String[] args) throws Throwable {
+        Knot knot = new Knot(EnvType.CLIENT);
+        ClassLoader classLoader = knot.init(new String[0]);
+        Thread.currentThread().setContextClassLoader(classLoader);
+
+        try {
+            classLoader
+                .loadClass("dev.creesch.bench.BenchTools")
+                .getMethod("run", String[].class)
+                .invoke(null, (Object) args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package dev.creesch.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import dev.creesch.metrics.WebchatMetrics;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects named results of a run, prints them as a table and optionally writes them as JSON.
+ */
+public final class BenchReport {
+
+    private static final Gson gson = new GsonBuilder()
+        .setPrettyPrinting()
+        .create();
+
+    private final String title;
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    public BenchReport(String title) {
+        this.title = title;
+    }
+
+    public BenchReport put(String key, Object value) {
+        values.put(key, value);
+        return this;
+    }
+
+    public BenchReport putLatency(String prefix, LatencyHistogram histogram) {
+        put(prefix + ".samples", histogram.count());
+        put(prefix + ".meanMs", round(histogram.meanMillis()));
+        put(prefix + ".p50Ms", round(histogram.percentileMillis(50)));
+        put(prefix + ".p90Ms", round(histogram.percentileMillis(90)));
+        put(prefix + ".p99Ms", round(histogram.percentileMillis(99)));
+        put(prefix + ".maxMs", round(histogram.percentileMillis(100)));
+        return this;
+    }
+
+    /**
+     * Adds the difference in web chat metrics since the given snapshot, including the derived DB write rate.
+     *
+     * @param before Snapshot taken at the start of the run
+     * @param seconds Duration of the run
+     */
+    public BenchReport putMetricDeltas(
+        Map<String, Number> before,
+        double seconds
+    ) {
+        Map<String, Number> after = WebchatMetrics.snapshot();
+        after.forEach((name, value) -> {
+            Number previous = before.get(name);
+            if (value instanceof Long longValue && previous != null) {
+                put("metrics." + name, longValue - previous.longValue());
+            } else {
+                put("metrics." + name, value);
+            }
+        });
+
+        long saved =
+            after.getOrDefault("storage.messagesSaved", 0L).longValue() -
+            before.getOrDefault("storage.messagesSaved", 0L).longValue();
+        long saveNanos =
+            after.getOrDefault("storage.saveNanos", 0L).longValue() -
+            before.getOrDefault("storage.saveNanos", 0L).longValue();
+        put("db.writesPerSecond", round(saved / seconds));
+        put(
+            "db.avgSaveMs",
+            saved == 0 ? 0 : round(saveNanos / 1_000_000.0 / saved)
+        );
+        return this;
+    }
+
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    public void print() {
+        int width = values
+            .keySet()
+            .stream()
+            .mapToInt(String::length)
+            .max()
+            .orElse(0);
+        System.out.println();
+        System.out.println("== " + title + " ==");
+        values.forEach((key, value) ->
+            System.out.println(
+                String.format("%-" + width + "s  %s", key, value)
+            )
+        );
+        System.out.println();
+    }
+
+    public void writeJson(Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Files.writeString(path, gson.toJson(values));
+    }
+
+    public static double round(double value) {
+        return Math.round(value * 100.0) / 100.0;
+    }
+}
@@ -0,0 +1,48 @@
+package dev.creesch.bench;
+
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.storage.InMemoryChatMessageRepository;
+import dev.creesch.storage.JournaledChatMessageRepository;
+import dev.creesch.storage.SqliteChatMessageRepository;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * Opens a {@link ChatMessageRepository} by the name used in the {@code --storage} option of the bench tools.
+ */
+public final class BenchStorage {
+
+    public static final String[] TYPES = { "sqlite", "journal", "memory" };
+
+    private BenchStorage() {}
+
+    /**
+     * @param type "sqlite", "journal" (sqlite behind the ingest journal) or "memory"
+     * @param databasePath Database file, only used for sqlite and journal
+     */
+    public static ChatMessageRepository open(String type, Path databasePath) {
+        return switch (type) {
+            case "sqlite" -> new SqliteChatMessageRepository(databasePath);
+            case "journal" -> openJournaled(databasePath);
+            case "memory" -> new InMemoryChatMessageRepository();
+            default -> throw new IllegalArgumentException(
+                "Unknown storage type: " + type
+            );
+        };
+    }
+
+    private static ChatMessageRepository openJournaled(Path databasePath) {
+        try {
+            return new JournaledChatMessageRepository(
+                new SqliteChatMessageRepository(databasePath),
+                databasePath.resolveSibling(
+                    databasePath.getFileName() + ".journal"
+                ),
+                JournaledChatMessageRepository.DEFAULT_CAPACITY
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package dev.creesch.bench;
+
+import net.minecraft.SharedConstants;
+
+/**
+ * Dispatches to the individual tools. Always started through {@link BenchLauncher}.
+ */
+public final class BenchTools {
+
+    private BenchTools() {}
+
+    public static void run(String[] args) throws Exception {
+        String tool = System.getProperty("webchat.bench.tool");
+        if (tool == null) {
+            System.err.println(
+                "Usage: -Dwebchat.bench.tool=<loadTest|replay|storageConformance|storageBenchmark|storageContention|historyConformance|perfGate|encodingComparison> BenchLauncher [--option value ...]"
+            );
+            System.exit(2);
+            return;
+        }
+
+        // Needed by anything that asks for the game version, the game itself does this in its main method.
+        SharedConstants.createGameVersion();
+
+        BenchArgs options = BenchArgs.parse(args);
+        int exitCode = switch (tool) {
+            case "loadTest" -> LoadTest.run(options);
+            case "replay" -> Replay.run(options);
+            case "storageConformance" -> StorageConformance.run(options);
+            case "storageBenchmark" -> StorageBenchmark.run(options);
+            case "storageContention" -> StorageContention.run(options);
+            case "historyConformance" -> HistoryConformance.run(options);
+            case "perfGate" -> PerfGate.run(options);
+            case "encodingComparison" -> EncodingComparison.run(options);
+            default -> {
+                System.err.println("Unknown tool: " + tool);
+                yield 2;
+            }
+        };
+
+        // The web interface and JDBC leave non daemon threads around, exit explicitly.
+        System.exit(exitCode);
+    }
+}
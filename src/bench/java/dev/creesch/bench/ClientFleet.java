@@ -0,0 +1,141 @@
+package dev.creesch.bench;
+
+import dev.creesch.websocket.FrameEncoding;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group of {@link BenchClient}s connected to the same web interface, some of which are deliberately slow.
+ */
+public final class ClientFleet implements AutoCloseable {
+
+    private final Map<String, Long> sentAtNanos = new ConcurrentHashMap<>();
+    private final List<BenchClient> clients = new ArrayList<>();
+    private final ScheduledExecutorService delayExecutor =
+        Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "bench-slow-clients");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+
+    /**
+     * Connects all clients and waits until every one of them is open.
+     */
+    public static ClientFleet connect(
+        int port,
+        int fastClients,
+        int slowClients,
+        long slowDelayMillis,
+        FrameEncoding encoding
+    ) throws Exception {
+        ClientFleet fleet = new ClientFleet();
+        URI uri = URI.create("ws://localhost:" + port + "/chat");
+        List<CompletableFuture<?>> connecting = new ArrayList<>();
+        for (int i = 0; i < fastClients + slowClients; i++) {
+            BenchClient client = new BenchClient(
+                i,
+                i < fastClients ? 0 : slowDelayMillis,
+                encoding,
+                fleet.delayExecutor,
+                fleet.sentAtNanos
+            );
+            fleet.clients.add(client);
+            connecting.add(client.connect(fleet.httpClient, uri));
+        }
+        CompletableFuture.allOf(
+            connecting.toArray(CompletableFuture[]::new)
+        ).get(30, TimeUnit.SECONDS);
+        return fleet;
+    }
+
+    /**
+     * Registers a message as sent, so clients can compute its end-to-end latency.
+     */
+    public void markSent(String uuid) {
+        sentAtNanos.put(uuid, System.nanoTime());
+    }
+
+    public List<BenchClient> getClients() {
+        return clients;
+    }
+
+    /**
+     * Waits until every fast client received the expected amount of chat messages, or until the timeout passes.
+     * Slow clients are not waited on, they are expected to fall behind.
+     */
+    public void awaitFastClients(long expectedMessages, Duration timeout)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            boolean done = clients
+                .stream()
+                .filter((client) -> !client.isSlow())
+                .allMatch(
+                    (client) ->
+                        client.getChatMessagesReceived() >= expectedMessages
+                );
+            if (done) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Adds latency percentiles, delivery counts and dropped frames per client class to the report.
+     */
+    public void report(BenchReport report, long messagesProduced) {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        long dropped = 0;
+        long droppedSlow = 0;
+        long frames = 0;
+        long chars = 0;
+        int closed = 0;
+
+        for (BenchClient client : clients) {
+            long missing = Math.max(
+                0,
+                messagesProduced - client.getChatMessagesReceived()
+            );
+            if (client.isSlow()) {
+                slow.addAll(client.getLatency());
+                droppedSlow += missing;
+            } else {
+                fast.addAll(client.getLatency());
+                dropped += missing;
+            }
+            frames += client.getFramesReceived();
+            chars += client.getCharsReceived();
+            if (client.isClosed()) {
+                closed++;
+            }
+        }
+
+        report.putLatency("latency.fast", fast);
+        report.putLatency("latency.slow", slow);
+        report.put("clients.framesReceived", frames);
+        report.put("clients.charsReceived", chars);
+        report.put("clients.closedDuringRun", closed);
+        report.put("clients.droppedFrames.fast", dropped);
+        report.put("clients.droppedFrames.slow", droppedSlow);
+    }
+
+    @Override
+    public void close() {
+        clients.forEach(BenchClient::close);
+        delayExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,255 @@
+package dev.creesch.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import dev.creesch.history.HistoryService;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.websocket.CborFrames;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compares JSON and CBOR frames (see {@link CborFrames}) for the same traffic: size as sent, size after
+ * permessage-deflate, and how fast frames are converted on the mod's side and read back on the browser's side.
+ *
+ * Three kinds of traffic are compared. Live frames are single chat messages, bursts are the array frames coalescing
+ * sends, and history is real history pages read back through {@link HistoryService} from an in memory repository.
+ * Read speeds are measured with Gson and {@link CborFrames#decode(byte[])}. A browser parses JSON natively, so treat
+ * those as relative numbers only.
+ *
+ * Options:
+ * --messages N         chat messages generated (default 5000)
+ * --burstSize N        messages per burst frame (default 20)
+ * --pageSize N         messages per history page (default 50)
+ * --rounds N           times each conversion is repeated for the throughput numbers (default 5)
+ * --report path        also write the report as JSON
+ */
+public final class EncodingComparison {
+
+    private static final String SERVER_ID = "encoding-comparison";
+    // Same as the web interface's default websocketCompressionLevel.
+    private static final int DEFLATE_LEVEL = 6;
+
+    // Keeps the conversions from being optimized away.
+    private static volatile long sink;
+
+    private EncodingComparison() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        int messageCount = args.getInt("messages", 5000);
+        int burstSize = Math.max(1, args.getInt("burstSize", 20));
+        int pageSize = Math.max(1, args.getInt("pageSize", 50));
+        int rounds = Math.max(1, args.getInt("rounds", 5));
+
+        WebsocketJsonMessage.ChatServerInfo serverInfo =
+            new WebsocketJsonMessage.ChatServerInfo(
+                "Encoding comparison",
+                SERVER_ID
+            );
+        SyntheticChat chat = new SyntheticChat(11L, serverInfo, 40);
+        Gson gson = new Gson();
+        List<WebsocketJsonMessage> messages = new ArrayList<>(messageCount);
+        List<String> live = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            WebsocketJsonMessage message = chat.next();
+            messages.add(message);
+            live.add(gson.toJson(message));
+        }
+
+        List<String> bursts = new ArrayList<>();
+        for (int from = 0; from < live.size(); from += burstSize) {
+            bursts.add(
+                "[" +
+                    String.join(
+                        ",",
+                        live.subList(
+                            from,
+                            Math.min(from + burstSize, live.size())
+                        )
+                    ) +
+                    "]"
+            );
+        }
+
+        Path workDir = Files.createTempDirectory("web-chat-encoding");
+        ChatMessageRepository repository = BenchStorage.open(
+            "memory",
+            workDir.resolve("chat_messages.db")
+        );
+        for (int from = 0; from < messageCount; from += 1000) {
+            repository.saveMessages(
+                messages.subList(from, Math.min(from + 1000, messageCount))
+            );
+        }
+        List<String> history = historyFrames(
+            new HistoryService(
+                repository,
+                new HeadlessGameBridge(serverInfo, 0),
+                0
+            ),
+            pageSize
+        );
+        repository.close();
+
+        BenchReport report = new BenchReport("Encoding comparison");
+        report.put("config.messages", messageCount);
+        report.put("config.burstSize", burstSize);
+        report.put("config.pageSize", pageSize);
+        compare(report, "live", live, rounds);
+        compare(report, "burst", bursts, rounds);
+        compare(report, "history", history, rounds);
+
+        report.print();
+        if (args.has("report")) {
+            report.writeJson(Path.of(args.getString("report", "")));
+        }
+        return 0;
+    }
+
+    /**
+     * Reads pages from newest to oldest, the way a browser scrolling back does.
+     */
+    private static List<String> historyFrames(
+        HistoryService historyService,
+        int pageSize
+    ) {
+        List<String> frames = new ArrayList<>();
+        Long before = null;
+        while (true) {
+            List<String> page = historyService.getPage(
+                SERVER_ID,
+                pageSize,
+                before
+            );
+            frames.addAll(page);
+            // The last frame of a page is its metadata.
+            JsonObject metaData = JsonParser.parseString(page.getLast())
+                .getAsJsonObject()
+                .getAsJsonObject("payload");
+            if (
+                page.size() <= 1 ||
+                !metaData.get("moreHistoryAvailable").getAsBoolean()
+            ) {
+                return frames;
+            }
+            before = metaData.get("oldestMessageTimestamp").getAsLong();
+        }
+    }
+
+    private static void compare(
+        BenchReport report,
+        String kind,
+        List<String> jsonFrames,
+        int rounds
+    ) {
+        List<byte[]> json = new ArrayList<>(jsonFrames.size());
+        List<byte[]> cbor = new ArrayList<>(jsonFrames.size());
+        long jsonBytes = 0;
+        long cborBytes = 0;
+        for (String frame : jsonFrames) {
+            byte[] utf8 = frame.getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = CborFrames.encode(JsonParser.parseString(frame));
+            json.add(utf8);
+            cbor.add(encoded);
+            jsonBytes += utf8.length;
+            cborBytes += encoded.length;
+        }
+        long jsonDeflated = deflatedBytes(json);
+        long cborDeflated = deflatedBytes(cbor);
+
+        report.put(kind + ".frames", jsonFrames.size());
+        report.put(kind + ".json.bytes", jsonBytes);
+        report.put(kind + ".cbor.bytes", cborBytes);
+        report.put(
+            kind + ".cbor.sizeRatio",
+            BenchReport.round((double) cborBytes / Math.max(1, jsonBytes))
+        );
+        report.put(kind + ".json.deflatedBytes", jsonDeflated);
+        report.put(kind + ".cbor.deflatedBytes", cborDeflated);
+        report.put(
+            kind + ".cbor.deflatedSizeRatio",
+            BenchReport.round((double) cborDeflated / Math.max(1, jsonDeflated))
+        );
+
+        // Warm up once, then time the rest.
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            for (String frame : jsonFrames) {
+                sink += CborFrames.encode(JsonParser.parseString(frame)).length;
+            }
+            if (round > 0) {
+                putRate(report, kind + ".cbor.encode", jsonFrames.size(), start);
+            }
+
+            start = System.nanoTime();
+            for (String frame : jsonFrames) {
+                sink += JsonParser.parseString(frame).hashCode();
+            }
+            if (round > 0) {
+                putRate(report, kind + ".json.read", jsonFrames.size(), start);
+            }
+
+            start = System.nanoTime();
+            for (byte[] frame : cbor) {
+                sink += CborFrames.decode(frame).hashCode();
+            }
+            if (round > 0) {
+                putRate(report, kind + ".cbor.read", jsonFrames.size(), start);
+            }
+        }
+    }
+
+    /**
+     * Size after permessage-deflate with context takeover, like a browser connection with the default settings. One
+     * compression context for all frames, each frame flushed and without the trailing empty block.
+     */
+    private static long deflatedBytes(List<byte[]> frames) {
+        Deflater deflater = new Deflater(DEFLATE_LEVEL, true);
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        for (byte[] frame : frames) {
+            deflater.setInput(frame);
+            int length;
+            do {
+                length = deflater.deflate(
+                    buffer,
+                    0,
+                    buffer.length,
+                    Deflater.SYNC_FLUSH
+                );
+                total += length;
+            } while (length == buffer.length);
+            // The 00 00 FF FF tail of every flush isn't sent.
+            total -= 4;
+        }
+        deflater.end();
+        return total;
+    }
+
+    /**
+     * Keeps the best round, the others are mostly the JIT and the garbage collector.
+     */
+    private static void putRate(
+        BenchReport report,
+        String prefix,
+        long operations,
+        long startNanos
+    ) {
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        double rate = BenchReport.round(
+            operations / Math.max(seconds, 0.000001)
+        );
+        String key = prefix + ".perSecond";
+        Object previous = report.getValues().get(key);
+        if (previous instanceof Number number && number.doubleValue() >= rate) {
+            return;
+        }
+        report.put(key, rate);
+    }
+}
@@ -0,0 +1,81 @@
+package dev.creesch.bench;
+
+import com.google.gson.JsonObject;
+import dev.creesch.GameBridge;
+import dev.creesch.WebchatClient;
+import dev.creesch.model.PlayerListInfoEntry;
+import dev.creesch.model.WebsocketJsonMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in for the running game. Pretends to be connected to a single server with a fixed player list and counts
+ * chat messages that would have been sent to Minecraft.
+ */
+public class HeadlessGameBridge implements GameBridge {
+
+    public static final String MINECRAFT_VERSION = "bench";
+
+    private final WebsocketJsonMessage.ChatServerInfo serverInfo;
+    private final List<PlayerListInfoEntry> players = new ArrayList<>();
+    private final LongAdder chatMessagesSent = new LongAdder();
+
+    public HeadlessGameBridge(
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        int playerCount
+    ) {
+        this.serverInfo = serverInfo;
+        for (int i = 0; i < playerCount; i++) {
+            String playerName = SyntheticChat.playerName(i);
+            JsonObject displayName = new JsonObject();
+            displayName.addProperty("text", playerName);
+            players.add(
+                PlayerListInfoEntry.builder()
+                    .playerId(
+                        UUID.nameUUIDFromBytes(playerName.getBytes()).toString()
+                    )
+                    .playerName(playerName)
+                    .playerDisplayName(displayName)
+                    .playerTextureUrl("unknown")
+                    .build()
+            );
+        }
+    }
+
+    @Override
+    public boolean isInWorld() {
+        return true;
+    }
+
+    @Override
+    public WebsocketJsonMessage.ChatServerInfo getServerInfo() {
+        return serverInfo;
+    }
+
+    @Override
+    public String getMinecraftVersion() {
+        return MINECRAFT_VERSION;
+    }
+
+    @Override
+    public WebsocketJsonMessage createPlayerListMessage() {
+        return WebsocketJsonMessage.createServerPlayerListMessage(
+            System.currentTimeMillis(),
+            serverInfo,
+            players,
+            MINECRAFT_VERSION,
+            WebchatClient.getModVersion()
+        );
+    }
+
+    @Override
+    public void sendChatMessage(String message) {
+        chatMessagesSent.increment();
+    }
+
+    public long getChatMessagesSent() {
+        return chatMessagesSent.sum();
+    }
+}
@@ -0,0 +1,376 @@
+package dev.creesch.bench;
+
+import com.google.gson.JsonObject;
+import dev.creesch.WebchatClient;
+import dev.creesch.history.HistoryService;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.storage.InMemoryChatMessageRepository;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Checks the caching, query coalescing and streaming of {@link HistoryService} by counting the queries that reach the
+ * repository. Exits non zero when any check fails.
+ *
+ * Options:
+ * --concurrency n      amount of identical requests fired at once (default 32)
+ */
+public final class HistoryConformance {
+
+    private static final String SERVER = "history-server";
+    private static final long CACHE_BYTES = 8L * 1024 * 1024;
+    private static final LongAdder QUERIES_COALESCED = WebchatMetrics.counter(
+        "history.queriesCoalesced"
+    );
+
+    private interface Check {
+        void run(CountingRepository repository, HistoryService history)
+            throws Exception;
+    }
+
+    private HistoryConformance() {}
+
+    public static int run(BenchArgs args) {
+        int concurrency = args.getInt("concurrency", 32);
+        HeadlessGameBridge gameBridge = new HeadlessGameBridge(
+            serverInfo(),
+            0
+        );
+
+        int failures = 0;
+        for (Map.Entry<String, Check> entry : checks(concurrency).entrySet()) {
+            CountingRepository repository = new CountingRepository();
+            long cacheBytes = entry.getKey().startsWith("cache disabled")
+                ? 0
+                : CACHE_BYTES;
+            HistoryService history = new HistoryService(
+                repository,
+                gameBridge,
+                cacheBytes
+            );
+            repository.addChangeListener(history);
+            try {
+                entry.getValue().run(repository, history);
+                System.out.println("  PASS " + entry.getKey());
+            } catch (Exception | AssertionError e) {
+                failures++;
+                System.out.println(
+                    "  FAIL " + entry.getKey() + ": " + e.getMessage()
+                );
+            } finally {
+                repository.release();
+                repository.close();
+            }
+        }
+
+        System.out.println(
+            failures == 0 ? "All checks passed" : failures + " check(s) failed"
+        );
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static Map<String, Check> checks(int concurrency) {
+        Map<String, Check> checks = new LinkedHashMap<>();
+
+        checks.put(
+            "concurrent identical requests run one query",
+            (repository, history) -> {
+                saveMessages(repository, 100);
+                repository.blockNextQuery();
+
+                long coalescedBefore = QUERIES_COALESCED.sum();
+                ExecutorService executor = Executors.newFixedThreadPool(
+                    concurrency
+                );
+                try {
+                    List<Future<List<String>>> requests = new ArrayList<>();
+                    for (int i = 0; i < concurrency; i++) {
+                        requests.add(
+                            executor.submit(() -> history.getPage(SERVER, 50, null))
+                        );
+                    }
+
+                    // Only release the query once every other request is waiting on it.
+                    awaitCondition(
+                        () ->
+                            QUERIES_COALESCED.sum() - coalescedBefore ==
+                            concurrency - 1,
+                        "all requests waiting on the running query"
+                    );
+                    repository.release();
+
+                    List<String> first = requests.get(0).get(10, TimeUnit.SECONDS);
+                    for (Future<List<String>> request : requests) {
+                        expectEquals(
+                            first,
+                            request.get(10, TimeUnit.SECONDS),
+                            "every request gets the same page"
+                        );
+                    }
+                    expectEquals(1, repository.queries(), "queries");
+                    expectEquals(51, first.size(), "meta frame and messages");
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        );
+
+        checks.put(
+            "request after a save doesn't join an older query",
+            (repository, history) -> {
+                saveMessages(repository, 10);
+                repository.blockNextQuery();
+
+                Thread blocked = new Thread(() ->
+                    history.getPage(SERVER, 50, null)
+                );
+                blocked.start();
+                awaitCondition(
+                    () -> repository.queries() == 1,
+                    "first query running"
+                );
+
+                repository.saveMessage(message(11_000, "m11"));
+                List<String> page = history.getPage(SERVER, 50, null);
+                repository.release();
+                blocked.join(10_000);
+
+                expectEquals(2, repository.queries(), "queries");
+                expect(page.get(0).contains("m11"), "new message in page");
+            }
+        );
+
+        checks.put("repeated request is served from cache", (repository, history) -> {
+            saveMessages(repository, 10);
+
+            List<String> first = history.getPage(SERVER, 5, null);
+            List<String> second = history.getPage(SERVER, 5, null);
+            expectEquals(first, second, "same page");
+            expectEquals(1, repository.queries(), "queries");
+
+            history.getPage(SERVER, 6, null);
+            expectEquals(2, repository.queries(), "other limit is its own page");
+        });
+
+        checks.put("insert only invalidates the head page", (repository, history) -> {
+            saveMessages(repository, 10);
+            history.getPage(SERVER, 3, null);
+            history.getPage(SERVER, 2, 5000L);
+            expectEquals(2, repository.queries(), "queries after warmup");
+
+            repository.saveMessage(message(11_000, "m11"));
+            List<String> head = history.getPage(SERVER, 3, null);
+            history.getPage(SERVER, 2, 5000L);
+            expectEquals(3, repository.queries(), "queries after insert");
+            expect(head.get(0).contains("m11"), "new message in head page");
+        });
+
+        checks.put("delete invalidates every page", (repository, history) -> {
+            saveMessages(repository, 10);
+            history.getPage(SERVER, 3, null);
+            history.getPage(SERVER, 2, 5000L);
+
+            repository.deleteMessages(SERVER, 3000L);
+            history.getPage(SERVER, 3, null);
+            List<String> deep = history.getPage(SERVER, 2, 5000L);
+            expectEquals(4, repository.queries(), "queries after delete");
+            expect(deep.get(0).contains("m4"), "m4 is kept");
+            expect(deep.get(1).contains("m3"), "m3 is kept");
+        });
+
+        checks.put("large pages are streamed, not cached", (repository, history) -> {
+            saveMessages(repository, 1200);
+
+            List<String> frames = new ArrayList<>();
+            history.sendPage(SERVER, 1000, null, frames::add);
+            expectEquals(1001, frames.size(), "messages and meta frame");
+            expect(frames.get(0).contains("m1200"), "newest message first");
+            expect(frames.get(999).contains("m201"), "oldest message last");
+            expect(
+                frames.get(1000).contains("\"moreHistoryAvailable\":true"),
+                "more history available"
+            );
+            expectEquals(0, history.cachedPages(), "cached pages");
+
+            frames.clear();
+            history.sendPage(SERVER, HistoryService.MAX_PAGE_LIMIT * 2, null, frames::add);
+            expectEquals(1201, frames.size(), "limit capped, all messages sent");
+            expect(
+                frames.get(1200).contains("\"moreHistoryAvailable\":false"),
+                "no more history"
+            );
+        });
+
+        checks.put("streamed chunks keep messages sharing a timestamp", (repository, history) -> {
+            // More messages with one timestamp than fit in a chunk, the chunk boundary falls among them.
+            List<WebsocketJsonMessage> messages = new ArrayList<>();
+            for (int i = 1; i <= 1200; i++) {
+                messages.add(message(i <= 100 ? 1000L : 2000L, "m" + i));
+            }
+            repository.saveMessages(messages);
+
+            List<String> frames = new ArrayList<>();
+            expect(history.sendPage(SERVER, 1150, null, frames::add), "complete");
+            expectEquals(1151, frames.size(), "messages and meta frame");
+            expectEquals(
+                1150L,
+                frames.stream().limit(1150).distinct().count(),
+                "no message sent twice"
+            );
+            // Ties come newest saved first, m100 down to m51 are the first 50 of the older timestamp.
+            expect(frames.get(1149).contains("\"m51\""), "oldest message last");
+            expect(
+                frames.get(1150).contains("\"moreHistoryAvailable\":true"),
+                "more history available"
+            );
+        });
+
+        checks.put("a refused frame stops the page", (repository, history) -> {
+            saveMessages(repository, 1200);
+            for (int limit : new int[] { 50, 1000 }) {
+                List<String> frames = new ArrayList<>();
+                boolean complete = history.sendPage(
+                    SERVER,
+                    limit,
+                    null,
+                    (frame) -> frames.size() < 10 && frames.add(frame)
+                );
+                expect(!complete, "stopped at limit " + limit);
+                expectEquals(10, frames.size(), "frames at limit " + limit);
+            }
+        });
+
+        checks.put("cache disabled runs every query", (repository, history) -> {
+            saveMessages(repository, 10);
+            history.getPage(SERVER, 5, null);
+            history.getPage(SERVER, 5, null);
+            expectEquals(2, repository.queries(), "queries");
+            expectEquals(0, history.cachedPages(), "cached pages");
+        });
+
+        return checks;
+    }
+
+    /**
+     * In memory repository that counts page reads and can hold the next one until released.
+     */
+    private static final class CountingRepository
+        extends InMemoryChatMessageRepository {
+
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private volatile boolean blockNext = false;
+
+        void blockNextQuery() {
+            gate = new CountDownLatch(1);
+            blockNext = true;
+        }
+
+        void release() {
+            gate.countDown();
+        }
+
+        int queries() {
+            return queries.get();
+        }
+
+        @Override
+        public void streamMessages(
+            String serverId,
+            int limit,
+            Long beforeTimestamp,
+            Consumer<WebsocketJsonMessage> consumer
+        ) {
+            queries.incrementAndGet();
+            if (blockNext) {
+                blockNext = false;
+                try {
+                    gate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.streamMessages(serverId, limit, beforeTimestamp, consumer);
+        }
+    }
+
+    private static void saveMessages(ChatMessageRepository repository, int count) {
+        List<WebsocketJsonMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            messages.add(message(i * 1000L, "m" + i));
+        }
+        repository.saveMessages(messages);
+    }
+
+    private static WebsocketJsonMessage message(long timestamp, String text) {
+        JsonObject component = new JsonObject();
+        component.addProperty("text", text);
+
+        ChatMessagePayload payload = ChatMessagePayload.builder()
+            .history(false)
+            .uuid(SERVER + "-" + timestamp + "-" + text)
+            .component(component)
+            .translations(Map.of())
+            .isPing(false)
+            .build();
+
+        return WebsocketJsonMessage.createChatMessage(
+            timestamp,
+            serverInfo(),
+            payload,
+            HeadlessGameBridge.MINECRAFT_VERSION,
+            WebchatClient.getModVersion()
+        );
+    }
+
+    private static WebsocketJsonMessage.ChatServerInfo serverInfo() {
+        return new WebsocketJsonMessage.ChatServerInfo("History", SERVER);
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void awaitCondition(Condition condition, String description)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.met()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("timed out waiting for " + description);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void expect(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError(description);
+        }
+    }
+
+    private static void expectEquals(
+        Object expected,
+        Object actual,
+        String description
+    ) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(
+                description + ", expected " + expected + " but got " + actual
+            );
+        }
+    }
+}
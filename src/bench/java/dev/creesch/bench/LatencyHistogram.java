@@ -0,0 +1,61 @@
+package dev.creesch.bench;
+
+import java.util.Arrays;
+
+/**
+ * Records raw latency samples in nanoseconds. Runs are short enough that keeping every sample is fine and gives
+ * exact percentiles.
+ */
+public final class LatencyHistogram {
+
+    private long[] samples = new long[1024];
+    private int count = 0;
+
+    public synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public synchronized void addAll(LatencyHistogram other) {
+        long[] otherSamples;
+        int otherCount;
+        synchronized (other) {
+            otherSamples = other.samples;
+            otherCount = other.count;
+        }
+        for (int i = 0; i < otherCount; i++) {
+            record(otherSamples[i]);
+        }
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The value at that percentile in milliseconds, or 0 if nothing was recorded
+     */
+    public synchronized double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil((percentile / 100.0) * count) - 1;
+        return sorted[Math.clamp(index, 0, count - 1)] / 1_000_000.0;
+    }
+
+    public synchronized double meanMillis() {
+        if (count == 0) {
+            return 0.0;
+        }
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count / 1_000_000.0;
+    }
+}
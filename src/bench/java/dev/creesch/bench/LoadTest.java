@@ -0,0 +1,166 @@
+package dev.creesch.bench;
+
+import dev.creesch.WebInterface;
+import dev.creesch.config.ModConfig;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.websocket.FrameEncoding;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load test: a synthetic chat producer feeds the real {@link ChatMessageRepository} and
+ * {@link WebInterface} while a fleet of WebSocket clients reads the broadcast frames.
+ *
+ * Options:
+ * --clients N          fast clients (default 20)
+ * --slowClients N      slow clients (default 2)
+ * --slowDelayMs N      delay before a slow client reads the next frame (default 250)
+ * --rate N             chat messages per second (default 50)
+ * --burst N            extra messages produced at once every second, like /list output (default 0)
+ * --duration N         seconds to produce messages (default 30)
+ * --drain N            seconds to wait for clients to catch up afterwards (default 5)
+ * --port N             web interface port (default 18080)
+ * --encoding type      frame encoding the clients ask for, "json" or "cbor" (default json)
+ * --players N          players on the fake server (default 40)
+ * --storage type       "sqlite", "journal" or "memory" (default sqlite)
+ * --report path        also write the report as JSON
+ */
+public final class LoadTest {
+
+    private LoadTest() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        int fastClients = args.getInt("clients", 20);
+        int slowClients = args.getInt("slowClients", 2);
+        int slowDelayMillis = args.getInt("slowDelayMs", 250);
+        int rate = Math.max(1, args.getInt("rate", 50));
+        int burst = args.getInt("burst", 0);
+        int durationSeconds = args.getInt("duration", 30);
+        int drainSeconds = args.getInt("drain", 5);
+        int port = args.getInt("port", 18080);
+        int players = args.getInt("players", 40);
+        FrameEncoding encoding = BenchClient.encoding(
+            args.getString("encoding", "json")
+        );
+
+        Path workDir = Files.createTempDirectory("web-chat-load-test");
+        WebsocketJsonMessage.ChatServerInfo serverInfo =
+            new WebsocketJsonMessage.ChatServerInfo(
+                "Load test",
+                "load-test-server"
+            );
+
+        // Only the in memory config instance is changed, nothing is saved.
+        ModConfig.HANDLER.instance().httpPortNumber = port;
+        // Every bench client connects from localhost.
+        ModConfig.HANDLER.instance().websocketMaxConnections = 0;
+        ModConfig.HANDLER.instance().websocketMaxConnectionsPerAddress = 0;
+        HeadlessGameBridge gameBridge = new HeadlessGameBridge(
+            serverInfo,
+            players
+        );
+        ChatMessageRepository repository = BenchStorage.open(
+            args.getString("storage", "sqlite"),
+            workDir.resolve("chat_messages.db")
+        );
+        WebInterface webInterface = new WebInterface(repository, gameBridge);
+
+        SyntheticChat chat = new SyntheticChat(42L, serverInfo, players);
+        LatencyHistogram ingest = new LatencyHistogram();
+        AtomicLong produced = new AtomicLong();
+        Map<String, Number> metricsBefore = WebchatMetrics.snapshot();
+
+        // A single thread plays the part of the game's client thread, exactly like the chat events in the mod.
+        ScheduledExecutorService gameThread =
+            Executors.newSingleThreadScheduledExecutor((runnable) ->
+                new Thread(runnable, "bench-game-thread")
+            );
+
+        try (
+            ClientFleet fleet = ClientFleet.connect(
+                port,
+                fastClients,
+                slowClients,
+                slowDelayMillis,
+                encoding
+            )
+        ) {
+            Runnable produceOne = () -> {
+                WebsocketJsonMessage message = chat.next();
+                fleet.markSent(
+                    ((ChatMessagePayload) message.getPayload()).getUuid()
+                );
+                long start = System.nanoTime();
+                repository.saveMessage(message);
+                webInterface.broadcastMessage(message);
+                ingest.record(System.nanoTime() - start);
+                produced.incrementAndGet();
+            };
+
+            long startedAt = System.nanoTime();
+            gameThread.scheduleAtFixedRate(
+                produceOne,
+                0,
+                1_000_000_000L / rate,
+                TimeUnit.NANOSECONDS
+            );
+            if (burst > 0) {
+                gameThread.scheduleAtFixedRate(
+                    () -> {
+                        for (int i = 0; i < burst; i++) {
+                            produceOne.run();
+                        }
+                    },
+                    1,
+                    1,
+                    TimeUnit.SECONDS
+                );
+            }
+
+            Thread.sleep(durationSeconds * 1000L);
+            gameThread.shutdown();
+            gameThread.awaitTermination(10, TimeUnit.SECONDS);
+            double producingSeconds =
+                (System.nanoTime() - startedAt) / 1_000_000_000.0;
+
+            fleet.awaitFastClients(
+                produced.get(),
+                Duration.ofSeconds(drainSeconds)
+            );
+
+            BenchReport report = new BenchReport("Load test");
+            report.put("config.fastClients", fastClients);
+            report.put("config.slowClients", slowClients);
+            report.put("config.rate", rate);
+            report.put("config.burst", burst);
+            report.put("config.encoding", encoding.name());
+            report.put("messages.produced", produced.get());
+            report.put(
+                "messages.perSecond",
+                BenchReport.round(produced.get() / producingSeconds)
+            );
+            report.putLatency("ingest", ingest);
+            fleet.report(report, produced.get());
+            report.putMetricDeltas(metricsBefore, producingSeconds);
+            report.print();
+
+            if (args.has("report")) {
+                report.writeJson(Path.of(args.getString("report", "")));
+            }
+        } finally {
+            gameThread.shutdownNow();
+            webInterface.shutdown();
+            repository.close();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,541 @@
+package dev.creesch.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import dev.creesch.WebInterface;
+import dev.creesch.config.ModConfig;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.model.WebsocketMessageBuilder;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.storage.SqliteChatMessageRepository;
+import dev.creesch.storage.StoredMessage;
+import dev.creesch.websocket.FrameEncoding;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Performance regression gate. Runs a fixed set of micro benchmarks over the hot paths (message building, storage and
+ * web interface fan-out) and compares them against the baselines in {@code src/bench/resources/perf-baseline.json},
+ * or in the file given with {@code --baseline}. Exits non zero when any benchmark is slower than its baseline by more
+ * than the allowed tolerance. CI records its baseline from the base commit on the same runner before running the gate.
+ *
+ * Every result is nanoseconds per operation, the median of several rounds. To make baselines usable across machines
+ * all baselines are scaled by how fast this machine runs the {@code calibration} benchmark compared to the machine
+ * that recorded them.
+ *
+ * Options:
+ * --baseline path      baseline file (default src/bench/resources/perf-baseline.json)
+ * --tolerance value    overrides every tolerance, 0.3 allows 30% slower than baseline
+ * --rounds N           measured rounds per benchmark (default 5)
+ * --only prefix        only run benchmarks whose name starts with prefix
+ * --noCalibration      compare raw numbers, don't scale baselines
+ * --updateBaseline     write the measured numbers to the baseline file instead of comparing
+ * --report path        where to write the diff report (default perf-gate.txt)
+ */
+public final class PerfGate {
+
+    private static final String DEFAULT_BASELINE =
+        "src/bench/resources/perf-baseline.json";
+    private static final double DEFAULT_TOLERANCE = 0.3;
+    private static final String CALIBRATION = "calibration";
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int PORT = 18082;
+    private static final int READ_SEED_MESSAGES = 10000;
+    private static final int BATCH_SIZE = 500;
+
+    private static final Gson gson = new GsonBuilder()
+        .setPrettyPrinting()
+        .create();
+
+    /**
+     * Runs the given amount of operations of a benchmark.
+     */
+    private interface Workload {
+        void run(int operations) throws Exception;
+    }
+
+    private record Benchmark(String name, int operations, Workload workload) {}
+
+    private PerfGate() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        Path baselinePath = resolveBaseline(args);
+        int rounds = Math.max(1, args.getInt("rounds", 5));
+        String only = args.getString("only", "");
+
+        Path workDir = Files.createTempDirectory("web-chat-perf-gate");
+        WebsocketJsonMessage.ChatServerInfo serverInfo =
+            new WebsocketJsonMessage.ChatServerInfo(
+                "Perf gate",
+                "perf-gate-server"
+            );
+
+        // Only the in memory config instance is changed, nothing is saved.
+        ModConfig config = ModConfig.HANDLER.instance();
+        config.httpPortNumber = PORT;
+        // Every bench client connects from localhost.
+        config.websocketMaxConnections = 0;
+        config.websocketMaxConnectionsPerAddress = 0;
+        config.pingOnUsername = true;
+        config.pingKeywords = List.of("creeper", "webchat", "admin");
+
+        ChatMessageRepository repository = new SqliteChatMessageRepository(
+            workDir.resolve("chat_messages.db")
+        );
+        // The page benchmarks read from their own database with a fixed amount of messages, so their numbers don't
+        // depend on how much the save benchmarks wrote before them.
+        ChatMessageRepository readRepository = new SqliteChatMessageRepository(
+            workDir.resolve("read_messages.db")
+        );
+        long middle = seed(readRepository, serverInfo);
+        WebInterface webInterface = new WebInterface(
+            repository,
+            new HeadlessGameBridge(serverInfo, 0)
+        );
+        ClientFleet fleet = ClientFleet.connect(
+            PORT,
+            10,
+            0,
+            0,
+            FrameEncoding.JSON
+        );
+
+        Map<String, Double> measured = new LinkedHashMap<>();
+        try {
+            for (Benchmark benchmark : benchmarks(
+                serverInfo,
+                repository,
+                readRepository,
+                middle,
+                webInterface,
+                fleet
+            )) {
+                boolean selected =
+                    benchmark.name().equals(CALIBRATION) ||
+                    benchmark.name().startsWith(only);
+                if (!selected) {
+                    continue;
+                }
+                double nanosPerOp = measure(benchmark, rounds);
+                measured.put(benchmark.name(), nanosPerOp);
+                System.out.printf(
+                    "  %-24s %12.1f ns/op%n",
+                    benchmark.name(),
+                    nanosPerOp
+                );
+            }
+        } finally {
+            fleet.close();
+            webInterface.shutdown();
+            repository.close();
+            readRepository.close();
+        }
+
+        JsonObject baseline = Files.exists(baselinePath)
+            ? JsonParser.parseString(
+                Files.readString(baselinePath)
+            ).getAsJsonObject()
+            : new JsonObject();
+
+        if (args.getBoolean("updateBaseline")) {
+            writeBaseline(baselinePath, baseline, measured, only.isEmpty());
+            System.out.println("Baseline written to " + baselinePath);
+            return 0;
+        }
+
+        List<String> lines = new ArrayList<>();
+        int regressions = compare(args, baseline, measured, lines);
+        lines.forEach(System.out::println);
+
+        Path reportPath = Path.of(args.getString("report", "perf-gate.txt"));
+        if (reportPath.getParent() != null) {
+            Files.createDirectories(reportPath.getParent());
+        }
+        Files.write(reportPath, lines);
+        System.out.println("Report written to " + reportPath.toAbsolutePath());
+        return regressions == 0 ? 0 : 1;
+    }
+
+    /**
+     * Fills the read benchmark database with {@link #READ_SEED_MESSAGES} messages.
+     *
+     * @return Timestamp of the message in the middle, where the deep page benchmark starts reading
+     */
+    private static long seed(
+        ChatMessageRepository repository,
+        WebsocketJsonMessage.ChatServerInfo serverInfo
+    ) {
+        SyntheticChat chat = new SyntheticChat(31L, serverInfo, 40);
+        long middle = 0;
+        List<WebsocketJsonMessage> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < READ_SEED_MESSAGES; i++) {
+            WebsocketJsonMessage message = chat.next();
+            if (i == READ_SEED_MESSAGES / 2) {
+                middle = message.getTimestamp();
+            }
+            batch.add(message);
+            if (batch.size() == BATCH_SIZE) {
+                repository.saveMessages(batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            repository.saveMessages(batch);
+        }
+        return middle;
+    }
+
+    private static List<Benchmark> benchmarks(
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        ChatMessageRepository repository,
+        ChatMessageRepository readRepository,
+        long middle,
+        WebInterface webInterface,
+        ClientFleet fleet
+    ) {
+        SyntheticChat chat = new SyntheticChat(30L, serverInfo, 40);
+        List<WebsocketJsonMessage> messages = new ArrayList<>();
+        List<StoredMessage> storedMessages = new ArrayList<>();
+        List<String> chatLines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            WebsocketJsonMessage message = chat.next();
+            messages.add(message);
+            storedMessages.add(StoredMessage.from(message));
+            chatLines.add(chat.nextPlainChatLine());
+        }
+        List<String> ownNames = List.of("Player7", "[VIP] Player7");
+        Gson plainGson = new Gson();
+        AtomicLong cursor = new AtomicLong();
+        AtomicLong broadcasted = new AtomicLong();
+
+        String calibrationJson = plainGson.toJson(messages.get(0));
+        Pattern calibrationPattern = Pattern.compile(
+            "\"text\":\"([^\"]*)\""
+        );
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        // Fixed JSON and regex work, the same kind of work the hot paths do. Used to scale baselines.
+        benchmarks.add(
+            new Benchmark(CALIBRATION, 2000, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    JsonObject parsed = JsonParser.parseString(
+                        calibrationJson
+                    ).getAsJsonObject();
+                    calibrationPattern.matcher(parsed.toString()).find();
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("builder.isPing", 20000, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    WebsocketMessageBuilder.isPing(
+                        chatLines.get(i % chatLines.size()),
+                        ownNames
+                    );
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("builder.historicMessage", 2000, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    storedMessages
+                        .get(i % storedMessages.size())
+                        .toHistoricMessage();
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("builder.serialize", 2000, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    plainGson.toJson(messages.get(i % messages.size()));
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("storage.save", 200, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    repository.saveMessage(
+                        messages.get(
+                            (int) (cursor.getAndIncrement() % messages.size())
+                        )
+                    );
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("storage.batchSave", 2000, (operations) -> {
+                for (int from = 0; from < operations; from += BATCH_SIZE) {
+                    int size = Math.min(BATCH_SIZE, operations - from);
+                    List<WebsocketJsonMessage> batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(
+                            messages.get(
+                                (int) (cursor.getAndIncrement() %
+                                    messages.size())
+                            )
+                        );
+                    }
+                    repository.saveMessages(batch);
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("storage.headPage", 200, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    readRepository.getMessages(
+                        serverInfo.getIdentifier(),
+                        50
+                    );
+                }
+            })
+        );
+
+        benchmarks.add(
+            new Benchmark("storage.deepPage", 200, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    readRepository.getMessages(
+                        serverInfo.getIdentifier(),
+                        50,
+                        middle
+                    );
+                }
+            })
+        );
+
+        // Nanoseconds per message broadcast to all connected clients, until every client received it.
+        benchmarks.add(
+            new Benchmark("webInterface.fanout", 500, (operations) -> {
+                for (int i = 0; i < operations; i++) {
+                    webInterface.broadcastMessage(
+                        messages.get(i % messages.size())
+                    );
+                }
+                long expected = broadcasted.addAndGet(operations);
+                fleet.awaitFastClients(expected, Duration.ofSeconds(30));
+                boolean delivered = fleet
+                    .getClients()
+                    .stream()
+                    .allMatch(
+                        (client) -> client.getChatMessagesReceived() >= expected
+                    );
+                if (!delivered) {
+                    throw new IllegalStateException(
+                        "Not every client received all broadcast messages"
+                    );
+                }
+            })
+        );
+
+        return benchmarks;
+    }
+
+    private static double measure(Benchmark benchmark, int rounds)
+        throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            benchmark.workload().run(benchmark.operations());
+        }
+
+        double[] results = new double[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            benchmark.workload().run(benchmark.operations());
+            results[i] =
+                (double) (System.nanoTime() - start) / benchmark.operations();
+        }
+        Arrays.sort(results);
+        return BenchReport.round(results[rounds / 2]);
+    }
+
+    /**
+     * Compares measured numbers with the baseline and adds a readable table to {@code lines}.
+     *
+     * @return Amount of regressed benchmarks
+     */
+    private static int compare(
+        BenchArgs args,
+        JsonObject baseline,
+        Map<String, Double> measured,
+        List<String> lines
+    ) {
+        JsonObject benchmarks = baseline.has("benchmarks")
+            ? baseline.getAsJsonObject("benchmarks")
+            : new JsonObject();
+        double defaultTolerance = baseline.has("defaultTolerance")
+            ? baseline.get("defaultTolerance").getAsDouble()
+            : DEFAULT_TOLERANCE;
+
+        double scale = 1;
+        if (
+            !args.getBoolean("noCalibration") &&
+            benchmarks.has(CALIBRATION) &&
+            measured.containsKey(CALIBRATION)
+        ) {
+            scale =
+                measured.get(CALIBRATION) /
+                benchmarks
+                    .getAsJsonObject(CALIBRATION)
+                    .get("nanosPerOp")
+                    .getAsDouble();
+        }
+
+        lines.add("== Performance gate ==");
+        lines.add(
+            "Baselines scaled by %.2f (calibration on this machine vs baseline machine)".formatted(
+                scale
+            )
+        );
+        lines.add(
+            String.format(
+                "%-24s %14s %14s %9s %9s  %s",
+                "benchmark",
+                "baseline ns",
+                "measured ns",
+                "change",
+                "allowed",
+                "status"
+            )
+        );
+
+        int regressions = 0;
+        for (Map.Entry<String, Double> entry : measured.entrySet()) {
+            String name = entry.getKey();
+            double value = entry.getValue();
+            if (name.equals(CALIBRATION)) {
+                continue;
+            }
+
+            if (
+                !benchmarks.has(name) ||
+                !benchmarks.getAsJsonObject(name).has("nanosPerOp")
+            ) {
+                lines.add(
+                    String.format(
+                        "%-24s %14s %14.1f %9s %9s  NEW (no baseline)",
+                        name,
+                        "-",
+                        value,
+                        "-",
+                        "-"
+                    )
+                );
+                continue;
+            }
+
+            JsonObject expected = benchmarks.getAsJsonObject(name);
+            double tolerance = args.has("tolerance")
+                ? args.getDouble("tolerance", DEFAULT_TOLERANCE)
+                : expected.has("tolerance")
+                    ? expected.get("tolerance").getAsDouble()
+                    : defaultTolerance;
+            double baselineValue =
+                expected.get("nanosPerOp").getAsDouble() * scale;
+            double change = value / baselineValue - 1;
+
+            String status = "ok";
+            if (change > tolerance) {
+                status = "REGRESSED";
+                regressions++;
+            } else if (change < -tolerance) {
+                status = "faster, consider updating the baseline";
+            }
+
+            lines.add(
+                String.format(
+                    "%-24s %14.1f %14.1f %+8.0f%% %8.0f%%  %s",
+                    name,
+                    baselineValue,
+                    value,
+                    change * 100,
+                    tolerance * 100,
+                    status
+                )
+            );
+        }
+
+        lines.add(
+            regressions == 0
+                ? "No regressions"
+                : regressions + " benchmark(s) regressed beyond tolerance"
+        );
+        return regressions;
+    }
+
+    /**
+     * Writes measured numbers into the baseline, keeping tolerances that were configured by hand. When every benchmark
+     * ran, numbers of benchmarks that weren't measured are dropped so they can't be compared against a stale value.
+     */
+    private static void writeBaseline(
+        Path baselinePath,
+        JsonObject baseline,
+        Map<String, Double> measured,
+        boolean complete
+    ) throws Exception {
+        JsonObject benchmarks = baseline.has("benchmarks")
+            ? baseline.getAsJsonObject("benchmarks")
+            : new JsonObject();
+        if (complete) {
+            for (String name : benchmarks.keySet()) {
+                if (!measured.containsKey(name)) {
+                    benchmarks.getAsJsonObject(name).remove("nanosPerOp");
+                }
+            }
+        }
+        measured.forEach((name, value) -> {
+            JsonObject entry = benchmarks.has(name)
+                ? benchmarks.getAsJsonObject(name)
+                : new JsonObject();
+            entry.addProperty("nanosPerOp", value);
+            benchmarks.add(name, entry);
+        });
+
+        if (!baseline.has("defaultTolerance")) {
+            baseline.addProperty("defaultTolerance", DEFAULT_TOLERANCE);
+        }
+        // GitHub Actions names the runner image in ImageOS, e.g. ubuntu24.
+        String runner = System.getenv("ImageOS");
+        baseline.addProperty(
+            "recordedOn",
+            "%s%s %s, %d cores, %s Java %s".formatted(
+                runner == null ? "" : "GitHub Actions " + runner + ", ",
+                System.getProperty("os.name"),
+                System.getProperty("os.arch"),
+                Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.vm.vendor"),
+                System.getProperty("java.version")
+            )
+        );
+        baseline.add("benchmarks", benchmarks);
+
+        if (baselinePath.getParent() != null) {
+            Files.createDirectories(baselinePath.getParent());
+        }
+        Files.writeString(baselinePath, gson.toJson(baseline) + "\n");
+    }
+
+    private static Path resolveBaseline(BenchArgs args) {
+        if (args.has("baseline")) {
+            return Path.of(args.getString("baseline", ""));
+        }
+        String projectDir = System.getProperty("webchat.bench.projectDir");
+        return projectDir == null
+            ? Path.of(DEFAULT_BASELINE)
+            : Path.of(projectDir).resolve(DEFAULT_BASELINE);
+    }
+}
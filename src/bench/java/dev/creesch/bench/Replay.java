@@ -0,0 +1,304 @@
+package dev.creesch.bench;
+
+import dev.creesch.WebInterface;
+import dev.creesch.config.ModConfig;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.model.WebsocketMessageBuilder;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.storage.ComponentBlobs;
+import dev.creesch.storage.SqliteChatMessageRepository;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+/**
+ * Replays real history from an existing {@code chat_messages.db} through the live pipeline: every row is turned
+ * back into a live message, saved into a scratch database and broadcast on a local web interface.
+ *
+ * The source database is opened read only and never modified.
+ *
+ * Options:
+ * --source path        chat_messages.db to read from (required)
+ * --serverId id        server to replay, omit to list the servers in the database
+ * --speed value        "original", "max" or a speed up factor such as 10 (default max)
+ * --maxGapMs N         caps idle gaps between messages at original/scaled speed (default 5000)
+ * --limit N            replay at most N messages (default all)
+ * --clients N          fast clients (default 5)
+ * --slowClients N      slow clients (default 0)
+ * --slowDelayMs N      delay before a slow client reads the next frame (default 250)
+ * --port N             web interface port (default 18081)
+ * --encoding type      frame encoding the clients ask for, "json" or "cbor" (default json)
+ * --scratch path       scratch database, defaults to a temporary file
+ * --report path        also write the report as JSON
+ */
+public final class Replay {
+
+    private static final String LIST_SERVERS_QUERY = """
+        SELECT
+            server_id,
+            server_name,
+            COUNT(*) AS message_count
+        FROM
+            messages
+        GROUP BY
+            server_id,
+            server_name
+        ORDER BY
+            message_count DESC
+        """;
+
+    private static final String SELECT_MESSAGES_QUERY = """
+        SELECT
+            timestamp,
+            server_id,
+            server_name,
+            message_id,
+            message_json,
+            translations_json,
+            is_ping,
+            minecraft_version
+        FROM
+            messages
+        WHERE
+            server_id = ?
+        ORDER BY
+            timestamp ASC,
+            id ASC
+        LIMIT
+            ?
+        """;
+
+    private static final String SELECT_BLOB_QUERY = """
+        SELECT content FROM component_blobs WHERE hash = ?
+        """;
+
+    private Replay() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        if (!args.has("source")) {
+            System.err.println("--source <path to chat_messages.db> is required");
+            return 2;
+        }
+
+        SQLiteConfig sourceConfig = new SQLiteConfig();
+        sourceConfig.setReadOnly(true);
+        SQLiteDataSource source = new SQLiteDataSource(sourceConfig);
+        source.setUrl("jdbc:sqlite:" + Path.of(args.getString("source", "")));
+
+        if (!args.has("serverId")) {
+            listServers(source);
+            return 0;
+        }
+
+        String speed = args.getString("speed", "max");
+        double speedFactor = switch (speed) {
+            case "max" -> 0;
+            case "original" -> 1;
+            default -> Double.parseDouble(speed);
+        };
+        long maxGapMillis = args.getInt("maxGapMs", 5000);
+        int limit = args.getInt("limit", Integer.MAX_VALUE);
+        int port = args.getInt("port", 18081);
+        String serverId = args.getString("serverId", "");
+
+        Path scratch = args.has("scratch")
+            ? Path.of(args.getString("scratch", ""))
+            : Files.createTempDirectory("web-chat-replay").resolve(
+                "chat_messages.db"
+            );
+
+        // Only the in memory config instance is changed, nothing is saved.
+        ModConfig.HANDLER.instance().httpPortNumber = port;
+        // Every bench client connects from localhost.
+        ModConfig.HANDLER.instance().websocketMaxConnections = 0;
+        ModConfig.HANDLER.instance().websocketMaxConnectionsPerAddress = 0;
+        ChatMessageRepository repository = new SqliteChatMessageRepository(
+            scratch
+        );
+        HeadlessGameBridge gameBridge = new HeadlessGameBridge(
+            new WebsocketJsonMessage.ChatServerInfo("Replay", serverId),
+            0
+        );
+        WebInterface webInterface = new WebInterface(repository, gameBridge);
+
+        LatencyHistogram ingest = new LatencyHistogram();
+        LatencyHistogram lag = new LatencyHistogram();
+        long replayed = 0;
+        Map<String, Number> metricsBefore = WebchatMetrics.snapshot();
+
+        try (
+            ClientFleet fleet = ClientFleet.connect(
+                port,
+                args.getInt("clients", 5),
+                args.getInt("slowClients", 0),
+                args.getInt("slowDelayMs", 250),
+                BenchClient.encoding(args.getString("encoding", "json"))
+            );
+            Connection connection = source.getConnection();
+            PreparedStatement statement = connection.prepareStatement(
+                SELECT_MESSAGES_QUERY
+            )
+        ) {
+            statement.setString(1, serverId);
+            statement.setInt(2, limit);
+            Function<String, String> blobs = blobLookup(connection);
+
+            long startedAt = System.nanoTime();
+            // Virtual replay clock in nanoseconds since start, gaps are capped so idle hours don't stall a run.
+            long scheduleNanos = 0;
+            long previousTimestamp = -1;
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long originalTimestamp = rs.getLong("timestamp");
+                    if (speedFactor > 0 && previousTimestamp >= 0) {
+                        long gapMillis = Math.min(
+                            originalTimestamp - previousTimestamp,
+                            maxGapMillis
+                        );
+                        scheduleNanos += (long) ((gapMillis * 1_000_000L) /
+                            speedFactor);
+                        long waitNanos =
+                            startedAt + scheduleNanos - System.nanoTime();
+                        if (waitNanos > 0) {
+                            Thread.sleep(
+                                waitNanos / 1_000_000,
+                                (int) (waitNanos % 1_000_000)
+                            );
+                        } else {
+                            lag.record(-waitNanos);
+                        }
+                    }
+                    previousTimestamp = originalTimestamp;
+
+                    long start = System.nanoTime();
+                    WebsocketJsonMessage message = toLiveMessage(rs, blobs);
+                    fleet.markSent(
+                        ((ChatMessagePayload) message.getPayload()).getUuid()
+                    );
+                    repository.saveMessage(message);
+                    webInterface.broadcastMessage(message);
+                    ingest.record(System.nanoTime() - start);
+                    replayed++;
+                }
+            }
+
+            double seconds = (System.nanoTime() - startedAt) / 1_000_000_000.0;
+            fleet.awaitFastClients(replayed, Duration.ofSeconds(10));
+
+            BenchReport report = new BenchReport("Replay");
+            report.put("config.serverId", serverId);
+            report.put("config.speed", speed);
+            report.put("messages.replayed", replayed);
+            report.put("messages.seconds", BenchReport.round(seconds));
+            report.put(
+                "messages.perSecond",
+                BenchReport.round(replayed / Math.max(seconds, 0.001))
+            );
+            report.putLatency("ingest", ingest);
+            report.putLatency("scheduleLag", lag);
+            fleet.report(report, replayed);
+            report.putMetricDeltas(metricsBefore, seconds);
+            report.print();
+
+            if (args.has("report")) {
+                report.writeJson(Path.of(args.getString("report", "")));
+            }
+        } finally {
+            webInterface.shutdown();
+            repository.close();
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes a stored row the same way history does, then marks it as a fresh live message.
+     *
+     * @param blobs Content of extracted events by hash, see {@link ComponentBlobs}
+     */
+    private static WebsocketJsonMessage toLiveMessage(
+        ResultSet rs,
+        Function<String, String> blobs
+    ) throws SQLException {
+        WebsocketJsonMessage message =
+            WebsocketMessageBuilder.createHistoricChatMessage(
+                System.currentTimeMillis(),
+                rs.getString("server_id"),
+                rs.getString("server_name"),
+                rs.getString("message_id"),
+                ComponentBlobs.reassemble(rs.getString("message_json"), blobs),
+                rs.getString("translations_json"),
+                rs.getBoolean("is_ping"),
+                rs.getString("minecraft_version"),
+                // Every copy is replayed as its own message.
+                1,
+                null
+            );
+        ((ChatMessagePayload) message.getPayload()).setHistory(false);
+        return message;
+    }
+
+    /**
+     * Reads blobs from the source database, each one once. A missing blob drops that event, like history does.
+     */
+    private static Function<String, String> blobLookup(Connection connection) {
+        Map<String, String> cache = new HashMap<>();
+        return (hash) -> {
+            String cached = cache.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+            try (
+                PreparedStatement statement = connection.prepareStatement(
+                    SELECT_BLOB_QUERY
+                )
+            ) {
+                statement.setString(1, hash);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    cache.put(hash, rs.getString(1));
+                    return cache.get(hash);
+                }
+            } catch (SQLException e) {
+                System.err.println(
+                    "Failed to read component blob " + hash + ": " + e.getMessage()
+                );
+                return null;
+            }
+        };
+    }
+
+    private static void listServers(SQLiteDataSource source)
+        throws SQLException {
+        try (
+            Connection connection = source.getConnection();
+            PreparedStatement statement = connection.prepareStatement(
+                LIST_SERVERS_QUERY
+            );
+            ResultSet rs = statement.executeQuery()
+        ) {
+            System.out.println("Servers in database, pass one with --serverId:");
+            while (rs.next()) {
+                System.out.printf(
+                    "  %s  %8d messages  %s%n",
+                    rs.getString("server_id"),
+                    rs.getLong("message_count"),
+                    rs.getString("server_name")
+                );
+            }
+        }
+    }
+}
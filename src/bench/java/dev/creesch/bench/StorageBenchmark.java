@@ -0,0 +1,137 @@
+package dev.creesch.bench;
+
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.storage.ChatMessageRepository;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures throughput of the {@link ChatMessageRepository} implementations without the web interface in the way.
+ *
+ * Options:
+ * --storage type       only benchmark "sqlite", "journal" or "memory" (default all)
+ * --messages N         messages written per phase (default 20000)
+ * --batchSize N        messages per saveMessages call (default 500)
+ * --reads N            history pages read per read phase (default 2000)
+ * --pageSize N         messages per history page (default 50)
+ * --report path        also write the report as JSON
+ */
+public final class StorageBenchmark {
+
+    private static final String SERVER_ID = "storage-benchmark";
+
+    private StorageBenchmark() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        int messageCount = args.getInt("messages", 20000);
+        int batchSize = Math.max(1, args.getInt("batchSize", 500));
+        int reads = args.getInt("reads", 2000);
+        int pageSize = args.getInt("pageSize", 50);
+        String[] types = args.has("storage")
+            ? new String[] { args.getString("storage", "") }
+            : BenchStorage.TYPES;
+
+        Path workDir = Files.createTempDirectory("web-chat-storage-benchmark");
+        WebsocketJsonMessage.ChatServerInfo serverInfo =
+            new WebsocketJsonMessage.ChatServerInfo(
+                "Storage benchmark",
+                SERVER_ID
+            );
+
+        // Generated up front so message building doesn't count towards storage time.
+        SyntheticChat chat = new SyntheticChat(7L, serverInfo, 40);
+        List<WebsocketJsonMessage> messages = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            messages.add(chat.next());
+        }
+
+        BenchReport report = new BenchReport("Storage benchmark");
+        report.put("config.messages", messageCount);
+        report.put("config.batchSize", batchSize);
+        report.put("config.pageSize", pageSize);
+
+        for (String type : types) {
+            ChatMessageRepository single = BenchStorage.open(
+                type,
+                workDir.resolve(type + "-single.db")
+            );
+            LatencyHistogram saveLatency = new LatencyHistogram();
+            long start = System.nanoTime();
+            for (WebsocketJsonMessage message : messages) {
+                long saveStart = System.nanoTime();
+                single.saveMessage(message);
+                saveLatency.record(System.nanoTime() - saveStart);
+            }
+            putRate(report, type + ".save", messageCount, start);
+            report.putLatency(type + ".save", saveLatency);
+            single.close();
+
+            ChatMessageRepository batched = BenchStorage.open(
+                type,
+                workDir.resolve(type + "-batch.db")
+            );
+            start = System.nanoTime();
+            for (int from = 0; from < messageCount; from += batchSize) {
+                batched.saveMessages(
+                    messages.subList(
+                        from,
+                        Math.min(from + batchSize, messageCount)
+                    )
+                );
+            }
+            putRate(report, type + ".batchSave", messageCount, start);
+
+            // Head page is what every new connection asks for, deep pages are what scrolling back does.
+            LatencyHistogram headLatency = new LatencyHistogram();
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                long readStart = System.nanoTime();
+                batched.getMessages(SERVER_ID, pageSize);
+                headLatency.record(System.nanoTime() - readStart);
+            }
+            putRate(report, type + ".headPage", reads, start);
+            report.putLatency(type + ".headPage", headLatency);
+
+            long oldest = messages.get(0).getTimestamp();
+            long newest = messages.get(messageCount - 1).getTimestamp();
+            LatencyHistogram deepLatency = new LatencyHistogram();
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                long before = oldest + ((newest - oldest) * i) / reads + 1;
+                long readStart = System.nanoTime();
+                batched.getMessages(SERVER_ID, pageSize, before);
+                deepLatency.record(System.nanoTime() - readStart);
+            }
+            putRate(report, type + ".deepPage", reads, start);
+            report.putLatency(type + ".deepPage", deepLatency);
+
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                batched.countMessages(SERVER_ID);
+            }
+            putRate(report, type + ".count", reads, start);
+            batched.close();
+        }
+
+        report.print();
+        if (args.has("report")) {
+            report.writeJson(Path.of(args.getString("report", "")));
+        }
+        return 0;
+    }
+
+    private static void putRate(
+        BenchReport report,
+        String prefix,
+        long operations,
+        long startNanos
+    ) {
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        report.put(
+            prefix + ".perSecond",
+            BenchReport.round(operations / Math.max(seconds, 0.000001))
+        );
+    }
+}
@@ -0,0 +1,556 @@
+package dev.creesch.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import dev.creesch.WebchatClient;
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.storage.InMemoryChatMessageRepository;
+import dev.creesch.storage.JournaledChatMessageRepository;
+import dev.creesch.storage.StorageException;
+import dev.creesch.storage.StoredMessage;
+import dev.creesch.util.PingMatcher;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Runs the same set of checks against every {@link ChatMessageRepository} implementation so they all behave the way
+ * the web interface expects. Exits non zero when any check fails.
+ *
+ * Options:
+ * --storage type       only check "sqlite", "journal" or "memory" (default all)
+ */
+public final class StorageConformance {
+
+    private static final String SERVER = "conformance-server";
+    private static final String OTHER_SERVER = "other-server";
+
+    private interface Check {
+        void run(ChatMessageRepository repository) throws Exception;
+    }
+
+    private StorageConformance() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        Path workDir = Files.createTempDirectory("web-chat-conformance");
+        String[] types = args.has("storage")
+            ? new String[] { args.getString("storage", "") }
+            : BenchStorage.TYPES;
+
+        int failures = 0;
+        for (String type : types) {
+            int[] databaseCounter = { 0 };
+            Supplier<ChatMessageRepository> factory = () ->
+                BenchStorage.open(
+                    type,
+                    workDir.resolve(type + "-" + databaseCounter[0]++ + ".db")
+                );
+            failures += runChecks(type, factory);
+        }
+        if (List.of(types).contains("journal")) {
+            failures += runJournalFailureCheck(workDir);
+        }
+
+        System.out.println(
+            failures == 0 ? "All checks passed" : failures + " check(s) failed"
+        );
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static int runChecks(
+        String type,
+        Supplier<ChatMessageRepository> factory
+    ) {
+        System.out.println("== " + type + " ==");
+        int failures = 0;
+        for (Map.Entry<String, Check> entry : checks().entrySet()) {
+            // Fresh repository per check, checks must not see each other's data.
+            ChatMessageRepository repository = factory.get();
+            try {
+                entry.getValue().run(repository);
+                System.out.println("  PASS " + entry.getKey());
+            } catch (AssertionError | Exception e) {
+                failures++;
+                System.out.println(
+                    "  FAIL " + entry.getKey() + ": " + e.getMessage()
+                );
+            } finally {
+                repository.close();
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * The ingest journal may only drop messages once the database committed them.
+     */
+    private static int runJournalFailureCheck(Path workDir) {
+        System.out.println("== journal with a failing database ==");
+        String name = "refused messages stay in the journal";
+        try {
+            RefusingRepository database = new RefusingRepository();
+            Path journalPath = workDir.resolve("refusing.journal");
+            JournaledChatMessageRepository journal =
+                new JournaledChatMessageRepository(
+                    database,
+                    journalPath,
+                    JournaledChatMessageRepository.DEFAULT_CAPACITY
+                );
+
+            database.refusing = true;
+            journal.saveMessage(message(SERVER, 1000, "a", false));
+            journal.flush();
+            expectEquals(0L, database.countMessages(SERVER), "while refusing");
+
+            database.refusing = false;
+            journal.flush();
+            expectEquals(1L, database.countMessages(SERVER), "after recovery");
+
+            // Still refused at shutdown, moved over on the next start.
+            database.refusing = true;
+            journal.saveMessage(message(SERVER, 1001, "b", false));
+            journal.close();
+            database.refusing = false;
+            new JournaledChatMessageRepository(
+                database,
+                journalPath,
+                JournaledChatMessageRepository.DEFAULT_CAPACITY
+            ).close();
+            expectEquals(2L, database.countMessages(SERVER), "after restart");
+
+            System.out.println("  PASS " + name);
+            return 0;
+        } catch (AssertionError | Exception e) {
+            System.out.println("  FAIL " + name + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static final class RefusingRepository
+        extends InMemoryChatMessageRepository {
+
+        private volatile boolean refusing = false;
+
+        @Override
+        public void commitStoredMessages(List<StoredMessage> messages)
+            throws StorageException {
+            if (refusing) {
+                throw new StorageException("Refused for the check");
+            }
+            super.commitStoredMessages(messages);
+        }
+    }
+
+    private static Map<String, Check> checks() {
+        Map<String, Check> checks = new LinkedHashMap<>();
+
+        checks.put("unknown server is empty", (repository) -> {
+            expect(repository.getMessages(SERVER, 10).isEmpty(), "no messages");
+            expectEquals(0L, repository.countMessages(SERVER), "count");
+        });
+
+        checks.put("saved message round trips", (repository) -> {
+            WebsocketJsonMessage saved = message(SERVER, 1000, "hello", true);
+            repository.saveMessage(saved);
+
+            List<WebsocketJsonMessage> messages = repository.getMessages(
+                SERVER,
+                10
+            );
+            expectEquals(1, messages.size(), "message count");
+            WebsocketJsonMessage read = messages.get(0);
+            ChatMessagePayload savedPayload = payload(saved);
+            ChatMessagePayload readPayload = payload(read);
+
+            expectEquals(saved.getTimestamp(), read.getTimestamp(), "timestamp");
+            expectEquals(
+                saved.getServer().getIdentifier(),
+                read.getServer().getIdentifier(),
+                "server id"
+            );
+            expectEquals(
+                saved.getServer().getName(),
+                read.getServer().getName(),
+                "server name"
+            );
+            expectEquals(
+                saved.getMinecraftVersion(),
+                read.getMinecraftVersion(),
+                "minecraft version"
+            );
+            expectEquals(savedPayload.getUuid(), readPayload.getUuid(), "uuid");
+            expectEquals(
+                savedPayload.getComponent(),
+                readPayload.getComponent(),
+                "component"
+            );
+            expectEquals(
+                savedPayload.getTranslations(),
+                readPayload.getTranslations(),
+                "translations"
+            );
+            expectEquals(true, readPayload.isPing(), "ping flag");
+            expectEquals(true, readPayload.isHistory(), "history flag");
+        });
+
+        checks.put("newest first, ties in save order", (repository) -> {
+            repository.saveMessage(message(SERVER, 1000, "a", false));
+            repository.saveMessage(message(SERVER, 3000, "b", false));
+            repository.saveMessage(message(SERVER, 2000, "c", false));
+            repository.saveMessage(message(SERVER, 3000, "d", false));
+
+            expectEquals(
+                List.of("d", "b", "c", "a"),
+                texts(repository.getMessages(SERVER, 10)),
+                "order"
+            );
+        });
+
+        checks.put("limit and before cursor", (repository) -> {
+            for (int i = 1; i <= 10; i++) {
+                repository.saveMessage(
+                    message(SERVER, i * 1000L, "m" + i, false)
+                );
+            }
+
+            expectEquals(
+                List.of("m10", "m9", "m8"),
+                texts(repository.getMessages(SERVER, 3)),
+                "head page"
+            );
+            expectEquals(
+                List.of("m4", "m3"),
+                texts(repository.getMessages(SERVER, 2, 5000L)),
+                "before is exclusive"
+            );
+            expect(
+                repository.getMessages(SERVER, 5, 1000L).isEmpty(),
+                "nothing before the oldest message"
+            );
+            expect(
+                repository.getMessages(SERVER, 0).isEmpty(),
+                "limit of zero"
+            );
+        });
+
+        checks.put("paging visits every message once", (repository) -> {
+            List<WebsocketJsonMessage> batch = new ArrayList<>();
+            for (int i = 1; i <= 95; i++) {
+                batch.add(message(SERVER, i * 10L, "m" + i, false));
+            }
+            repository.saveMessages(batch);
+
+            List<String> seen = new ArrayList<>();
+            Long before = null;
+            while (true) {
+                List<WebsocketJsonMessage> page = repository.getMessages(
+                    SERVER,
+                    20,
+                    before
+                );
+                if (page.isEmpty()) {
+                    break;
+                }
+                seen.addAll(texts(page));
+                before = page.get(page.size() - 1).getTimestamp();
+            }
+            expectEquals(95, seen.size(), "messages seen");
+            expectEquals("m95", seen.get(0), "first message");
+            expectEquals("m1", seen.get(94), "last message");
+        });
+
+        checks.put("streaming matches page reads", (repository) -> {
+            List<WebsocketJsonMessage> batch = new ArrayList<>();
+            for (int i = 1; i <= 250; i++) {
+                batch.add(message(SERVER, (i / 2) * 10L, "m" + i, false));
+            }
+            repository.saveMessages(batch);
+
+            List<WebsocketJsonMessage> streamed = new ArrayList<>();
+            repository.streamMessages(SERVER, 10_000, null, streamed::add);
+            expectEquals(
+                texts(repository.getMessages(SERVER, 10_000)),
+                texts(streamed),
+                "all messages"
+            );
+
+            streamed.clear();
+            repository.streamMessages(SERVER, 20, 1000L, streamed::add);
+            expectEquals(
+                texts(repository.getMessages(SERVER, 20, 1000L)),
+                texts(streamed),
+                "page before cursor"
+            );
+        });
+
+        checks.put("servers are isolated", (repository) -> {
+            repository.saveMessage(message(SERVER, 1000, "mine", false));
+            repository.saveMessage(
+                message(OTHER_SERVER, 2000, "theirs", false)
+            );
+
+            expectEquals(
+                List.of("mine"),
+                texts(repository.getMessages(SERVER, 10)),
+                "own messages"
+            );
+            expectEquals(1L, repository.countMessages(OTHER_SERVER), "count");
+            repository.deleteMessages(OTHER_SERVER, null);
+            expectEquals(1L, repository.countMessages(SERVER), "after delete");
+        });
+
+        checks.put("batch save matches single saves", (repository) -> {
+            List<WebsocketJsonMessage> batch = List.of(
+                message(SERVER, 1000, "a", false),
+                message(SERVER, 1000, "b", false),
+                message(OTHER_SERVER, 1000, "x", false),
+                message(SERVER, 2000, "c", true)
+            );
+            repository.saveMessages(batch);
+            repository.saveMessages(List.of());
+
+            expectEquals(
+                List.of("c", "b", "a"),
+                texts(repository.getMessages(SERVER, 10)),
+                "order"
+            );
+            expectEquals(1L, repository.countMessages(OTHER_SERVER), "other");
+        });
+
+        checks.put("stored form saves and lookups", (repository) -> {
+            WebsocketJsonMessage first = message(SERVER, 1000, "a", false);
+            WebsocketJsonMessage second = message(SERVER, 1000, "b", true);
+            repository.saveStoredMessages(
+                List.of(StoredMessage.from(first), StoredMessage.from(second))
+            );
+
+            expectEquals(
+                List.of("b", "a"),
+                texts(repository.getMessages(SERVER, 10)),
+                "order"
+            );
+            expect(
+                repository.containsMessage(SERVER, 1000, payload(first).getUuid()),
+                "saved message is found"
+            );
+            expect(
+                !repository.containsMessage(SERVER, 1001, payload(first).getUuid()),
+                "other timestamp"
+            );
+            expect(
+                !repository.containsMessage(
+                    OTHER_SERVER,
+                    1000,
+                    payload(first).getUuid()
+                ),
+                "other server"
+            );
+        });
+
+        checks.put("large hover events round trip", (repository) -> {
+            // Same item hover in several messages, like a repeated shop broadcast.
+            JsonObject hover = new JsonObject();
+            hover.addProperty("action", "show_item");
+            hover.addProperty("id", "minecraft:diamond_sword");
+            JsonObject components = new JsonObject();
+            components.addProperty("minecraft:lore", "x".repeat(2000));
+            hover.add("components", components);
+
+            List<WebsocketJsonMessage> batch = new ArrayList<>();
+            for (int i = 1; i <= 3; i++) {
+                WebsocketJsonMessage saved = message(SERVER, i * 1000L, "m" + i, false);
+                JsonObject extra = new JsonObject();
+                extra.addProperty("text", "[Sword]");
+                extra.add("hover_event", hover.deepCopy());
+                JsonArray extras = new JsonArray();
+                extras.add(extra);
+                payload(saved).getComponent().add("extra", extras);
+                batch.add(saved);
+            }
+            repository.saveMessages(batch);
+            repository.deleteMessages(SERVER, 2000L);
+
+            List<WebsocketJsonMessage> read = repository.getMessages(SERVER, 10);
+            expectEquals(2, read.size(), "message count");
+            for (int i = 0; i < read.size(); i++) {
+                expectEquals(
+                    payload(batch.get(2 - i)).getComponent(),
+                    payload(read.get(i)).getComponent(),
+                    "component " + i
+                );
+            }
+        });
+
+        checks.put("repeats update the stored message", (repository) -> {
+            WebsocketJsonMessage repeated = message(SERVER, 1000, "again", false);
+            repository.saveMessages(
+                List.of(repeated, message(SERVER, 2000, "once", false))
+            );
+            String messageId = payload(repeated).getUuid();
+            repository.recordRepeat(SERVER, 1000, messageId, 2, 3000);
+            repository.recordRepeat(SERVER, 1000, messageId, 3, 4000);
+
+            List<WebsocketJsonMessage> read = repository.getMessages(SERVER, 10);
+            expectEquals(List.of("once", "again"), texts(read), "messages");
+            expectEquals(3, payload(read.get(1)).getRepeatCount(), "repeat count");
+            expectEquals(4000L, payload(read.get(1)).getLastSeen(), "last seen");
+            expectEquals(null, payload(read.get(0)).getRepeatCount(), "not repeated");
+        });
+
+        checks.put("pings are re-evaluated", (repository) -> {
+            repository.saveMessages(
+                List.of(
+                    message(SERVER, 1000, "hello creesch", false),
+                    message(SERVER, 2000, "hello nobody", true),
+                    message(OTHER_SERVER, 3000, "creesch again", false)
+                )
+            );
+            repository.reevaluatePings(PingMatcher.of(List.of("creesch")));
+
+            // Allowed to happen in the background.
+            long deadline = System.currentTimeMillis() + 10_000;
+            List<Boolean> pings = pings(repository);
+            while (
+                !pings.equals(List.of(false, true, true)) &&
+                System.currentTimeMillis() < deadline
+            ) {
+                Thread.sleep(50);
+                pings = pings(repository);
+            }
+            expectEquals(List.of(false, true, true), pings, "ping flags");
+        });
+
+        checks.put("non chat messages are ignored", (repository) -> {
+            WebsocketJsonMessage state =
+                WebsocketJsonMessage.createServerConnectionStateMessage(
+                    1000,
+                    serverInfo(SERVER),
+                    WebsocketJsonMessage.ServerConnectionStates.JOIN,
+                    HeadlessGameBridge.MINECRAFT_VERSION,
+                    WebchatClient.getModVersion()
+                );
+            repository.saveMessage(state);
+            repository.saveMessages(
+                List.of(state, message(SERVER, 2000, "kept", false))
+            );
+
+            expectEquals(
+                List.of("kept"),
+                texts(repository.getMessages(SERVER, 10)),
+                "stored messages"
+            );
+        });
+
+        checks.put("delete before timestamp", (repository) -> {
+            for (int i = 1; i <= 5; i++) {
+                repository.saveMessage(
+                    message(SERVER, i * 1000L, "m" + i, false)
+                );
+            }
+
+            expectEquals(2, repository.deleteMessages(SERVER, 3000L), "deleted");
+            expectEquals(3L, repository.countMessages(SERVER), "count");
+            expectEquals(
+                List.of("m5", "m4", "m3"),
+                texts(repository.getMessages(SERVER, 10)),
+                "remaining"
+            );
+            expectEquals(3, repository.deleteMessages(SERVER, null), "rest");
+            expectEquals(0L, repository.countMessages(SERVER), "empty");
+            expectEquals(0, repository.deleteMessages("missing", null), "none");
+        });
+
+        return checks;
+    }
+
+    private static WebsocketJsonMessage message(
+        String serverId,
+        long timestamp,
+        String text,
+        boolean isPing
+    ) {
+        JsonObject component = new JsonObject();
+        component.addProperty("translate", "chat.type.text");
+        component.addProperty("text", text);
+
+        ChatMessagePayload payload = ChatMessagePayload.builder()
+            .history(false)
+            .uuid(serverId + "-" + timestamp + "-" + text)
+            .component(component)
+            .translations(Map.of("chat.type.text", "<%s> %s"))
+            .isPing(isPing)
+            .plainText("<Steve> " + text)
+            .build();
+
+        return WebsocketJsonMessage.createChatMessage(
+            timestamp,
+            serverInfo(serverId),
+            payload,
+            HeadlessGameBridge.MINECRAFT_VERSION,
+            WebchatClient.getModVersion()
+        );
+    }
+
+    private static WebsocketJsonMessage.ChatServerInfo serverInfo(
+        String serverId
+    ) {
+        return new WebsocketJsonMessage.ChatServerInfo(
+            "Server " + serverId,
+            serverId
+        );
+    }
+
+    private static ChatMessagePayload payload(WebsocketJsonMessage message) {
+        return (ChatMessagePayload) message.getPayload();
+    }
+
+    /**
+     * @return Ping flags of the conformance server newest first, followed by the other server
+     */
+    private static List<Boolean> pings(ChatMessageRepository repository) {
+        List<Boolean> pings = new ArrayList<>();
+        for (String serverId : List.of(SERVER, OTHER_SERVER)) {
+            for (WebsocketJsonMessage message : repository.getMessages(
+                serverId,
+                10
+            )) {
+                pings.add(payload(message).isPing());
+            }
+        }
+        return pings;
+    }
+
+    private static List<String> texts(List<WebsocketJsonMessage> messages) {
+        return messages
+            .stream()
+            .map((message) ->
+                payload(message).getComponent().get("text").getAsString()
+            )
+            .toList();
+    }
+
+    private static void expect(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError(description);
+        }
+    }
+
+    private static void expectEquals(
+        Object expected,
+        Object actual,
+        String description
+    ) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(
+                description + ", expected " + expected + " but got " + actual
+            );
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package dev.creesch.bench;
+
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.storage.ChatMessageRepository;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that saving chat stays fast while browsers read large history pages at the same time. Saves are timed
+ * once on a quiet database and once with reader threads streaming history pages continuously. Exits non zero when
+ * the save p99 under contention is above the allowed bound.
+ *
+ * Options:
+ * --storage type       "sqlite", "journal" or "memory" (default sqlite)
+ * --seed N             messages in the database before measuring (default 20000)
+ * --messages N         messages saved per phase (default 2000)
+ * --readers N          threads reading history during the second phase (default 4)
+ * --pageSize N         messages per history page read (default 2000)
+ * --maxP99Millis N     allowed save p99 under contention (default 50)
+ * --report path        also write the report as JSON
+ */
+public final class StorageContention {
+
+    private static final String SERVER_ID = "storage-contention";
+
+    private StorageContention() {}
+
+    public static int run(BenchArgs args) throws Exception {
+        String type = args.getString("storage", "sqlite");
+        int seed = args.getInt("seed", 20000);
+        int messageCount = args.getInt("messages", 2000);
+        int readers = args.getInt("readers", 4);
+        int pageSize = args.getInt("pageSize", 2000);
+        double maxP99Millis = args.getDouble("maxP99Millis", 50);
+
+        WebsocketJsonMessage.ChatServerInfo serverInfo =
+            new WebsocketJsonMessage.ChatServerInfo(
+                "Storage contention",
+                SERVER_ID
+            );
+        SyntheticChat chat = new SyntheticChat(11L, serverInfo, 40);
+
+        Path workDir = Files.createTempDirectory("web-chat-contention");
+        ChatMessageRepository repository = BenchStorage.open(
+            type,
+            workDir.resolve("contention.db")
+        );
+
+        List<WebsocketJsonMessage> seedMessages = new ArrayList<>(seed);
+        for (int i = 0; i < seed; i++) {
+            seedMessages.add(chat.next());
+        }
+        for (int from = 0; from < seed; from += 1000) {
+            repository.saveMessages(
+                seedMessages.subList(from, Math.min(from + 1000, seed))
+            );
+        }
+
+        BenchReport report = new BenchReport("Storage contention");
+        report.put("config.storage", type);
+        report.put("config.readers", readers);
+        report.put("config.pageSize", pageSize);
+
+        LatencyHistogram quiet = timeSaves(repository, chat, messageCount);
+        report.putLatency("save.quiet", quiet);
+
+        Map<String, Number> metricsBefore = WebchatMetrics.snapshot();
+        AtomicBoolean reading = new AtomicBoolean(true);
+        LongAdder pagesRead = new LongAdder();
+        LongAdder messagesRead = new LongAdder();
+        List<Thread> readerThreads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            Thread reader = new Thread(
+                () -> {
+                    while (reading.get()) {
+                        repository.streamMessages(
+                            SERVER_ID,
+                            pageSize,
+                            null,
+                            (message) -> messagesRead.increment()
+                        );
+                        repository.countMessages(SERVER_ID);
+                        pagesRead.increment();
+                    }
+                },
+                "contention-reader-" + i
+            );
+            reader.setDaemon(true);
+            reader.start();
+            readerThreads.add(reader);
+        }
+
+        long start = System.nanoTime();
+        LatencyHistogram contended = timeSaves(repository, chat, messageCount);
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        reading.set(false);
+        for (Thread reader : readerThreads) {
+            reader.join();
+        }
+
+        report.putLatency("save.contended", contended);
+        report.put("read.pages", pagesRead.sum());
+        report.put("read.messagesPerSecond", BenchReport.round(messagesRead.sum() / seconds));
+        report.putMetricDeltas(metricsBefore, seconds);
+
+        double p99 = contended.percentileMillis(99);
+        boolean bounded = p99 <= maxP99Millis;
+        report.put("result", bounded ? "PASS" : "FAIL");
+        report.print();
+        if (args.has("report")) {
+            report.writeJson(Path.of(args.getString("report", "")));
+        }
+        repository.close();
+
+        if (!bounded) {
+            System.out.println(
+                "Save p99 under contention was " +
+                    BenchReport.round(p99) +
+                    "ms, allowed is " +
+                    maxP99Millis +
+                    "ms"
+            );
+            return 1;
+        }
+        return 0;
+    }
+
+    private static LatencyHistogram timeSaves(
+        ChatMessageRepository repository,
+        SyntheticChat chat,
+        int messageCount
+    ) {
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int i = 0; i < messageCount; i++) {
+            WebsocketJsonMessage message = chat.next();
+            long saveStart = System.nanoTime();
+            repository.saveMessage(message);
+            latency.record(System.nanoTime() - saveStart);
+        }
+        return latency;
+    }
+}
@@ -0,0 +1,238 @@
+package dev.creesch.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import dev.creesch.WebchatClient;
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates chat messages shaped like the ones real servers send: player chat with entity hovers, join/leave and
+ * death messages, and shop broadcasts with large {@code show_item} hovers.
+ */
+public final class SyntheticChat {
+
+    private static final String[] WORDS = {
+        "anyone",
+        "selling",
+        "diamonds",
+        "at",
+        "spawn",
+        "lol",
+        "gg",
+        "where",
+        "is",
+        "the",
+        "nether",
+        "portal",
+        "brb",
+        "need",
+        "iron",
+        "trade",
+        "farm",
+        "villager",
+        "thanks",
+        "creeper",
+    };
+
+    private static final String[] DEATH_KEYS = {
+        "death.attack.mob",
+        "death.fell.accident.generic",
+        "death.attack.lava",
+        "death.attack.drown",
+    };
+
+    private final Random random;
+    private final WebsocketJsonMessage.ChatServerInfo serverInfo;
+    private final int playerCount;
+
+    public SyntheticChat(
+        long seed,
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        int playerCount
+    ) {
+        this.random = new Random(seed);
+        this.serverInfo = serverInfo;
+        this.playerCount = Math.max(1, playerCount);
+    }
+
+    public static String playerName(int index) {
+        return "Player" + index;
+    }
+
+    /**
+     * @return A new live (non history) chat message timestamped now.
+     */
+    public WebsocketJsonMessage next() {
+        int roll = random.nextInt(100);
+        Map<String, String> translations = new HashMap<>();
+        JsonObject component;
+        if (roll < 70) {
+            component = playerChat(translations);
+        } else if (roll < 90) {
+            component = systemMessage(translations);
+        } else {
+            component = shopBroadcast(translations);
+        }
+
+        ChatMessagePayload payload = ChatMessagePayload.builder()
+            .history(false)
+            .uuid(UUID.randomUUID().toString())
+            .component(component)
+            .translations(translations)
+            .isPing(random.nextInt(50) == 0)
+            .build();
+
+        return WebsocketJsonMessage.createChatMessage(
+            System.currentTimeMillis(),
+            serverInfo,
+            payload,
+            HeadlessGameBridge.MINECRAFT_VERSION,
+            WebchatClient.getModVersion()
+        );
+    }
+
+    /**
+     * @return Plain text of a player chat line, the way ping detection sees it.
+     */
+    public String nextPlainChatLine() {
+        return "<" + randomPlayer() + "> " + sentence(3 + random.nextInt(12));
+    }
+
+    private JsonObject playerChat(Map<String, String> translations) {
+        translations.put("chat.type.text", "<%s> %s");
+
+        JsonObject component = new JsonObject();
+        component.addProperty("translate", "chat.type.text");
+        JsonArray with = new JsonArray();
+        with.add(playerComponent(randomPlayer()));
+        JsonObject text = new JsonObject();
+        text.addProperty("text", sentence(3 + random.nextInt(12)));
+        with.add(text);
+        component.add("with", with);
+        return component;
+    }
+
+    private JsonObject systemMessage(Map<String, String> translations) {
+        JsonObject component = new JsonObject();
+        JsonArray with = new JsonArray();
+        with.add(playerComponent(randomPlayer()));
+
+        if (random.nextBoolean()) {
+            String key = random.nextBoolean()
+                ? "multiplayer.player.joined"
+                : "multiplayer.player.left";
+            translations.put(key, "%s joined the game");
+            component.addProperty("translate", key);
+            component.addProperty("color", "yellow");
+        } else {
+            String key = DEATH_KEYS[random.nextInt(DEATH_KEYS.length)];
+            translations.put(key, "%s died");
+            translations.put("entity.minecraft.zombie", "Zombie");
+            component.addProperty("translate", key);
+            JsonObject mob = new JsonObject();
+            mob.addProperty("translate", "entity.minecraft.zombie");
+            with.add(mob);
+        }
+
+        component.add("with", with);
+        return component;
+    }
+
+    private JsonObject shopBroadcast(Map<String, String> translations) {
+        translations.put("item.minecraft.diamond_sword", "Diamond Sword");
+        translations.put("enchantment.minecraft.sharpness", "Sharpness");
+        translations.put("enchantment.minecraft.unbreaking", "Unbreaking");
+
+        JsonObject prefix = new JsonObject();
+        prefix.addProperty("text", "[Shop] ");
+        prefix.addProperty("color", "gold");
+        prefix.addProperty("bold", true);
+
+        JsonObject enchantments = new JsonObject();
+        enchantments.addProperty("minecraft:sharpness", 5);
+        enchantments.addProperty("minecraft:unbreaking", 3);
+        JsonArray lore = new JsonArray();
+        for (int i = 0; i < 6; i++) {
+            JsonObject loreLine = new JsonObject();
+            loreLine.addProperty("text", sentence(6));
+            loreLine.addProperty("color", "dark_purple");
+            loreLine.addProperty("italic", false);
+            lore.add(loreLine);
+        }
+        JsonObject itemComponents = new JsonObject();
+        itemComponents.add("minecraft:enchantments", enchantments);
+        itemComponents.add("minecraft:lore", lore);
+        JsonObject customName = new JsonObject();
+        customName.addProperty("text", "Blade of the Synthetic Shop");
+        customName.addProperty("color", "aqua");
+        itemComponents.add("minecraft:custom_name", customName);
+
+        JsonObject hoverEvent = new JsonObject();
+        hoverEvent.addProperty("action", "show_item");
+        hoverEvent.addProperty("id", "minecraft:diamond_sword");
+        hoverEvent.addProperty("count", 1);
+        hoverEvent.add("components", itemComponents);
+
+        JsonObject item = new JsonObject();
+        item.addProperty("translate", "item.minecraft.diamond_sword");
+        item.addProperty("color", "aqua");
+        item.add("hover_event", hoverEvent);
+
+        JsonObject price = new JsonObject();
+        price.addProperty("text", " for " + (100 + random.nextInt(900)) + "$");
+
+        JsonObject component = new JsonObject();
+        component.addProperty("text", "");
+        JsonArray extra = new JsonArray();
+        extra.add(prefix);
+        extra.add(item);
+        extra.add(price);
+        component.add("extra", extra);
+        return component;
+    }
+
+    private JsonObject playerComponent(String playerName) {
+        JsonObject name = new JsonObject();
+        name.addProperty("text", playerName);
+
+        JsonObject hoverEvent = new JsonObject();
+        hoverEvent.addProperty("action", "show_entity");
+        hoverEvent.addProperty("id", "minecraft:player");
+        hoverEvent.addProperty(
+            "uuid",
+            UUID.nameUUIDFromBytes(playerName.getBytes()).toString()
+        );
+        hoverEvent.add("name", name.deepCopy());
+
+        JsonObject clickEvent = new JsonObject();
+        clickEvent.addProperty("action", "suggest_command");
+        clickEvent.addProperty("command", "/tell " + playerName + " ");
+
+        JsonObject player = new JsonObject();
+        player.addProperty("text", playerName);
+        player.addProperty("insertion", playerName);
+        player.add("hover_event", hoverEvent);
+        player.add("click_event", clickEvent);
+        return player;
+    }
+
+    private String randomPlayer() {
+        return playerName(random.nextInt(playerCount));
+    }
+
+    private String sentence(int words) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+}
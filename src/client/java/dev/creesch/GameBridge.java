@@ -0,0 +1,38 @@
+package dev.creesch;
+
+import dev.creesch.model.WebsocketJsonMessage;
+
+/**
+ * The parts of the running game {@link WebInterface} depends on.
+ *
+ * In the mod this is always {@link MinecraftGameBridge}. Having it as an interface allows the web interface to be
+ * driven without a running {@link net.minecraft.client.MinecraftClient}, for example by the load test harness.
+ */
+public interface GameBridge {
+    /**
+     * @return True if the game is currently in a world (singleplayer or on a server).
+     */
+    boolean isInWorld();
+
+    /**
+     * @return Info about the server or world the game is currently on.
+     */
+    WebsocketJsonMessage.ChatServerInfo getServerInfo();
+
+    /**
+     * @return Minecraft version id as used in outgoing messages.
+     */
+    String getMinecraftVersion();
+
+    /**
+     * @return Player list message for the current server, or null when it isn't available.
+     */
+    WebsocketJsonMessage createPlayerListMessage();
+
+    /**
+     * Sends an already sanitized message or supported command to the game chat.
+     *
+     * @param message The message to send
+     */
+    void sendChatMessage(String message);
+}
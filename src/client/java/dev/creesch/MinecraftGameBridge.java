@@ -0,0 +1,93 @@
+package dev.creesch;
+
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.model.WebsocketMessageBuilder;
+import dev.creesch.util.MinecraftServerIdentifier;
+import dev.creesch.util.NamedLogger;
+import java.util.regex.Pattern;
+import net.minecraft.SharedConstants;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+
+/**
+ * {@link GameBridge} backed by the actual {@link MinecraftClient}.
+ */
+public class MinecraftGameBridge implements GameBridge {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    private static final Pattern SUPPORTED_COMMANDS = Pattern.compile(
+        "^/(msg|tell|w|me)(\\s.*|$)",
+        Pattern.CASE_INSENSITIVE
+    );
+
+    @Override
+    public boolean isInWorld() {
+        // Client should never be null, but again better safe than sorry.
+        MinecraftClient client = MinecraftClient.getInstance();
+        return client != null && client.world != null;
+    }
+
+    @Override
+    public WebsocketJsonMessage.ChatServerInfo getServerInfo() {
+        return MinecraftServerIdentifier.getCurrentServerInfo();
+    }
+
+    @Override
+    public String getMinecraftVersion() {
+        return SharedConstants.getGameVersion().id();
+    }
+
+    @Override
+    public WebsocketJsonMessage createPlayerListMessage() {
+        return WebsocketMessageBuilder.createPlayerList(
+            MinecraftClient.getInstance()
+        );
+    }
+
+    @Override
+    public void sendChatMessage(String message) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        // Probably an edge case, if even possible but client can potentially be null
+        if (client == null) {
+            LOGGER.warn(
+                "MinecraftClient instance is null. Cannot send message."
+            );
+            return;
+        }
+
+        client.execute(() -> {
+            ClientPlayerEntity player = client.player;
+            if (player == null) {
+                LOGGER.warn("Player value is null. Cannot send message.");
+                return;
+            }
+
+            int maxLength = 256;
+            if (SUPPORTED_COMMANDS.matcher(message).matches()) {
+                String slash = "/";
+                int end = Math.min(
+                    message.length(),
+                    maxLength + slash.length()
+                );
+                // Remove the leading slash and truncate to maxLength.
+                player.networkHandler.sendChatCommand(
+                    message.substring(slash.length(), end)
+                );
+                return;
+            }
+
+            if (message.length() <= maxLength) {
+                player.networkHandler.sendChatMessage(message);
+                return;
+            }
+
+            // Break long messages into smaller chunks
+            for (int i = 0; i < message.length(); i += maxLength) {
+                int end = Math.min(i + maxLength, message.length());
+                player.networkHandler.sendChatMessage(
+                    message.substring(i, end)
+                );
+            }
+        });
+    }
+}
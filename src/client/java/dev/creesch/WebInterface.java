@@ -1,28 +1,54 @@
 package dev.creesch;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 import dev.creesch.config.ModConfig;
+import dev.creesch.history.HistoryService;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.metrics.jfr.ConnectionClosedEvent;
+import dev.creesch.metrics.jfr.ConnectionOpenedEvent;
+import dev.creesch.metrics.jfr.FrameBroadcastEvent;
+import dev.creesch.model.ChatMessagePayload;
 import dev.creesch.model.IncomingWebsocketJsonMessage;
 import dev.creesch.model.IncomingWebsocketJsonMessage.HistoryPayload;
+import dev.creesch.model.IncomingWebsocketJsonMessage.SubscribePayload;
+import dev.creesch.model.ResumePayload;
 import dev.creesch.model.WebsocketJsonMessage;
 import dev.creesch.model.WebsocketMessageBuilder;
 import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.util.MemoryBudget;
 import dev.creesch.util.NamedLogger;
+import dev.creesch.websocket.CborFrames;
+import dev.creesch.websocket.ClientConnection;
+import dev.creesch.websocket.FrameEncoding;
+import dev.creesch.websocket.ResumeLog;
+import dev.creesch.websocket.SelectiveDeflateExtension;
+import dev.creesch.websocket.SubscriptionFilter;
 import io.javalin.Javalin;
+import io.javalin.http.HttpResponseException;
 import io.javalin.http.staticfiles.Location;
 import io.javalin.websocket.WsContext;
 import io.javalin.websocket.WsMessageContext;
-import java.util.Collections;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 import lombok.Getter;
-import net.minecraft.client.MinecraftClient;
-import net.minecraft.client.network.ClientPlayerEntity;
 
 public class WebInterface {
 
@@ -31,39 +57,164 @@ public class WebInterface {
     private final Javalin server;
 
     private final Gson gson = new Gson();
-    private final Set<WsContext> connections = Collections.newSetFromMap(
-        new ConcurrentHashMap<>()
-    );
+    private final Map<WsContext, ClientConnection> connections =
+        new ConcurrentHashMap<>();
 
     private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    // Connects and disconnects are logged from Jetty's threads, which shouldn't wait on the game's log appenders.
+    private static final NamedLogger CONNECTION_LOG = LOGGER.async();
     private static final ModConfig config = ModConfig.HANDLER.instance();
     private final ChatMessageRepository messageRepository;
+    private final GameBridge gameBridge;
+    private final HistoryService historyService;
     private static final Pattern ILLEGAL_CHARACTERS = Pattern.compile(
         "[\\n\\r§\u00A7\\u0000-\\u001F\\u200B-\\u200F\\u2028-\\u202F]"
     );
     private static final Pattern MULTIPLE_SPACES = Pattern.compile("\\s{2,}");
-    private static final Pattern SUPPORTED_COMMANDS = Pattern.compile(
-        "^/(msg|tell|w|me)(\\s.*|$)",
-        Pattern.CASE_INSENSITIVE
+
+    private static final LongAdder FRAMES_SENT = WebchatMetrics.counter(
+        "websocket.framesSent"
+    );
+    private static final LongAdder BYTES_SENT = WebchatMetrics.counter(
+        "websocket.bytesSent"
+    );
+    private static final LongAdder FRAMES_FILTERED = WebchatMetrics.counter(
+        "websocket.framesFiltered"
+    );
+    // Keys of frames in the latest lane of the outbound queues, a newer frame replaces an unsent one.
+    private static final String PLAYER_LIST_FRAME_KEY = "serverPlayerList";
+    private static final LongAdder COALESCED_BATCHES = WebchatMetrics.counter(
+        "websocket.coalesce.batches"
+    );
+    private static final LongAdder COALESCED_MESSAGES = WebchatMetrics.counter(
+        "websocket.coalesce.messages"
+    );
+    private static final LongAdder CONNECTIONS_SHED = WebchatMetrics.counter(
+        "websocket.connectionsShed"
+    );
+    private static final LongAdder CONNECTIONS_REAPED = WebchatMetrics.counter(
+        "websocket.connectionsReaped"
+    );
+    private static final LongAdder CONNECTIONS_REFUSED = WebchatMetrics.counter(
+        "websocket.connectionsRefused"
+    );
+    private static final LongAdder RESUMED_FROM_LOG = WebchatMetrics.counter(
+        "websocket.resume.log"
+    );
+    private static final LongAdder RESUMED_FROM_DATABASE =
+        WebchatMetrics.counter("websocket.resume.database");
+    private static final LongAdder RESYNCS = WebchatMetrics.counter(
+        "websocket.resume.resync"
+    );
+    private static final LongAdder REPLAYED_MESSAGES = WebchatMetrics.counter(
+        "websocket.resume.replayedMessages"
+    );
+    private static final LongAdder HISTORY_PAGES_PUSHED =
+        WebchatMetrics.counter("history.pagesPushed");
+    private static final LongAdder HISTORY_REQUESTS_COALESCED =
+        WebchatMetrics.counter("history.requestsCoalesced");
+    private static final LongAdder HISTORY_PUSHES_SKIPPED =
+        WebchatMetrics.counter("history.pushesSkipped");
+
+    // Same as messageHistoryLimit in chat.mjs, so a pushed page is exactly what the browser would have asked for.
+    private static final int FIRST_HISTORY_PAGE_LIMIT = 50;
+
+    // History pages wait for the browser to read what it got before more is queued for it.
+    private static final long HISTORY_MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final long HISTORY_SEND_TIMEOUT_MILLIS = 30_000;
+    // When over the memory budget only connections at least this far behind are closed.
+    private static final long MIN_SHED_QUEUED_BYTES = 256 * 1024;
+    // Try Again Later, the browser reconnects and catches up from the resume log.
+    private static final int SHED_CLOSE_STATUS = 1013;
+    // Also Try Again Later, a tab that was refused keeps retrying until a slot frees up.
+    private static final int REFUSED_CLOSE_STATUS = 1013;
+
+    private final MemoryBudget memoryBudget = new MemoryBudget(
+        WebInterface.config.memoryBudgetMb * 1024L * 1024L
+    );
+    private final AtomicLong outboundBytes = new AtomicLong();
+
+    // Pushed history is read here rather than on the game thread that broadcasts the join.
+    private final ExecutorService historyPushExecutor =
+        Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "web-chat-history-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // Flushes messages held back during a burst, see shouldCoalesce.
+    private final ScheduledExecutorService coalesceExecutor =
+        Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "web-chat-coalesce");
+            thread.setDaemon(true);
+            return thread;
+        });
+    // Sends heartbeats to all connections in one pass, see sendHeartbeats.
+    private final ScheduledExecutorService heartbeatExecutor =
+        Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "web-chat-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    // Only touched by the heartbeat thread.
+    private long heartbeatId = 0;
+
+    private final long coalesceWindowMillis =
+        WebInterface.config.websocketCoalesceWindowMillis;
+    private final int coalesceMaxMessages = Math.max(
+        1,
+        WebInterface.config.websocketCoalesceMaxMessages
+    );
+    // Guarded by broadcastLock.
+    private final List<Outgoing> pendingFrames = new ArrayList<>();
+    private ScheduledFuture<?> pendingFlush;
+    private long lastBroadcastNanos = System.nanoTime();
+
+    // Numbering, logging and sending of broadcasts happen under this lock.
+    // New connections catch up under it as well, so they can't miss or double up on messages broadcast meanwhile.
+    private final Object broadcastLock = new Object();
+    private final ResumeLog resumeLog = new ResumeLog(
+        WebInterface.config.resumeLogSize
     );
 
     private String staticFilesPath = "";
+    // Registered with Jetty once when the server starts, see SelectiveDeflateExtension#applyTo.
+    private final boolean compressionEnabled =
+        WebInterface.config.websocketCompression;
     private final AtomicBoolean shutdownInitiated = new AtomicBoolean(false);
     private AtomicInteger connectionsToClose;
     private final AtomicBoolean isServerRunning = new AtomicBoolean(false);
 
     public WebInterface(ChatMessageRepository messageRepository) {
+        this(messageRepository, new MinecraftGameBridge());
+    }
+
+    public WebInterface(
+        ChatMessageRepository messageRepository,
+        GameBridge gameBridge
+    ) {
+        this.gameBridge = gameBridge;
         if (messageRepository == null) {
             LOGGER.error(
                 "WebInterface cannot be initialized, ChatMessageRepository cannot be null"
             );
             this.messageRepository = null;
+            this.historyService = null;
             this.server = null;
             return;
         }
         this.messageRepository = messageRepository;
+        this.historyService = new HistoryService(
+            messageRepository,
+            gameBridge,
+            WebInterface.config.historyCacheSizeMb * 1024L * 1024L
+        );
+        messageRepository.addChangeListener(historyService);
+        registerMemoryAccounts();
         server = createServer();
         setupWebSocket();
+        setupHeartbeats();
+        setupMetricsEndpoint();
 
         try {
             server.start(WebInterface.config.httpPortNumber);
@@ -93,6 +244,23 @@ public class WebInterface {
 
             config.http.defaultContentType = "text/plain";
             config.showJavalinBanner = false;
+            // Extensions are negotiated during the upgrade, the right compression setup has to be registered before
+            // the first one. Jetty's websocket components exist by the time context listeners run.
+            config.jetty.modifyServletContextHandler((handler) ->
+                handler.addEventListener(
+                    new ServletContextListener() {
+                        @Override
+                        public void contextInitialized(
+                            ServletContextEvent event
+                        ) {
+                            SelectiveDeflateExtension.applyTo(
+                                event.getServletContext(),
+                                compressionEnabled
+                            );
+                        }
+                    }
+                )
+            );
         }).before((ctx) -> {
             // Note, most things that are set here are overkill as users are _supposed_ to only uses this on their local machine through localhost.
             // Or if we are being generous through a device on their own network.
@@ -140,14 +308,27 @@ public class WebInterface {
     }
 
     private void handleReceivedMessages(WsMessageContext ctx) {
-        LOGGER.info(ctx.message());
+        LOGGER.debug("Received WebSocket frame: {}", ctx.message());
         // Parse received message from json
         IncomingWebsocketJsonMessage receivedMessage = gson.fromJson(
             ctx.message(),
             IncomingWebsocketJsonMessage.class
         );
 
+        Long answeredHeartbeatId =
+            receivedMessage.getType() ==
+                IncomingWebsocketJsonMessage.MessageType.HEARTBEAT
+                ? gson.fromJson(receivedMessage.getPayload(), Long.class)
+                : null;
+        ClientConnection sender = connections.get(ctx);
+        if (sender != null) {
+            sender.received(answeredHeartbeatId);
+        }
+
         switch (receivedMessage.getType()) {
+            case HEARTBEAT -> {
+                // Nothing else to do, the connection was marked alive above.
+            }
             case CHAT -> {
                 String message = gson.fromJson(
                     receivedMessage.getPayload(),
@@ -160,113 +341,202 @@ public class WebInterface {
                     );
                     return;
                 }
-                LOGGER.info("Received WebSocket message: {}", message);
+                LOGGER.debug("Received WebSocket message: {}", message);
 
                 // Sanitize the message
                 message = sanitizeMessage(message);
 
                 // Send the sanitized message to Minecraft chat
-                sendMinecraftMessage(message);
+                gameBridge.sendChatMessage(message);
+            }
+            case SUBSCRIBE -> {
+                ClientConnection connection = connections.get(ctx);
+                if (connection == null) {
+                    return;
+                }
+                SubscriptionFilter filter = SubscriptionFilter.from(
+                    gson.fromJson(
+                        receivedMessage.getPayload(),
+                        SubscribePayload.class
+                    )
+                );
+                connection.setFilter(filter);
+                LOGGER.debug(
+                    "Connection {} subscribed to {}",
+                    ctx.session.getRemoteAddress(),
+                    filter
+                );
             }
             case HISTORY -> {
                 HistoryPayload historyPayload = gson.fromJson(
                     receivedMessage.getPayload(),
                     HistoryPayload.class
                 );
-                int requestedLimit = historyPayload.getLimit();
-                int moreHistoryRequestedLimit = requestedLimit + 1; // Used further down to determine if there are more messages available in history.
-                LOGGER.info(
+                LOGGER.debug(
                     "Received history request: {}",
                     historyPayload.getServerId()
                 );
 
-                List<WebsocketJsonMessage> historyMessages;
-                if (historyPayload.getBefore() != null) {
-                    historyMessages = messageRepository.getMessages(
+                ClientConnection connection = connections.get(ctx);
+                if (
+                    historyPayload.getBefore() == null &&
+                    connection != null &&
+                    connection.consumePushedHistory(
                         historyPayload.getServerId(),
-                        moreHistoryRequestedLimit,
-                        historyPayload.getBefore()
-                    );
-                } else {
-                    historyMessages = messageRepository.getMessages(
-                        historyPayload.getServerId(),
-                        moreHistoryRequestedLimit
-                    );
+                        historyPayload.getLimit()
+                    )
+                ) {
+                    // This page was already pushed right after the join, don't send it twice.
+                    HISTORY_REQUESTS_COALESCED.increment();
+                    return;
                 }
 
-                // Let's build metadata
-                WebsocketJsonMessage historyMetaDataMessage =
-                    WebsocketMessageBuilder.createHistoryMetaDataMessage(
-                        historyMessages,
-                        requestedLimit
-                    );
-
-                // Send the history metadata first
-                ctx.send(gson.toJson(historyMetaDataMessage));
-
-                historyMessages.forEach((historicMessage) -> {
-                    ctx.send(gson.toJson(historicMessage));
-                });
+                if (connection == null) {
+                    return;
+                }
+                boolean complete = historyService.sendPage(
+                    historyPayload.getServerId(),
+                    historyPayload.getLimit(),
+                    historyPayload.getBefore(),
+                    (frame) -> sendHistoryFrame(connection, frame)
+                );
+                if (!complete) {
+                    stopHistory(connection);
+                }
+                memoryBudget.enforce();
             }
         }
     }
 
+    /**
+     * Sends the first history page to connections without them asking for it, saving the browser a round trip after
+     * a join. The request the browser sends anyway is answered by this push, see
+     * {@link ClientConnection#consumePushedHistory(String, int)}.
+     *
+     * One thread pushes to every connection, so it never waits for a browser to catch up. A connection that is already
+     * far behind is skipped instead, its own request is then answered as usual.
+     */
+    private void pushFirstHistoryPage(
+        String serverId,
+        Collection<ClientConnection> targets
+    ) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        // Marked right away, the browser's own request may arrive before the push is done.
+        targets.forEach((connection) ->
+            connection.markHistoryPushed(serverId, FIRST_HISTORY_PAGE_LIMIT)
+        );
+
+        historyPushExecutor.execute(() -> {
+            List<String> page = historyService.getPage(
+                serverId,
+                FIRST_HISTORY_PAGE_LIMIT,
+                null
+            );
+            targets.forEach((connection) -> {
+                if (!connections.containsKey(connection.getContext())) {
+                    return;
+                }
+                if (
+                    connection.getOutbound().queuedBytes() >
+                        HISTORY_MAX_QUEUED_BYTES &&
+                    connection.unmarkHistoryPushed(serverId)
+                ) {
+                    HISTORY_PUSHES_SKIPPED.increment();
+                    return;
+                }
+                // Still pushed when its request was already skipped because of the push, it has nothing else coming.
+                for (String frame : page) {
+                    if (!connection.send(frame)) {
+                        return;
+                    }
+                }
+                HISTORY_PAGES_PUSHED.increment();
+            });
+            memoryBudget.enforce();
+        });
+    }
+
     private void setupWebSocket() {
+        server.wsBeforeUpgrade("/chat", (ctx) -> {
+            // Cheap early refusal, before the upgrade. The check in onConnect is the one that counts.
+            String refusal = admissionRefusal(ctx.ip());
+            if (refusal != null) {
+                CONNECTIONS_REFUSED.increment();
+                throw new HttpResponseException(503, refusal);
+            }
+            // Javalin leaves subprotocols to us, the connection itself picks the same encoding in ClientConnection.
+            String subprotocol = FrameEncoding.acceptedSubprotocol(
+                ctx.header(FrameEncoding.SUBPROTOCOL_HEADER)
+            );
+            if (subprotocol != null) {
+                ctx.header(FrameEncoding.SUBPROTOCOL_HEADER, subprotocol);
+            }
+        });
+
         server.ws("/chat", (ws) -> {
             ws.onConnect((ctx) -> {
-                // For localhost connections pinging likely isn't needed.
-                // But if someone wants to use the mod on their phone or something it might be useful to include it.
-                ctx.enableAutomaticPings(15, TimeUnit.SECONDS);
-                LOGGER.info(
+                CONNECTION_LOG.info(
                     "New WebSocket connection from {}",
                     ctx.session.getRemoteAddress() != null
                         ? ctx.session.getRemoteAddress()
                         : "unknown remote address"
                 );
 
-                if (!addConnection(ctx)) {
-                    LOGGER.warn(
-                        "Failed to add connection: {}",
-                        ctx.session.getRemoteAddress()
+                ConnectionOpenedEvent event = new ConnectionOpenedEvent();
+                event.begin();
+                SubscriptionFilter filter = subscriptionOf(ctx);
+                // Outside the lock, the game thread broadcasts under it.
+                DatabaseResume databaseResume = readDatabaseResume(ctx, filter);
+                synchronized (broadcastLock) {
+                    String refusal = admissionRefusal(
+                        ClientConnection.addressOf(ctx)
                     );
-                    return;
-                }
+                    if (refusal != null) {
+                        CONNECTIONS_REFUSED.increment();
+                        CONNECTION_LOG.info(
+                            "Refused connection from {}: {}",
+                            ctx.session.getRemoteAddress(),
+                            refusal
+                        );
+                        ctx.closeSession(REFUSED_CLOSE_STATUS, refusal);
+                        return;
+                    }
+                    // Held back messages are already in the resume log, a new connection must not get them twice.
+                    flushPendingFrames();
+                    ClientConnection connection = addConnection(ctx);
+                    if (connection == null) {
+                        LOGGER.warn(
+                            "Failed to add connection: {}",
+                            ctx.session.getRemoteAddress()
+                        );
+                        return;
+                    }
+                    connection.setFilter(filter);
 
-                // If minecraft is connected to a server the client needs to know.
-                // Client should never be null, but again better safe than sorry.
-                MinecraftClient client = MinecraftClient.getInstance();
-                if (client == null || client.world == null) {
-                    return;
+                    try {
+                        resumeConnection(connection, databaseResume);
+                    } catch (Exception e) {
+                        LOGGER.warn(
+                            "Failed to send initial messages to connection: {}",
+                            ctx.session.getRemoteAddress(),
+                            e
+                        );
+                    }
                 }
-                // Got a world, use JOIN state to communicate this
-                WebsocketJsonMessage joinMessage =
-                    WebsocketMessageBuilder.createConnectionStateMessage(
-                        WebsocketJsonMessage.ServerConnectionStates.JOIN
-                    );
-                String jsonJoinMessage = gson.toJson(joinMessage);
-
-                // Even though the client will receive the player list shortly anyway. It will be with a noticable delay.
-                // So on connect make sure the list is send immediatly.
-                WebsocketJsonMessage playerListMessage =
-                    WebsocketMessageBuilder.createPlayerList(client);
-                String jsonPlayerListMessage = gson.toJson(playerListMessage);
-
-                try {
-                    ctx.send(jsonJoinMessage);
-                    ctx.send(jsonPlayerListMessage);
-                } catch (Exception e) {
-                    LOGGER.info(jsonJoinMessage);
-                    LOGGER.info(jsonPlayerListMessage);
-                    LOGGER.warn(
-                        "Failed to send JOIN or PlayerList message to connection: {}",
-                        ctx.session.getRemoteAddress(),
-                        e
+                event.end();
+                if (event.shouldCommit()) {
+                    event.remoteAddress = String.valueOf(
+                        ctx.session.getRemoteAddress()
                     );
+                    event.connections = connections.size();
+                    event.commit();
                 }
             });
 
             ws.onClose((ctx) -> {
-                LOGGER.info(
+                CONNECTION_LOG.info(
                     "WebSocket connection closed: {} with status {} and reason: {}",
                     ctx.session.getRemoteAddress(),
                     ctx.status(),
@@ -284,21 +554,572 @@ public class WebInterface {
         });
     }
 
+    /**
+     * Checks the connection limits for a new connection. Called before it is added, so the limits themselves are still
+     * free.
+     *
+     * @param address IP address of the new connection
+     * @return Why the connection is refused, null if it may connect
+     */
+    private String admissionRefusal(String address) {
+        int maxConnections = WebInterface.config.websocketMaxConnections;
+        if (maxConnections > 0 && connections.size() >= maxConnections) {
+            return "Too many connections";
+        }
+        int maxPerAddress =
+            WebInterface.config.websocketMaxConnectionsPerAddress;
+        if (maxPerAddress <= 0) {
+            return null;
+        }
+        long fromAddress = connections
+            .values()
+            .stream()
+            .filter((connection) ->
+                connection.getRemoteAddress().equals(address)
+            )
+            .count();
+        return fromAddress >= maxPerAddress
+            ? "Too many connections from this address"
+            : null;
+    }
+
+    /**
+     * Heartbeats replace Jetty's per connection automatic pings, browsers don't expose pongs so they are regular
+     * messages the browser echoes back. That gives a round trip time per connection and catches connections that went
+     * away without closing (a laptop lid, a dropped Wi-Fi connection), which would otherwise hold their backlog until
+     * TCP gives up.
+     */
+    private void setupHeartbeats() {
+        int seconds = WebInterface.config.websocketHeartbeatSeconds;
+        if (seconds <= 0) {
+            return;
+        }
+        heartbeatExecutor.scheduleAtFixedRate(
+            this::sendHeartbeats,
+            seconds,
+            seconds,
+            TimeUnit.SECONDS
+        );
+        WebchatMetrics.gauge("websocket.heartbeat.maxRoundTripMillis", () ->
+            connections
+                .values()
+                .stream()
+                .mapToLong(ClientConnection::getHeartbeatRoundTripMillis)
+                .max()
+                .orElse(-1)
+        );
+    }
+
+    /**
+     * Sends one heartbeat frame, the same for every connection, and closes connections that left too many unanswered.
+     * Heartbeats go in the latest lane, so they never hold up chat and don't pile up behind a backlog. While one waits
+     * behind a backlog, frames being written count as the answer, see {@link ClientConnection#heartbeatSent(long)}.
+     */
+    private void sendHeartbeats() {
+        try {
+            int maxMissed = Math.max(
+                1,
+                WebInterface.config.websocketHeartbeatMaxMissed
+            );
+            long id = ++heartbeatId;
+            String frame = gson.toJson(
+                WebsocketMessageBuilder.createHeartbeatMessage(
+                    id,
+                    gameBridge.getServerInfo(),
+                    gameBridge.getMinecraftVersion()
+                )
+            );
+            for (ClientConnection connection : connections.values()) {
+                int missed = connection.heartbeatSent(id);
+                if (missed < maxMissed) {
+                    sendLatest(
+                        connection,
+                        ClientConnection.HEARTBEAT_FRAME_KEY,
+                        frame
+                    );
+                    continue;
+                }
+                CONNECTIONS_REAPED.increment();
+                CONNECTION_LOG.info(
+                    "Closing connection {}, it missed {} heartbeats",
+                    connection.getContext().session.getRemoteAddress(),
+                    missed
+                );
+                connection.getOutbound().close();
+                // No close handshake, the other side isn't answering anyway. Jetty still calls onClose.
+                connection.getContext().session.disconnect();
+            }
+        } catch (Exception e) {
+            // An exception would cancel the schedule.
+            LOGGER.warn("Failed to send heartbeats", e);
+        }
+    }
+
+    /**
+     * Catches a new connection up. A reconnecting client passes the last session id and sequence number it saw, and
+     * the timestamp of the last live chat message, as query parameters. Whatever it missed is replayed from the
+     * {@link ResumeLog} or, failing that, read back from the database by {@link #readDatabaseResume}. If neither
+     * covers the gap the client starts over the same way a new connection does. Only what the connection's
+     * subscription accepts is replayed.
+     *
+     * Must be called while holding {@link #broadcastLock}.
+     *
+     * @param databaseResume Missed chat read back from the database before the lock was taken, may be null
+     */
+    private void resumeConnection(
+        ClientConnection connection,
+        DatabaseResume databaseResume
+    ) {
+        WsContext ctx = connection.getContext();
+        SubscriptionFilter filter = connection.getFilter();
+        String sessionId = ctx.queryParam("session");
+        Long after = parseLongParameter(ctx.queryParam("after"));
+
+        if (sessionId != null && after != null) {
+            List<String> missed = resumeLog.missedSince(
+                sessionId,
+                after,
+                filter
+            );
+            if (missed != null) {
+                sendResumeMessage(
+                    connection,
+                    ResumePayload.Mode.LOG,
+                    missed.size()
+                );
+                missed.forEach(connection::send);
+                sendPlayerList(connection);
+                RESUMED_FROM_LOG.increment();
+                REPLAYED_MESSAGES.add(missed.size());
+                return;
+            }
+
+            // A connection state change since the read makes it stale, so does a log that no longer reaches back to it.
+            List<String> sinceRead =
+                databaseResume != null &&
+                    resumeLog.canResumeFromDatabase(sessionId, after)
+                    ? resumeLog.missedSince(
+                        resumeLog.getSessionId(),
+                        databaseResume.sequence(),
+                        filter
+                    )
+                    : null;
+            if (sinceRead != null) {
+                List<String> frames = new ArrayList<>(databaseResume.frames());
+                // Messages saved during the read can show up in both, the client drops the second copy.
+                frames.addAll(sinceRead);
+                sendResumeMessage(
+                    connection,
+                    ResumePayload.Mode.DATABASE,
+                    frames.size()
+                );
+                frames.forEach(connection::send);
+                sendPlayerList(connection);
+                RESUMED_FROM_DATABASE.increment();
+                REPLAYED_MESSAGES.add(frames.size());
+                return;
+            }
+        }
+
+        RESYNCS.increment();
+        sendResumeMessage(connection, ResumePayload.Mode.RESYNC, 0);
+
+        // If minecraft is connected to a server the client needs to know.
+        if (!gameBridge.isInWorld()) {
+            return;
+        }
+        // Got a world, use JOIN state to communicate this
+        WebsocketJsonMessage joinMessage =
+            WebsocketMessageBuilder.createConnectionStateMessage(
+                WebsocketJsonMessage.ServerConnectionStates.JOIN,
+                gameBridge.getServerInfo(),
+                gameBridge.getMinecraftVersion()
+            );
+        connection.send(gson.toJson(joinMessage));
+
+        // Even though the client will receive the player list shortly anyway. It will be with a noticable delay.
+        // So on connect make sure the list is send immediatly.
+        sendPlayerList(connection);
+
+        String serverId = gameBridge.getServerInfo().getIdentifier();
+        if (
+            WebInterface.config.pushHistoryOnJoin &&
+            filter.acceptsServer(serverId)
+        ) {
+            pushFirstHistoryPage(serverId, List.of(connection));
+        }
+    }
+
+    /**
+     * Missed chat of a reconnecting client, read back from the database.
+     *
+     * @param sequence Last sequence number broadcast before the read, later messages come from the resume log
+     * @param frames Missed chat messages the client's subscription accepts, oldest first
+     */
+    private record DatabaseResume(long sequence, List<String> frames) {}
+
+    /**
+     * Reads what a reconnecting client missed from the database, for when the resume log no longer covers the gap.
+     * Called before the connection is added and without holding {@link #broadcastLock}, the read can take a while and
+     * the game thread broadcasts under the same lock.
+     *
+     * @return Null when the client doesn't need or can't get a database catch up
+     */
+    private DatabaseResume readDatabaseResume(
+        WsContext ctx,
+        SubscriptionFilter filter
+    ) {
+        String sessionId = ctx.queryParam("session");
+        Long after = parseLongParameter(ctx.queryParam("after"));
+        Long since = parseLongParameter(ctx.queryParam("since"));
+        if (
+            sessionId == null ||
+            after == null ||
+            since == null ||
+            !filter.canFilterStored()
+        ) {
+            return null;
+        }
+
+        long sequence;
+        synchronized (broadcastLock) {
+            if (
+                !gameBridge.isInWorld() ||
+                resumeLog.covers(sessionId, after) ||
+                !resumeLog.canResumeFromDatabase(sessionId, after)
+            ) {
+                return null;
+            }
+            // Messages are saved before they are broadcast, everything up to here is in the database.
+            sequence = resumeLog.getSequence();
+        }
+
+        List<WebsocketJsonMessage> missedChat = missedChatMessages(since);
+        if (missedChat == null) {
+            return null;
+        }
+        List<String> frames = new ArrayList<>(missedChat.size());
+        for (WebsocketJsonMessage message : missedChat) {
+            if (
+                filter.accepts(
+                    SubscriptionFilter.categoryOf(message),
+                    message.getServer().getIdentifier()
+                )
+            ) {
+                frames.add(gson.toJson(message));
+            }
+        }
+        return new DatabaseResume(sequence, frames);
+    }
+
+    /**
+     * Reads chat messages stored since the given timestamp for the current server.
+     *
+     * @param since Timestamp of the last live chat message the client saw
+     * @return Missed messages oldest first as live copies, or null if there are more than can be replayed
+     */
+    private List<WebsocketJsonMessage> missedChatMessages(long since) {
+        int maxMessages = WebInterface.config.resumeMaxDatabaseMessages;
+        List<WebsocketJsonMessage> newest = messageRepository.getMessages(
+            gameBridge.getServerInfo().getIdentifier(),
+            maxMessages + 1
+        );
+
+        // Messages with the exact same timestamp are included, the client drops the ones it already has.
+        List<WebsocketJsonMessage> missed = new ArrayList<>();
+        boolean reachedSince = newest.size() <= maxMessages;
+        for (WebsocketJsonMessage message : newest) {
+            if (message.getTimestamp() < since) {
+                reachedSince = true;
+                break;
+            }
+            missed.add(message);
+        }
+        if (!reachedSince || missed.size() > maxMessages) {
+            return null;
+        }
+
+        List<WebsocketJsonMessage> oldestFirst = new ArrayList<>(missed.size());
+        for (int i = missed.size() - 1; i >= 0; i--) {
+            WebsocketJsonMessage message = missed.get(i);
+            // Copied, the repository may hand out the same objects to others.
+            oldestFirst.add(
+                WebsocketJsonMessage.createChatMessage(
+                    message.getTimestamp(),
+                    message.getServer(),
+                    ((ChatMessagePayload) message.getPayload()).toBuilder()
+                        .history(false)
+                        .build(),
+                    message.getMinecraftVersion(),
+                    message.getModVersion()
+                )
+            );
+        }
+        return oldestFirst;
+    }
+
+    /**
+     * Browsers pass their subscription when connecting, so it already applies to what is replayed on resume. It can
+     * still be changed later with a subscribe message.
+     */
+    private SubscriptionFilter subscriptionOf(WsContext ctx) {
+        String subscribe = ctx.queryParam("subscribe");
+        if (subscribe == null) {
+            return SubscriptionFilter.ALL;
+        }
+        try {
+            return SubscriptionFilter.from(
+                gson.fromJson(subscribe, SubscribePayload.class)
+            );
+        } catch (JsonSyntaxException e) {
+            LOGGER.debug("Ignoring invalid subscription {}", subscribe);
+            return SubscriptionFilter.ALL;
+        }
+    }
+
+    private void sendResumeMessage(
+        ClientConnection connection,
+        ResumePayload.Mode mode,
+        int replayed
+    ) {
+        WebsocketJsonMessage resumeMessage =
+            WebsocketMessageBuilder.createResumeMessage(
+                mode,
+                replayed,
+                gameBridge.isInWorld(),
+                gameBridge.getServerInfo(),
+                gameBridge.getMinecraftVersion()
+            );
+        // Tells the client where it is at now, everything up to this sequence number has been dealt with.
+        resumeMessage.setSessionId(resumeLog.getSessionId());
+        resumeMessage.setSequence(resumeLog.getSequence());
+        connection.send(gson.toJson(resumeMessage));
+    }
+
+    private void sendPlayerList(ClientConnection connection) {
+        if (
+            !gameBridge.isInWorld() ||
+            !connection
+                .getFilter()
+                .accepts(
+                    SubscriptionFilter.PLAYER_LIST,
+                    gameBridge.getServerInfo().getIdentifier()
+                )
+        ) {
+            return;
+        }
+        WebsocketJsonMessage playerListMessage =
+            gameBridge.createPlayerListMessage();
+        if (playerListMessage != null) {
+            connection.sendLatest(
+                PLAYER_LIST_FRAME_KEY,
+                gson.toJson(playerListMessage)
+            );
+        }
+    }
+
+    /**
+     * @return False when the browser didn't catch up in time or the connection closed, the frame was dropped
+     */
+    private boolean sendHistoryFrame(ClientConnection connection, String frame) {
+        return connection
+            .getOutbound()
+            .enqueueWhenBelow(
+                frame,
+                HISTORY_MAX_QUEUED_BYTES,
+                HISTORY_SEND_TIMEOUT_MILLIS
+            );
+    }
+
+    /**
+     * A history page that couldn't be sent whole would leave a hole in the browser's history, and possibly no
+     * metadata frame to page on from. The connection is closed instead, the browser reconnects and asks again.
+     */
+    private void stopHistory(ClientConnection connection) {
+        if (!connections.containsKey(connection.getContext())) {
+            return;
+        }
+        LOGGER.warn(
+            "Closing connection {}, it didn't take a history page in time",
+            connection.getContext().session.getRemoteAddress()
+        );
+        connection.getOutbound().close();
+        connection
+            .getContext()
+            .closeSession(SHED_CLOSE_STATUS, "Fell too far behind");
+    }
+
+    /**
+     * Puts caches, outbound frames and pending writes under one memory budget. Caches are given up first, then
+     * connections that fell far behind are closed. Pending writes are counted but never dropped. Chat kept in memory
+     * can't be freed at all, it only lowers the limit for the rest.
+     */
+    private void registerMemoryAccounts() {
+        memoryBudget.register(
+            "history.cache",
+            MemoryBudget.Tier.CACHE,
+            new MemoryBudget.Account() {
+                @Override
+                public long usedBytes() {
+                    return historyService.cachedBytes();
+                }
+
+                @Override
+                public long shed(long bytes) {
+                    return historyService.evict(bytes);
+                }
+            }
+        );
+        memoryBudget.register(
+            "storage.blobCache",
+            MemoryBudget.Tier.CACHE,
+            new MemoryBudget.Account() {
+                @Override
+                public long usedBytes() {
+                    return messageRepository.cachedBytes();
+                }
+
+                @Override
+                public long shed(long bytes) {
+                    return messageRepository.evictCache(bytes);
+                }
+            }
+        );
+        memoryBudget.register(
+            "websocket.cborCache",
+            MemoryBudget.Tier.CACHE,
+            new MemoryBudget.Account() {
+                @Override
+                public long usedBytes() {
+                    return CborFrames.cachedBytes();
+                }
+
+                @Override
+                public long shed(long bytes) {
+                    return CborFrames.evictCache(bytes);
+                }
+            }
+        );
+        // Last of the caches, without it reconnecting browsers have to catch up from the database.
+        memoryBudget.register(
+            "websocket.resumeLog",
+            MemoryBudget.Tier.CACHE,
+            new MemoryBudget.Account() {
+                @Override
+                public long usedBytes() {
+                    return resumeLog.usedBytes();
+                }
+
+                @Override
+                public long shed(long bytes) {
+                    synchronized (broadcastLock) {
+                        return resumeLog.trim(bytes);
+                    }
+                }
+            }
+        );
+        memoryBudget.register(
+            "websocket.outbound",
+            MemoryBudget.Tier.OUTBOUND,
+            new MemoryBudget.Account() {
+                @Override
+                public long usedBytes() {
+                    return outboundBytes.get();
+                }
+
+                @Override
+                public long shed(long bytes) {
+                    return shedSlowConnections(bytes);
+                }
+            }
+        );
+        memoryBudget.register(
+            "storage.pending",
+            MemoryBudget.Tier.PENDING_WRITES,
+            messageRepository::pendingBytes
+        );
+        // Only the in memory repository keeps chat in the heap, it has nowhere else to put it.
+        memoryBudget.registerUnfreeable(
+            "storage.stored",
+            messageRepository::storedBytes
+        );
+    }
+
+    /**
+     * Closes the connections furthest behind until enough memory is freed. Their browsers reconnect and catch up
+     * through the resume log, which is cheaper than holding a large backlog for them.
+     */
+    private long shedSlowConnections(long bytes) {
+        List<ClientConnection> slowest = new ArrayList<>(connections.values());
+        slowest.sort(
+            Comparator.comparingLong((ClientConnection connection) ->
+                connection.getOutbound().queuedBytes()
+            ).reversed()
+        );
+
+        long freed = 0;
+        for (ClientConnection connection : slowest) {
+            if (
+                freed >= bytes ||
+                connection.getOutbound().queuedBytes() < MIN_SHED_QUEUED_BYTES
+            ) {
+                break;
+            }
+            freed += connection.getOutbound().close();
+            CONNECTIONS_SHED.increment();
+            LOGGER.warn(
+                "Closing connection {}, it fell too far behind",
+                connection.getContext().session.getRemoteAddress()
+            );
+            connection
+                .getContext()
+                .closeSession(SHED_CLOSE_STATUS, "Fell too far behind");
+        }
+        return freed;
+    }
+
+    private static Long parseLongParameter(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void setupMetricsEndpoint() {
+        server.get("/metrics", (ctx) -> {
+            if (!WebInterface.config.metricsEndpoint) {
+                ctx.status(404).result("Not found");
+                return;
+            }
+
+            ctx.contentType("application/json");
+            ctx.result(gson.toJson(WebchatMetrics.snapshot()));
+        });
+    }
+
     /**
      * Adds a connection to the set of connections.
      *
      * @param ctx The WebSocket context to add.
-     * @return True if the connection was added.
+     * @return The added connection, null if it wasn't added.
      */
-    private boolean addConnection(WsContext ctx) {
+    private ClientConnection addConnection(WsContext ctx) {
         if (shutdownInitiated.get()) {
             ctx.session.disconnect();
-            return false;
+            return null;
         }
 
-        connections.add(ctx);
+        ClientConnection connection = new ClientConnection(
+            ctx,
+            outboundBytes::addAndGet
+        );
+        connections.put(ctx, connection);
 
-        return true;
+        return connection;
     }
 
     /**
@@ -307,7 +1128,20 @@ public class WebInterface {
      * @param ctx The WebSocket context to remove.
      */
     private void removeConnection(WsContext ctx) {
-        connections.remove(ctx);
+        ClientConnection removed = connections.remove(ctx);
+        if (removed != null) {
+            removed.getOutbound().close();
+            ConnectionClosedEvent event = new ConnectionClosedEvent();
+            if (event.shouldCommit()) {
+                event.remoteAddress = String.valueOf(
+                    ctx.session.getRemoteAddress()
+                );
+                event.connectedMillis =
+                    System.currentTimeMillis() - removed.getConnectedAt();
+                event.connections = connections.size();
+                event.commit();
+            }
+        }
 
         if (shutdownInitiated.get()) {
             int remaining = connectionsToClose.decrementAndGet();
@@ -331,7 +1165,11 @@ public class WebInterface {
 
         connectionsToClose = new AtomicInteger(connections.size());
 
-        connections.forEach((ctx) -> {
+        historyPushExecutor.shutdownNow();
+        coalesceExecutor.shutdownNow();
+        heartbeatExecutor.shutdownNow();
+        messageRepository.removeChangeListener(historyService);
+        connections.keySet().forEach((ctx) -> {
             try {
                 // Initiates an asynchronous close of the connection.
                 ctx.session.close();
@@ -379,69 +1217,280 @@ public class WebInterface {
         return cleanedMessage;
     }
 
-    private void sendMinecraftMessage(String message) {
-        MinecraftClient client = MinecraftClient.getInstance();
-        // Probably an edge case, if even possible but client can potentially be null
-        if (client == null) {
-            LOGGER.warn(
-                "MinecraftClient instance is null. Cannot send message."
-            );
+    public void broadcastMessage(WebsocketJsonMessage message) {
+        // Messages are still numbered and logged without any connections, a client that is reconnecting needs them.
+        if (server == null) {
             return;
         }
+        FrameBroadcastEvent event = new FrameBroadcastEvent();
+        event.begin();
+        int failures = 0;
+        Outgoing outgoing = new Outgoing(message);
+        synchronized (broadcastLock) {
+            resumeLog.number(message);
+            // The player list is sent in full every few seconds and on resume, no need to replay old ones.
+            if (
+                message.getType() !=
+                WebsocketJsonMessage.MessageType.SERVER_PLAYER_LIST
+            ) {
+                resumeLog.append(message, outgoing.json());
+            }
 
-        client.execute(() -> {
-            ClientPlayerEntity player = client.player;
-            if (player == null) {
-                LOGGER.warn("Player value is null. Cannot send message.");
-                return;
+            if (
+                message.getType() ==
+                WebsocketJsonMessage.MessageType.SERVER_PLAYER_LIST
+            ) {
+                // Only the newest list matters, it goes around the coalescing and replaces any list still queued.
+                for (ClientConnection connection : connections.values()) {
+                    if (!accepts(connection, outgoing)) {
+                        continue;
+                    }
+                    if (
+                        !sendLatest(
+                            connection,
+                            PLAYER_LIST_FRAME_KEY,
+                            outgoing.json()
+                        )
+                    ) {
+                        failures++;
+                    }
+                }
+            } else if (shouldCoalesce(outgoing)) {
+                pendingFrames.add(outgoing);
+                if (pendingFrames.size() >= coalesceMaxMessages) {
+                    flushPendingFrames();
+                } else if (pendingFlush == null) {
+                    pendingFlush = coalesceExecutor.schedule(
+                        this::flushPendingFramesNow,
+                        coalesceWindowMillis,
+                        TimeUnit.MILLISECONDS
+                    );
+                }
+            } else {
+                // Anything held back goes first, order is kept.
+                flushPendingFrames();
+                boolean isStateChange =
+                    message.getType() ==
+                    WebsocketJsonMessage.MessageType.SERVER_CONNECTION_STATE;
+                for (ClientConnection connection : connections.values()) {
+                    if (isStateChange) {
+                        // A player list that wasn't sent yet is for the server that was left.
+                        connection
+                            .getOutbound()
+                            .dropLatest(PLAYER_LIST_FRAME_KEY);
+                    }
+                    if (!accepts(connection, outgoing)) {
+                        continue;
+                    }
+                    if (!send(connection, outgoing.json())) {
+                        failures++;
+                    }
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.serverId = outgoing.serverId();
+                event.messageType = message.getType().name();
+                event.chars = outgoing.serializedLength();
+                event.connections = connections.size();
+                event.failures = failures;
+                event.commit();
             }
 
-            int maxLength = 256;
-            if (SUPPORTED_COMMANDS.matcher(message).matches()) {
-                String slash = "/";
-                int end = Math.min(
-                    message.length(),
-                    maxLength + slash.length()
+            boolean isJoin =
+                message.getType() ==
+                    WebsocketJsonMessage.MessageType.SERVER_CONNECTION_STATE &&
+                message.getPayload() ==
+                WebsocketJsonMessage.ServerConnectionStates.JOIN;
+            if (isJoin && WebInterface.config.pushHistoryOnJoin) {
+                pushFirstHistoryPage(
+                    outgoing.serverId(),
+                    connections
+                        .values()
+                        .stream()
+                        .filter((connection) ->
+                            connection
+                                .getFilter()
+                                .acceptsServer(outgoing.serverId())
+                        )
+                        .toList()
                 );
-                // Remove the leading slash and truncate to maxLength.
-                player.networkHandler.sendChatCommand(
-                    message.substring(slash.length(), end)
-                );
-                return;
             }
+        }
+        // Outside the lock, shedding closes connections.
+        memoryBudget.enforce();
+    }
 
-            if (message.length() <= maxLength) {
-                player.networkHandler.sendChatMessage(message);
-                return;
-            }
+    /**
+     * A broadcast message on its way out. Serialized at most once, and only when it is logged or somebody wants it.
+     */
+    private final class Outgoing {
 
-            // Break long messages into smaller chunks
-            for (int i = 0; i < message.length(); i += maxLength) {
-                int end = Math.min(i + maxLength, message.length());
-                player.networkHandler.sendChatMessage(
-                    message.substring(i, end)
-                );
+        private final WebsocketJsonMessage message;
+        private final int category;
+        private final String serverId;
+        private String json;
+
+        private Outgoing(WebsocketJsonMessage message) {
+            this.message = message;
+            this.category = SubscriptionFilter.categoryOf(message);
+            this.serverId = message.getServer() == null
+                ? null
+                : message.getServer().getIdentifier();
+        }
+
+        private String serverId() {
+            return serverId;
+        }
+
+        private String json() {
+            if (json == null) {
+                json = gson.toJson(message);
             }
-        });
+            return json;
+        }
+
+        private int serializedLength() {
+            return json == null ? 0 : json.length();
+        }
     }
 
-    public void broadcastMessage(WebsocketJsonMessage message) {
-        if (server == null || connections == null || connections.isEmpty()) {
+    private boolean accepts(ClientConnection connection, Outgoing outgoing) {
+        if (connection.getFilter().accepts(outgoing.category, outgoing.serverId)) {
+            return true;
+        }
+        FRAMES_FILTERED.increment();
+        return false;
+    }
+
+    private boolean send(ClientConnection connection, String frame) {
+        if (!connection.send(frame)) {
+            return false;
+        }
+        FRAMES_SENT.increment();
+        BYTES_SENT.add(frame.length());
+        return true;
+    }
+
+    private boolean sendLatest(
+        ClientConnection connection,
+        String key,
+        String frame
+    ) {
+        if (!connection.sendLatest(key, frame)) {
+            return false;
+        }
+        FRAMES_SENT.increment();
+        BYTES_SENT.add(frame.length());
+        return true;
+    }
+
+    /**
+     * Holds a message back when it arrives within the coalescing window of the previous one. The first message of a
+     * burst always goes out right away, so with light traffic nothing is ever delayed. Connection state changes and
+     * resume messages are never held back.
+     *
+     * Must be called while holding {@link #broadcastLock}.
+     */
+    private boolean shouldCoalesce(Outgoing outgoing) {
+        long now = System.nanoTime();
+        long sincePrevious = now - lastBroadcastNanos;
+        lastBroadcastNanos = now;
+        if (
+            coalesceWindowMillis <= 0 ||
+            (outgoing.category & SubscriptionFilter.ALWAYS) != 0
+        ) {
+            return false;
+        }
+        return (
+            !pendingFrames.isEmpty() ||
+            sincePrevious < TimeUnit.MILLISECONDS.toNanos(coalesceWindowMillis)
+        );
+    }
+
+    private void flushPendingFramesNow() {
+        synchronized (broadcastLock) {
+            flushPendingFrames();
+        }
+        memoryBudget.enforce();
+    }
+
+    /**
+     * Sends the held back messages, as one array frame per connection. Connections with the same filter get the exact
+     * same frame, so it is only put together once per filter.
+     *
+     * Must be called while holding {@link #broadcastLock}.
+     */
+    private void flushPendingFrames() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (pendingFrames.isEmpty()) {
             return;
         }
-        String jsonMessage = gson.toJson(message);
-        connections.forEach((ctx) -> {
-            try {
-                ctx.send(jsonMessage);
-            } catch (Exception e) {
-                LOGGER.info(jsonMessage);
-                LOGGER.warn(
-                    "Failed to send message to connection: {}",
-                    ctx.session.getRemoteAddress(),
-                    e
-                );
+        List<Outgoing> batch = List.copyOf(pendingFrames);
+        pendingFrames.clear();
+
+        Map<SubscriptionFilter, String> framesByFilter = new HashMap<>();
+        for (ClientConnection connection : connections.values()) {
+            String frame = framesByFilter.computeIfAbsent(
+                connection.getFilter(),
+                (filter) -> batchFrame(filter, batch)
+            );
+            if (!frame.isEmpty()) {
+                send(connection, frame);
             }
-        });
+        }
+        COALESCED_BATCHES.increment();
+        COALESCED_MESSAGES.add(batch.size());
+    }
+
+    /**
+     * @return The messages of the batch this filter accepts, a single message as is and several as a JSON array.
+     *         Empty when it accepts none of them.
+     */
+    private String batchFrame(SubscriptionFilter filter, List<Outgoing> batch) {
+        List<String> accepted = new ArrayList<>(batch.size());
+        for (Outgoing outgoing : batch) {
+            if (filter.accepts(outgoing.category, outgoing.serverId)) {
+                accepted.add(outgoing.json());
+            } else {
+                FRAMES_FILTERED.increment();
+            }
+        }
+        if (accepted.size() == 1) {
+            return accepted.getFirst();
+        }
+        return accepted.isEmpty() ? "" : "[" + String.join(",", accepted) + "]";
+    }
+
+    /**
+     * @param connections Open WebSocket connections
+     * @param framesSent Frames sent since the game started
+     * @param bytesSent Characters sent since the game started, before compression
+     * @param historyPagesServed History pages sent to browsers since the game started
+     * @param memoryUsedBytes Memory held for caches, queued frames and pending writes
+     * @param memoryLimitBytes Memory budget, 0 when there is none
+     */
+    public record Statistics(
+        int connections,
+        long framesSent,
+        long bytesSent,
+        long historyPagesServed,
+        long memoryUsedBytes,
+        long memoryLimitBytes
+    ) {}
+
+    public Statistics getStatistics() {
+        return new Statistics(
+            connections.size(),
+            FRAMES_SENT.sum(),
+            BYTES_SENT.sum(),
+            WebchatMetrics.counter("history.pagesServed").sum(),
+            memoryBudget.usedBytes(),
+            Math.max(0, memoryBudget.limitBytes())
+        );
     }
 
     public int getCurrentPort() {
@@ -451,6 +1500,13 @@ public class WebInterface {
         return server.port();
     }
 
+    /**
+     * @return Whether the running server offers compression, changing it needs a new server
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
     public String getCurrentPath() {
         if (server == null) {
             return "";
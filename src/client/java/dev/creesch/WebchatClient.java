@@ -1,12 +1,23 @@
 package dev.creesch;
 
 import dev.creesch.config.ModConfig;
+import dev.creesch.history.DuplicateCollapser;
+import dev.creesch.metrics.RecentLatencies;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.model.ChatMessagePayload;
 import dev.creesch.model.WebsocketJsonMessage;
 import dev.creesch.model.WebsocketMessageBuilder;
 import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.storage.InMemoryChatMessageRepository;
+import dev.creesch.storage.JournaledChatMessageRepository;
+import dev.creesch.storage.SqliteChatMessageRepository;
+import dev.creesch.storage.StorageStatistics;
 import dev.creesch.util.NamedLogger;
+import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
@@ -21,12 +32,67 @@ import net.minecraft.util.Formatting;
 public class WebchatClient implements ClientModInitializer {
 
     private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    private static final LongAdder MESSAGES_INGESTED = WebchatMetrics.counter(
+        "ingest.messages"
+    );
+    // Time the game thread spends handing a message to storage.
+    private static final RecentLatencies SAVE_LATENCY = new RecentLatencies(
+        1024
+    );
+
+    /**
+     * Everything the statistics screen shows, taken at one moment.
+     *
+     * @param takenAtNanos {@link System#nanoTime()} when taken, for turning counters into rates
+     * @param messagesIngested Chat messages received since the game started
+     */
+    public record PerformanceSnapshot(
+        long takenAtNanos,
+        long messagesIngested,
+        RecentLatencies.Summary saveLatency,
+        WebInterface.Statistics webInterface,
+        StorageStatistics storage
+    ) {}
     private WebInterface webInterface;
     private ChatMessageRepository messageRepository;
     private int tickCounter = 0;
     private static WebchatClient INSTANCE;
     private static String MOD_VERSION = "unknown";
     private static AtomicBoolean hasJoined = new AtomicBoolean(false);
+    // Ping settings the stored ping flags were last evaluated with.
+    private List<String> appliedPingKeywords;
+    private boolean appliedPingOnUsername;
+    private boolean pingReevaluationPending = false;
+    private final DuplicateCollapser duplicateCollapser = new DuplicateCollapser();
+
+    private static ChatMessageRepository createMessageRepository() {
+        ModConfig config = ModConfig.HANDLER.instance();
+        if (config.inMemoryHistory) {
+            return new InMemoryChatMessageRepository();
+        }
+
+        SqliteChatMessageRepository sqliteRepository =
+            new SqliteChatMessageRepository();
+        if (!config.ingestJournal) {
+            return sqliteRepository;
+        }
+        try {
+            return new JournaledChatMessageRepository(
+                sqliteRepository,
+                FabricLoader.getInstance()
+                    .getGameDir()
+                    .resolve("web-chat")
+                    .resolve("ingest.journal"),
+                JournaledChatMessageRepository.DEFAULT_CAPACITY
+            );
+        } catch (IOException e) {
+            LOGGER.error(
+                "Failed to open the ingest journal, saving chat messages directly",
+                e
+            );
+            return sqliteRepository;
+        }
+    }
 
     @Override
     public void onInitializeClient() {
@@ -44,7 +110,11 @@ public class WebchatClient implements ClientModInitializer {
             .getFriendlyString();
 
         ModConfig.init();
-        messageRepository = new ChatMessageRepository();
+        appliedPingKeywords = List.copyOf(
+            ModConfig.HANDLER.instance().pingKeywords
+        );
+        appliedPingOnUsername = ModConfig.HANDLER.instance().pingOnUsername;
+        messageRepository = createMessageRepository();
         webInterface = new WebInterface(messageRepository);
 
         LOGGER.info("web chat loaded");
@@ -61,14 +131,14 @@ public class WebchatClient implements ClientModInitializer {
                 boolean fromSelf =
                     sender == null ? false : sender.name().equals(selfName);
                 try {
-                    WebsocketJsonMessage chatMessage =
+                    handleLiveMessage(
                         WebsocketMessageBuilder.createLiveChatMessage(
                             message,
                             fromSelf,
+                            ChatMessagePayload.Source.PLAYER,
                             client
-                        );
-                    messageRepository.saveMessage(chatMessage);
-                    webInterface.broadcastMessage(chatMessage);
+                        )
+                    );
                 } catch (Exception e) {
                     LOGGER.warn("Could not process chat message.", e);
                 }
@@ -78,14 +148,14 @@ public class WebchatClient implements ClientModInitializer {
         // System messages (joins, leaves, deaths, etc.)
         ClientReceiveMessageEvents.GAME.register((message, overlay) -> {
             try {
-                WebsocketJsonMessage chatMessage =
+                handleLiveMessage(
                     WebsocketMessageBuilder.createLiveChatMessage(
                         message,
                         false,
+                        ChatMessagePayload.Source.GAME,
                         MinecraftClient.getInstance()
-                    );
-                messageRepository.saveMessage(chatMessage);
-                webInterface.broadcastMessage(chatMessage);
+                    )
+                );
             } catch (Exception e) {
                 LOGGER.warn("Could not process game message.", e);
             }
@@ -130,12 +200,15 @@ public class WebchatClient implements ClientModInitializer {
                 }
 
                 showWebAddress(client);
+                reevaluatePingsIfChanged(client);
             });
         });
 
         // Send state to client
         ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> {
             hasJoined.set(false);
+            // The same message after a reconnect is new chat, not a repeat.
+            duplicateCollapser.clear();
             webInterface.broadcastMessage(
                 WebsocketMessageBuilder.createConnectionStateMessage(
                     WebsocketJsonMessage.ServerConnectionStates.DISCONNECT
@@ -150,6 +223,7 @@ public class WebchatClient implements ClientModInitializer {
             }
 
             webInterface.shutdown();
+            messageRepository.close();
         });
 
         // For the client in fabric there are no events to listen for other players joining or leaving the server.
@@ -180,6 +254,7 @@ public class WebchatClient implements ClientModInitializer {
         if (INSTANCE == null) {
             return;
         }
+        INSTANCE.reevaluatePingsIfChanged(MinecraftClient.getInstance());
         if (INSTANCE.webInterface == null) {
             return;
         }
@@ -192,7 +267,11 @@ public class WebchatClient implements ClientModInitializer {
             INSTANCE.webInterface.getCurrentPath() !=
             ModConfig.HANDLER.instance().staticFilesPath;
 
-        if (portChanged || pathChanged) {
+        boolean compressionChanged =
+            INSTANCE.webInterface.isCompressionEnabled() !=
+            ModConfig.HANDLER.instance().websocketCompression;
+
+        if (portChanged || pathChanged || compressionChanged) {
             INSTANCE.webInterface.shutdown();
             INSTANCE.webInterface = new WebInterface(
                 INSTANCE.messageRepository
@@ -201,6 +280,97 @@ public class WebchatClient implements ClientModInitializer {
         }
     }
 
+    /**
+     * Stores and broadcasts a live message, or only updates the repeat counter when it repeats the previous one.
+     */
+    private void handleLiveMessage(WebsocketJsonMessage chatMessage) {
+        ModConfig config = ModConfig.HANDLER.instance();
+        DuplicateCollapser.Repeat repeat = config.collapseDuplicates
+            ? duplicateCollapser.offer(
+                chatMessage,
+                config.duplicateWindowSeconds * 1000L
+            )
+            : null;
+        MESSAGES_INGESTED.increment();
+        if (repeat == null) {
+            long saveStart = System.nanoTime();
+            messageRepository.saveMessage(chatMessage);
+            SAVE_LATENCY.record(System.nanoTime() - saveStart);
+            webInterface.broadcastMessage(chatMessage);
+            return;
+        }
+
+        WebsocketJsonMessage original = repeat.original();
+        ChatMessagePayload payload = (ChatMessagePayload) original.getPayload();
+        messageRepository.recordRepeat(
+            original.getServer().getIdentifier(),
+            original.getTimestamp(),
+            payload.getUuid(),
+            repeat.repeatCount(),
+            repeat.lastSeen()
+        );
+        webInterface.broadcastMessage(
+            WebsocketMessageBuilder.createRepeatMessage(
+                original.getServer(),
+                payload.getUuid(),
+                repeat.repeatCount(),
+                repeat.lastSeen()
+            )
+        );
+    }
+
+    /**
+     * Updates the ping flags of stored messages when the ping settings changed since they were last applied.
+     */
+    private void reevaluatePingsIfChanged(MinecraftClient client) {
+        ModConfig config = ModConfig.HANDLER.instance();
+        boolean changed =
+            pingReevaluationPending ||
+            config.pingOnUsername != appliedPingOnUsername ||
+            !config.pingKeywords.equals(appliedPingKeywords);
+        if (!changed) {
+            return;
+        }
+
+        List<String> ownNames = WebsocketMessageBuilder.ownNames(client);
+        if (config.pingOnUsername && ownNames.isEmpty()) {
+            // Without the player's names every username ping would be cleared, wait until in game.
+            pingReevaluationPending = true;
+            return;
+        }
+
+        appliedPingKeywords = List.copyOf(config.pingKeywords);
+        appliedPingOnUsername = config.pingOnUsername;
+        pingReevaluationPending = false;
+        LOGGER.info("Ping settings changed, re-evaluating pings in history");
+        messageRepository.reevaluatePings(
+            WebsocketMessageBuilder.pingMatcher(ownNames)
+        );
+    }
+
+    /**
+     * Takes a snapshot for the statistics screen. Can touch the database, so call it off the render thread.
+     *
+     * @return The snapshot, null before the mod is initialized
+     */
+    public static PerformanceSnapshot getPerformanceSnapshot() {
+        WebchatClient instance = INSTANCE;
+        if (
+            instance == null ||
+            instance.webInterface == null ||
+            instance.messageRepository == null
+        ) {
+            return null;
+        }
+        return new PerformanceSnapshot(
+            System.nanoTime(),
+            MESSAGES_INGESTED.sum(),
+            SAVE_LATENCY.summary(),
+            instance.webInterface.getStatistics(),
+            instance.messageRepository.getStatistics()
+        );
+    }
+
     public static String getModVersion() {
         return MOD_VERSION;
     }
@@ -36,6 +36,113 @@ public class ModConfig {
     @SerialEntry(comment = "Extra ping keywords")
     public List<String> pingKeywords = Arrays.asList();
 
+    @SerialEntry(
+        comment = "Store and send identical consecutive messages once, with a repeat counter"
+    )
+    public boolean collapseDuplicates = false;
+
+    @SerialEntry(
+        comment = "Longest gap in seconds between identical messages that are still collapsed"
+    )
+    public int duplicateWindowSeconds = 60;
+
+    @SerialEntry(
+        comment = "Compress WebSocket frames (permessage-deflate) for browsers that support it"
+    )
+    public boolean websocketCompression = true;
+
+    @SerialEntry(comment = "Deflate level, 1 is fastest and 9 is smallest")
+    public int websocketCompressionLevel = 6;
+
+    @SerialEntry(comment = "Frames smaller than this many bytes are sent uncompressed")
+    public int websocketCompressionMinBytes = 256;
+
+    @SerialEntry(
+        comment = "Keep the compression window between frames. Better ratio, costs memory per connection"
+    )
+    public boolean websocketCompressionContextTakeover = true;
+
+    @SerialEntry(
+        comment = "Window bits (8-15) the browser may use when compressing its own messages"
+    )
+    public int websocketCompressionClientWindowBits = 15;
+
+    @SerialEntry(
+        comment = "Also compress for localhost connections, useful when the web interface is reached through a tunnel"
+    )
+    public boolean websocketCompressLocalhost = false;
+
+    @SerialEntry(
+        comment = "Let browsers ask for compact binary (CBOR) frames instead of JSON text"
+    )
+    public boolean websocketBinaryEncoding = true;
+
+    @SerialEntry(
+        comment = "Messages that follow each other within this many milliseconds are sent together as one frame. 0 sends every message on its own"
+    )
+    public int websocketCoalesceWindowMillis = 50;
+
+    @SerialEntry(comment = "Most messages sent together in one frame")
+    public int websocketCoalesceMaxMessages = 100;
+
+    @SerialEntry(
+        comment = "Seconds between heartbeats sent to every browser, to notice connections that silently went away. 0 disables heartbeats"
+    )
+    public int websocketHeartbeatSeconds = 15;
+
+    @SerialEntry(
+        comment = "Heartbeats a browser may leave unanswered in a row before its connection is closed"
+    )
+    public int websocketHeartbeatMaxMissed = 3;
+
+    @SerialEntry(
+        comment = "Most browsers connected at the same time. 0 disables the limit"
+    )
+    public int websocketMaxConnections = 32;
+
+    @SerialEntry(
+        comment = "Most browsers connected at the same time from one IP address. 0 disables the limit"
+    )
+    public int websocketMaxConnectionsPerAddress = 8;
+
+    @SerialEntry(
+        comment = "Send the first page of history to browsers right after joining a server, without waiting for them to ask"
+    )
+    public boolean pushHistoryOnJoin = false;
+
+    @SerialEntry(
+        comment = "Recent messages kept in memory to catch up reconnecting browsers without a full reload"
+    )
+    public int resumeLogSize = 1000;
+
+    @SerialEntry(
+        comment = "Most missed chat messages read back from the database when catching up a reconnecting browser"
+    )
+    public int resumeMaxDatabaseMessages = 500;
+
+    @SerialEntry(
+        comment = "Keep chat history in memory only, nothing is written to disk. Requires a restart"
+    )
+    public boolean inMemoryHistory = false;
+
+    @SerialEntry(
+        comment = "Write incoming chat to a journal file first and move it to the database in the background. Requires a restart"
+    )
+    public boolean ingestJournal = true;
+
+    @SerialEntry(
+        comment = "Memory used to cache history pages sent to the browser, in megabytes. 0 disables the cache. Requires a restart"
+    )
+    public int historyCacheSizeMb = 8;
+
+    @SerialEntry(
+        comment = "Memory web chat may use for cached history, frames queued for browsers and pending writes, in megabytes. 0 disables the limit. Requires a restart"
+    )
+    public int memoryBudgetMb = 32;
+
+    @SerialEntry(comment = "Serve runtime metrics as JSON on /metrics")
+    public boolean metricsEndpoint = false;
+
     @SerialEntry(comment = "Enable development mode")
     public boolean developmentMode = false;
 
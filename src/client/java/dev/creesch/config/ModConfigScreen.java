@@ -4,7 +4,9 @@ import dev.creesch.WebchatClient;
 import dev.isxander.yacl3.api.*;
 import dev.isxander.yacl3.api.controller.BooleanControllerBuilder;
 import dev.isxander.yacl3.api.controller.IntegerFieldControllerBuilder;
+import dev.isxander.yacl3.api.controller.IntegerSliderControllerBuilder;
 import dev.isxander.yacl3.api.controller.StringControllerBuilder;
+import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.screen.Screen;
 import net.minecraft.text.Text;
 
@@ -69,6 +71,58 @@ public class ModConfigScreen {
                         .initial("")
                         .build()
                 )
+                .group(
+                    OptionGroup.createBuilder()
+                        .name(Text.literal("Duplicate Messages"))
+                        .option(
+                            Option.<Boolean>createBuilder()
+                                .name(Text.literal("Collapse Duplicates"))
+                                .description(
+                                    OptionDescription.of(
+                                        Text.literal(
+                                            "Show identical consecutive messages once with a repeat counter.\n" +
+                                                "Useful on servers with frequent auto broadcasts or anti-AFK notices."
+                                        )
+                                    )
+                                )
+                                .binding(
+                                    ModConfig.HANDLER.defaults().collapseDuplicates,
+                                    () ->
+                                        ModConfig.HANDLER.instance().collapseDuplicates,
+                                    (val) ->
+                                        ModConfig.HANDLER.instance().collapseDuplicates =
+                                            val
+                                )
+                                .controller(BooleanControllerBuilder::create)
+                                .build()
+                        )
+                        .option(
+                            Option.<Integer>createBuilder()
+                                .name(Text.literal("Duplicate Window"))
+                                .description(
+                                    OptionDescription.of(
+                                        Text.literal(
+                                            "Longest time in seconds between two identical messages that are still collapsed."
+                                        )
+                                    )
+                                )
+                                .binding(
+                                    ModConfig.HANDLER.defaults().duplicateWindowSeconds,
+                                    () ->
+                                        ModConfig.HANDLER.instance().duplicateWindowSeconds,
+                                    (val) ->
+                                        ModConfig.HANDLER.instance().duplicateWindowSeconds =
+                                            val
+                                )
+                                .controller((opt) ->
+                                    IntegerSliderControllerBuilder.create(opt)
+                                        .range(5, 600)
+                                        .step(5)
+                                )
+                                .build()
+                        )
+                        .build()
+                )
                 .build()
         );
 
@@ -108,6 +162,133 @@ public class ModConfigScreen {
                         )
                         .build()
                 )
+                .group(
+                    OptionGroup.createBuilder()
+                        .name(Text.literal("Compression"))
+                        .option(
+                            Option.<Boolean>createBuilder()
+                                .name(Text.literal("Compress WebSocket Frames"))
+                                .description(
+                                    OptionDescription.of(
+                                        Text.literal(
+                                            "Compress chat and history sent to the browser (permessage-deflate).\n" +
+                                                "Mostly useful when using the web interface from a phone or over a slow network."
+                                        )
+                                    )
+                                )
+                                .binding(
+                                    ModConfig.HANDLER.defaults().websocketCompression,
+                                    () ->
+                                        ModConfig.HANDLER.instance().websocketCompression,
+                                    (val) ->
+                                        ModConfig.HANDLER.instance().websocketCompression =
+                                            val
+                                )
+                                .controller(BooleanControllerBuilder::create)
+                                .build()
+                        )
+                        .option(
+                            Option.<Integer>createBuilder()
+                                .name(Text.literal("Compression Level"))
+                                .description(
+                                    OptionDescription.of(
+                                        Text.literal(
+                                            "1 is fastest, 9 gives the smallest frames.\n" +
+                                                "Applies to new connections."
+                                        )
+                                    )
+                                )
+                                .binding(
+                                    ModConfig.HANDLER.defaults().websocketCompressionLevel,
+                                    () ->
+                                        ModConfig.HANDLER.instance().websocketCompressionLevel,
+                                    (val) ->
+                                        ModConfig.HANDLER.instance().websocketCompressionLevel =
+                                            val
+                                )
+                                .controller((opt) ->
+                                    IntegerSliderControllerBuilder.create(opt)
+                                        .range(1, 9)
+                                        .step(1)
+                                )
+                                .build()
+                        )
+                        .option(
+                            Option.<Boolean>createBuilder()
+                                .name(Text.literal("Compress Localhost"))
+                                .description(
+                                    OptionDescription.of(
+                                        Text.literal(
+                                            "Also compress for connections from this computer.\n" +
+                                                "Enable this when the web interface is reached through a tunnel."
+                                        )
+                                    )
+                                )
+                                .binding(
+                                    ModConfig.HANDLER.defaults().websocketCompressLocalhost,
+                                    () ->
+                                        ModConfig.HANDLER.instance().websocketCompressLocalhost,
+                                    (val) ->
+                                        ModConfig.HANDLER.instance().websocketCompressLocalhost =
+                                            val
+                                )
+                                .controller(BooleanControllerBuilder::create)
+                                .build()
+                        )
+                        .build()
+                )
+                .group(
+                    OptionGroup.createBuilder()
+                        .name(Text.literal("History"))
+                        .option(
+                            Option.<Boolean>createBuilder()
+                                .name(Text.literal("Push History on Join"))
+                                .description(
+                                    OptionDescription.of(
+                                        Text.literal(
+                                            "Send recent chat history to the browser as soon as you join a server.\n" +
+                                                "Saves a round trip, so history shows up faster when switching servers."
+                                        )
+                                    )
+                                )
+                                .binding(
+                                    ModConfig.HANDLER.defaults().pushHistoryOnJoin,
+                                    () ->
+                                        ModConfig.HANDLER.instance().pushHistoryOnJoin,
+                                    (val) ->
+                                        ModConfig.HANDLER.instance().pushHistoryOnJoin =
+                                            val
+                                )
+                                .controller(BooleanControllerBuilder::create)
+                                .build()
+                        )
+                        .build()
+                )
+                .build()
+        );
+
+        builder.category(
+            ConfigCategory.createBuilder()
+                .name(Text.literal("Statistics"))
+                .option(
+                    ButtonOption.createBuilder()
+                        .name(Text.literal("Open Statistics"))
+                        .description(
+                            OptionDescription.of(
+                                Text.literal(
+                                    "Live numbers for the web interface and chat storage.\n" +
+                                        "Connected browsers, message rate, save latency, pending writes, " +
+                                        "history served, bytes sent and database size per server."
+                                )
+                            )
+                        )
+                        .action((screen, option) ->
+                            MinecraftClient.getInstance().setScreen(
+                                new PerformanceScreen(screen)
+                            )
+                        )
+                        .build()
+                )
                 .build()
         );
 
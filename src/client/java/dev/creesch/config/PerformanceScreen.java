@@ -0,0 +1,234 @@
+package dev.creesch.config;
+
+import dev.creesch.WebchatClient;
+import dev.creesch.WebchatClient.PerformanceSnapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.gui.screen.Screen;
+import net.minecraft.client.gui.widget.ButtonWidget;
+import net.minecraft.screen.ScreenTexts;
+import net.minecraft.text.Text;
+
+/**
+ * Live statistics, opened from the config screen. Refreshes once per second while open.
+ */
+public class PerformanceScreen extends Screen {
+
+    private static final int REFRESH_TICKS = 20;
+    private static final int LINE_HEIGHT = 11;
+    private static final int LABEL_COLOR = 0xFFA0A0A0;
+    private static final int VALUE_COLOR = 0xFFFFFFFF;
+
+    private record Line(String label, String value) {}
+
+    private final Screen parent;
+    private PerformanceSnapshot previous;
+    private PerformanceSnapshot current;
+    // Taken off the render thread, counting rows per server can take a moment on a large database.
+    private CompletableFuture<PerformanceSnapshot> pending;
+    private int ticks = 0;
+
+    public PerformanceScreen(Screen parent) {
+        super(Text.literal("Web Chat Statistics"));
+        this.parent = parent;
+    }
+
+    @Override
+    protected void init() {
+        addDrawableChild(
+            ButtonWidget.builder(ScreenTexts.DONE, (button) -> close())
+                .dimensions(width / 2 - 100, height - 27, 200, 20)
+                .build()
+        );
+        refresh();
+    }
+
+    @Override
+    public void tick() {
+        if (pending != null && pending.isDone()) {
+            PerformanceSnapshot snapshot = pending.getNow(null);
+            if (snapshot != null) {
+                previous = current;
+                current = snapshot;
+            }
+            pending = null;
+        }
+        if (++ticks % REFRESH_TICKS == 0) {
+            refresh();
+        }
+    }
+
+    private void refresh() {
+        if (pending == null) {
+            pending = CompletableFuture.supplyAsync(
+                WebchatClient::getPerformanceSnapshot
+            ).exceptionally((e) -> null);
+        }
+    }
+
+    @Override
+    public void render(
+        DrawContext context,
+        int mouseX,
+        int mouseY,
+        float delta
+    ) {
+        super.render(context, mouseX, mouseY, delta);
+        context.drawCenteredTextWithShadow(
+            textRenderer,
+            title,
+            width / 2,
+            15,
+            VALUE_COLOR
+        );
+
+        List<Line> lines = current == null
+            ? List.of(new Line("Collecting statistics...", ""))
+            : lines(current, previous);
+        int labelX = width / 2 - 150;
+        int valueX = width / 2 + 10;
+        int y = 40;
+        for (Line line : lines) {
+            if (y > height - 40) {
+                break;
+            }
+            context.drawTextWithShadow(
+                textRenderer,
+                line.label(),
+                labelX,
+                y,
+                LABEL_COLOR
+            );
+            context.drawTextWithShadow(
+                textRenderer,
+                line.value(),
+                valueX,
+                y,
+                VALUE_COLOR
+            );
+            y += LINE_HEIGHT;
+        }
+    }
+
+    @Override
+    public void close() {
+        client.setScreen(parent);
+    }
+
+    private static List<Line> lines(
+        PerformanceSnapshot snapshot,
+        PerformanceSnapshot previous
+    ) {
+        List<Line> lines = new ArrayList<>();
+        lines.add(
+            new Line(
+                "Connected browsers",
+                String.valueOf(snapshot.webInterface().connections())
+            )
+        );
+        lines.add(
+            new Line(
+                "Messages per second",
+                previous == null
+                    ? "-"
+                    : format(
+                        rate(
+                            snapshot.messagesIngested() -
+                                previous.messagesIngested(),
+                            snapshot,
+                            previous
+                        )
+                    )
+            )
+        );
+        lines.add(
+            new Line(
+                "Save latency (avg / p99)",
+                format(snapshot.saveLatency().averageMillis()) +
+                    " ms / " +
+                    format(snapshot.saveLatency().p99Millis()) +
+                    " ms"
+            )
+        );
+        lines.add(
+            new Line(
+                "Pending writes",
+                String.valueOf(snapshot.storage().pendingWrites())
+            )
+        );
+        lines.add(
+            new Line(
+                "History pages served",
+                String.valueOf(snapshot.webInterface().historyPagesServed())
+            )
+        );
+        lines.add(
+            new Line(
+                "Sent to browsers",
+                formatBytes(snapshot.webInterface().bytesSent()) +
+                    " in " +
+                    snapshot.webInterface().framesSent() +
+                    " frames"
+            )
+        );
+        lines.add(
+            new Line(
+                "Memory used",
+                formatBytes(snapshot.webInterface().memoryUsedBytes()) +
+                    (snapshot.webInterface().memoryLimitBytes() > 0
+                        ? " of " +
+                            formatBytes(
+                                snapshot.webInterface().memoryLimitBytes()
+                            )
+                        : "")
+            )
+        );
+        lines.add(
+            new Line(
+                "Database size",
+                snapshot.storage().sizeBytes() < 0
+                    ? "in memory"
+                    : formatBytes(snapshot.storage().sizeBytes())
+            )
+        );
+        for (Map.Entry<String, Long> server : snapshot
+            .storage()
+            .messagesPerServer()
+            .entrySet()) {
+            lines.add(
+                new Line(
+                    "  " + server.getKey(),
+                    server.getValue() + " messages"
+                )
+            );
+        }
+        return lines;
+    }
+
+    private static double rate(
+        long delta,
+        PerformanceSnapshot snapshot,
+        PerformanceSnapshot previous
+    ) {
+        long nanos = snapshot.takenAtNanos() - previous.takenAtNanos();
+        return nanos <= 0 ? 0.0 : delta * 1_000_000_000.0 / nanos;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return format(bytes / 1024.0) + " KB";
+        }
+        return format(bytes / (1024.0 * 1024.0)) + " MB";
+    }
+}
@@ -0,0 +1,86 @@
+package dev.creesch.history;
+
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Detects chat messages that are identical to the previous message of the same server, like auto broadcasts and
+ * anti-AFK notices. Those are stored and sent once, later copies only raise a counter on the first one.
+ *
+ * Only consecutive copies are collapsed, anything in between starts over.
+ */
+public class DuplicateCollapser {
+
+    /**
+     * @param original First copy, the one that was stored and sent
+     * @param repeatCount Copies received in total, including the first
+     * @param lastSeen Timestamp of the latest copy
+     */
+    public record Repeat(
+        WebsocketJsonMessage original,
+        int repeatCount,
+        long lastSeen
+    ) {}
+
+    private final Map<String, Repeat> lastByServer = new HashMap<>();
+
+    /**
+     * @param message Incoming chat message
+     * @param windowMillis Longest gap between copies that still counts as a repeat
+     * @return The updated repeat when the message is a copy of the previous one, null when it is a new message that
+     *         has to be stored and sent as usual
+     */
+    public synchronized Repeat offer(
+        WebsocketJsonMessage message,
+        long windowMillis
+    ) {
+        if (!(message.getPayload() instanceof ChatMessagePayload payload)) {
+            return null;
+        }
+
+        String serverId = message.getServer().getIdentifier();
+        Repeat last = lastByServer.get(serverId);
+        if (
+            last != null &&
+            message.getTimestamp() - last.lastSeen() <= windowMillis &&
+            isSameMessage(payload, last.original())
+        ) {
+            Repeat repeat = new Repeat(
+                last.original(),
+                last.repeatCount() + 1,
+                message.getTimestamp()
+            );
+            lastByServer.put(serverId, repeat);
+            return repeat;
+        }
+
+        lastByServer.put(
+            serverId,
+            new Repeat(message, 1, message.getTimestamp())
+        );
+        return null;
+    }
+
+    public synchronized void clear() {
+        lastByServer.clear();
+    }
+
+    private static boolean isSameMessage(
+        ChatMessagePayload payload,
+        WebsocketJsonMessage original
+    ) {
+        ChatMessagePayload originalPayload =
+            (ChatMessagePayload) original.getPayload();
+        // The uuid includes the timestamp, so the component is what identifies a copy.
+        return (
+            payload.getComponent().equals(originalPayload.getComponent()) &&
+            Objects.equals(
+                payload.getTranslations(),
+                originalPayload.getTranslations()
+            )
+        );
+    }
+}
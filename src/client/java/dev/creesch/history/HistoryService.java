@@ -0,0 +1,470 @@
+package dev.creesch.history;
+
+import com.google.gson.Gson;
+import dev.creesch.GameBridge;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.metrics.jfr.HistoryServedEvent;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.model.WebsocketMessageBuilder;
+import dev.creesch.storage.ChatMessageRepository;
+import dev.creesch.util.MemoryBudget;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Serves history pages to the web interface, already serialized the way they are sent.
+ *
+ * Pages are kept in a bounded LRU cache keyed by server, cursor and limit. Chat is append only, so a page that starts
+ * before a cursor doesn't change when new messages arrive. Only pages that could contain a saved message are dropped,
+ * in practice only the head page (no cursor). Deleting messages drops every page of that server.
+ *
+ * Identical requests that miss the cache at the same time (several browsers reconnecting at once) share one query.
+ */
+public class HistoryService implements ChatMessageRepository.ChangeListener {
+
+    private static final LongAdder CACHE_LOOKUPS = WebchatMetrics.counter(
+        "history.cache.lookups"
+    );
+    private static final LongAdder CACHE_HITS = WebchatMetrics.counter(
+        "history.cache.hits"
+    );
+    private static final LongAdder CACHE_MISSES = WebchatMetrics.counter(
+        "history.cache.misses"
+    );
+    private static final LongAdder CACHE_EVICTIONS = WebchatMetrics.counter(
+        "history.cache.evictions"
+    );
+    private static final LongAdder CACHE_INVALIDATIONS = WebchatMetrics.counter(
+        "history.cache.invalidations"
+    );
+    private static final LongAdder QUERIES = WebchatMetrics.counter(
+        "history.queries"
+    );
+    private static final LongAdder PAGES_SERVED = WebchatMetrics.counter(
+        "history.pagesServed"
+    );
+    private static final LongAdder QUERIES_COALESCED = WebchatMetrics.counter(
+        "history.queriesCoalesced"
+    );
+    private static final LongAdder PAGES_STREAMED = WebchatMetrics.counter(
+        "history.pagesStreamed"
+    );
+    private static final LongAdder MESSAGES_STREAMED = WebchatMetrics.counter(
+        "history.messagesStreamed"
+    );
+    private static final LongAdder PAGES_STOPPED = WebchatMetrics.counter(
+        "history.pagesStopped"
+    );
+
+    /**
+     * Largest page a browser can ask for.
+     */
+    public static final int MAX_PAGE_LIMIT = 10_000;
+
+    // Pages up to this size are read whole and cached, larger ones are streamed straight from storage.
+    private static final int MAX_CACHED_PAGE_LIMIT = 500;
+
+    /**
+     * @param before Null for the head page
+     */
+    private record PageKey(String serverId, Long before, int limit) {}
+
+    /**
+     * A fully serialized history page: the messages newest first, then the metadata frame.
+     */
+    private record Page(List<String> frames, long chars) {}
+
+    /**
+     * A query that is running right now. The version is part of it so a request that arrives after new messages were
+     * saved never joins a query that started before them.
+     */
+    private record Flight(PageKey key, long version) {}
+
+    private final ChatMessageRepository repository;
+    private final GameBridge gameBridge;
+    private final Gson gson = new Gson();
+    private final long maxCacheChars;
+
+    // Access ordered, so iteration starts at the least recently used page.
+    private final LinkedHashMap<PageKey, Page> cache = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    );
+    private long cachedChars = 0;
+    // Bumped on every change to a server's messages. A page read while it changed is served but not cached.
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    // Identical requests that miss the cache at the same time wait for a single query instead of each running one.
+    private final Map<Flight, CompletableFuture<Page>> inFlight =
+        new ConcurrentHashMap<>();
+
+    /**
+     * @param maxCacheBytes Upper bound for cached pages, 0 disables caching
+     */
+    public HistoryService(
+        ChatMessageRepository repository,
+        GameBridge gameBridge,
+        long maxCacheBytes
+    ) {
+        this.repository = repository;
+        this.gameBridge = gameBridge;
+        this.maxCacheChars = Math.max(
+            0,
+            maxCacheBytes / MemoryBudget.BYTES_PER_CHAR
+        );
+
+        WebchatMetrics.gauge("history.cache.hitRatio", () ->
+            WebchatMetrics.ratio(CACHE_HITS, CACHE_LOOKUPS)
+        );
+        WebchatMetrics.gauge("history.cache.bytes", () -> cachedBytes());
+        WebchatMetrics.gauge("history.cache.pages", () -> cachedPages());
+    }
+
+    /**
+     * Sends a page of history of any size. Small pages go through {@link #getPage(String, int, Long)}, large pages are
+     * read from storage in chunks so memory use doesn't grow with the limit.
+     *
+     * @param serverId Server to read history for
+     * @param limit Amount of messages in the page, capped at {@link #MAX_PAGE_LIMIT}
+     * @param before Only messages older than this, null for the newest page
+     * @param frames Receives the serialized frames in send order, returns false to stop the page there. May wait for
+     *     the browser, no storage read is open while it is called.
+     * @return False when the page was stopped before its last frame
+     */
+    public boolean sendPage(
+        String serverId,
+        int limit,
+        Long before,
+        Predicate<String> frames
+    ) {
+        limit = clampLimit(limit);
+        PAGES_SERVED.increment();
+        HistoryServedEvent event = new HistoryServedEvent();
+        event.begin();
+        int[] sent = { 0 };
+        long[] sentChars = { 0L };
+        Predicate<String> countedFrames = (frame) -> {
+            if (!frames.test(frame)) {
+                return false;
+            }
+            sent[0]++;
+            sentChars[0] += frame.length();
+            return true;
+        };
+
+        boolean streamed = limit > MAX_CACHED_PAGE_LIMIT;
+        boolean complete = true;
+        if (streamed) {
+            complete = streamPage(serverId, limit, before, countedFrames);
+        } else {
+            for (String frame : getPage(serverId, limit, before)) {
+                if (!countedFrames.test(frame)) {
+                    complete = false;
+                    break;
+                }
+            }
+        }
+        if (!complete) {
+            PAGES_STOPPED.increment();
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.serverId = serverId;
+            event.limit = limit;
+            event.frames = sent[0];
+            event.chars = sentChars[0];
+            event.streamed = streamed;
+            event.commit();
+        }
+        return complete;
+    }
+
+    /**
+     * Reads a large page in chunks of {@link #MAX_CACHED_PAGE_LIMIT} messages and sends each chunk after its read is
+     * done, so a browser that is slow to take the frames never holds a storage connection open. A chunk continues at
+     * the timestamp the previous one ended at and skips the messages of that timestamp that were already sent, so
+     * messages sharing a timestamp across the boundary are neither lost nor sent twice.
+     *
+     * @return False when the consumer stopped the page
+     */
+    private boolean streamPage(
+        String serverId,
+        int limit,
+        Long before,
+        Predicate<String> frames
+    ) {
+        PAGES_STREAMED.increment();
+        Long cursor = before;
+        int skip = 0;
+        int sent = 0;
+        long oldestTimestamp = 0L;
+        // Sent messages with the same timestamp as the oldest one sent so far.
+        int sentAtOldest = 0;
+        boolean moreHistoryAvailable;
+        while (true) {
+            int wanted = Math.min(limit - sent, MAX_CACHED_PAGE_LIMIT);
+            QUERIES.increment();
+            // One extra message is requested to determine if there are more messages available in history.
+            List<WebsocketJsonMessage> chunk = repository.getMessages(
+                serverId,
+                skip + wanted + 1,
+                cursor
+            );
+            List<WebsocketJsonMessage> unsent = chunk.subList(
+                Math.min(skip, chunk.size()),
+                chunk.size()
+            );
+            for (int i = 0; i < unsent.size() && i < wanted; i++) {
+                WebsocketJsonMessage historicMessage = unsent.get(i);
+                if (
+                    sent > 0 && historicMessage.getTimestamp() == oldestTimestamp
+                ) {
+                    sentAtOldest++;
+                } else {
+                    oldestTimestamp = historicMessage.getTimestamp();
+                    sentAtOldest = 1;
+                }
+                sent++;
+                MESSAGES_STREAMED.increment();
+                if (!frames.test(gson.toJson(historicMessage))) {
+                    return false;
+                }
+            }
+            if (unsent.size() <= wanted) {
+                moreHistoryAvailable = false;
+                break;
+            }
+            if (sent >= limit) {
+                moreHistoryAvailable = true;
+                break;
+            }
+            // Everything up to and including the oldest timestamp, minus what was sent of it already.
+            cursor = oldestTimestamp + 1;
+            skip = sentAtOldest;
+        }
+
+        return frames.test(
+            gson.toJson(
+                WebsocketMessageBuilder.createHistoryMetaDataMessage(
+                    oldestTimestamp,
+                    moreHistoryAvailable,
+                    gameBridge.getServerInfo(),
+                    gameBridge.getMinecraftVersion()
+                )
+            )
+        );
+    }
+
+    /**
+     * Gets a page of history, from the cache when possible.
+     *
+     * @param serverId Server to read history for
+     * @param limit Amount of messages in the page
+     * @param before Only messages older than this, null for the newest page
+     * @return Serialized frames in send order
+     */
+    public List<String> getPage(String serverId, int limit, Long before) {
+        limit = clampLimit(limit);
+        PageKey key = new PageKey(serverId, before, limit);
+        CACHE_LOOKUPS.increment();
+        synchronized (cache) {
+            Page cached = cache.get(key);
+            if (cached != null) {
+                CACHE_HITS.increment();
+                return cached.frames();
+            }
+        }
+
+        long version = version(serverId).get();
+        Flight flight = new Flight(key, version);
+        CompletableFuture<Page> ownQuery = new CompletableFuture<>();
+        CompletableFuture<Page> runningQuery = inFlight.putIfAbsent(
+            flight,
+            ownQuery
+        );
+        if (runningQuery != null) {
+            QUERIES_COALESCED.increment();
+            return awaitPage(runningQuery).frames();
+        }
+
+        CACHE_MISSES.increment();
+        try {
+            Page page = readPage(serverId, limit, before);
+            if (maxCacheChars > 0 && version(serverId).get() == version) {
+                store(key, page);
+            }
+            ownQuery.complete(page);
+            return page.frames();
+        } catch (RuntimeException e) {
+            ownQuery.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flight, ownQuery);
+        }
+    }
+
+    @Override
+    public void onMessagesSaved(String serverId, long oldestTimestamp) {
+        version(serverId).incrementAndGet();
+        // A page only contains messages older than its cursor, so only pages with a later cursor can have changed.
+        invalidate(
+            serverId,
+            (key) -> key.before() == null || key.before() > oldestTimestamp
+        );
+    }
+
+    @Override
+    public void onMessagesDeleted(String serverId) {
+        version(serverId).incrementAndGet();
+        invalidate(serverId, (key) -> true);
+    }
+
+    @Override
+    public void onMessagesUpdated(String serverId) {
+        onMessagesDeleted(serverId);
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            cachedChars = 0;
+        }
+    }
+
+    /**
+     * Drops least recently used pages, used to stay within the memory budget.
+     *
+     * @param bytes How much memory to free
+     * @return Bytes actually freed
+     */
+    public long evict(long bytes) {
+        long charsToFree =
+            (bytes + MemoryBudget.BYTES_PER_CHAR - 1) /
+            MemoryBudget.BYTES_PER_CHAR;
+        long freedChars = 0;
+        synchronized (cache) {
+            Iterator<Page> leastRecentlyUsed = cache.values().iterator();
+            while (freedChars < charsToFree && leastRecentlyUsed.hasNext()) {
+                freedChars += leastRecentlyUsed.next().chars();
+                leastRecentlyUsed.remove();
+                CACHE_EVICTIONS.increment();
+            }
+            cachedChars -= freedChars;
+        }
+        return MemoryBudget.charBytes(freedChars);
+    }
+
+    public long cachedBytes() {
+        synchronized (cache) {
+            return MemoryBudget.charBytes(cachedChars);
+        }
+    }
+
+    public int cachedPages() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static Page awaitPage(CompletableFuture<Page> query) {
+        try {
+            return query.join();
+        } catch (CompletionException e) {
+            // Waiting requests fail the same way the request that ran the query did.
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private Page readPage(String serverId, int limit, Long before) {
+        QUERIES.increment();
+        // One extra message is requested to determine if there are more messages available in history.
+        List<WebsocketJsonMessage> historyMessages = repository.getMessages(
+            serverId,
+            limit + 1,
+            before
+        );
+
+        // Let's build metadata
+        WebsocketJsonMessage historyMetaDataMessage =
+            WebsocketMessageBuilder.createHistoryMetaDataMessage(
+                historyMessages,
+                limit,
+                gameBridge.getServerInfo(),
+                gameBridge.getMinecraftVersion()
+            );
+
+        // Metadata goes last, the browser takes it as the signal that the page is complete.
+        List<String> frames = new ArrayList<>(historyMessages.size() + 1);
+        historyMessages.forEach((historicMessage) ->
+            frames.add(gson.toJson(historicMessage))
+        );
+        frames.add(gson.toJson(historyMetaDataMessage));
+
+        long chars = 0;
+        for (String frame : frames) {
+            chars += frame.length();
+        }
+        return new Page(List.copyOf(frames), chars);
+    }
+
+    private void store(PageKey key, Page page) {
+        if (page.chars() > maxCacheChars) {
+            return;
+        }
+        synchronized (cache) {
+            Page previous = cache.put(key, page);
+            if (previous != null) {
+                cachedChars -= previous.chars();
+            }
+            cachedChars += page.chars();
+
+            Iterator<Page> leastRecentlyUsed = cache.values().iterator();
+            while (cachedChars > maxCacheChars && leastRecentlyUsed.hasNext()) {
+                cachedChars -= leastRecentlyUsed.next().chars();
+                leastRecentlyUsed.remove();
+                CACHE_EVICTIONS.increment();
+            }
+        }
+    }
+
+    private void invalidate(
+        String serverId,
+        Predicate<PageKey> affected
+    ) {
+        synchronized (cache) {
+            Iterator<Map.Entry<PageKey, Page>> iterator = cache
+                .entrySet()
+                .iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<PageKey, Page> entry = iterator.next();
+                PageKey key = entry.getKey();
+                if (key.serverId().equals(serverId) && affected.test(key)) {
+                    cachedChars -= entry.getValue().chars();
+                    iterator.remove();
+                    CACHE_INVALIDATIONS.increment();
+                }
+            }
+        }
+    }
+
+    private static int clampLimit(int limit) {
+        return Math.max(0, Math.min(limit, MAX_PAGE_LIMIT));
+    }
+
+    private AtomicLong version(String serverId) {
+        return versions.computeIfAbsent(serverId, (id) -> new AtomicLong());
+    }
+}
@@ -0,0 +1,56 @@
+package dev.creesch.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent latency samples in a fixed size ring, for showing current averages and percentiles.
+ *
+ * Recording is a single array write. Sorting only happens when a summary is asked for, which is rare.
+ */
+public final class RecentLatencies {
+
+    /**
+     * @param samples Samples the summary is based on
+     * @param averageMillis Average latency
+     * @param p99Millis 99th percentile latency
+     */
+    public record Summary(int samples, double averageMillis, double p99Millis) {}
+
+    private final AtomicLongArray samples;
+    private final AtomicLong recorded = new AtomicLong();
+
+    /**
+     * @param capacity Most recent samples to keep
+     */
+    public RecentLatencies(int capacity) {
+        samples = new AtomicLongArray(capacity);
+    }
+
+    public void record(long nanos) {
+        long index = recorded.getAndIncrement();
+        samples.set((int) (index % samples.length()), nanos);
+    }
+
+    public Summary summary() {
+        int count = (int) Math.min(recorded.get(), samples.length());
+        if (count == 0) {
+            return new Summary(0, 0.0, 0.0);
+        }
+
+        long[] sorted = new long[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            sorted[i] = samples.get(i);
+            total += sorted[i];
+        }
+        Arrays.sort(sorted);
+        int p99Index = Math.min(count - 1, (int) Math.ceil(count * 0.99) - 1);
+        return new Summary(
+            count,
+            total / (double) count / 1_000_000.0,
+            sorted[p99Index] / 1_000_000.0
+        );
+    }
+}
@@ -0,0 +1,74 @@
+package dev.creesch.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide registry of named counters and gauges for web-chat.
+ *
+ * Counters are {@link LongAdder}s so hot paths (frame sends, message saves) can record values without contention.
+ * Gauges are evaluated lazily, only when a snapshot is taken.
+ */
+public final class WebchatMetrics {
+
+    private static final Map<String, LongAdder> COUNTERS =
+        new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Number>> GAUGES =
+        new ConcurrentHashMap<>();
+
+    private WebchatMetrics() {}
+
+    /**
+     * Returns the counter registered under the given name, creating it if needed.
+     * Intended to be stored in a static field by the caller rather than looked up per event.
+     *
+     * @param name Dotted metric name, for example {@code websocket.compression.bytesIn}
+     * @return The counter for this name
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, (key) -> new LongAdder());
+    }
+
+    /**
+     * Registers (or replaces) a gauge. Gauges are useful for derived values like ratios.
+     *
+     * @param name Dotted metric name
+     * @param supplier Supplier evaluated every time a snapshot is taken
+     */
+    public static void gauge(String name, Supplier<Number> supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    /**
+     * Takes a point in time copy of all counters and gauges, sorted by name.
+     *
+     * @return Map of metric name to value
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        GAUGES.forEach((name, supplier) -> {
+            try {
+                snapshot.put(name, supplier.get());
+            } catch (RuntimeException e) {
+                // A broken gauge should never break the whole snapshot.
+                snapshot.put(name, Double.NaN);
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * Divides two counters, returning 0 instead of NaN when nothing was recorded yet.
+     */
+    public static double ratio(LongAdder numerator, LongAdder denominator) {
+        long divisor = denominator.sum();
+        if (divisor == 0) {
+            return 0.0;
+        }
+        return (double) numerator.sum() / divisor;
+    }
+}
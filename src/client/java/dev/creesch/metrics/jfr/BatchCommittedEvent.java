@@ -0,0 +1,30 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.creesch.webchat.BatchCommitted")
+@Label("Storage Batch Committed")
+@Category({ "Web Chat", "Storage" })
+@Description("A database transaction with chat messages was committed, including the wait for the writer thread")
+@StackTrace(false)
+public class BatchCommittedEvent extends Event {
+
+    @Label("Server Id")
+    @Description("Server of the first message, batches drained from the journal can hold several servers")
+    public String serverId;
+
+    @Label("Messages")
+    public int messages;
+
+    @Label("Blobs")
+    @Description("Large hover and click events stored separately")
+    public int blobs;
+
+    @Label("Stored Size (chars)")
+    public long storedChars;
+}
@@ -0,0 +1,28 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("dev.creesch.webchat.ConnectionClosed")
+@Label("WebSocket Connection Closed")
+@Category({ "Web Chat", "WebSocket" })
+@Description("A browser connection was closed or failed")
+@StackTrace(false)
+public class ConnectionClosedEvent extends Event {
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Connected For")
+    @Timespan(Timespan.MILLISECONDS)
+    public long connectedMillis;
+
+    @Label("Connections")
+    @Description("Open connections left")
+    public int connections;
+}
@@ -0,0 +1,23 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.creesch.webchat.ConnectionOpened")
+@Label("WebSocket Connection Opened")
+@Category({ "Web Chat", "WebSocket" })
+@Description("A browser connected, the duration covers catching it up")
+@StackTrace(false)
+public class ConnectionOpenedEvent extends Event {
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Connections")
+    @Description("Open connections including this one")
+    public int connections;
+}
@@ -0,0 +1,31 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.creesch.webchat.FrameBroadcast")
+@Label("Frame Broadcast")
+@Category({ "Web Chat", "WebSocket" })
+@Description("A message was serialized and sent to every connected browser")
+@StackTrace(false)
+public class FrameBroadcastEvent extends Event {
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Message Type")
+    public String messageType;
+
+    @Label("Size (chars)")
+    public long chars;
+
+    @Label("Connections")
+    public int connections;
+
+    @Label("Failed Sends")
+    public int failures;
+}
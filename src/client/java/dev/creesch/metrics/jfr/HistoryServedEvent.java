@@ -0,0 +1,32 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.creesch.webchat.HistoryServed")
+@Label("History Page Served")
+@Category({ "Web Chat", "History" })
+@Description("A page of history was read and sent to a browser")
+@StackTrace(false)
+public class HistoryServedEvent extends Event {
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Limit")
+    public int limit;
+
+    @Label("Frames")
+    public int frames;
+
+    @Label("Size (chars)")
+    public long chars;
+
+    @Label("Streamed")
+    @Description("Large page streamed from the database instead of served through the page cache")
+    public boolean streamed;
+}
@@ -0,0 +1,28 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.creesch.webchat.MessageBuilt")
+@Label("Chat Message Built")
+@Category({ "Web Chat", "Ingest" })
+@Description("A Minecraft chat message was converted to the web chat format")
+@StackTrace(false)
+public class MessageBuiltEvent extends Event {
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Component Size (chars)")
+    public long componentChars;
+
+    @Label("Translations")
+    public int translations;
+
+    @Label("Ping")
+    public boolean ping;
+}
@@ -0,0 +1,25 @@
+package dev.creesch.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("dev.creesch.webchat.MessagePersisted")
+@Label("Chat Message Persisted")
+@Category({ "Web Chat", "Storage" })
+@Description("A single live chat message was handed to storage, the duration is how long the caller waited")
+@StackTrace(false)
+public class MessagePersistedEvent extends Event {
+
+    @Label("Server Id")
+    public String serverId;
+
+    @Label("Storage")
+    public String storage;
+
+    @Label("Component Size (chars)")
+    public long componentChars;
+}
@@ -6,7 +6,7 @@ import lombok.Builder;
 import lombok.Data;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 public class ChatMessagePayload {
 
     private boolean history;
@@ -14,4 +14,20 @@ public class ChatMessagePayload {
     private JsonObject component;
     private Map<String, String> translations;
     private boolean isPing;
+    // Only set when later identical messages were collapsed into this one.
+    private Integer repeatCount;
+    private Long lastSeen;
+
+    // Plain text the ping check ran on, stored so pings can be re-evaluated later. Not sent to clients.
+    private transient String plainText;
+
+    // Where a live message came from, for subscription filters. Not stored or sent, null for history.
+    private transient Source source;
+
+    public enum Source {
+        // Chat sent by a player.
+        PLAYER,
+        // System and game messages.
+        GAME,
+    }
 }
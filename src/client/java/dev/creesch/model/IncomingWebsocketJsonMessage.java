@@ -2,6 +2,7 @@ package dev.creesch.model;
 
 import com.google.gson.JsonElement;
 import com.google.gson.annotations.SerializedName;
+import java.util.List;
 import lombok.Data;
 
 @Data
@@ -19,6 +20,10 @@ public class IncomingWebsocketJsonMessage {
         CHAT,
         @SerializedName("history")
         HISTORY,
+        @SerializedName("subscribe")
+        SUBSCRIBE,
+        @SerializedName("heartbeat")
+        HEARTBEAT,
     }
 
     // Nested class for history payload.
@@ -31,4 +36,19 @@ public class IncomingWebsocketJsonMessage {
 
         private Long before; // Optional field, can be null
     }
+
+    // Nested class for subscribe payload. Fields that are left out keep their default.
+    @Data
+    public static class SubscribePayload {
+
+        private Boolean playerChat; // Default true
+
+        private Boolean gameMessages; // Default true
+
+        private Boolean pingsOnly; // Default false
+
+        private Boolean playerList; // Default true
+
+        private List<String> servers; // Default all servers
+    }
 }
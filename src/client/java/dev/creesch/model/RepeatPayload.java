@@ -0,0 +1,18 @@
+package dev.creesch.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Sent instead of a chat message that repeats the previous one, the browser updates the counter on the original.
+ */
+@Data
+@Builder
+public class RepeatPayload {
+
+    // Uuid of the message that is repeated.
+    private String uuid;
+    // Times the message was received in total, including the first.
+    private int repeatCount;
+    private long lastSeen;
+}
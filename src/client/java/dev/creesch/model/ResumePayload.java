@@ -0,0 +1,29 @@
+package dev.creesch.model;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class ResumePayload {
+
+    /**
+     * How the server caught a reconnecting client up.
+     */
+    public enum Mode {
+        // Missed messages were replayed from the in memory log.
+        @SerializedName("log")
+        LOG,
+        // Missed chat messages were read back from the database.
+        @SerializedName("database")
+        DATABASE,
+        // Nothing could be replayed, the client starts over like a new connection.
+        @SerializedName("resync")
+        RESYNC,
+    }
+
+    private Mode mode;
+    private int replayed;
+    private boolean inWorld;
+}
@@ -18,6 +18,10 @@ public class WebsocketJsonMessage {
     private String modVersion;
     private Object payload;
 
+    // Set on broadcast messages only. Lets a reconnecting client ask for exactly what it missed.
+    private String sessionId;
+    private Long sequence;
+
     @Data
     @NoArgsConstructor
     @AllArgsConstructor
@@ -36,6 +40,12 @@ public class WebsocketJsonMessage {
         HISTORY_META_DATA,
         @SerializedName("serverPlayerList")
         SERVER_PLAYER_LIST,
+        @SerializedName("resume")
+        RESUME,
+        @SerializedName("repeat")
+        REPEAT,
+        @SerializedName("heartbeat")
+        HEARTBEAT,
     }
 
     /**
@@ -141,4 +151,70 @@ public class WebsocketJsonMessage {
             modVersion
         );
     }
+
+    public static WebsocketJsonMessage createResumeMessage(
+        long timestamp,
+        ChatServerInfo server,
+        ResumePayload.Mode mode,
+        int replayed,
+        boolean inWorld,
+        String minecraftVersion,
+        String modVersion
+    ) {
+        ResumePayload resumePayload = ResumePayload.builder()
+            .mode(mode)
+            .replayed(replayed)
+            .inWorld(inWorld)
+            .build();
+
+        return new WebsocketJsonMessage(
+            timestamp,
+            server,
+            MessageType.RESUME,
+            resumePayload,
+            minecraftVersion,
+            modVersion
+        );
+    }
+
+    public static WebsocketJsonMessage createRepeatMessage(
+        ChatServerInfo server,
+        String uuid,
+        int repeatCount,
+        long lastSeen,
+        String minecraftVersion,
+        String modVersion
+    ) {
+        RepeatPayload repeatPayload = RepeatPayload.builder()
+            .uuid(uuid)
+            .repeatCount(repeatCount)
+            .lastSeen(lastSeen)
+            .build();
+
+        return new WebsocketJsonMessage(
+            lastSeen,
+            server,
+            MessageType.REPEAT,
+            repeatPayload,
+            minecraftVersion,
+            modVersion
+        );
+    }
+
+    public static WebsocketJsonMessage createHeartbeatMessage(
+        long timestamp,
+        ChatServerInfo server,
+        long heartbeatId,
+        String minecraftVersion,
+        String modVersion
+    ) {
+        return new WebsocketJsonMessage(
+            timestamp,
+            server,
+            MessageType.HEARTBEAT,
+            heartbeatId,
+            minecraftVersion,
+            modVersion
+        );
+    }
 }
@@ -7,12 +7,15 @@ import com.mojang.authlib.properties.Property;
 import com.mojang.serialization.JsonOps;
 import dev.creesch.WebchatClient;
 import dev.creesch.config.ModConfig;
+import dev.creesch.metrics.jfr.MessageBuiltEvent;
 import dev.creesch.util.ClientTranslationUtils;
 import dev.creesch.util.MinecraftServerIdentifier;
 import dev.creesch.util.NamedLogger;
+import dev.creesch.util.PingMatcher;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.regex.Pattern;
@@ -27,17 +30,21 @@ public class WebsocketMessageBuilder {
 
     private static final Gson gson = new Gson();
     private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    private static final NamedLogger.RateLimited DISPLAY_NAME_FAILURE_LOG =
+        LOGGER.rateLimited(Duration.ofMinutes(1));
 
     /**
      * Processes both chat and game messages, converting them to the appropriate format
      *
      * @param message The Minecraft text message to process
      * @param fromSelf Whether the message is from the local player
+     * @param source Whether it is player chat or a game message
      * @param client The Minecraft client instance
      */
     public static WebsocketJsonMessage createLiveChatMessage(
         Text message,
         boolean fromSelf,
+        ChatMessagePayload.Source source,
         MinecraftClient client
     ) {
         if (client.world == null) {
@@ -45,6 +52,8 @@ public class WebsocketMessageBuilder {
                 "Cannot create chat message: client world is null"
             );
         }
+        MessageBuiltEvent event = new MessageBuiltEvent();
+        event.begin();
 
         // Can't use GSON for Text serialization easily, using Minecraft's own serializer.
         // The try block is used as there are instances of `Text` that can't be serialized to JSON
@@ -87,9 +96,21 @@ public class WebsocketMessageBuilder {
             .uuid(messageUUID)
             .component(minecraftChatJsonObject)
             .isPing(!fromSelf && isPing(message, client))
+            // Own messages are never pings, whatever the keywords.
+            .plainText(fromSelf ? "" : message.getString())
+            .source(source)
             .translations(translations)
             .build();
 
+        event.end();
+        if (event.shouldCommit()) {
+            event.serverId = serverInfo.getIdentifier();
+            event.componentChars = minecraftChatJsonObject.toString().length();
+            event.translations = translations.size();
+            event.ping = messageObject.isPing();
+            event.commit();
+        }
+
         return WebsocketJsonMessage.createChatMessage(
             timestamp,
             serverInfo,
@@ -135,54 +156,68 @@ public class WebsocketMessageBuilder {
      * @return True if the message is a ping, false otherwise
      */
     private static boolean isPing(Text message, MinecraftClient client) {
-        String messageString = message.getString();
-        ModConfig config = ModConfig.HANDLER.instance();
-
-        if (config.pingOnUsername && client.player != null) {
-            String playerName = client.player.getName().getString();
-            if (pingPattern(playerName).matcher(messageString).find()) {
-                return true;
-            }
+        return isPing(message.getString(), ownNames(client));
+    }
 
+    /**
+     * @return Names of the local player, empty when not in game
+     */
+    public static List<String> ownNames(MinecraftClient client) {
+        List<String> ownNames = new ArrayList<>(2);
+        if (client != null && client.player != null) {
+            ownNames.add(client.player.getName().getString());
             if (client.player.getDisplayName() != null) {
-                String displayName = client.player.getDisplayName().getString();
-                if (pingPattern(displayName).matcher(messageString).find()) {
-                    return true;
-                }
+                ownNames.add(client.player.getDisplayName().getString());
             }
         }
+        return ownNames;
+    }
 
-        for (String pingKeyword : config.pingKeywords) {
-            if (pingPattern(pingKeyword).matcher(messageString).find()) {
-                return true;
-            }
+    /**
+     * Checks if a plain text message is a ping according to the current config.
+     *
+     * @param messageString Plain text of the message
+     * @param ownNames Names of the local player, only used when pinging on username is enabled
+     * @return True if the message is a ping, false otherwise
+     */
+    public static boolean isPing(String messageString, List<String> ownNames) {
+        return pingMatcher(ownNames).matches(messageString);
+    }
+
+    /**
+     * @param ownNames Names of the local player, only used when pinging on username is enabled
+     * @return Matcher for the ping keywords in the current config
+     */
+    public static PingMatcher pingMatcher(List<String> ownNames) {
+        ModConfig config = ModConfig.HANDLER.instance();
+
+        List<String> keywords = new ArrayList<>(
+            ownNames.size() + config.pingKeywords.size()
+        );
+        if (config.pingOnUsername) {
+            keywords.addAll(ownNames);
         }
+        keywords.addAll(config.pingKeywords);
 
-        return false;
+        return PingMatcher.of(keywords);
     }
 
     /**
-     * Creates a pattern for a ping keyword.
-     *
-     * @param pingKeyword The keyword to ping for
-     * @return The pattern for the ping keyword
+     * Update for a message that was received again, see {@link dev.creesch.history.DuplicateCollapser}.
      */
-    private static Pattern pingPattern(String pingKeyword) {
-        StringBuilder patternBuilder = new StringBuilder();
-        // Eats the beginning part of chat messages
-        patternBuilder.append("^.*?[>:]");
-        // Allow for any amount of characters before the ping keyword.
-        patternBuilder.append(".*");
-        // Check for a word boundary before the ping keyword.
-        patternBuilder.append("\\b");
-        // Add the ping keyword.
-        patternBuilder.append(Pattern.quote(pingKeyword));
-        // Check for a word boundary after the ping keyword.
-        patternBuilder.append("\\b");
-
-        return Pattern.compile(
-            patternBuilder.toString(),
-            Pattern.CASE_INSENSITIVE
+    public static WebsocketJsonMessage createRepeatMessage(
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        String uuid,
+        int repeatCount,
+        long lastSeen
+    ) {
+        return WebsocketJsonMessage.createRepeatMessage(
+            serverInfo,
+            uuid,
+            repeatCount,
+            lastSeen,
+            SharedConstants.getGameVersion().name(),
+            WebchatClient.getModVersion()
         );
     }
 
@@ -197,10 +232,11 @@ public class WebsocketMessageBuilder {
         String messageJson,
         String translationsJson,
         boolean isPing,
-        String minecraftVersion
+        String minecraftVersion,
+        int repeatCount,
+        Long lastSeen
     ) {
         // Back to objects we go
-        LOGGER.info(translationsJson);
         Type type = new TypeToken<Map<String, String>>() {}.getType();
         Map<String, String> translations = gson.fromJson(
             translationsJson,
@@ -212,6 +248,8 @@ public class WebsocketMessageBuilder {
             .component(gson.fromJson(messageJson, JsonObject.class))
             .translations(translations)
             .isPing(isPing)
+            .repeatCount(repeatCount > 1 ? repeatCount : null)
+            .lastSeen(repeatCount > 1 ? lastSeen : null)
             .build();
 
         WebsocketJsonMessage.ChatServerInfo serverInfo =
@@ -233,11 +271,24 @@ public class WebsocketMessageBuilder {
      */
     public static WebsocketJsonMessage createConnectionStateMessage(
         WebsocketJsonMessage.ServerConnectionStates state
+    ) {
+        return createConnectionStateMessage(
+            state,
+            MinecraftServerIdentifier.getCurrentServerInfo(),
+            SharedConstants.getGameVersion().id()
+        );
+    }
+
+    /**
+     * Same as {@link #createConnectionStateMessage(WebsocketJsonMessage.ServerConnectionStates)} with explicit
+     * server info, for callers that don't want to depend on the running client.
+     */
+    public static WebsocketJsonMessage createConnectionStateMessage(
+        WebsocketJsonMessage.ServerConnectionStates state,
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        String minecraftVersion
     ) {
         long timestamp = Instant.now(Clock.systemUTC()).toEpochMilli();
-        WebsocketJsonMessage.ChatServerInfo serverInfo =
-            MinecraftServerIdentifier.getCurrentServerInfo();
-        String minecraftVersion = SharedConstants.getGameVersion().id();
 
         return WebsocketJsonMessage.createServerConnectionStateMessage(
             timestamp,
@@ -251,6 +302,20 @@ public class WebsocketMessageBuilder {
     public static WebsocketJsonMessage createHistoryMetaDataMessage(
         List<WebsocketJsonMessage> historyMessages,
         int requestedLimit
+    ) {
+        return createHistoryMetaDataMessage(
+            historyMessages,
+            requestedLimit,
+            MinecraftServerIdentifier.getCurrentServerInfo(),
+            SharedConstants.getGameVersion().id()
+        );
+    }
+
+    public static WebsocketJsonMessage createHistoryMetaDataMessage(
+        List<WebsocketJsonMessage> historyMessages,
+        int requestedLimit,
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        String minecraftVersion
     ) {
         boolean moreHistoryAvailable = false;
         if (historyMessages.size() > requestedLimit) {
@@ -265,11 +330,28 @@ public class WebsocketMessageBuilder {
             ? 0L
             : historyMessages.get(lastIndex).getTimestamp();
 
+        return createHistoryMetaDataMessage(
+            oldestTimestamp,
+            moreHistoryAvailable,
+            serverInfo,
+            minecraftVersion
+        );
+    }
+
+    /**
+     * Metadata for a history page that was streamed rather than read as a whole.
+     *
+     * @param oldestTimestamp Timestamp of the oldest message sent, 0 when none were sent
+     * @param moreHistoryAvailable Whether there are messages older than the page
+     */
+    public static WebsocketJsonMessage createHistoryMetaDataMessage(
+        long oldestTimestamp,
+        boolean moreHistoryAvailable,
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        String minecraftVersion
+    ) {
         // Explicitly use UTC time for consistency across different timezones
         long timestamp = Instant.now(Clock.systemUTC()).toEpochMilli();
-        WebsocketJsonMessage.ChatServerInfo serverInfo =
-            MinecraftServerIdentifier.getCurrentServerInfo();
-        String minecraftVersion = SharedConstants.getGameVersion().id();
 
         return WebsocketJsonMessage.createHistoryMetaDataMessage(
             timestamp,
@@ -281,6 +363,47 @@ public class WebsocketMessageBuilder {
         );
     }
 
+    public static WebsocketJsonMessage createResumeMessage(
+        ResumePayload.Mode mode,
+        int replayed,
+        boolean inWorld,
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        String minecraftVersion
+    ) {
+        // Explicitly use UTC time for consistency across different timezones
+        long timestamp = Instant.now(Clock.systemUTC()).toEpochMilli();
+
+        return WebsocketJsonMessage.createResumeMessage(
+            timestamp,
+            serverInfo,
+            mode,
+            replayed,
+            inWorld,
+            minecraftVersion,
+            WebchatClient.getModVersion()
+        );
+    }
+
+    /**
+     * @param heartbeatId Echoed back by the browser, see {@link dev.creesch.websocket.ClientConnection}
+     */
+    public static WebsocketJsonMessage createHeartbeatMessage(
+        long heartbeatId,
+        WebsocketJsonMessage.ChatServerInfo serverInfo,
+        String minecraftVersion
+    ) {
+        // Explicitly use UTC time for consistency across different timezones
+        long timestamp = Instant.now(Clock.systemUTC()).toEpochMilli();
+
+        return WebsocketJsonMessage.createHeartbeatMessage(
+            timestamp,
+            serverInfo,
+            heartbeatId,
+            minecraftVersion,
+            WebchatClient.getModVersion()
+        );
+    }
+
     private static final Pattern MINECRAFT_TEXTURE_URL_PATTERN =
         Pattern.compile("^https?://textures\\.minecraft\\.net/texture/.+");
 
@@ -371,11 +494,12 @@ public class WebsocketMessageBuilder {
                         client.world.getRegistryManager()
                     );
                 } catch (JsonParseException exception) {
-                    LOGGER.warn(
-                        "Failed to serialize chat message: " +
-                            playerDisplayName.getString()
+                    // The player list is rebuilt every few seconds, a broken display name would fail every time.
+                    DISPLAY_NAME_FAILURE_LOG.warn(
+                        "Failed to serialize display name: {}",
+                        playerDisplayName.getString(),
+                        exception
                     );
-                    LOGGER.warn("Exception info: ", exception);
 
                     // Get plain string displayName and display that.
                     minecraftJsonObjectDisplayName = new JsonObject();
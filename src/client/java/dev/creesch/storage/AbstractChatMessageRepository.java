@@ -0,0 +1,76 @@
+package dev.creesch.storage;
+
+import dev.creesch.util.NamedLogger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Change listener bookkeeping shared by the {@link ChatMessageRepository} implementations.
+ */
+public abstract class AbstractChatMessageRepository
+    implements ChatMessageRepository {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    protected void fireMessagesSaved(String serverId, long oldestTimestamp) {
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onMessagesSaved(serverId, oldestTimestamp);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Chat message change listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Notifies listeners once per server for a batch of saved messages.
+     */
+    protected void fireMessagesSaved(List<StoredMessage> messages) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Map<String, Long> oldestPerServer = new HashMap<>();
+        for (StoredMessage message : messages) {
+            oldestPerServer.merge(
+                message.serverId(),
+                message.timestamp(),
+                Math::min
+            );
+        }
+        oldestPerServer.forEach(this::fireMessagesSaved);
+    }
+
+    protected void fireMessagesUpdated(String serverId) {
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onMessagesUpdated(serverId);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Chat message change listener failed", e);
+            }
+        }
+    }
+
+    protected void fireMessagesDeleted(String serverId) {
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onMessagesDeleted(serverId);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Chat message change listener failed", e);
+            }
+        }
+    }
+}
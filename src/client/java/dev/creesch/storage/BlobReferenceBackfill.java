@@ -0,0 +1,80 @@
+package dev.creesch.storage;
+
+import com.google.gson.JsonParseException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Fills in {@code blob_references} for messages stored before it existed, see {@link ComponentBlobs}. Unreferenced
+ * blobs are only deleted once this finished, until then a blob can't tell whether an older message still uses it.
+ */
+final class BlobReferenceBackfill implements SchemaMigration.Backfill {
+
+    static final String NAME = "blob-references";
+
+    private static final String COUNT_QUERY = """
+        SELECT COUNT(*) FROM messages WHERE id > ? AND instr(message_json, '"$blob"') > 0
+        """;
+
+    private static final String SELECT_QUERY = """
+        SELECT id, message_json FROM messages
+        WHERE id > ? AND instr(message_json, '"$blob"') > 0
+        ORDER BY id
+        LIMIT ?
+        """;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public long remaining(Connection conn, long afterId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(COUNT_QUERY)) {
+            stmt.setLong(1, afterId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    @Override
+    public SchemaMigration.BatchResult runBatch(
+        Connection conn,
+        long afterId,
+        int batchSize
+    ) throws SQLException {
+        long lastId = afterId;
+        int rows = 0;
+        try (
+            PreparedStatement select = conn.prepareStatement(SELECT_QUERY);
+            PreparedStatement insert = conn.prepareStatement(
+                SqliteChatMessageRepository.INSERT_BLOB_REFERENCE_QUERY
+            )
+        ) {
+            select.setLong(1, afterId);
+            select.setInt(2, batchSize);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    lastId = rs.getLong("id");
+                    rows++;
+                    try {
+                        for (String hash : ComponentBlobs.references(
+                            rs.getString("message_json")
+                        )) {
+                            insert.setString(1, hash);
+                            insert.setLong(2, lastId);
+                            insert.addBatch();
+                        }
+                    } catch (JsonParseException | IllegalStateException e) {
+                        // Unreadable rows can't be reassembled either, nothing to keep for them.
+                    }
+                }
+            }
+            insert.executeBatch();
+        }
+        return new SchemaMigration.BatchResult(lastId, rows);
+    }
+}
@@ -1,321 +1,208 @@
 package dev.creesch.storage;
 
-import static dev.creesch.model.WebsocketMessageBuilder.createHistoricChatMessage;
-
-import com.google.gson.Gson;
-import dev.creesch.model.ChatMessagePayload;
 import dev.creesch.model.WebsocketJsonMessage;
-import dev.creesch.util.NamedLogger;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.sql.*;
+import dev.creesch.util.PingMatcher;
 import java.util.ArrayList;
 import java.util.List;
-import net.fabricmc.loader.api.FabricLoader;
-import org.sqlite.SQLiteDataSource;
-
-public class ChatMessageRepository {
-
-    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
-    private SQLiteDataSource dataSource;
-    private static final Gson gson = new Gson();
-    private boolean initialized = false;
-
-    // DB constants
-    private static final String DB_NAME = "chat_messages.db";
-    private static final String DATA_DIR = "web-chat";
-    private static final int CURRENT_SCHEMA_VERSION = 2;
-
-    // SQL queries
-    private static final String CREATE_MESSAGES_TABLE_QUERY = """
-        CREATE TABLE IF NOT EXISTS messages (
-            id INTEGER PRIMARY KEY AUTOINCREMENT,
-            timestamp BIGINT NOT NULL,
-            server_id TEXT NOT NULL,
-            server_name TEXT NOT NULL,
-            message_id TEXT NOT NULL,
-            message_json TEXT NOT NULL,
-            translations_json TEXT NOT NULL,
-            is_ping BOOLEAN NOT NULL,
-            minecraft_version TEXT
-        )
-        """;
-
-    private static final String CREATE_INDEX_QUERY = """
-        CREATE INDEX IF NOT EXISTS idx_server_id_timestamp ON messages(server_id, timestamp DESC)
-        """;
-
-    private static final String CREATE_VERSION_TABLE_QUERY = """
-        CREATE TABLE IF NOT EXISTS schema_version (
-            version INTEGER PRIMARY KEY
-        )
-        """;
-
-    private static final String SELECT_SCHEMA_VERSION_QUERY = """
-        SELECT version FROM schema_version
-        """;
-
-    private static final String INSERT_SCHEMA_VERSION_QUERY = """
-        INSERT INTO schema_version (version) VALUES (?)
-        """;
-
-    private static final String INSERT_MESSAGE_QUERY = """
-        INSERT INTO messages (
-            timestamp,
-            server_id,
-            server_name,
-            message_id,
-            message_json,
-            translations_json,
-            is_ping,
-            minecraft_version
-        ) VALUES (?, ?, ?, ?, ?, ?, ?, ?)
-        """;
-
-    // Base query, needs formatting
-    private static final String BASE_GET_MESSAGE_QUERY = """
-        SELECT
-            timestamp,
-            server_id,
-            server_name,
-            message_id,
-            message_json,
-            translations_json,
-            is_ping,
-            minecraft_version
-        FROM
-            messages
-        WHERE
-            server_id = ?
-        %s
-        ORDER BY
-            timestamp DESC
-        LIMIT
-            ?
-        """;
-
-    private static final String V2_MIGRATION_QUERY = """
-        ALTER TABLE messages ADD COLUMN translations_json TEXT NOT NULL DEFAULT '{}';
-
-        UPDATE schema_version SET version = 2;
-        """;
-
-    public ChatMessageRepository() {
-        try {
-            Path databasePath = FabricLoader.getInstance()
-                .getGameDir()
-                .resolve(DATA_DIR)
-                .resolve(DB_NAME);
-
-            Files.createDirectories(databasePath.getParent());
-
-            dataSource = new SQLiteDataSource();
-            dataSource.setUrl("jdbc:sqlite:" + databasePath);
-            initializeDatabase();
-            initialized = true;
-        } catch (IOException e) {
-            LOGGER.error(
-                "Failed to create data for web-chat database directory",
-                e
-            );
-        } catch (RuntimeException e) {
-            LOGGER.error(
-                "A critical error occurred during ChatMessageRepository initialization",
-                e
-            );
-        }
-    }
-
-    private void initializeDatabase() {
-        try (Connection conn = dataSource.getConnection()) {
-            conn.createStatement().execute(CREATE_MESSAGES_TABLE_QUERY);
-
-            // Create composite index for server_id + timestamp queries
-            conn.createStatement().execute(CREATE_INDEX_QUERY);
-
-            // Version table
-            conn.createStatement().execute(CREATE_VERSION_TABLE_QUERY);
-
-            // Check schema
-            checkSchemaVersion(conn);
-        } catch (SQLException e) {
-            LOGGER.error("Failed to initialize chat storage database", e);
-            // Forward the exception to the constructor's try-catch block
-            throw new RuntimeException(
-                "Failed to initialize chat storage database",
-                e
-            );
-        }
+import java.util.function.Consumer;
+
+/**
+ * Storage for chat history.
+ *
+ * Semantics every implementation has to follow (verified by the storage conformance suite in the bench tooling):
+ * - Only messages with a {@link dev.creesch.model.ChatMessagePayload} are stored, anything else is ignored.
+ * - Messages read back are history messages ({@code history = true}) with the same uuid, component, translations and
+ *   ping flag as when they were saved.
+ * - Reads return messages newest first. Messages with the same timestamp are returned newest saved first.
+ * - {@code beforeTimestamp} is exclusive.
+ * - Servers are fully isolated from each other.
+ * - Registered {@link ChangeListener}s are notified after every successful save or delete.
+ */
+public interface ChatMessageRepository {
+    /**
+     * Notified after messages were stored or deleted, used to keep derived data such as cached history pages fresh.
+     * Called on the thread that changed the data, so implementations should be quick.
+     */
+    interface ChangeListener {
+        /**
+         * @param serverId Server messages were saved for
+         * @param oldestTimestamp Timestamp of the oldest message saved
+         */
+        void onMessagesSaved(String serverId, long oldestTimestamp);
+
+        /**
+         * @param serverId Server messages were deleted for
+         */
+        void onMessagesDeleted(String serverId);
+
+        /**
+         * Stored messages changed in place, for example their ping flag after the ping keywords changed.
+         *
+         * @param serverId Server messages were changed for
+         */
+        void onMessagesUpdated(String serverId);
     }
 
-    // To be used for future migrations as well. Does a rollback if the migration fails.
-    private void executeMigrationQuery(Connection conn, String migrationQuery)
-        throws SQLException {
-        LOGGER.info("Executing migration query {}", migrationQuery);
-        conn.setAutoCommit(false);
-        try {
-            conn.createStatement().executeUpdate(migrationQuery);
-            conn.commit();
-            LOGGER.info("Migration completed successfully");
-        } catch (SQLException e) {
-            conn.rollback();
-            LOGGER.error("Migration failed", e);
-            throw e;
-        } finally {
-            conn.setAutoCommit(true);
-        }
+    void addChangeListener(ChangeListener listener);
+
+    void removeChangeListener(ChangeListener listener);
+
+    /**
+     * Stores a single chat message.
+     */
+    void saveMessage(WebsocketJsonMessage message);
+
+    /**
+     * Stores multiple chat messages at once. Implementations should do this in a single transaction.
+     */
+    void saveMessages(List<WebsocketJsonMessage> messages);
+
+    /**
+     * Stores messages that are already in their stored form, for example when moving them over from the ingest
+     * journal. Same transaction rules as {@link #saveMessages(List)}.
+     */
+    void saveStoredMessages(List<StoredMessage> messages);
+
+    /**
+     * Same as {@link #saveStoredMessages(List)}, but only returns once the messages are committed and throws instead
+     * of logging when they aren't. For callers that keep their own copy until then, like the ingest journal.
+     *
+     * @throws StorageException When the messages were not stored
+     */
+    default void commitStoredMessages(List<StoredMessage> messages)
+        throws StorageException {
+        saveStoredMessages(messages);
     }
 
-    private void checkSchemaVersion(Connection conn) throws SQLException {
-        try (
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(SELECT_SCHEMA_VERSION_QUERY)
-        ) {
-            if (!rs.next()) {
-                // New database, set current version
-                try (
-                    PreparedStatement insertStmt = conn.prepareStatement(
-                        INSERT_SCHEMA_VERSION_QUERY
-                    )
-                ) {
-                    insertStmt.setInt(1, CURRENT_SCHEMA_VERSION);
-                    insertStmt.execute();
-                }
-                return; // Don't need to do anything else here.
-            }
-
-            int dbVersion = rs.getInt("version");
-
-            // Mod was likely downgraded from a version with a newer schema.
-            if (dbVersion > CURRENT_SCHEMA_VERSION) {
-                LOGGER.error(
-                    "Database schema version {} is newer than supported version {}",
-                    dbVersion,
-                    CURRENT_SCHEMA_VERSION
-                );
-                // Forward the exception to the constructor's try-catch block
-                throw new RuntimeException(
-                    "Database schema version " +
-                        dbVersion +
-                        " is newer than supported version " +
-                        CURRENT_SCHEMA_VERSION
-                );
-            }
-
-            // Version 2 migration
-            if (dbVersion < 2) {
-                LOGGER.info("Migrating database to version 2");
-                executeMigrationQuery(conn, V2_MIGRATION_QUERY);
-            }
-        }
-    }
-
-    // TODO: keep eye on performance.
-    // If needed implement a queuing mechanism to do messages in chuncks and transactions.
-    public void saveMessage(WebsocketJsonMessage message) {
-        if (!initialized || dataSource == null) {
-            LOGGER.error(
-                "Unable to save message, message database not available."
-            );
-            return;
-        }
-        try (
-            Connection conn = dataSource.getConnection();
-            PreparedStatement statement = conn.prepareStatement(
-                INSERT_MESSAGE_QUERY
-            )
-        ) {
-            // Cast payload to ChatMessagePayload since we need to access some info
-            Object rawPayload = message.getPayload();
-            if (!(rawPayload instanceof ChatMessagePayload payload)) {
-                LOGGER.warn(
-                    "Attempted to save a message with an invalid payload type."
-                );
-                return;
-            }
-
-            statement.setLong(1, message.getTimestamp());
-            statement.setString(2, message.getServer().getIdentifier());
-            statement.setString(3, message.getServer().getName());
-            statement.setString(4, payload.getUuid());
-            statement.setString(5, payload.getComponent().toString());
-            statement.setString(6, gson.toJson(payload.getTranslations()));
-            statement.setBoolean(7, payload.isPing());
-            statement.setString(8, message.getMinecraftVersion());
-
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            LOGGER.error("Failed to save chat message", e);
-        }
-    }
-
-    public List<WebsocketJsonMessage> getMessages(String serverId, int limit) {
+    /**
+     * Records that a stored message was received again, instead of storing the copy.
+     *
+     * @param serverId Server of the stored message
+     * @param timestamp Timestamp of the stored message
+     * @param messageId Uuid of the stored message
+     * @param repeatCount Times the message was received in total, including the first
+     * @param lastSeen Timestamp of the latest copy
+     */
+    void recordRepeat(
+        String serverId,
+        long timestamp,
+        String messageId,
+        int repeatCount,
+        long lastSeen
+    );
+
+    /**
+     * @return Whether a message with this uuid was stored for the server at exactly this timestamp
+     */
+    boolean containsMessage(String serverId, long timestamp, String messageId);
+
+    default List<WebsocketJsonMessage> getMessages(String serverId, int limit) {
         return getMessages(serverId, limit, null);
     }
 
-    public List<WebsocketJsonMessage> getMessages(
+    /**
+     * Reads a page of history.
+     *
+     * @param serverId Server to read messages for
+     * @param limit Maximum amount of messages to return
+     * @param beforeTimestamp Only return messages older than this, null to start at the newest message
+     * @return Messages newest first, never null
+     */
+    default List<WebsocketJsonMessage> getMessages(
         String serverId,
         int limit,
         Long beforeTimestamp
     ) {
-        if (!initialized || dataSource == null) {
-            LOGGER.warn(
-                "ChatMessageRepository not properly initialized, returning empty message list"
-            );
-            return new ArrayList<>();
-        }
         List<WebsocketJsonMessage> messages = new ArrayList<>();
+        streamMessages(serverId, limit, beforeTimestamp, messages::add);
+        return messages;
+    }
 
-        String query = BASE_GET_MESSAGE_QUERY.formatted(
-            beforeTimestamp != null ? "AND timestamp < ?" : ""
-        );
+    /**
+     * Reads history one message at a time without holding the whole page in memory, for large pages.
+     * Same order and cursor semantics as {@link #getMessages(String, int, Long)}. Exceptions thrown by the consumer
+     * stop the read and are passed on to the caller.
+     *
+     * @param serverId Server to read messages for
+     * @param limit Maximum amount of messages to read
+     * @param beforeTimestamp Only read messages older than this, null to start at the newest message
+     * @param consumer Receives the messages newest first
+     */
+    void streamMessages(
+        String serverId,
+        int limit,
+        Long beforeTimestamp,
+        Consumer<WebsocketJsonMessage> consumer
+    );
+
+    /**
+     * @return Amount of stored messages for a server
+     */
+    long countMessages(String serverId);
+
+    /**
+     * Deletes messages of a server.
+     *
+     * @param serverId Server to delete messages for
+     * @param beforeTimestamp Only delete messages older than this, null to delete everything for the server
+     * @return Amount of deleted messages
+     */
+    int deleteMessages(String serverId, Long beforeTimestamp);
+
+    /**
+     * Recomputes the ping flag of all stored messages, after the ping keywords changed. May run in the background,
+     * listeners are told about changed servers as it goes.
+     *
+     * @param matcher Matcher for the new keywords
+     */
+    void reevaluatePings(PingMatcher matcher);
+
+    /**
+     * Cheap enough to call every second, implementations cache anything expensive.
+     *
+     * @return Current size and contents of the storage
+     */
+    StorageStatistics getStatistics();
+
+    /**
+     * @return Approximate heap bytes held by messages on their way to storage, counted against the memory budget
+     */
+    default long pendingBytes() {
+        return 0;
+    }
 
-        try (
-            Connection conn = dataSource.getConnection();
-            PreparedStatement stmt = conn.prepareStatement(query)
-        ) {
-            stmt.setString(1, serverId);
+    /**
+     * @return Approximate heap bytes of stored messages, for repositories that keep them in the heap
+     */
+    default long storedBytes() {
+        return 0;
+    }
 
-            if (beforeTimestamp != null) {
-                stmt.setLong(2, beforeTimestamp);
-                stmt.setInt(3, limit);
-            } else {
-                stmt.setInt(2, limit);
-            }
+    /**
+     * @return Approximate heap bytes of caches that can be rebuilt from storage, counted against the memory budget
+     */
+    default long cachedBytes() {
+        return 0;
+    }
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    long timestamp = rs.getLong("timestamp");
-                    String serverName = rs.getString("server_name");
-                    String messageId = rs.getString("message_id");
-                    String messageJson = rs.getString("message_json");
-                    String translationsJson = rs.getString("translations_json");
-                    boolean isPing = rs.getBoolean("is_ping");
-                    String minecraftVersion = rs.getString("minecraft_version");
+    /**
+     * Drops cached data to stay within the memory budget.
+     *
+     * @return Bytes freed
+     */
+    default long evictCache(long bytes) {
+        return 0;
+    }
 
-                    messages.add(
-                        createHistoricChatMessage(
-                            timestamp,
-                            serverId,
-                            serverName,
-                            messageId,
-                            messageJson,
-                            translationsJson,
-                            isPing,
-                            minecraftVersion
-                        )
-                    );
-                }
-            }
-        } catch (SQLException e) {
-            // Just throw an error here, no reason to crash the game over this.
-            LOGGER.error(
-                "Failed to retrieve chat messages for server: {}",
-                serverId
-            );
-        }
-        LOGGER.info("Got {} messages", messages.size());
-        return messages;
+    /**
+     * @return Progress of background jobs rewriting stored messages, empty when there are none
+     */
+    default List<MigrationProgress> getMigrationProgress() {
+        return List.of();
     }
+
+    /**
+     * Releases any resources held by the repository.
+     */
+    default void close() {}
 }
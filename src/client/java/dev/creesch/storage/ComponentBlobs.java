@@ -0,0 +1,212 @@
+package dev.creesch.storage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Moves large hover and click events out of stored chat components so identical ones are only stored once.
+ *
+ * Item linking plugins put the full item, components and all, in a {@code show_item} hover event. Server ads and
+ * shop broadcasts repeat the same item over and over. Events above {@link #MIN_BLOB_CHARS} are replaced by
+ * {@code {"$blob": "<sha-256>"}} and stored separately under that hash.
+ *
+ * Public for tools that read a database directly, everything else goes through the repository.
+ */
+public final class ComponentBlobs {
+
+    static final int MIN_BLOB_CHARS = 512;
+    private static final String BLOB_KEY = "$blob";
+    private static final String BLOB_MARKER = "\"" + BLOB_KEY + "\"";
+    private static final String[] EVENT_KEYS = { "hover_event", "click_event" };
+
+    /**
+     * @param messageJson Component as it is stored, with blob references where events were extracted
+     * @param blobs Extracted events by hash
+     */
+    record Extraction(String messageJson, Map<String, String> blobs) {}
+
+    private ComponentBlobs() {}
+
+    /**
+     * Replaces large events in a component with references.
+     *
+     * @return The rewritten component and the extracted blobs, or the component as is when there was nothing to extract
+     */
+    static Extraction extract(String messageJson) {
+        // Cheap checks first, most chat is short and has no events at all.
+        if (
+            messageJson.length() < MIN_BLOB_CHARS || !containsEventKey(messageJson)
+        ) {
+            return new Extraction(messageJson, Map.of());
+        }
+
+        JsonElement component = JsonParser.parseString(messageJson);
+        Map<String, String> blobs = new LinkedHashMap<>();
+        extractFrom(component, blobs);
+        if (blobs.isEmpty()) {
+            return new Extraction(messageJson, Map.of());
+        }
+        return new Extraction(component.toString(), blobs);
+    }
+
+    static boolean hasReferences(String storedJson) {
+        return storedJson.contains(BLOB_MARKER);
+    }
+
+    /**
+     * @return Hashes of the blobs a stored component refers to
+     */
+    static Set<String> references(String storedJson) {
+        if (!hasReferences(storedJson)) {
+            return Set.of();
+        }
+        Set<String> hashes = new LinkedHashSet<>();
+        collectReferences(JsonParser.parseString(storedJson), hashes);
+        return hashes;
+    }
+
+    /**
+     * Puts extracted events back into a stored component.
+     *
+     * @param lookup Returns the blob content for a hash, or null when it is missing
+     */
+    public static String reassemble(String storedJson, Function<String, String> lookup) {
+        if (!hasReferences(storedJson)) {
+            return storedJson;
+        }
+        JsonElement component = JsonParser.parseString(storedJson);
+        reassembleIn(component, lookup);
+        return component.toString();
+    }
+
+    static String hash(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(
+                digest.digest(content.getBytes(StandardCharsets.UTF_8))
+            );
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to have SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean containsEventKey(String messageJson) {
+        for (String key : EVENT_KEYS) {
+            if (messageJson.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void extractFrom(
+        JsonElement element,
+        Map<String, String> blobs
+    ) {
+        if (element.isJsonArray()) {
+            for (JsonElement child : element.getAsJsonArray()) {
+                extractFrom(child, blobs);
+            }
+            return;
+        }
+        if (!element.isJsonObject()) {
+            return;
+        }
+
+        JsonObject object = element.getAsJsonObject();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            if (isEventKey(entry.getKey()) && entry.getValue().isJsonObject()) {
+                String content = entry.getValue().toString();
+                if (content.length() >= MIN_BLOB_CHARS) {
+                    String hash = hash(content);
+                    blobs.put(hash, content);
+                    JsonObject reference = new JsonObject();
+                    reference.addProperty(BLOB_KEY, hash);
+                    entry.setValue(reference);
+                    continue;
+                }
+            }
+            extractFrom(entry.getValue(), blobs);
+        }
+    }
+
+    private static void collectReferences(
+        JsonElement element,
+        Set<String> hashes
+    ) {
+        if (element.isJsonArray()) {
+            for (JsonElement child : element.getAsJsonArray()) {
+                collectReferences(child, hashes);
+            }
+            return;
+        }
+        if (!element.isJsonObject()) {
+            return;
+        }
+
+        JsonObject object = element.getAsJsonObject();
+        if (object.size() == 1 && object.has(BLOB_KEY)) {
+            hashes.add(object.get(BLOB_KEY).getAsString());
+            return;
+        }
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            collectReferences(entry.getValue(), hashes);
+        }
+    }
+
+    /**
+     * @return The element with references replaced, or null for a reference to a missing blob
+     */
+    private static JsonElement reassembleIn(
+        JsonElement element,
+        Function<String, String> lookup
+    ) {
+        if (element.isJsonArray()) {
+            for (JsonElement child : element.getAsJsonArray()) {
+                reassembleIn(child, lookup);
+            }
+            return element;
+        }
+        if (!element.isJsonObject()) {
+            return element;
+        }
+
+        JsonObject object = element.getAsJsonObject();
+        if (object.size() == 1 && object.has(BLOB_KEY)) {
+            String content = lookup.apply(object.get(BLOB_KEY).getAsString());
+            return content == null ? null : JsonParser.parseString(content);
+        }
+        // A missing blob drops that event rather than the whole message.
+        object
+            .entrySet()
+            .removeIf((entry) -> {
+                JsonElement replaced = reassembleIn(entry.getValue(), lookup);
+                if (replaced == null) {
+                    return true;
+                }
+                entry.setValue(replaced);
+                return false;
+            });
+        return object;
+    }
+
+    private static boolean isEventKey(String key) {
+        for (String eventKey : EVENT_KEYS) {
+            if (eventKey.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package dev.creesch.storage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a stored chat component back into plain text, close to what {@code Text.getString()} returns in game.
+ *
+ * Only used for messages stored before the plain text was saved along with them, new messages get it straight from
+ * Minecraft.
+ */
+final class ComponentText {
+
+    // %s, %1$s and %% like Minecraft's TranslatableTextContent.
+    private static final Pattern ARGUMENT_PATTERN = Pattern.compile(
+        "%(?:(\\d+)\\$)?([s%])"
+    );
+
+    private ComponentText() {}
+
+    /**
+     * @param component Stored component
+     * @param translations Translation formats by key, as stored with the message
+     */
+    static String plainText(
+        JsonElement component,
+        Map<String, String> translations
+    ) {
+        StringBuilder builder = new StringBuilder();
+        append(builder, component, translations);
+        return builder.toString();
+    }
+
+    private static void append(
+        StringBuilder builder,
+        JsonElement element,
+        Map<String, String> translations
+    ) {
+        if (element == null || element.isJsonNull()) {
+            return;
+        }
+        if (element.isJsonPrimitive()) {
+            builder.append(element.getAsString());
+            return;
+        }
+        if (element.isJsonArray()) {
+            for (JsonElement child : element.getAsJsonArray()) {
+                append(builder, child, translations);
+            }
+            return;
+        }
+
+        JsonObject object = element.getAsJsonObject();
+        if (object.has("text")) {
+            builder.append(object.get("text").getAsString());
+        } else if (object.has("translate")) {
+            appendTranslation(builder, object, translations);
+        } else if (object.has("keybind")) {
+            builder.append(object.get("keybind").getAsString());
+        }
+        if (object.has("extra")) {
+            append(builder, object.get("extra"), translations);
+        }
+    }
+
+    private static void appendTranslation(
+        StringBuilder builder,
+        JsonObject object,
+        Map<String, String> translations
+    ) {
+        String key = object.get("translate").getAsString();
+        String format = translations.get(key);
+        if (format == null) {
+            format = object.has("fallback")
+                ? object.get("fallback").getAsString()
+                : key;
+        }
+        JsonArray arguments = object.has("with") &&
+            object.get("with").isJsonArray()
+            ? object.getAsJsonArray("with")
+            : new JsonArray();
+
+        Matcher matcher = ARGUMENT_PATTERN.matcher(format);
+        int position = 0;
+        int nextArgument = 0;
+        while (matcher.find()) {
+            builder.append(format, position, matcher.start());
+            position = matcher.end();
+            if ("%".equals(matcher.group(2))) {
+                builder.append('%');
+                continue;
+            }
+            int index = matcher.group(1) != null
+                ? Integer.parseInt(matcher.group(1)) - 1
+                : nextArgument++;
+            if (index >= 0 && index < arguments.size()) {
+                append(builder, arguments.get(index), translations);
+            }
+        }
+        builder.append(format, position, format.length());
+    }
+}
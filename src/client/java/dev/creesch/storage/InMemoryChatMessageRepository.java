@@ -0,0 +1,256 @@
+package dev.creesch.storage;
+
+import dev.creesch.metrics.jfr.MessagePersistedEvent;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.util.NamedLogger;
+import dev.creesch.util.PingMatcher;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * {@link ChatMessageRepository} that only keeps messages in memory.
+ * Used for ephemeral sessions where nothing should be written to disk, and by the bench tooling.
+ */
+public class InMemoryChatMessageRepository
+    extends AbstractChatMessageRepository {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+
+    /**
+     * Sort key, the sequence number breaks timestamp ties in save order just like the SQLite row id does.
+     */
+    private record Key(long timestamp, long sequence)
+        implements Comparable<Key> {
+        @Override
+        public int compareTo(Key other) {
+            int byTimestamp = Long.compare(timestamp, other.timestamp);
+            return byTimestamp != 0
+                ? byTimestamp
+                : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Map<
+        String,
+        ConcurrentSkipListMap<Key, StoredMessage>
+    > messagesByServer = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    @Override
+    public void saveMessage(WebsocketJsonMessage message) {
+        StoredMessage storedMessage = StoredMessage.from(message);
+        if (storedMessage == null) {
+            LOGGER.warn(
+                "Attempted to save a message with an invalid payload type."
+            );
+            return;
+        }
+
+        MessagePersistedEvent event = new MessagePersistedEvent();
+        event.begin();
+        store(storedMessage);
+        event.end();
+        if (event.shouldCommit()) {
+            event.serverId = storedMessage.serverId();
+            event.storage = "memory";
+            event.componentChars = storedMessage.messageJson().length();
+            event.commit();
+        }
+        fireMessagesSaved(storedMessage.serverId(), storedMessage.timestamp());
+    }
+
+    @Override
+    public void saveMessages(List<WebsocketJsonMessage> messages) {
+        messages.forEach(this::saveMessage);
+    }
+
+    @Override
+    public void saveStoredMessages(List<StoredMessage> messages) {
+        messages.forEach(this::store);
+        fireMessagesSaved(messages);
+    }
+
+    private void store(StoredMessage storedMessage) {
+        messagesByServer
+            .computeIfAbsent(storedMessage.serverId(), (serverId) ->
+                new ConcurrentSkipListMap<>()
+            )
+            .put(
+                new Key(storedMessage.timestamp(), sequence.incrementAndGet()),
+                storedMessage
+            );
+        storedBytes.addAndGet(storedMessage.approximateBytes());
+    }
+
+    @Override
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    @Override
+    public void recordRepeat(
+        String serverId,
+        long timestamp,
+        String messageId,
+        int repeatCount,
+        long lastSeen
+    ) {
+        NavigableMap<Key, StoredMessage> serverMessages = messagesByServer.get(
+            serverId
+        );
+        if (serverMessages == null) {
+            return;
+        }
+        for (Map.Entry<Key, StoredMessage> entry : serverMessages
+            .subMap(
+                new Key(timestamp, Long.MIN_VALUE),
+                true,
+                new Key(timestamp, Long.MAX_VALUE),
+                true
+            )
+            .entrySet()) {
+            if (entry.getValue().messageId().equals(messageId)) {
+                serverMessages.replace(
+                    entry.getKey(),
+                    entry.getValue().withRepeat(repeatCount, lastSeen)
+                );
+                fireMessagesUpdated(serverId);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean containsMessage(
+        String serverId,
+        long timestamp,
+        String messageId
+    ) {
+        NavigableMap<Key, StoredMessage> serverMessages = messagesByServer.get(
+            serverId
+        );
+        if (serverMessages == null) {
+            return false;
+        }
+        return serverMessages
+            .subMap(
+                new Key(timestamp, Long.MIN_VALUE),
+                true,
+                new Key(timestamp, Long.MAX_VALUE),
+                true
+            )
+            .values()
+            .stream()
+            .anyMatch((message) -> message.messageId().equals(messageId));
+    }
+
+    @Override
+    public void streamMessages(
+        String serverId,
+        int limit,
+        Long beforeTimestamp,
+        Consumer<WebsocketJsonMessage> consumer
+    ) {
+        NavigableMap<Key, StoredMessage> serverMessages = messagesByServer.get(
+            serverId
+        );
+        if (serverMessages == null) {
+            return;
+        }
+
+        if (beforeTimestamp != null) {
+            serverMessages = serverMessages.headMap(
+                new Key(beforeTimestamp, Long.MIN_VALUE),
+                false
+            );
+        }
+
+        Iterator<StoredMessage> iterator = serverMessages
+            .descendingMap()
+            .values()
+            .iterator();
+        int read = 0;
+        while (iterator.hasNext() && read < limit) {
+            consumer.accept(iterator.next().toHistoricMessage());
+            read++;
+        }
+    }
+
+    @Override
+    public void reevaluatePings(PingMatcher matcher) {
+        messagesByServer.forEach((serverId, serverMessages) -> {
+            boolean changed = false;
+            for (Map.Entry<Key, StoredMessage> entry : serverMessages
+                .entrySet()) {
+                StoredMessage message = entry.getValue();
+                if (message.plainText() == null) {
+                    continue;
+                }
+                boolean isPing = matcher.matches(message.plainText());
+                if (isPing != message.isPing()) {
+                    serverMessages.replace(
+                        entry.getKey(),
+                        message.withPing(isPing)
+                    );
+                    changed = true;
+                }
+            }
+            if (changed) {
+                fireMessagesUpdated(serverId);
+            }
+        });
+    }
+
+    @Override
+    public long countMessages(String serverId) {
+        NavigableMap<Key, StoredMessage> serverMessages = messagesByServer.get(
+            serverId
+        );
+        return serverMessages == null ? 0 : serverMessages.size();
+    }
+
+    @Override
+    public StorageStatistics getStatistics() {
+        Map<String, Long> messagesPerServer = new TreeMap<>();
+        messagesByServer.forEach((serverId, serverMessages) ->
+            messagesPerServer.put(serverId, (long) serverMessages.size())
+        );
+        return new StorageStatistics(-1, messagesPerServer, 0);
+    }
+
+    @Override
+    public int deleteMessages(String serverId, Long beforeTimestamp) {
+        ConcurrentSkipListMap<Key, StoredMessage> serverMessages =
+            messagesByServer.get(serverId);
+        if (serverMessages == null) {
+            return 0;
+        }
+
+        NavigableMap<Key, StoredMessage> toDelete =
+            beforeTimestamp == null
+                ? serverMessages
+                : serverMessages.headMap(
+                    new Key(beforeTimestamp, Long.MIN_VALUE),
+                    false
+                );
+        int deleted = 0;
+        Iterator<StoredMessage> iterator = toDelete.values().iterator();
+        while (iterator.hasNext()) {
+            storedBytes.addAndGet(-iterator.next().approximateBytes());
+            iterator.remove();
+            deleted++;
+        }
+        if (deleted > 0) {
+            fireMessagesDeleted(serverId);
+        }
+        return deleted;
+    }
+}
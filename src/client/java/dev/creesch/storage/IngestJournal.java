@@ -0,0 +1,285 @@
+package dev.creesch.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size, memory mapped, append only file of messages that still have to be written to the database.
+ *
+ * Layout: a header with a magic number and the position of the oldest undrained record, followed by records of
+ * {@code [int length][int crc32][message bytes]}. A zero length marks the end. A record is only counted once its
+ * length is written, and a record with a wrong checksum ends the journal, so a crash halfway through an append
+ * loses at most that message.
+ *
+ * Writes land in the page cache right away, so they survive the game crashing. They are only forced to disk on
+ * close.
+ */
+final class IngestJournal implements Closeable {
+
+    private static final int MAGIC = 0x57434a31;
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int HEADER_SIZE = 16;
+    // Length and checksum in front of every record.
+    private static final int RECORD_OVERHEAD = 8;
+    private static final int TERMINATOR_SIZE = 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int readPosition;
+    private int writePosition;
+    private int pendingRecords;
+
+    /**
+     * Opens the journal, creating it if needed. Records left over from a previous run are kept.
+     *
+     * @param path Journal file
+     * @param capacity Size of the file in bytes
+     */
+    IngestJournal(Path path, int capacity) throws IOException {
+        Files.createDirectories(path.getParent());
+        this.capacity = capacity;
+        channel = FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            reset();
+            return;
+        }
+
+        readPosition = buffer.getInt(READ_POSITION_OFFSET);
+        if (readPosition < HEADER_SIZE || readPosition > capacity) {
+            reset();
+            return;
+        }
+        // Find the end of the valid records.
+        writePosition = readPosition;
+        while (true) {
+            int recordEnd = validRecordEnd(writePosition);
+            if (recordEnd < 0) {
+                break;
+            }
+            writePosition = recordEnd;
+            pendingRecords++;
+        }
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @return False when there is no room left, the caller has to drain first
+     */
+    synchronized boolean append(StoredMessage message) {
+        byte[] bytes = encode(message);
+        int needed = RECORD_OVERHEAD + bytes.length + TERMINATOR_SIZE;
+        if (writePosition + needed > capacity) {
+            compact();
+            if (writePosition + needed > capacity) {
+                return false;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        // The terminator goes first and the length last, a half written record is never taken as complete.
+        buffer.putInt(writePosition + RECORD_OVERHEAD + bytes.length, 0);
+        buffer.putInt(writePosition + 4, (int) crc.getValue());
+        buffer.put(writePosition + RECORD_OVERHEAD, bytes);
+        buffer.putInt(writePosition, bytes.length);
+        writePosition += RECORD_OVERHEAD + bytes.length;
+        pendingRecords++;
+        return true;
+    }
+
+    /**
+     * Reads the oldest undrained messages without removing them.
+     *
+     * @param max Most messages to return
+     */
+    synchronized List<StoredMessage> peek(int max) {
+        List<StoredMessage> messages = new ArrayList<>(
+            Math.min(max, pendingRecords)
+        );
+        int position = readPosition;
+        while (messages.size() < max && position < writePosition) {
+            int length = buffer.getInt(position);
+            byte[] bytes = new byte[length];
+            buffer.get(position + RECORD_OVERHEAD, bytes);
+            messages.add(decode(bytes));
+            position += RECORD_OVERHEAD + length;
+        }
+        return messages;
+    }
+
+    /**
+     * Removes the oldest messages after they were written to the database. Counted in records rather than bytes, so
+     * it stays correct when the journal was compacted in the meantime.
+     */
+    synchronized void markDrained(int count) {
+        for (int i = 0; i < count && readPosition < writePosition; i++) {
+            readPosition += RECORD_OVERHEAD + buffer.getInt(readPosition);
+            pendingRecords--;
+        }
+        if (readPosition >= writePosition) {
+            // Everything is in the database, start over at the front.
+            reset();
+        } else {
+            buffer.putInt(READ_POSITION_OFFSET, readPosition);
+        }
+    }
+
+    synchronized int pendingRecords() {
+        return pendingRecords;
+    }
+
+    synchronized int pendingBytes() {
+        return writePosition - readPosition;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void reset() {
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE;
+        pendingRecords = 0;
+        buffer.putInt(HEADER_SIZE, 0);
+        buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+    }
+
+    /**
+     * Moves the undrained records to the front to make room at the end. Only done when the copy fits entirely in
+     * front of the records it is copied from, so the header keeps pointing at intact records until it is moved over
+     * to the copy. A crash halfway through recovers from the originals. When the records don't fit, the caller has
+     * to drain first.
+     */
+    private void compact() {
+        int pendingLength = writePosition - readPosition;
+        if (
+            readPosition == HEADER_SIZE ||
+            HEADER_SIZE + pendingLength + TERMINATOR_SIZE > readPosition
+        ) {
+            return;
+        }
+        byte[] pending = new byte[pendingLength];
+        buffer.get(readPosition, pending);
+        buffer.put(HEADER_SIZE, pending);
+        buffer.putInt(HEADER_SIZE + pendingLength, 0);
+        // Only now does the header move over to the copy.
+        buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE + pendingLength;
+    }
+
+    /**
+     * @return End of the record at this position, or -1 when there is no complete record
+     */
+    private int validRecordEnd(int position) {
+        if (position + RECORD_OVERHEAD > capacity) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + RECORD_OVERHEAD + length > capacity) {
+            return -1;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(position + RECORD_OVERHEAD, bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return -1;
+        }
+        return position + RECORD_OVERHEAD + length;
+    }
+
+    private static byte[] encode(StoredMessage message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(message.timestamp());
+            writeString(out, message.serverId());
+            writeString(out, message.serverName());
+            writeString(out, message.messageId());
+            writeString(out, message.messageJson());
+            writeString(out, message.translationsJson());
+            out.writeBoolean(message.isPing());
+            writeString(out, message.minecraftVersion());
+            writeString(out, message.plainText());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Only writes to memory, can't happen.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static StoredMessage decode(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes)
+            );
+            return new StoredMessage(
+                in.readLong(),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                in.readBoolean(),
+                readString(in),
+                // Records written before the plain text was journaled end here.
+                in.available() > 0 ? readString(in) : null,
+                // Repeats are written to the database directly, a journaled message was never repeated yet.
+                1,
+                null
+            );
+        } catch (IOException e) {
+            // Checksum was valid, so the record was written by this class.
+            throw new IllegalStateException("Corrupt journal record", e);
+        }
+    }
+
+    // Length prefixed rather than writeUTF, which is limited to 64KB.
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = in.readNBytes(length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,513 @@
+package dev.creesch.storage;
+
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.metrics.jfr.MessagePersistedEvent;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.util.NamedLogger;
+import dev.creesch.util.PingMatcher;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Puts an {@link IngestJournal} in front of another repository. Saving only appends to the memory mapped journal,
+ * a background thread moves messages into the wrapped repository in large transactions and then drops them from the
+ * journal. Messages still in the journal after a crash are moved over on the next start, skipping the ones that did
+ * make it into the database before the crash.
+ *
+ * Repeats of stored messages are kept in memory and applied by the same thread once the messages they update are
+ * drained, so nothing on the saving side ever waits for the database.
+ *
+ * Reads, counts and deletes first wait for the journal to be drained, so they see every message saved before them.
+ */
+public class JournaledChatMessageRepository
+    extends AbstractChatMessageRepository {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+
+    private static final LongAdder APPENDS = WebchatMetrics.counter(
+        "journal.appends"
+    );
+    private static final LongAdder DRAINS = WebchatMetrics.counter(
+        "journal.drains"
+    );
+    private static final LongAdder DRAINED_MESSAGES = WebchatMetrics.counter(
+        "journal.drainedMessages"
+    );
+    private static final LongAdder DRAIN_NANOS = WebchatMetrics.counter(
+        "journal.drainNanos"
+    );
+    private static final LongAdder OVERFLOWS = WebchatMetrics.counter(
+        "journal.overflows"
+    );
+    private static final LongAdder REPLAYED = WebchatMetrics.counter(
+        "journal.replayed"
+    );
+    private static final LongAdder DRAIN_FAILURES = WebchatMetrics.counter(
+        "journal.drainFailures"
+    );
+    private static final LongAdder REPLAY_DUPLICATES = WebchatMetrics.counter(
+        "journal.replayDuplicates"
+    );
+
+    public static final int DEFAULT_CAPACITY = 8 * 1024 * 1024;
+    // Messages per database transaction.
+    private static final int DRAIN_BATCH_SIZE = 1000;
+    // A drain happens at least this often, or sooner when a full batch is waiting or a reader needs the data.
+    private static final long DRAIN_INTERVAL_MILLIS = 250;
+    // Readers don't wait forever on a database that stopped accepting writes.
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+    private record RepeatKey(String serverId, long timestamp, String messageId) {}
+
+    private record RepeatUpdate(int repeatCount, long lastSeen) {}
+
+    private final ChatMessageRepository delegate;
+    private final IngestJournal journal;
+    private final Thread drainThread;
+
+    // Guards the counters below and is used to signal the drain thread and waiting readers.
+    private final Object drainLock = new Object();
+    private long appended = 0;
+    private long drained = 0;
+    private boolean drainRequested = false;
+    // Repeats waiting for the drain thread, only the latest count per message matters. Counted in appended and
+    // drained like messages, so readers wait for them too.
+    private final Map<RepeatKey, RepeatUpdate> pendingRepeats =
+        new LinkedHashMap<>();
+    // Drains the wrapped repository refused, a reader waiting for the journal gives up after one.
+    private long failedDrains = 0;
+    private volatile boolean running = true;
+    // Only touched in drainAll, to log a failing database once rather than every round.
+    private boolean drainFailing = false;
+
+    /**
+     * @param delegate Repository the journal drains into, closed together with this one
+     * @param journalPath Journal file
+     * @param capacity Journal size in bytes
+     */
+    public JournaledChatMessageRepository(
+        ChatMessageRepository delegate,
+        Path journalPath,
+        int capacity
+    ) throws IOException {
+        this.delegate = delegate;
+        this.journal = new IngestJournal(journalPath, capacity);
+        replay();
+        // Saves and deletes are announced by this class, in place updates only happen in the wrapped repository.
+        delegate.addChangeListener(
+            new ChangeListener() {
+                @Override
+                public void onMessagesSaved(
+                    String serverId,
+                    long oldestTimestamp
+                ) {}
+
+                @Override
+                public void onMessagesDeleted(String serverId) {}
+
+                @Override
+                public void onMessagesUpdated(String serverId) {
+                    fireMessagesUpdated(serverId);
+                }
+            }
+        );
+
+        WebchatMetrics.gauge("journal.pendingBytes", journal::pendingBytes);
+        drainThread = new Thread(this::drainLoop, "web-chat-journal-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Moves messages left over from the previous run into the database. A crash between committing a batch and
+     * dropping it from the journal leaves messages in both places, those are skipped. When the database doesn't take
+     * them, they stay in the journal for the drain thread to try again.
+     */
+    private void replay() {
+        int leftOver = journal.pendingRecords();
+        if (leftOver == 0) {
+            return;
+        }
+        LOGGER.info("Recovering {} chat messages from the ingest journal", leftOver);
+
+        while (true) {
+            List<StoredMessage> batch = journal.peek(DRAIN_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            List<StoredMessage> missing = new ArrayList<>(batch.size());
+            for (StoredMessage message : batch) {
+                if (
+                    delegate.containsMessage(
+                        message.serverId(),
+                        message.timestamp(),
+                        message.messageId()
+                    )
+                ) {
+                    REPLAY_DUPLICATES.increment();
+                } else {
+                    missing.add(message);
+                }
+            }
+            try {
+                delegate.commitStoredMessages(missing);
+            } catch (StorageException e) {
+                LOGGER.error(
+                    "Failed to recover chat messages from the ingest journal, trying again later",
+                    e
+                );
+                return;
+            }
+            journal.markDrained(batch.size());
+            REPLAYED.add(missing.size());
+        }
+    }
+
+    @Override
+    public void saveMessage(WebsocketJsonMessage message) {
+        StoredMessage storedMessage = StoredMessage.from(message);
+        if (storedMessage == null) {
+            LOGGER.warn(
+                "Attempted to save a message with an invalid payload type."
+            );
+            return;
+        }
+        MessagePersistedEvent event = new MessagePersistedEvent();
+        event.begin();
+        saveStoredMessages(List.of(storedMessage));
+        event.end();
+        if (event.shouldCommit()) {
+            event.serverId = storedMessage.serverId();
+            event.storage = "journal";
+            event.componentChars = storedMessage.messageJson().length();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void saveMessages(List<WebsocketJsonMessage> messages) {
+        List<StoredMessage> storedMessages = new ArrayList<>(messages.size());
+        for (WebsocketJsonMessage message : messages) {
+            StoredMessage storedMessage = StoredMessage.from(message);
+            if (storedMessage == null) {
+                LOGGER.warn(
+                    "Attempted to save a message with an invalid payload type."
+                );
+                continue;
+            }
+            storedMessages.add(storedMessage);
+        }
+        saveStoredMessages(storedMessages);
+    }
+
+    @Override
+    public void saveStoredMessages(List<StoredMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        for (StoredMessage message : messages) {
+            append(message);
+        }
+        // The message counts as saved once it is in the journal, reads wait for it to reach the database.
+        fireMessagesSaved(messages);
+    }
+
+    private void append(StoredMessage message) {
+        synchronized (drainLock) {
+            if (journal.append(message)) {
+                APPENDS.increment();
+                appended++;
+                if (journal.pendingRecords() >= DRAIN_BATCH_SIZE) {
+                    drainRequested = true;
+                    drainLock.notifyAll();
+                }
+                return;
+            }
+        }
+
+        // Journal is full, make room and try again.
+        flush();
+        synchronized (drainLock) {
+            if (journal.append(message)) {
+                APPENDS.increment();
+                appended++;
+                return;
+            }
+        }
+        // Larger than the whole journal, or the database stopped taking the drained messages. Saved directly, when
+        // that fails too there is nowhere left to keep it.
+        OVERFLOWS.increment();
+        try {
+            delegate.commitStoredMessages(List.of(message));
+        } catch (StorageException e) {
+            LOGGER.error(
+                "Ingest journal is full and the database is not accepting messages, chat message lost",
+                e
+            );
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is in the wrapped repository.
+     */
+    public void flush() {
+        synchronized (drainLock) {
+            long target = appended;
+            long failedBefore = failedDrains;
+            if (drained >= target) {
+                return;
+            }
+            drainRequested = true;
+            drainLock.notifyAll();
+
+            long deadline =
+                System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MILLIS);
+            while (
+                drained < target && running && failedDrains == failedBefore
+            ) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    LOGGER.warn(
+                        "Timed out waiting for the ingest journal to drain, {} messages pending",
+                        target - drained
+                    );
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        if (!running) {
+            // Drain thread is gone, close() drains what is left.
+            drainAll();
+        }
+    }
+
+    private void drainLoop() {
+        while (running) {
+            synchronized (drainLock) {
+                if (!drainRequested) {
+                    try {
+                        drainLock.wait(DRAIN_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                drainRequested = false;
+            }
+
+            drainAll();
+        }
+    }
+
+    /**
+     * Moves everything in the journal to the wrapped repository. A batch is only dropped from the journal once the
+     * wrapped repository committed it. When it didn't, the batch stays and is tried again next round. Pending repeats
+     * are applied after the journal is empty, the messages they update are in the database by then.
+     */
+    private synchronized void drainAll() {
+        while (true) {
+            List<StoredMessage> batch = journal.peek(DRAIN_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                applyRepeats();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                delegate.commitStoredMessages(batch);
+            } catch (StorageException | RuntimeException e) {
+                DRAIN_FAILURES.increment();
+                // Once per failing streak, the drain thread retries every round.
+                if (!drainFailing) {
+                    LOGGER.error(
+                        "Failed to drain the ingest journal, {} messages kept for the next attempt",
+                        journal.pendingRecords(),
+                        e
+                    );
+                }
+                drainFailing = true;
+                synchronized (drainLock) {
+                    failedDrains++;
+                    drainLock.notifyAll();
+                }
+                return;
+            }
+            if (drainFailing) {
+                LOGGER.info("Ingest journal drains into the database again");
+                drainFailing = false;
+            }
+            journal.markDrained(batch.size());
+            DRAINS.increment();
+            DRAINED_MESSAGES.add(batch.size());
+            DRAIN_NANOS.add(System.nanoTime() - start);
+
+            synchronized (drainLock) {
+                drained += batch.size();
+                drainLock.notifyAll();
+            }
+        }
+    }
+
+    private void applyRepeats() {
+        Map<RepeatKey, RepeatUpdate> repeats;
+        synchronized (drainLock) {
+            if (pendingRepeats.isEmpty()) {
+                return;
+            }
+            repeats = new LinkedHashMap<>(pendingRepeats);
+            pendingRepeats.clear();
+        }
+        for (Map.Entry<RepeatKey, RepeatUpdate> entry : repeats.entrySet()) {
+            RepeatKey key = entry.getKey();
+            delegate.recordRepeat(
+                key.serverId(),
+                key.timestamp(),
+                key.messageId(),
+                entry.getValue().repeatCount(),
+                entry.getValue().lastSeen()
+            );
+        }
+        synchronized (drainLock) {
+            drained += repeats.size();
+            drainLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void streamMessages(
+        String serverId,
+        int limit,
+        Long beforeTimestamp,
+        Consumer<WebsocketJsonMessage> consumer
+    ) {
+        flush();
+        delegate.streamMessages(serverId, limit, beforeTimestamp, consumer);
+    }
+
+    @Override
+    public void recordRepeat(
+        String serverId,
+        long timestamp,
+        String messageId,
+        int repeatCount,
+        long lastSeen
+    ) {
+        // Called for live chat, the drain thread applies it once the repeated message is in the database.
+        synchronized (drainLock) {
+            RepeatUpdate replaced = pendingRepeats.put(
+                new RepeatKey(serverId, timestamp, messageId),
+                new RepeatUpdate(repeatCount, lastSeen)
+            );
+            if (replaced == null) {
+                appended++;
+            }
+        }
+    }
+
+    @Override
+    public boolean containsMessage(
+        String serverId,
+        long timestamp,
+        String messageId
+    ) {
+        flush();
+        return delegate.containsMessage(serverId, timestamp, messageId);
+    }
+
+    @Override
+    public long countMessages(String serverId) {
+        flush();
+        return delegate.countMessages(serverId);
+    }
+
+    @Override
+    public int deleteMessages(String serverId, Long beforeTimestamp) {
+        flush();
+        int deleted = delegate.deleteMessages(serverId, beforeTimestamp);
+        if (deleted > 0) {
+            fireMessagesDeleted(serverId);
+        }
+        return deleted;
+    }
+
+    @Override
+    public void reevaluatePings(PingMatcher matcher) {
+        // Messages still in the journal were checked against the old keywords too.
+        flush();
+        delegate.reevaluatePings(matcher);
+    }
+
+    @Override
+    public StorageStatistics getStatistics() {
+        // Doesn't flush, messages still in the journal show up as pending instead.
+        StorageStatistics statistics = delegate.getStatistics();
+        return new StorageStatistics(
+            statistics.sizeBytes(),
+            statistics.messagesPerServer(),
+            statistics.pendingWrites() + journal.pendingRecords()
+        );
+    }
+
+    @Override
+    public long pendingBytes() {
+        // Messages waiting in the journal live in a memory mapped file, outside the heap.
+        return delegate.pendingBytes();
+    }
+
+    @Override
+    public long storedBytes() {
+        return delegate.storedBytes();
+    }
+
+    @Override
+    public long cachedBytes() {
+        return delegate.cachedBytes();
+    }
+
+    @Override
+    public long evictCache(long bytes) {
+        return delegate.evictCache(bytes);
+    }
+
+    @Override
+    public List<MigrationProgress> getMigrationProgress() {
+        return delegate.getMigrationProgress();
+    }
+
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+        try {
+            drainThread.join(FLUSH_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        drainAll();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close the ingest journal", e);
+        }
+        delegate.close();
+    }
+}
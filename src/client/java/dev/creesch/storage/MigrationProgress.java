@@ -0,0 +1,26 @@
+package dev.creesch.storage;
+
+/**
+ * Progress of a background backfill, see {@link SchemaMigration}.
+ *
+ * @param name Backfill name
+ * @param processed Rows processed so far
+ * @param total Rows to process in total, an estimate taken when the backfill (re)started
+ * @param completed Whether the backfill finished
+ */
+public record MigrationProgress(
+    String name,
+    long processed,
+    long total,
+    boolean completed
+) {
+    /**
+     * @return Progress between 0 and 1
+     */
+    public double fraction() {
+        if (completed) {
+            return 1.0;
+        }
+        return total <= 0 ? 0.0 : Math.min(1.0, (double) processed / total);
+    }
+}
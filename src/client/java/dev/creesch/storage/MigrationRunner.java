@@ -0,0 +1,344 @@
+package dev.creesch.storage;
+
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.util.NamedLogger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Runs {@link SchemaMigration.Backfill}s in the background, one batch per write transaction, and keeps their progress
+ * in the {@code migration_progress} table.
+ *
+ * Batches go through the repository's writer thread like any other write, so live chat is never blocked for longer
+ * than a single batch.
+ */
+final class MigrationRunner {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+
+    private static final LongAdder BATCHES = WebchatMetrics.counter(
+        "storage.backfill.batches"
+    );
+    private static final LongAdder ROWS = WebchatMetrics.counter(
+        "storage.backfill.rows"
+    );
+
+    private static final String CREATE_PROGRESS_TABLE_QUERY = """
+        CREATE TABLE IF NOT EXISTS migration_progress (
+            name TEXT PRIMARY KEY,
+            last_id INTEGER NOT NULL,
+            processed INTEGER NOT NULL,
+            total INTEGER NOT NULL,
+            completed BOOLEAN NOT NULL,
+            settings TEXT
+        )
+        """;
+
+    private static final String PROGRESS_COLUMNS_QUERY = """
+        PRAGMA table_info(migration_progress)
+        """;
+
+    private static final String ADD_SETTINGS_COLUMN_QUERY = """
+        ALTER TABLE migration_progress ADD COLUMN settings TEXT
+        """;
+
+    private static final String START_PROGRESS_QUERY = """
+        INSERT OR REPLACE INTO migration_progress (name, last_id, processed, total, completed, settings) VALUES (?, 0, 0, 0, 0, ?)
+        """;
+
+    private static final String SELECT_PROGRESS_QUERY = """
+        SELECT name, last_id, processed, total, completed, settings FROM migration_progress
+        """;
+
+    private static final String SELECT_SETTINGS_QUERY = """
+        SELECT settings FROM migration_progress WHERE name = ?
+        """;
+
+    private static final String UPDATE_PROGRESS_QUERY = """
+        UPDATE migration_progress SET last_id = ?, processed = ?, total = ?, completed = ? WHERE name = ?
+        """;
+
+    private static final int BATCH_SIZE = 500;
+    // Pause between batches, leaves the writer free for live chat.
+    private static final long BATCH_PAUSE_MILLIS = 20;
+
+    private final SqliteChatMessageRepository repository;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        (runnable) -> {
+            Thread thread = new Thread(runnable, "web-chat-backfill");
+            thread.setDaemon(true);
+            // Backfills are never urgent.
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    );
+    private final Map<String, MigrationProgress> progress =
+        new ConcurrentHashMap<>();
+    // Latest run per backfill name. A run that is no longer the latest stops after its current batch.
+    private final Map<String, Object> activeRuns = new ConcurrentHashMap<>();
+
+    MigrationRunner(SqliteChatMessageRepository repository) {
+        this.repository = repository;
+        WebchatMetrics.gauge("storage.backfill.running", () ->
+            progress.values().stream().filter((p) -> !p.completed()).count()
+        );
+    }
+
+    /**
+     * Creates the progress table. Databases from before backfill settings were stored get the column added here
+     * rather than through a schema version, the table isn't versioned with the messages.
+     */
+    static void createTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_PROGRESS_TABLE_QUERY);
+            boolean hasSettings = false;
+            try (ResultSet rs = stmt.executeQuery(PROGRESS_COLUMNS_QUERY)) {
+                while (rs.next()) {
+                    hasSettings |= "settings".equals(rs.getString("name"));
+                }
+            }
+            if (!hasSettings) {
+                stmt.execute(ADD_SETTINGS_COLUMN_QUERY);
+            }
+        }
+    }
+
+    /**
+     * Marks a backfill as started, in the same transaction as the schema step that needs it.
+     */
+    static void registerInTransaction(
+        Connection conn,
+        SchemaMigration.Backfill backfill
+    ) throws SQLException {
+        try (
+            PreparedStatement stmt = conn.prepareStatement(START_PROGRESS_QUERY)
+        ) {
+            stmt.setString(1, backfill.name());
+            stmt.setString(2, backfill.settings());
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * @return Settings stored when the named backfill was last started, null if it never ran or has none
+     */
+    static String settingsInTransaction(Connection conn, String name)
+        throws SQLException {
+        try (
+            PreparedStatement stmt = conn.prepareStatement(SELECT_SETTINGS_QUERY)
+        ) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Continues every backfill that didn't finish yet, for example after a restart.
+     *
+     * @param backfills Recreates a backfill from its name and stored settings, null for unknown backfills
+     */
+    void resume(
+        BiFunction<String, String, SchemaMigration.Backfill> backfills
+    ) {
+        try {
+            repository.read((conn) -> {
+                try (
+                    PreparedStatement stmt = conn.prepareStatement(
+                        SELECT_PROGRESS_QUERY
+                    );
+                    ResultSet rs = stmt.executeQuery()
+                ) {
+                    while (rs.next()) {
+                        MigrationProgress stored = new MigrationProgress(
+                            rs.getString("name"),
+                            rs.getLong("processed"),
+                            rs.getLong("total"),
+                            rs.getBoolean("completed")
+                        );
+                        progress.put(stored.name(), stored);
+                        if (stored.completed()) {
+                            continue;
+                        }
+                        SchemaMigration.Backfill backfill = backfills.apply(
+                            stored.name(),
+                            rs.getString("settings")
+                        );
+                        if (backfill == null) {
+                            LOGGER.warn(
+                                "Can't resume backfill {}, it stays incomplete",
+                                stored.name()
+                            );
+                            continue;
+                        }
+                        schedule(
+                            backfill,
+                            rs.getLong("last_id"),
+                            stored.processed()
+                        );
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.error("Failed to read migration progress", e);
+        }
+    }
+
+    /**
+     * Starts a backfill from the beginning, replacing a run with the same name that is still going.
+     */
+    void start(SchemaMigration.Backfill backfill) {
+        try {
+            repository.write((conn) -> {
+                registerInTransaction(conn, backfill);
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.error("Failed to start backfill {}", backfill.name(), e);
+            return;
+        }
+        schedule(backfill, 0, 0);
+    }
+
+    /**
+     * @return Progress of every backfill that ran in this database, sorted by name
+     */
+    List<MigrationProgress> getProgress() {
+        List<MigrationProgress> snapshot = new ArrayList<>(progress.values());
+        snapshot.sort(Comparator.comparing(MigrationProgress::name));
+        return snapshot;
+    }
+
+    /**
+     * @return True when the backfill finished or never had to run in this database
+     */
+    boolean isCompleted(String name) {
+        MigrationProgress stored = progress.get(name);
+        return stored == null || stored.completed();
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private void schedule(
+        SchemaMigration.Backfill backfill,
+        long afterId,
+        long processed
+    ) {
+        Object run = new Object();
+        activeRuns.put(backfill.name(), run);
+        executor.execute(() -> run(backfill, run, afterId, processed));
+    }
+
+    private void run(
+        SchemaMigration.Backfill backfill,
+        Object run,
+        long afterId,
+        long processed
+    ) {
+        String name = backfill.name();
+        try {
+            long remaining = repository.read((conn) ->
+                backfill.remaining(conn, afterId)
+            );
+            long total = processed + remaining;
+            progress.put(
+                name,
+                new MigrationProgress(name, processed, total, false)
+            );
+            LOGGER.info("Backfill {} started, {} rows to go", name, remaining);
+
+            long lastId = afterId;
+            long done = processed;
+            while (activeRuns.get(name) == run && !executor.isShutdown()) {
+                long batchAfterId = lastId;
+                long batchDone = done;
+                SchemaMigration.BatchResult result = repository.write(
+                    (conn) -> {
+                        conn.setAutoCommit(false);
+                        try {
+                            SchemaMigration.BatchResult batch =
+                                backfill.runBatch(conn, batchAfterId, BATCH_SIZE);
+                            saveProgress(
+                                conn,
+                                name,
+                                batch.rows() == 0 ? batchAfterId : batch.lastId(),
+                                batchDone + batch.rows(),
+                                total,
+                                batch.rows() == 0
+                            );
+                            conn.commit();
+                            return batch;
+                        } catch (SQLException | RuntimeException e) {
+                            conn.rollback();
+                            throw e;
+                        } finally {
+                            conn.setAutoCommit(true);
+                        }
+                    }
+                );
+                backfill.onBatchCommitted();
+
+                if (result.rows() == 0) {
+                    progress.put(
+                        name,
+                        new MigrationProgress(name, done, total, true)
+                    );
+                    LOGGER.info("Backfill {} finished, {} rows", name, done);
+                    return;
+                }
+                lastId = result.lastId();
+                done += result.rows();
+                BATCHES.increment();
+                ROWS.add(result.rows());
+                progress.put(
+                    name,
+                    new MigrationProgress(name, done, Math.max(total, done), false)
+                );
+                Thread.sleep(BATCH_PAUSE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException | RuntimeException e) {
+            // Progress up to the last batch is saved, the next start continues from there.
+            LOGGER.error("Backfill {} failed", name, e);
+        } finally {
+            activeRuns.remove(name, run);
+        }
+    }
+
+    private static void saveProgress(
+        Connection conn,
+        String name,
+        long lastId,
+        long processed,
+        long total,
+        boolean completed
+    ) throws SQLException {
+        try (
+            PreparedStatement stmt = conn.prepareStatement(UPDATE_PROGRESS_QUERY)
+        ) {
+            stmt.setLong(1, lastId);
+            stmt.setLong(2, processed);
+            stmt.setLong(3, Math.max(total, processed));
+            stmt.setBoolean(4, completed);
+            stmt.setString(5, name);
+            stmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package dev.creesch.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import dev.creesch.util.PingMatcher;
+import java.lang.reflect.Type;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Re-evaluates the ping flag of every stored message against new ping keywords, using the stored plain text.
+ * Messages without plain text keep their flag, {@link PlainTextBackfill} applies the keywords once it reaches them.
+ *
+ * The keywords are stored with the progress, so a run cut off by a restart continues with the same keywords.
+ */
+final class PingBackfill implements SchemaMigration.Backfill {
+
+    static final String NAME = "ping-reevaluation";
+
+    private static final Gson gson = new Gson();
+    private static final Type KEYWORDS_TYPE = new TypeToken<
+        List<String>
+    >() {}.getType();
+
+    private static final String COUNT_QUERY = """
+        SELECT COUNT(*) FROM messages WHERE id > ?
+        """;
+
+    private static final String SELECT_QUERY = """
+        SELECT id, server_id, plain_text, is_ping FROM messages
+        WHERE id > ?
+        ORDER BY id
+        LIMIT ?
+        """;
+
+    private static final String UPDATE_QUERY = """
+        UPDATE messages SET is_ping = ? WHERE id = ?
+        """;
+
+    private record Row(long id, String serverId, String plainText, boolean isPing) {}
+
+    private final PingMatcher matcher;
+    private final Consumer<String> onServerUpdated;
+    // Servers with changed rows in the batch that is being committed.
+    private final Set<String> updatedServers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param onServerUpdated Called after a batch changed rows of a server
+     */
+    PingBackfill(PingMatcher matcher, Consumer<String> onServerUpdated) {
+        this.matcher = matcher;
+        this.onServerUpdated = onServerUpdated;
+    }
+
+    /**
+     * @param settings Settings stored with the progress, see {@link #settings()}
+     * @return The backfill, null when the settings can't be read
+     */
+    static PingBackfill fromSettings(
+        String settings,
+        Consumer<String> onServerUpdated
+    ) {
+        PingMatcher matcher = matcherOf(settings);
+        return matcher == null ? null : new PingBackfill(matcher, onServerUpdated);
+    }
+
+    /**
+     * @return Matcher of the last re-evaluation that was started, null if pings were never re-evaluated
+     */
+    static PingMatcher lastMatcher(Connection conn) throws SQLException {
+        return matcherOf(MigrationRunner.settingsInTransaction(conn, NAME));
+    }
+
+    private static PingMatcher matcherOf(String settings) {
+        if (settings == null) {
+            return null;
+        }
+        try {
+            List<String> keywords = gson.fromJson(settings, KEYWORDS_TYPE);
+            return keywords == null ? null : PingMatcher.of(keywords);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public String settings() {
+        return gson.toJson(matcher.getKeywords());
+    }
+
+    @Override
+    public long remaining(Connection conn, long afterId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(COUNT_QUERY)) {
+            stmt.setLong(1, afterId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    @Override
+    public SchemaMigration.BatchResult runBatch(
+        Connection conn,
+        long afterId,
+        int batchSize
+    ) throws SQLException {
+        List<Row> rows = new ArrayList<>(batchSize);
+        try (PreparedStatement select = conn.prepareStatement(SELECT_QUERY)) {
+            select.setLong(1, afterId);
+            select.setInt(2, batchSize);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(
+                        new Row(
+                            rs.getLong("id"),
+                            rs.getString("server_id"),
+                            rs.getString("plain_text"),
+                            rs.getBoolean("is_ping")
+                        )
+                    );
+                }
+            }
+        }
+        if (rows.isEmpty()) {
+            return new SchemaMigration.BatchResult(afterId, 0);
+        }
+
+        // Matching is the expensive part, spread it over all cores. The matcher is immutable and thread safe.
+        boolean[] pings = new boolean[rows.size()];
+        IntStream.range(0, rows.size())
+            .parallel()
+            .forEach((i) -> {
+                Row row = rows.get(i);
+                pings[i] =
+                    row.plainText() == null
+                        ? row.isPing()
+                        : matcher.matches(row.plainText());
+            });
+
+        int changed = 0;
+        try (PreparedStatement update = conn.prepareStatement(UPDATE_QUERY)) {
+            for (int i = 0; i < rows.size(); i++) {
+                Row row = rows.get(i);
+                if (pings[i] == row.isPing()) {
+                    continue;
+                }
+                update.setBoolean(1, pings[i]);
+                update.setLong(2, row.id());
+                update.addBatch();
+                updatedServers.add(row.serverId());
+                changed++;
+            }
+            if (changed > 0) {
+                update.executeBatch();
+            }
+        }
+        return new SchemaMigration.BatchResult(rows.getLast().id(), rows.size());
+    }
+
+    @Override
+    public void onBatchCommitted() {
+        for (String serverId : List.copyOf(updatedServers)) {
+            updatedServers.remove(serverId);
+            onServerUpdated.accept(serverId);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package dev.creesch.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import dev.creesch.util.PingMatcher;
+import java.lang.reflect.Type;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Fills in {@code plain_text} for messages stored before it existed, see {@link ComponentText}.
+ *
+ * {@link PingBackfill} skips rows without plain text, so once pings were re-evaluated the rows filled in here get
+ * their ping flag from the same keywords.
+ */
+final class PlainTextBackfill implements SchemaMigration.Backfill {
+
+    private static final Gson gson = new Gson();
+    private static final Type TRANSLATIONS_TYPE = new TypeToken<
+        Map<String, String>
+    >() {}.getType();
+
+    private static final String COUNT_QUERY = """
+        SELECT COUNT(*) FROM messages WHERE id > ? AND plain_text IS NULL
+        """;
+
+    private static final String SELECT_QUERY = """
+        SELECT id, message_json, translations_json, is_ping FROM messages
+        WHERE id > ? AND plain_text IS NULL
+        ORDER BY id
+        LIMIT ?
+        """;
+
+    private static final String UPDATE_QUERY = """
+        UPDATE messages SET plain_text = ?, is_ping = ? WHERE id = ?
+        """;
+
+    @Override
+    public String name() {
+        return "plain-text";
+    }
+
+    @Override
+    public long remaining(Connection conn, long afterId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(COUNT_QUERY)) {
+            stmt.setLong(1, afterId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    @Override
+    public SchemaMigration.BatchResult runBatch(
+        Connection conn,
+        long afterId,
+        int batchSize
+    ) throws SQLException {
+        long lastId = afterId;
+        int rows = 0;
+        PingMatcher pingMatcher = PingBackfill.lastMatcher(conn);
+        try (
+            PreparedStatement select = conn.prepareStatement(SELECT_QUERY);
+            PreparedStatement update = conn.prepareStatement(UPDATE_QUERY)
+        ) {
+            select.setLong(1, afterId);
+            select.setInt(2, batchSize);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    lastId = rs.getLong("id");
+                    String plainText = plainText(
+                        rs.getString("message_json"),
+                        rs.getString("translations_json")
+                    );
+                    update.setString(1, plainText);
+                    // Old rows only, browsers get the flag with the next history page.
+                    update.setBoolean(
+                        2,
+                        pingMatcher == null
+                            ? rs.getBoolean("is_ping")
+                            : pingMatcher.matches(plainText)
+                    );
+                    update.setLong(3, lastId);
+                    update.addBatch();
+                    rows++;
+                }
+            }
+            if (rows > 0) {
+                update.executeBatch();
+            }
+        }
+        return new SchemaMigration.BatchResult(lastId, rows);
+    }
+
+    private static String plainText(
+        String messageJson,
+        String translationsJson
+    ) {
+        try {
+            Map<String, String> translations = gson.fromJson(
+                translationsJson,
+                TRANSLATIONS_TYPE
+            );
+            return ComponentText.plainText(
+                JsonParser.parseString(messageJson),
+                translations == null ? Map.of() : translations
+            );
+        } catch (JsonParseException | IllegalStateException e) {
+            // Empty rather than null, otherwise the row would be picked up again forever.
+            return "";
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package dev.creesch.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A step in the schema history of the message database.
+ *
+ * A migration is split in two so it never stalls startup:
+ * - The schema step runs while the database is opened, in one transaction together with the version bump. It has to
+ *   be quick (new tables, new nullable columns, new indexes) and leave a schema the current code can already read
+ *   and write.
+ * - The optional backfill fills in data for existing rows afterwards, in small batches on the writer thread, between
+ *   regular saves. Progress is stored in {@code migration_progress} after every batch, so a restart picks up where it
+ *   left off. Code reading the new data has to cope with rows that weren't backfilled yet.
+ *
+ * @param version Schema version after this migration
+ * @param schemaStatements Statements of the schema step, run in order
+ * @param backfill Data backfill, null when the schema step is all there is
+ */
+record SchemaMigration(
+    int version,
+    String description,
+    List<String> schemaStatements,
+    Backfill backfill
+) {
+    /**
+     * Rewrites existing rows in batches. Batches walk the {@code messages} table (or any other table) by increasing
+     * row id, so the last id is all that's needed to resume.
+     */
+    interface Backfill {
+        /**
+         * @return Unique name, used as key in {@code migration_progress}
+         */
+        String name();
+
+        /**
+         * @return What the backfill needs to be recreated after a restart, stored with its progress. Null when the
+         * name is enough.
+         */
+        default String settings() {
+            return null;
+        }
+
+        /**
+         * @return Rows left to process after the given id, used for progress reporting
+         */
+        long remaining(Connection conn, long afterId) throws SQLException;
+
+        /**
+         * Processes the next rows after the given id. Runs inside a transaction on the write connection.
+         *
+         * @return The outcome, {@link BatchResult#rows()} is 0 when there was nothing left
+         */
+        BatchResult runBatch(Connection conn, long afterId, int batchSize)
+            throws SQLException;
+
+        /**
+         * Called after a batch was committed, outside of the writer thread.
+         */
+        default void onBatchCommitted() {}
+    }
+
+    /**
+     * @param lastId Id of the last row processed
+     * @param rows Amount of rows processed in this batch
+     */
+    record BatchResult(long lastId, int rows) {}
+}
@@ -0,0 +1,1258 @@
+package dev.creesch.storage;
+
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.metrics.jfr.BatchCommittedEvent;
+import dev.creesch.metrics.jfr.MessagePersistedEvent;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.util.MemoryBudget;
+import dev.creesch.util.NamedLogger;
+import dev.creesch.util.PingMatcher;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import net.fabricmc.loader.api.FabricLoader;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
+
+/**
+ * Default {@link ChatMessageRepository}, stores messages in a SQLite database in the web-chat directory.
+ *
+ * The database runs in WAL mode, so reads never wait for writes and the other way around. All writes go through a
+ * single writer thread that owns the only write connection, which means writers queue in Java instead of fighting
+ * over the SQLite lock. Reads use a small pool of separate read only connections on the calling thread.
+ */
+public class SqliteChatMessageRepository extends AbstractChatMessageRepository {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    private SQLiteDataSource readDataSource;
+    private boolean initialized = false;
+    private final Path databasePath;
+    // Counting rows per server reads the whole index, so the result is reused for a while.
+    private volatile StorageStatistics cachedStatistics;
+    private volatile long statisticsComputedAt;
+    private final MigrationRunner migrationRunner = new MigrationRunner(this);
+
+    private static final LongAdder MESSAGES_SAVED = WebchatMetrics.counter(
+        "storage.messagesSaved"
+    );
+    private static final LongAdder SAVE_NANOS = WebchatMetrics.counter(
+        "storage.saveNanos"
+    );
+    private static final LongAdder WRITES = WebchatMetrics.counter(
+        "storage.writes"
+    );
+    private static final LongAdder WRITE_WAIT_NANOS = WebchatMetrics.counter(
+        "storage.writeWaitNanos"
+    );
+    private static final LongAdder BUSY_RETRIES = WebchatMetrics.counter(
+        "storage.busyRetries"
+    );
+    private static final LongAdder BUSY_WAIT_NANOS = WebchatMetrics.counter(
+        "storage.busyWaitNanos"
+    );
+    private static final LongAdder READ_CONNECTIONS_OPENED =
+        WebchatMetrics.counter("storage.readConnectionsOpened");
+    private static final LongAdder BLOB_REFERENCES = WebchatMetrics.counter(
+        "storage.blobs.references"
+    );
+    private static final LongAdder BLOBS_STORED = WebchatMetrics.counter(
+        "storage.blobs.stored"
+    );
+    private static final LongAdder BLOB_CHARS_REFERENCED =
+        WebchatMetrics.counter("storage.blobs.charsReferenced");
+    private static final LongAdder BLOB_CHARS_STORED = WebchatMetrics.counter(
+        "storage.blobs.charsStored"
+    );
+
+    // How long SQLite itself waits for a lock before reporting the database as busy.
+    private static final int BUSY_TIMEOUT_MILLIS = 2000;
+    // On top of that busy writes are retried a few times with a growing pause.
+    private static final int MAX_BUSY_RETRIES = 3;
+    private static final long BUSY_RETRY_BASE_MILLIS = 25;
+    // Idle read connections kept around, more are opened when needed and closed after use.
+    private static final int READ_POOL_SIZE = 4;
+    private static final int BLOB_CACHE_SIZE = 256;
+    private static final long STATISTICS_MAX_AGE_MILLIS = 5000;
+
+    // DB constants
+    private static final String DB_NAME = "chat_messages.db";
+    private static final String DATA_DIR = "web-chat";
+
+    // SQL queries
+    private static final String CREATE_MESSAGES_TABLE_QUERY = """
+        CREATE TABLE IF NOT EXISTS messages (
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            timestamp BIGINT NOT NULL,
+            server_id TEXT NOT NULL,
+            server_name TEXT NOT NULL,
+            message_id TEXT NOT NULL,
+            message_json TEXT NOT NULL,
+            translations_json TEXT NOT NULL,
+            is_ping BOOLEAN NOT NULL,
+            minecraft_version TEXT,
+            plain_text TEXT,
+            repeat_count INTEGER NOT NULL DEFAULT 1,
+            last_seen BIGINT
+        )
+        """;
+
+    private static final String CREATE_INDEX_QUERY = """
+        CREATE INDEX IF NOT EXISTS idx_server_id_timestamp ON messages(server_id, timestamp DESC)
+        """;
+
+    // Large hover and click events, stored once per unique content. See ComponentBlobs.
+    private static final String CREATE_BLOBS_TABLE_QUERY = """
+        CREATE TABLE IF NOT EXISTS component_blobs (
+            hash TEXT PRIMARY KEY,
+            content TEXT NOT NULL,
+            size INTEGER NOT NULL
+        )
+        """;
+
+    private static final String INSERT_BLOB_QUERY = """
+        INSERT OR IGNORE INTO component_blobs (hash, content, size) VALUES (?, ?, ?)
+        """;
+
+    private static final String SELECT_BLOB_QUERY = """
+        SELECT content FROM component_blobs WHERE hash = ?
+        """;
+
+    // Which message uses which blob, so deleting messages can tell which blobs are no longer used.
+    private static final String CREATE_BLOB_REFERENCES_TABLE_QUERY = """
+        CREATE TABLE IF NOT EXISTS blob_references (
+            hash TEXT NOT NULL,
+            message_rowid INTEGER NOT NULL,
+            PRIMARY KEY (hash, message_rowid)
+        )
+        """;
+
+    private static final String CREATE_BLOB_REFERENCES_INDEX_QUERY = """
+        CREATE INDEX IF NOT EXISTS idx_blob_references_message ON blob_references(message_rowid)
+        """;
+
+    static final String INSERT_BLOB_REFERENCE_QUERY = """
+        INSERT OR IGNORE INTO blob_references (hash, message_rowid) VALUES (?, ?)
+        """;
+
+    private static final String LAST_INSERT_ID_QUERY = """
+        SELECT last_insert_rowid()
+        """;
+
+    // Base query, needs formatting. Same conditions as the delete of the messages themselves.
+    private static final String BASE_DELETE_BLOB_REFERENCES_QUERY = """
+        DELETE FROM blob_references WHERE message_rowid IN (
+            SELECT id FROM messages WHERE server_id = ? %s
+        )
+        """;
+
+    // Only run after deleting messages, blobs are never removed otherwise. Served by the primary key of
+    // blob_references.
+    private static final String DELETE_ORPHANED_BLOBS_QUERY = """
+        DELETE FROM component_blobs
+        WHERE NOT EXISTS (
+            SELECT 1 FROM blob_references WHERE blob_references.hash = component_blobs.hash
+        )
+        """;
+
+    private static final String CREATE_VERSION_TABLE_QUERY = """
+        CREATE TABLE IF NOT EXISTS schema_version (
+            version INTEGER PRIMARY KEY
+        )
+        """;
+
+    private static final String SELECT_SCHEMA_VERSION_QUERY = """
+        SELECT version FROM schema_version
+        """;
+
+    private static final String INSERT_SCHEMA_VERSION_QUERY = """
+        INSERT INTO schema_version (version) VALUES (?)
+        """;
+
+    private static final String INSERT_MESSAGE_QUERY = """
+        INSERT INTO messages (
+            timestamp,
+            server_id,
+            server_name,
+            message_id,
+            message_json,
+            translations_json,
+            is_ping,
+            minecraft_version,
+            plain_text
+        ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """;
+
+    private static final int STREAM_FETCH_SIZE = 100;
+
+    // Base query, needs formatting
+    private static final String BASE_GET_MESSAGE_QUERY = """
+        SELECT
+            timestamp,
+            server_id,
+            server_name,
+            message_id,
+            message_json,
+            translations_json,
+            is_ping,
+            minecraft_version,
+            repeat_count,
+            last_seen
+        FROM
+            messages
+        WHERE
+            server_id = ?
+        %s
+        ORDER BY
+            timestamp DESC,
+            id DESC
+        LIMIT
+            ?
+        """;
+
+    // Served by the (server_id, timestamp) index, message_id is only compared for the few rows at that timestamp.
+    private static final String CONTAINS_MESSAGE_QUERY = """
+        SELECT 1 FROM messages WHERE server_id = ? AND timestamp = ? AND message_id = ? LIMIT 1
+        """;
+
+    private static final String UPDATE_REPEAT_QUERY = """
+        UPDATE messages SET repeat_count = ?, last_seen = ? WHERE server_id = ? AND timestamp = ? AND message_id = ?
+        """;
+
+    private static final String COUNT_MESSAGES_PER_SERVER_QUERY = """
+        SELECT server_id, COUNT(*) AS messages FROM messages GROUP BY server_id
+        """;
+
+    private static final String COUNT_MESSAGES_QUERY = """
+        SELECT COUNT(*) FROM messages WHERE server_id = ?
+        """;
+
+    // Base query, needs formatting
+    private static final String BASE_DELETE_MESSAGES_QUERY = """
+        DELETE FROM messages WHERE server_id = ? %s
+        """;
+
+    /**
+     * Schema history, oldest first. New databases are created at the latest version directly, so every schema step
+     * also has to be part of the create queries above.
+     */
+    private static final List<SchemaMigration> MIGRATIONS = List.of(
+        new SchemaMigration(
+            2,
+            "Store translations next to messages",
+            List.of(
+                "ALTER TABLE messages ADD COLUMN translations_json TEXT NOT NULL DEFAULT '{}'"
+            ),
+            null
+        ),
+        new SchemaMigration(
+            3,
+            "Store large hover and click events once",
+            List.of(CREATE_BLOBS_TABLE_QUERY),
+            null
+        ),
+        new SchemaMigration(
+            4,
+            "Store plain text for re-evaluating pings",
+            // Null until the backfill got to the row.
+            List.of("ALTER TABLE messages ADD COLUMN plain_text TEXT"),
+            new PlainTextBackfill()
+        ),
+        new SchemaMigration(
+            5,
+            "Collapse repeated messages",
+            List.of(
+                "ALTER TABLE messages ADD COLUMN repeat_count INTEGER NOT NULL DEFAULT 1",
+                "ALTER TABLE messages ADD COLUMN last_seen BIGINT"
+            ),
+            null
+        ),
+        new SchemaMigration(
+            6,
+            "Track which messages use which blobs",
+            List.of(
+                CREATE_BLOB_REFERENCES_TABLE_QUERY,
+                CREATE_BLOB_REFERENCES_INDEX_QUERY
+            ),
+            new BlobReferenceBackfill()
+        )
+    );
+    private static final int CURRENT_SCHEMA_VERSION = MIGRATIONS.getLast()
+        .version();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+        (runnable) -> {
+            Thread thread = new Thread(runnable, "web-chat-db-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    );
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    // Messages handed to saveStoredMessages that aren't committed yet, for the memory budget.
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final BlockingQueue<Connection> idleReadConnections =
+        new ArrayBlockingQueue<>(READ_POOL_SIZE);
+    // Only touched from the writer thread.
+    private Connection writeConnection;
+    // Access ordered, the least recently used blob is dropped first.
+    private final Map<String, String> blobCache = new LinkedHashMap<>(
+        BLOB_CACHE_SIZE,
+        0.75f,
+        true
+    ) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (size() <= BLOB_CACHE_SIZE) {
+                return false;
+            }
+            blobCacheBytes -= blobBytes(eldest.getValue());
+            return true;
+        }
+    };
+    // Guarded by blobCache, read by the memory budget without it.
+    private volatile long blobCacheBytes = 0;
+
+    /**
+     * Work done with a connection, either on the writer thread or on a reading thread.
+     */
+    interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private interface WriterTask<T> {
+        T run() throws SQLException;
+    }
+
+    public SqliteChatMessageRepository() {
+        this(
+            FabricLoader.getInstance()
+                .getGameDir()
+                .resolve(DATA_DIR)
+                .resolve(DB_NAME)
+        );
+    }
+
+    /**
+     * Opens (or creates) the message database at a specific location.
+     * The mod itself always uses the default location, this is used by tooling such as the load test harness.
+     *
+     * @param databasePath Path to the SQLite database file
+     */
+    public SqliteChatMessageRepository(Path databasePath) {
+        this.databasePath = databasePath;
+        try {
+            Files.createDirectories(databasePath.getParent());
+
+            SQLiteConfig writeConfig = new SQLiteConfig();
+            writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            // Safe in WAL mode, a crash can lose the last commits but never corrupts the database.
+            writeConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            writeConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+            SQLiteDataSource writeDataSource = new SQLiteDataSource(writeConfig);
+            writeDataSource.setUrl("jdbc:sqlite:" + databasePath);
+
+            SQLiteConfig readConfig = new SQLiteConfig();
+            readConfig.setReadOnly(true);
+            readConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+            readDataSource = new SQLiteDataSource(readConfig);
+            readDataSource.setUrl("jdbc:sqlite:" + databasePath);
+
+            WebchatMetrics.gauge("storage.writeQueueDepth", pendingWrites::get);
+            // How many times over the extracted events would have been stored without deduplication.
+            WebchatMetrics.gauge("storage.blobs.dedupRatio", () ->
+                WebchatMetrics.ratio(BLOB_CHARS_REFERENCED, BLOB_CHARS_STORED)
+            );
+
+            // The write connection is opened on the writer thread and stays there.
+            runOnWriter(() -> {
+                writeConnection = writeDataSource.getConnection();
+                initializeDatabase(writeConnection);
+                return null;
+            });
+            initialized = true;
+            migrationRunner.resume(this::backfillFor);
+        } catch (IOException e) {
+            LOGGER.error(
+                "Failed to create data for web-chat database directory",
+                e
+            );
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error(
+                "A critical error occurred during SqliteChatMessageRepository initialization",
+                e
+            );
+        }
+        if (!initialized) {
+            writer.shutdownNow();
+        }
+    }
+
+    private void initializeDatabase(Connection conn) {
+        try {
+            conn.createStatement().execute(CREATE_MESSAGES_TABLE_QUERY);
+
+            // Create composite index for server_id + timestamp queries
+            conn.createStatement().execute(CREATE_INDEX_QUERY);
+
+            conn.createStatement().execute(CREATE_BLOBS_TABLE_QUERY);
+            conn.createStatement().execute(CREATE_BLOB_REFERENCES_TABLE_QUERY);
+            conn.createStatement().execute(CREATE_BLOB_REFERENCES_INDEX_QUERY);
+
+            // Version table
+            conn.createStatement().execute(CREATE_VERSION_TABLE_QUERY);
+
+            MigrationRunner.createTable(conn);
+
+            // Check schema
+            checkSchemaVersion(conn);
+        } catch (SQLException e) {
+            LOGGER.error("Failed to initialize chat storage database", e);
+            // Forward the exception to the constructor's try-catch block
+            throw new RuntimeException(
+                "Failed to initialize chat storage database",
+                e
+            );
+        }
+    }
+
+    /**
+     * Runs the schema step of a migration and bumps the version in one transaction. A backfill is only registered
+     * here, the runner picks it up once the database is open.
+     */
+    private void applyMigration(Connection conn, SchemaMigration migration)
+        throws SQLException {
+        LOGGER.info(
+            "Migrating database to version {}: {}",
+            migration.version(),
+            migration.description()
+        );
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            for (String statement : migration.schemaStatements()) {
+                stmt.executeUpdate(statement);
+            }
+            stmt.executeUpdate(
+                "UPDATE schema_version SET version = " + migration.version()
+            );
+            if (migration.backfill() != null) {
+                MigrationRunner.registerInTransaction(
+                    conn,
+                    migration.backfill()
+                );
+            }
+            conn.commit();
+            LOGGER.info("Migration completed successfully");
+        } catch (SQLException e) {
+            conn.rollback();
+            LOGGER.error("Migration failed", e);
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void checkSchemaVersion(Connection conn) throws SQLException {
+        try (
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(SELECT_SCHEMA_VERSION_QUERY)
+        ) {
+            if (!rs.next()) {
+                // New database, set current version
+                try (
+                    PreparedStatement insertStmt = conn.prepareStatement(
+                        INSERT_SCHEMA_VERSION_QUERY
+                    )
+                ) {
+                    insertStmt.setInt(1, CURRENT_SCHEMA_VERSION);
+                    insertStmt.execute();
+                }
+                return; // Don't need to do anything else here.
+            }
+
+            int dbVersion = rs.getInt("version");
+
+            // Mod was likely downgraded from a version with a newer schema.
+            if (dbVersion > CURRENT_SCHEMA_VERSION) {
+                LOGGER.error(
+                    "Database schema version {} is newer than supported version {}",
+                    dbVersion,
+                    CURRENT_SCHEMA_VERSION
+                );
+                // Forward the exception to the constructor's try-catch block
+                throw new RuntimeException(
+                    "Database schema version " +
+                        dbVersion +
+                        " is newer than supported version " +
+                        CURRENT_SCHEMA_VERSION
+                );
+            }
+
+            for (SchemaMigration migration : MIGRATIONS) {
+                if (dbVersion < migration.version()) {
+                    applyMigration(conn, migration);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param messageJson Component to store, with large events already replaced by blob references
+     */
+    private static void bindMessage(
+        PreparedStatement statement,
+        StoredMessage message,
+        String messageJson
+    ) throws SQLException {
+        statement.setLong(1, message.timestamp());
+        statement.setString(2, message.serverId());
+        statement.setString(3, message.serverName());
+        statement.setString(4, message.messageId());
+        statement.setString(5, messageJson);
+        statement.setString(6, message.translationsJson());
+        statement.setBoolean(7, message.isPing());
+        statement.setString(8, message.minecraftVersion());
+        statement.setString(9, message.plainText());
+    }
+
+    private boolean isAvailable() {
+        return initialized && !writer.isShutdown();
+    }
+
+    /**
+     * Runs work on the writer thread with the write connection and waits for it. Writes that find the database busy
+     * are retried.
+     */
+    <T> T write(SqlWork<T> work) throws SQLException {
+        return runOnWriter(() -> {
+            WRITES.increment();
+            return withBusyRetry(work, writeConnection);
+        });
+    }
+
+    private <T> T runOnWriter(WriterTask<T> task) throws SQLException {
+        long queuedAt = System.nanoTime();
+        pendingWrites.incrementAndGet();
+        Future<T> result;
+        try {
+            result = writer.submit(() -> {
+                pendingWrites.decrementAndGet();
+                WRITE_WAIT_NANOS.add(System.nanoTime() - queuedAt);
+                return task.run();
+            });
+        } catch (RejectedExecutionException e) {
+            pendingWrites.decrementAndGet();
+            throw new SQLException("Message database is closed", e);
+        }
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new SQLException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(
+                "Interrupted while waiting for the database writer",
+                e
+            );
+        }
+    }
+
+    private static <T> T withBusyRetry(SqlWork<T> work, Connection connection)
+        throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.run(connection);
+            } catch (SQLiteException e) {
+                if (!isBusy(e) || attempt > MAX_BUSY_RETRIES) {
+                    throw e;
+                }
+                BUSY_RETRIES.increment();
+                long pauseStart = System.nanoTime();
+                try {
+                    Thread.sleep(BUSY_RETRY_BASE_MILLIS * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                BUSY_WAIT_NANOS.add(System.nanoTime() - pauseStart);
+            }
+        }
+    }
+
+    private static boolean isBusy(SQLiteException e) {
+        // Extended result codes (SQLITE_BUSY_SNAPSHOT and friends) share the primary code in the lowest byte.
+        int primaryCode = e.getResultCode().code & 0xff;
+        return (
+            primaryCode == SQLiteErrorCode.SQLITE_BUSY.code ||
+            primaryCode == SQLiteErrorCode.SQLITE_LOCKED.code
+        );
+    }
+
+    /**
+     * Runs work with a pooled read connection on the calling thread.
+     */
+    <T> T read(SqlWork<T> work) throws SQLException {
+        Connection connection = idleReadConnections.poll();
+        if (connection == null) {
+            connection = readDataSource.getConnection();
+            READ_CONNECTIONS_OPENED.increment();
+        }
+
+        boolean reusable = false;
+        try {
+            T result = work.run(connection);
+            reusable = true;
+            return result;
+        } finally {
+            if (!reusable || !idleReadConnections.offer(connection)) {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to close database connection", e);
+        }
+    }
+
+    @Override
+    public void saveMessage(WebsocketJsonMessage message) {
+        StoredMessage storedMessage = StoredMessage.from(message);
+        if (storedMessage == null) {
+            LOGGER.warn(
+                "Attempted to save a message with an invalid payload type."
+            );
+            return;
+        }
+        MessagePersistedEvent event = new MessagePersistedEvent();
+        event.begin();
+        saveStoredMessages(List.of(storedMessage));
+        event.end();
+        if (event.shouldCommit()) {
+            event.serverId = storedMessage.serverId();
+            event.storage = "sqlite";
+            event.componentChars = storedMessage.messageJson().length();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void saveMessages(List<WebsocketJsonMessage> messages) {
+        List<StoredMessage> storedMessages = new ArrayList<>(messages.size());
+        for (WebsocketJsonMessage message : messages) {
+            StoredMessage storedMessage = StoredMessage.from(message);
+            if (storedMessage == null) {
+                LOGGER.warn(
+                    "Attempted to save a message with an invalid payload type."
+                );
+                continue;
+            }
+            storedMessages.add(storedMessage);
+        }
+        saveStoredMessages(storedMessages);
+    }
+
+    @Override
+    public void saveStoredMessages(List<StoredMessage> messages) {
+        try {
+            commitStoredMessages(messages);
+        } catch (StorageException e) {
+            LOGGER.error("Failed to save chat messages", e);
+        }
+    }
+
+    @Override
+    public void commitStoredMessages(List<StoredMessage> messages)
+        throws StorageException {
+        if (!isAvailable()) {
+            throw new StorageException(
+                "Unable to save messages, message database not available."
+            );
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long batchBytes = 0;
+        for (StoredMessage storedMessage : messages) {
+            batchBytes += storedMessage.approximateBytes();
+        }
+        pendingBytes.addAndGet(batchBytes);
+        BatchCommittedEvent event = new BatchCommittedEvent();
+        event.begin();
+        // Done before handing over to the writer thread, parsing and hashing doesn't need the database.
+        List<ComponentBlobs.Extraction> extractions = new ArrayList<>(
+            messages.size()
+        );
+        for (StoredMessage storedMessage : messages) {
+            extractions.add(ComponentBlobs.extract(storedMessage.messageJson()));
+        }
+
+        try {
+            BlobCounts blobCounts = write((conn) -> {
+                // Fresh for every attempt, a retried or rolled back transaction must not be counted.
+                BlobCounts counts = new BlobCounts();
+                conn.setAutoCommit(false);
+                try (
+                    PreparedStatement statement = conn.prepareStatement(
+                        INSERT_MESSAGE_QUERY
+                    );
+                    PreparedStatement blobStatement = conn.prepareStatement(
+                        INSERT_BLOB_QUERY
+                    );
+                    PreparedStatement referenceStatement =
+                        conn.prepareStatement(INSERT_BLOB_REFERENCE_QUERY)
+                ) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        ComponentBlobs.Extraction extraction = extractions.get(i);
+                        bindMessage(
+                            statement,
+                            messages.get(i),
+                            extraction.messageJson()
+                        );
+                        if (extraction.blobs().isEmpty()) {
+                            statement.addBatch();
+                            continue;
+                        }
+                        // The reference needs the row id. Rare enough to insert on its own, after the batch so far
+                        // to keep ids in save order.
+                        statement.executeBatch();
+                        statement.executeUpdate();
+                        long rowId = lastInsertId(conn);
+                        for (Map.Entry<String, String> blob : extraction
+                            .blobs()
+                            .entrySet()) {
+                            storeBlob(
+                                blobStatement,
+                                blob.getKey(),
+                                blob.getValue(),
+                                counts
+                            );
+                            referenceStatement.setString(1, blob.getKey());
+                            referenceStatement.setLong(2, rowId);
+                            referenceStatement.addBatch();
+                        }
+                        referenceStatement.executeBatch();
+                    }
+                    statement.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                return counts;
+            });
+            blobCounts.record();
+            MESSAGES_SAVED.add(messages.size());
+            SAVE_NANOS.add(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.serverId = messages.getFirst().serverId();
+                event.messages = messages.size();
+                for (ComponentBlobs.Extraction extraction : extractions) {
+                    event.blobs += extraction.blobs().size();
+                    event.storedChars += extraction.messageJson().length();
+                }
+                event.commit();
+            }
+            fireMessagesSaved(messages);
+        } catch (SQLException e) {
+            throw new StorageException("Failed to save chat messages", e);
+        } finally {
+            pendingBytes.addAndGet(-batchBytes);
+        }
+    }
+
+    @Override
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    @Override
+    public long cachedBytes() {
+        return blobCacheBytes;
+    }
+
+    @Override
+    public long evictCache(long bytes) {
+        long freed = 0;
+        synchronized (blobCache) {
+            Iterator<String> oldest = blobCache.values().iterator();
+            while (freed < bytes && oldest.hasNext()) {
+                freed += blobBytes(oldest.next());
+                oldest.remove();
+            }
+            blobCacheBytes -= freed;
+        }
+        return freed;
+    }
+
+    private static long blobBytes(String content) {
+        // The hash key is small next to the content.
+        return MemoryBudget.stringBytes(content);
+    }
+
+    /**
+     * Blob counts of one write transaction, only added to the metrics once it committed.
+     */
+    private static final class BlobCounts {
+
+        private long references;
+        private long charsReferenced;
+        private long stored;
+        private long charsStored;
+
+        void record() {
+            BLOB_REFERENCES.add(references);
+            BLOB_CHARS_REFERENCED.add(charsReferenced);
+            BLOBS_STORED.add(stored);
+            BLOB_CHARS_STORED.add(charsStored);
+        }
+    }
+
+    private static void storeBlob(
+        PreparedStatement blobStatement,
+        String hash,
+        String content,
+        BlobCounts counts
+    ) throws SQLException {
+        blobStatement.setString(1, hash);
+        blobStatement.setString(2, content);
+        blobStatement.setInt(3, content.length());
+        counts.references++;
+        counts.charsReferenced += content.length();
+        if (blobStatement.executeUpdate() > 0) {
+            counts.stored++;
+            counts.charsStored += content.length();
+        }
+    }
+
+    private static long lastInsertId(Connection conn) throws SQLException {
+        try (
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(LAST_INSERT_ID_QUERY)
+        ) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Blob content by hash. Blobs never change, so cached entries are always valid.
+     */
+    private String loadBlob(Connection conn, String hash) {
+        synchronized (blobCache) {
+            String cached = blobCache.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_BLOB_QUERY)) {
+            stmt.setString(1, hash);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    LOGGER.warn("Missing component blob {}", hash);
+                    return null;
+                }
+                String content = rs.getString(1);
+                synchronized (blobCache) {
+                    if (blobCache.put(hash, content) == null) {
+                        blobCacheBytes += blobBytes(content);
+                    }
+                }
+                return content;
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Failed to read component blob {}", hash);
+            return null;
+        }
+    }
+
+    @Override
+    public void recordRepeat(
+        String serverId,
+        long timestamp,
+        String messageId,
+        int repeatCount,
+        long lastSeen
+    ) {
+        if (!isAvailable()) {
+            return;
+        }
+
+        try {
+            int updated = write((conn) -> {
+                try (
+                    PreparedStatement stmt = conn.prepareStatement(
+                        UPDATE_REPEAT_QUERY
+                    )
+                ) {
+                    stmt.setInt(1, repeatCount);
+                    stmt.setLong(2, lastSeen);
+                    stmt.setString(3, serverId);
+                    stmt.setLong(4, timestamp);
+                    stmt.setString(5, messageId);
+                    return stmt.executeUpdate();
+                }
+            });
+            if (updated > 0) {
+                fireMessagesUpdated(serverId);
+            }
+        } catch (SQLException e) {
+            LOGGER.error(
+                "Failed to record repeated chat message for server: {}",
+                serverId
+            );
+        }
+    }
+
+    @Override
+    public boolean containsMessage(
+        String serverId,
+        long timestamp,
+        String messageId
+    ) {
+        if (!isAvailable()) {
+            return false;
+        }
+
+        try {
+            return read((conn) -> {
+                try (
+                    PreparedStatement stmt = conn.prepareStatement(
+                        CONTAINS_MESSAGE_QUERY
+                    )
+                ) {
+                    stmt.setString(1, serverId);
+                    stmt.setLong(2, timestamp);
+                    stmt.setString(3, messageId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        return rs.next();
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            LOGGER.error(
+                "Failed to look up chat message for server: {}",
+                serverId
+            );
+            return false;
+        }
+    }
+
+    @Override
+    public void streamMessages(
+        String serverId,
+        int limit,
+        Long beforeTimestamp,
+        Consumer<WebsocketJsonMessage> consumer
+    ) {
+        if (!isAvailable()) {
+            LOGGER.warn(
+                "SqliteChatMessageRepository not properly initialized, returning empty message list"
+            );
+            return;
+        }
+
+        String query = BASE_GET_MESSAGE_QUERY.formatted(
+            beforeTimestamp != null ? "AND timestamp < ?" : ""
+        );
+
+        int[] read = { 0 };
+        try {
+            read((conn) -> {
+                try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                    stmt.setString(1, serverId);
+
+                    if (beforeTimestamp != null) {
+                        stmt.setLong(2, beforeTimestamp);
+                        stmt.setInt(3, limit);
+                    } else {
+                        stmt.setInt(2, limit);
+                    }
+                    // Rows are decoded and handed over one at a time, large pages never sit in memory as a whole.
+                    stmt.setFetchSize(STREAM_FETCH_SIZE);
+
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            String messageJson = ComponentBlobs.reassemble(
+                                rs.getString("message_json"),
+                                (hash) -> loadBlob(conn, hash)
+                            );
+                            consumer.accept(
+                                new StoredMessage(
+                                    rs.getLong("timestamp"),
+                                    serverId,
+                                    rs.getString("server_name"),
+                                    rs.getString("message_id"),
+                                    messageJson,
+                                    rs.getString("translations_json"),
+                                    rs.getBoolean("is_ping"),
+                                    rs.getString("minecraft_version"),
+                                    null,
+                                    rs.getInt("repeat_count"),
+                                    rs.getObject("last_seen", Long.class)
+                                ).toHistoricMessage()
+                            );
+                            read[0]++;
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            // Just throw an error here, no reason to crash the game over this.
+            LOGGER.error(
+                "Failed to retrieve chat messages for server: {}",
+                serverId
+            );
+        }
+        LOGGER.debug("Got {} messages for server {}", read[0], serverId);
+    }
+
+    @Override
+    public long countMessages(String serverId) {
+        if (!isAvailable()) {
+            return 0;
+        }
+
+        try {
+            return read((conn) -> {
+                try (
+                    PreparedStatement stmt = conn.prepareStatement(
+                        COUNT_MESSAGES_QUERY
+                    )
+                ) {
+                    stmt.setString(1, serverId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        return rs.next() ? rs.getLong(1) : 0L;
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            LOGGER.error("Failed to count chat messages for server: {}", serverId);
+            return 0;
+        }
+    }
+
+    @Override
+    public int deleteMessages(String serverId, Long beforeTimestamp) {
+        if (!isAvailable()) {
+            return 0;
+        }
+
+        String condition = beforeTimestamp != null ? "AND timestamp < ?" : "";
+        String query = BASE_DELETE_MESSAGES_QUERY.formatted(condition);
+        String referencesQuery = BASE_DELETE_BLOB_REFERENCES_QUERY.formatted(
+            condition
+        );
+        // Older messages may still be missing their references until the backfill is done.
+        boolean deleteBlobs = migrationRunner.isCompleted(
+            BlobReferenceBackfill.NAME
+        );
+
+        try {
+            int deleted = write((conn) -> {
+                conn.setAutoCommit(false);
+                try (
+                    PreparedStatement references = conn.prepareStatement(
+                        referencesQuery
+                    );
+                    PreparedStatement stmt = conn.prepareStatement(query)
+                ) {
+                    bindDelete(references, serverId, beforeTimestamp);
+                    references.executeUpdate();
+                    bindDelete(stmt, serverId, beforeTimestamp);
+                    int deletedRows = stmt.executeUpdate();
+                    if (deletedRows > 0 && deleteBlobs) {
+                        try (Statement blobStmt = conn.createStatement()) {
+                            blobStmt.executeUpdate(DELETE_ORPHANED_BLOBS_QUERY);
+                        }
+                    }
+                    conn.commit();
+                    return deletedRows;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            });
+            if (deleted > 0) {
+                fireMessagesDeleted(serverId);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            LOGGER.error(
+                "Failed to delete chat messages for server: {}",
+                serverId
+            );
+            return 0;
+        }
+    }
+
+    private static void bindDelete(
+        PreparedStatement stmt,
+        String serverId,
+        Long beforeTimestamp
+    ) throws SQLException {
+        stmt.setString(1, serverId);
+        if (beforeTimestamp != null) {
+            stmt.setLong(2, beforeTimestamp);
+        }
+    }
+
+    /**
+     * Re-evaluates pings in the background, one batch at a time between regular writes. A re-evaluation that is still
+     * running is replaced.
+     */
+    @Override
+    public void reevaluatePings(PingMatcher matcher) {
+        if (!isAvailable()) {
+            return;
+        }
+        migrationRunner.start(
+            new PingBackfill(matcher, this::fireMessagesUpdated)
+        );
+    }
+
+    /**
+     * Recreates an unfinished backfill found at startup.
+     */
+    private SchemaMigration.Backfill backfillFor(String name, String settings) {
+        if (PingBackfill.NAME.equals(name)) {
+            return PingBackfill.fromSettings(settings, this::fireMessagesUpdated);
+        }
+        return MIGRATIONS.stream()
+            .map(SchemaMigration::backfill)
+            .filter((backfill) -> backfill != null && backfill.name().equals(name))
+            .findFirst()
+            .orElse(null);
+    }
+
+    @Override
+    public StorageStatistics getStatistics() {
+        StorageStatistics statistics = cachedStatistics;
+        long now = System.currentTimeMillis();
+        if (
+            statistics != null &&
+            now - statisticsComputedAt < STATISTICS_MAX_AGE_MILLIS
+        ) {
+            return new StorageStatistics(
+                statistics.sizeBytes(),
+                statistics.messagesPerServer(),
+                pendingWrites.get()
+            );
+        }
+
+        Map<String, Long> messagesPerServer = new TreeMap<>();
+        if (isAvailable()) {
+            try {
+                read((conn) -> {
+                    try (
+                        PreparedStatement stmt = conn.prepareStatement(
+                            COUNT_MESSAGES_PER_SERVER_QUERY
+                        );
+                        ResultSet rs = stmt.executeQuery()
+                    ) {
+                        while (rs.next()) {
+                            messagesPerServer.put(
+                                rs.getString("server_id"),
+                                rs.getLong("messages")
+                            );
+                        }
+                    }
+                    return null;
+                });
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to count chat messages per server", e);
+            }
+        }
+
+        statistics = new StorageStatistics(
+            fileSize(databasePath) +
+                fileSize(Path.of(databasePath + "-wal")),
+            messagesPerServer,
+            pendingWrites.get()
+        );
+        cachedStatistics = statistics;
+        statisticsComputedAt = now;
+        return statistics;
+    }
+
+    private static long fileSize(Path path) {
+        try {
+            return Files.exists(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public List<MigrationProgress> getMigrationProgress() {
+        return migrationRunner.getProgress();
+    }
+
+    @Override
+    public void close() {
+        if (writer.isShutdown()) {
+            return;
+        }
+        // A backfill stops after its current batch and continues on the next start.
+        migrationRunner.close();
+        try {
+            // Queued writes still go through, the writer closes its own connection last.
+            runOnWriter(() -> {
+                if (writeConnection != null) {
+                    writeConnection.close();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to close the message database", e);
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Connection connection;
+        while ((connection = idleReadConnections.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+}
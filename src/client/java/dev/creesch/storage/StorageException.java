@@ -0,0 +1,15 @@
+package dev.creesch.storage;
+
+/**
+ * Messages could not be stored, thrown by {@link ChatMessageRepository#commitStoredMessages(java.util.List)}.
+ */
+public class StorageException extends Exception {
+
+    public StorageException(String message) {
+        super(message);
+    }
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
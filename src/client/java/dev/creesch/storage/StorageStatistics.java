@@ -0,0 +1,16 @@
+package dev.creesch.storage;
+
+import java.util.Map;
+
+/**
+ * Point in time overview of a {@link ChatMessageRepository}, for the statistics screen.
+ *
+ * @param sizeBytes Size on disk, -1 when messages are only kept in memory
+ * @param messagesPerServer Stored messages by server id
+ * @param pendingWrites Writes or messages waiting to reach storage
+ */
+public record StorageStatistics(
+    long sizeBytes,
+    Map<String, Long> messagesPerServer,
+    int pendingWrites
+) {}
@@ -0,0 +1,119 @@
+package dev.creesch.storage;
+
+import com.google.gson.Gson;
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.model.WebsocketMessageBuilder;
+import dev.creesch.util.MemoryBudget;
+
+/**
+ * A chat message in the flat shape it is persisted in, matching the columns of the {@code messages} table.
+ * Shared by all {@link ChatMessageRepository} implementations so they store and decode messages identically.
+ *
+ * {@code plainText} is the text the ping check runs on, empty for the player's own messages. Only needed for storing,
+ * it is null for messages read back from storage. {@code repeatCount} and {@code lastSeen} describe identical messages
+ * collapsed into this one, 1 and null when there were none.
+ */
+public record StoredMessage(
+    long timestamp,
+    String serverId,
+    String serverName,
+    String messageId,
+    String messageJson,
+    String translationsJson,
+    boolean isPing,
+    String minecraftVersion,
+    String plainText,
+    int repeatCount,
+    Long lastSeen
+) {
+    private static final Gson gson = new Gson();
+
+    /**
+     * Flattens a chat message for storage.
+     *
+     * @return The stored form, or null if the message doesn't carry a {@link ChatMessagePayload}
+     */
+    public static StoredMessage from(WebsocketJsonMessage message) {
+        if (!(message.getPayload() instanceof ChatMessagePayload payload)) {
+            return null;
+        }
+
+        return new StoredMessage(
+            message.getTimestamp(),
+            message.getServer().getIdentifier(),
+            message.getServer().getName(),
+            payload.getUuid(),
+            payload.getComponent().toString(),
+            gson.toJson(payload.getTranslations()),
+            payload.isPing(),
+            message.getMinecraftVersion(),
+            payload.getPlainText(),
+            payload.getRepeatCount() == null ? 1 : payload.getRepeatCount(),
+            payload.getLastSeen()
+        );
+    }
+
+    public StoredMessage withPing(boolean isPing) {
+        return new StoredMessage(
+            timestamp,
+            serverId,
+            serverName,
+            messageId,
+            messageJson,
+            translationsJson,
+            isPing,
+            minecraftVersion,
+            plainText,
+            repeatCount,
+            lastSeen
+        );
+    }
+
+    public StoredMessage withRepeat(int repeatCount, long lastSeen) {
+        return new StoredMessage(
+            timestamp,
+            serverId,
+            serverName,
+            messageId,
+            messageJson,
+            translationsJson,
+            isPing,
+            minecraftVersion,
+            plainText,
+            repeatCount,
+            lastSeen
+        );
+    }
+
+    /**
+     * @return Rough heap size of the strings in this message, good enough for memory accounting
+     */
+    public long approximateBytes() {
+        return (
+            MemoryBudget.stringBytes(messageJson) +
+            MemoryBudget.stringBytes(translationsJson) +
+            MemoryBudget.stringBytes(messageId) +
+            MemoryBudget.stringBytes(serverId) +
+            MemoryBudget.stringBytes(plainText)
+        );
+    }
+
+    /**
+     * @return This message as it is sent to clients when requesting history
+     */
+    public WebsocketJsonMessage toHistoricMessage() {
+        return WebsocketMessageBuilder.createHistoricChatMessage(
+            timestamp,
+            serverId,
+            serverName,
+            messageId,
+            messageJson,
+            translationsJson,
+            isPing,
+            minecraftVersion,
+            repeatCount,
+            lastSeen
+        );
+    }
+}
@@ -0,0 +1,181 @@
+package dev.creesch.util;
+
+import dev.creesch.metrics.WebchatMetrics;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * One cap for the memory web chat holds on to in the game's heap: cached history, frames queued for browsers and
+ * messages waiting to be written.
+ *
+ * Owners register an {@link Account} that reports its approximate size and can give memory back. Whenever usage is
+ * over the limit, accounts are asked to shed in {@link Tier} order until it fits again. Memory nothing can give back,
+ * like chat that is only kept in memory, is registered as unfreeable: it isn't part of the usage, it lowers the limit
+ * the accounts have to fit in.
+ */
+public final class MemoryBudget {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    private static final NamedLogger.RateLimited OVER_BUDGET_LOG =
+        LOGGER.rateLimited(Duration.ofMinutes(1));
+    private static final LongAdder SHED_BYTES = WebchatMetrics.counter(
+        "memory.shedBytes"
+    );
+    private static final LongAdder ENFORCEMENTS = WebchatMetrics.counter(
+        "memory.enforcements"
+    );
+
+    /**
+     * Order in which memory is taken back, cheapest to lose first.
+     */
+    public enum Tier {
+        /** Can be rebuilt from storage at the cost of a query. */
+        CACHE,
+        /** Frames for browsers that fall behind. Dropping them closes the connection, the browser resumes. */
+        OUTBOUND,
+        /** Messages that haven't reached storage yet. Counted, but never dropped. */
+        PENDING_WRITES,
+    }
+
+    public interface Account {
+        /**
+         * @return Approximate bytes held right now, cheap enough to call on every enforcement
+         */
+        long usedBytes();
+
+        /**
+         * Gives back memory, if this account can.
+         *
+         * @param bytes How much is over the limit
+         * @return Bytes actually freed
+         */
+        default long shed(long bytes) {
+            return 0;
+        }
+    }
+
+    /**
+     * Strings are (at most) two bytes per char.
+     */
+    public static final int BYTES_PER_CHAR = 2;
+
+    private record Registration(String name, Tier tier, Account account) {}
+
+    private final long limitBytes;
+    private final List<Registration> registrations =
+        new CopyOnWriteArrayList<>();
+    private final List<LongSupplier> unfreeable = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean enforcing = new AtomicBoolean(false);
+
+    /**
+     * @param limitBytes Budget for all accounts together, 0 or less means no limit
+     */
+    public MemoryBudget(long limitBytes) {
+        this.limitBytes = limitBytes;
+        WebchatMetrics.gauge("memory.usedBytes", this::usedBytes);
+        WebchatMetrics.gauge("memory.limitBytes", () -> limitBytes);
+        WebchatMetrics.gauge("memory.unfreeableBytes", this::unfreeableBytes);
+    }
+
+    /**
+     * @return Rough heap size of a string's characters, 0 for null
+     */
+    public static long stringBytes(String string) {
+        return string == null ? 0 : charBytes(string.length());
+    }
+
+    public static long charBytes(long chars) {
+        return chars * BYTES_PER_CHAR;
+    }
+
+    public void register(String name, Tier tier, Account account) {
+        registrations.add(new Registration(name, tier, account));
+        registrations.sort(Comparator.comparing(Registration::tier));
+        WebchatMetrics.gauge(
+            "memory." + name + ".bytes",
+            account::usedBytes
+        );
+    }
+
+    /**
+     * Registers memory that can't be given back. It is reported, and taken off the limit for every other account.
+     */
+    public void registerUnfreeable(String name, LongSupplier bytes) {
+        unfreeable.add(bytes);
+        WebchatMetrics.gauge("memory." + name + ".bytes", bytes::getAsLong);
+    }
+
+    public long limitBytes() {
+        return limitBytes;
+    }
+
+    public long unfreeableBytes() {
+        long bytes = 0;
+        for (LongSupplier supplier : unfreeable) {
+            bytes += supplier.getAsLong();
+        }
+        return bytes;
+    }
+
+    public long usedBytes() {
+        long used = 0;
+        for (Registration registration : registrations) {
+            used += registration.account().usedBytes();
+        }
+        return used;
+    }
+
+    /**
+     * Sheds memory when over the limit. Meant to be called right after an account grew. When another thread is
+     * already shedding this returns right away.
+     */
+    public void enforce() {
+        if (limitBytes <= 0) {
+            return;
+        }
+        long available = limitBytes - unfreeableBytes();
+        if (available <= 0) {
+            // Shedding can't get under the limit, emptying caches and closing connections would only cost.
+            OVER_BUDGET_LOG.warn(
+                "Web chat holds {} bytes it can't free, more than its memory budget of {} bytes",
+                unfreeableBytes(),
+                limitBytes
+            );
+            return;
+        }
+        long over = usedBytes() - available;
+        if (over <= 0 || !enforcing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ENFORCEMENTS.increment();
+            for (Registration registration : registrations) {
+                long freed = registration.account().shed(over);
+                if (freed > 0) {
+                    SHED_BYTES.add(freed);
+                    over -= freed;
+                    LOGGER.debug(
+                        "Freed {} bytes of {} to stay within the memory budget",
+                        freed,
+                        registration.name()
+                    );
+                }
+                if (over <= 0) {
+                    return;
+                }
+            }
+            OVER_BUDGET_LOG.warn(
+                "Web chat is {} bytes over its memory budget of {} bytes with nothing left to shed",
+                over,
+                limitBytes
+            );
+        } finally {
+            enforcing.set(false);
+        }
+    }
+}
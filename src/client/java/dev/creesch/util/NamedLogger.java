@@ -1,70 +1,247 @@
 package dev.creesch.util;
 
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A {@link Logger} wrapper that always prints the name of the logger regardless of configuration.
+ *
+ * Every method checks the level first, so nothing is formatted for disabled levels. For code that runs per message
+ * or per frame there is {@link #rateLimited(Duration)}, and {@link #async()} for places that should not wait on the
+ * game's log appenders.
  */
 public final class NamedLogger {
 
+    private static final int ASYNC_QUEUE_SIZE = 1024;
+    private static final BlockingQueue<Runnable> asyncQueue =
+        new ArrayBlockingQueue<>(ASYNC_QUEUE_SIZE);
+    private static final LongAdder asyncDropped = new LongAdder();
+    private static volatile Thread asyncThread;
+
     private final Logger inner;
     private final String name;
+    private final boolean async;
 
     public NamedLogger(Class<?> clazz) {
-        this(LoggerFactory.getLogger(clazz));
+        this(LoggerFactory.getLogger(clazz), false);
     }
 
     public NamedLogger(String name) {
-        this(LoggerFactory.getLogger(name));
+        this(LoggerFactory.getLogger(name), false);
     }
 
-    private NamedLogger(Logger inner) {
+    private NamedLogger(Logger inner, boolean async) {
         this.inner = inner;
         this.name = inner.getName();
+        this.async = async;
+    }
+
+    /**
+     * Same logger, but messages are handed to a background thread instead of written by the calling thread. When the
+     * background thread can't keep up messages are dropped, the next message that does get through mentions how many.
+     *
+     * Arguments are formatted on the background thread, so only pass values that don't change afterwards.
+     */
+    public NamedLogger async() {
+        return async ? this : new NamedLogger(inner, true);
+    }
+
+    /**
+     * Logs at most one message per interval through the returned handle, the rest is counted and mentioned with the
+     * next message that is logged. Meant to be kept in a static field, one per call site.
+     */
+    public RateLimited rateLimited(Duration interval) {
+        return new RateLimited(interval);
+    }
+
+    public boolean isDebugEnabled() {
+        return inner.isDebugEnabled();
+    }
+
+    public boolean isInfoEnabled() {
+        return inner.isInfoEnabled();
     }
 
     private String formatMessage(String message) {
         return "[" + name + "] " + message;
     }
 
+    private void emit(Runnable write) {
+        if (!async) {
+            write.run();
+            return;
+        }
+        ensureAsyncThread();
+        if (!asyncQueue.offer(write)) {
+            asyncDropped.increment();
+        }
+    }
+
+    private static void ensureAsyncThread() {
+        if (asyncThread != null) {
+            return;
+        }
+        synchronized (asyncQueue) {
+            if (asyncThread != null) {
+                return;
+            }
+            Thread thread = new Thread(NamedLogger::drainAsyncQueue);
+            thread.setName("web-chat-log");
+            thread.setDaemon(true);
+            thread.start();
+            asyncThread = thread;
+        }
+    }
+
+    private static void drainAsyncQueue() {
+        Logger fallback = LoggerFactory.getLogger("web-chat");
+        while (true) {
+            try {
+                asyncQueue.take().run();
+                long dropped = asyncDropped.sumThenReset();
+                if (dropped > 0) {
+                    fallback.warn(
+                        "[web-chat] {} log messages dropped, logging could not keep up",
+                        dropped
+                    );
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // A broken appender should not stop logging for everything else.
+            }
+        }
+    }
+
     public void error(String message) {
-        this.inner.error(formatMessage(message));
+        if (inner.isErrorEnabled()) {
+            emit(() -> this.inner.error(formatMessage(message)));
+        }
     }
 
     public void error(String message, Throwable error) {
-        this.inner.error(formatMessage(message), error);
+        if (inner.isErrorEnabled()) {
+            emit(() -> this.inner.error(formatMessage(message), error));
+        }
     }
 
     public void error(String message, Object... args) {
-        this.inner.error(formatMessage(message), args);
+        if (inner.isErrorEnabled()) {
+            emit(() -> this.inner.error(formatMessage(message), args));
+        }
     }
 
     public void debug(String message) {
         if (inner.isDebugEnabled()) {
-            this.inner.debug(formatMessage(message));
+            emit(() -> this.inner.debug(formatMessage(message)));
         }
     }
 
     public void debug(String message, Object... args) {
         if (inner.isDebugEnabled()) {
-            this.inner.debug(formatMessage(message), args);
+            emit(() -> this.inner.debug(formatMessage(message), args));
         }
     }
 
     public void info(String message) {
-        this.inner.info(formatMessage(message));
+        if (inner.isInfoEnabled()) {
+            emit(() -> this.inner.info(formatMessage(message)));
+        }
     }
 
     public void info(String message, Object... args) {
-        this.inner.info(formatMessage(message), args);
+        if (inner.isInfoEnabled()) {
+            emit(() -> this.inner.info(formatMessage(message), args));
+        }
     }
 
     public void warn(String message) {
-        this.inner.warn(formatMessage(message));
+        if (inner.isWarnEnabled()) {
+            emit(() -> this.inner.warn(formatMessage(message)));
+        }
     }
 
     public void warn(String message, Object... args) {
-        this.inner.warn(formatMessage(message), args);
+        if (inner.isWarnEnabled()) {
+            emit(() -> this.inner.warn(formatMessage(message), args));
+        }
+    }
+
+    /**
+     * Rate limited view on a {@link NamedLogger}, see {@link #rateLimited(Duration)}.
+     */
+    public final class RateLimited {
+
+        private final long intervalNanos;
+        private final AtomicLong nextAllowedNanos;
+        private final AtomicLong suppressed = new AtomicLong();
+
+        private RateLimited(Duration interval) {
+            this.intervalNanos = interval.toNanos();
+            this.nextAllowedNanos = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * @return Messages suppressed since the last one that was logged, or -1 when this one should be suppressed too
+         */
+        private long acquire() {
+            long now = System.nanoTime();
+            long nextAllowed = nextAllowedNanos.get();
+            if (
+                now - nextAllowed < 0 ||
+                !nextAllowedNanos.compareAndSet(
+                    nextAllowed,
+                    now + intervalNanos
+                )
+            ) {
+                suppressed.incrementAndGet();
+                return -1;
+            }
+            return suppressed.getAndSet(0);
+        }
+
+        private String withSuppressed(String message, long suppressed) {
+            return suppressed == 0
+                ? message
+                : message + " (" + suppressed + " similar messages suppressed)";
+        }
+
+        public void info(String message, Object... args) {
+            if (!inner.isInfoEnabled()) {
+                return;
+            }
+            long suppressed = acquire();
+            if (suppressed >= 0) {
+                NamedLogger.this.info(withSuppressed(message, suppressed), args);
+            }
+        }
+
+        public void warn(String message, Object... args) {
+            if (!inner.isWarnEnabled()) {
+                return;
+            }
+            long suppressed = acquire();
+            if (suppressed >= 0) {
+                NamedLogger.this.warn(withSuppressed(message, suppressed), args);
+            }
+        }
+
+        public void error(String message, Object... args) {
+            if (!inner.isErrorEnabled()) {
+                return;
+            }
+            long suppressed = acquire();
+            if (suppressed >= 0) {
+                NamedLogger.this.error(
+                    withSuppressed(message, suppressed),
+                    args
+                );
+            }
+        }
     }
 }
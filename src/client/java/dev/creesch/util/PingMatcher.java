@@ -0,0 +1,75 @@
+package dev.creesch.util;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Checks chat messages for ping keywords with a single pattern compiled once for all keywords.
+ *
+ * Compiling is relatively expensive compared to matching, so the last used matcher is kept around and only rebuilt
+ * when the keywords change (config change, different player name).
+ */
+public final class PingMatcher {
+
+    private static volatile PingMatcher cached = new PingMatcher(List.of());
+
+    private final List<String> keywords;
+    private final Pattern pattern;
+
+    private PingMatcher(List<String> keywords) {
+        this.keywords = keywords;
+        this.pattern = keywords.isEmpty() ? null : compile(keywords);
+    }
+
+    /**
+     * Returns a matcher for the given keywords, reusing the previous one if the keywords didn't change.
+     *
+     * @param keywords Keywords to ping for, in order of importance
+     * @return Matcher for exactly these keywords
+     */
+    public static PingMatcher of(List<String> keywords) {
+        PingMatcher matcher = cached;
+        if (!matcher.keywords.equals(keywords)) {
+            matcher = new PingMatcher(List.copyOf(keywords));
+            cached = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * @param message Plain text of a chat message
+     * @return True if any keyword occurs as a whole word after the sender part of the message
+     */
+    public boolean matches(String message) {
+        return pattern != null && pattern.matcher(message).find();
+    }
+
+    public List<String> getKeywords() {
+        return keywords;
+    }
+
+    private static Pattern compile(List<String> keywords) {
+        StringBuilder patternBuilder = new StringBuilder();
+        // Eats the beginning part of chat messages
+        patternBuilder.append("^.*?[>:]");
+        // Allow for any amount of characters before the ping keyword.
+        patternBuilder.append(".*");
+        // Check for a word boundary before the ping keyword.
+        patternBuilder.append("\\b");
+        // Any of the ping keywords.
+        patternBuilder.append(
+            keywords
+                .stream()
+                .map(Pattern::quote)
+                .collect(Collectors.joining("|", "(?:", ")"))
+        );
+        // Check for a word boundary after the ping keyword.
+        patternBuilder.append("\\b");
+
+        return Pattern.compile(
+            patternBuilder.toString(),
+            Pattern.CASE_INSENSITIVE
+        );
+    }
+}
@@ -0,0 +1,479 @@
+package dev.creesch.websocket;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.util.MemoryBudget;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Binary form of the JSON frames for connections that negotiated {@link FrameEncoding#CBOR}. Plain CBOR (RFC 8949)
+ * with one addition: object keys that show up in nearly every frame, the message envelope and chat component fields,
+ * are written as small integers from {@link #KEYS} instead of strings. Values are left alone, so any frame converts
+ * without knowing what kind of message it is, including the array frames of coalesced messages.
+ *
+ * Only definite lengths, integers, 32 and 64 bit floats, text strings, arrays, maps, booleans and null are written.
+ *
+ * {@link #KEYS} has a copy in {@code messages/cbor.mjs} and may only be appended to. Changing or removing an entry
+ * needs a new {@link FrameEncoding#CBOR_SUBPROTOCOL} version.
+ */
+public final class CborFrames {
+
+    static final List<String> KEYS = List.of(
+        // Envelope
+        "type",
+        "payload",
+        "timestamp",
+        "server",
+        "name",
+        "identifier",
+        "minecraftVersion",
+        "modVersion",
+        "sessionId",
+        "sequence",
+        // Chat message payload
+        "history",
+        "uuid",
+        "component",
+        "translations",
+        "isPing",
+        "repeatCount",
+        "lastSeen",
+        // Components, the most common ones still fit in a single byte
+        "text",
+        "translate",
+        "with",
+        "extra",
+        "color",
+        "bold",
+        "italic",
+        "underlined",
+        "strikethrough",
+        "obfuscated",
+        "insertion",
+        "fallback",
+        "shadow_color",
+        "hover_event",
+        "click_event",
+        "action",
+        "id",
+        "count",
+        "components",
+        "contents",
+        "value",
+        "url",
+        "command",
+        "path",
+        "page",
+        "player",
+        "hat",
+        "hoverEvent",
+        "clickEvent",
+        // Player list
+        "playerId",
+        "playerName",
+        "playerDisplayName",
+        "playerTextureUrl",
+        // History metadata and resume
+        "oldestMessageTimestamp",
+        "moreHistoryAvailable",
+        "mode",
+        "replayed",
+        "inWorld"
+    );
+    private static final Map<String, Integer> KEY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KEYS.size(); i++) {
+            KEY_INDEX.put(KEYS.get(i), i);
+        }
+    }
+
+    // A broadcast is the same string for every connection, so it is only encoded once. History pages are mostly sent
+    // to one connection and are larger, those aren't kept.
+    private static final int MAX_CACHED_FRAME_CHARS = 16 * 1024;
+    private static final int CACHED_FRAMES = 64;
+    // Approximate heap bytes of the cached frames, keys included.
+    private static final AtomicLong RECENT_BYTES = new AtomicLong();
+    private static final Map<String, byte[]> RECENT =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(CACHED_FRAMES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<String, byte[]> eldest
+                ) {
+                    if (size() <= CACHED_FRAMES) {
+                        return false;
+                    }
+                    RECENT_BYTES.addAndGet(-bytesOf(eldest));
+                    return true;
+                }
+            }
+        );
+
+    private static final LongAdder FRAMES_ENCODED = WebchatMetrics.counter(
+        "websocket.cbor.framesEncoded"
+    );
+    private static final LongAdder JSON_CHARS = WebchatMetrics.counter(
+        "websocket.cbor.jsonChars"
+    );
+    private static final LongAdder CBOR_BYTES = WebchatMetrics.counter(
+        "websocket.cbor.bytes"
+    );
+    private static final LongAdder ENCODE_NANOS = WebchatMetrics.counter(
+        "websocket.cbor.cpuNanos"
+    );
+
+    static {
+        WebchatMetrics.gauge("websocket.cbor.ratio", () ->
+            WebchatMetrics.ratio(JSON_CHARS, CBOR_BYTES)
+        );
+    }
+
+    private CborFrames() {}
+
+    /**
+     * Converts a JSON frame. The returned array may be shared between connections and must not be modified.
+     */
+    public static byte[] encode(String json) {
+        boolean cacheable = json.length() <= MAX_CACHED_FRAME_CHARS;
+        byte[] encoded = cacheable ? RECENT.get(json) : null;
+        if (encoded == null) {
+            long start = System.nanoTime();
+            encoded = encode(JsonParser.parseString(json));
+            ENCODE_NANOS.add(System.nanoTime() - start);
+            if (cacheable) {
+                cache(json, encoded);
+            }
+        }
+        FRAMES_ENCODED.increment();
+        JSON_CHARS.add(json.length());
+        CBOR_BYTES.add(encoded.length);
+        return encoded;
+    }
+
+    /**
+     * @return Approximate heap bytes of recently converted frames, for the memory budget
+     */
+    public static long cachedBytes() {
+        return RECENT_BYTES.get();
+    }
+
+    /**
+     * Drops recently converted frames, least recently used first.
+     *
+     * @return Bytes freed
+     */
+    public static long evictCache(long bytes) {
+        long freed = 0;
+        synchronized (RECENT) {
+            Iterator<Map.Entry<String, byte[]>> oldest = RECENT.entrySet()
+                .iterator();
+            while (freed < bytes && oldest.hasNext()) {
+                freed += bytesOf(oldest.next());
+                oldest.remove();
+            }
+        }
+        RECENT_BYTES.addAndGet(-freed);
+        return freed;
+    }
+
+    private static void cache(String json, byte[] encoded) {
+        synchronized (RECENT) {
+            byte[] replaced = RECENT.put(json, encoded);
+            RECENT_BYTES.addAndGet(
+                json.length() * 2L +
+                    encoded.length -
+                    (replaced == null ? 0 : json.length() * 2L + replaced.length)
+            );
+        }
+    }
+
+    private static long bytesOf(Map.Entry<String, byte[]> entry) {
+        return (
+            MemoryBudget.stringBytes(entry.getKey()) + entry.getValue().length
+        );
+    }
+
+    public static byte[] encode(JsonElement element) {
+        Writer writer = new Writer();
+        writer.write(element);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Reads a frame back into JSON, for tooling that talks to the web interface like a browser would.
+     *
+     * @throws IllegalArgumentException When the frame uses anything {@link #encode(JsonElement)} doesn't write
+     */
+    public static JsonElement decode(byte[] frame) {
+        Reader reader = new Reader(frame);
+        JsonElement element = reader.read();
+        if (reader.position != frame.length) {
+            throw new IllegalArgumentException("Trailing bytes after frame");
+        }
+        return element;
+    }
+
+    private static final class Writer {
+
+        private byte[] buffer = new byte[256];
+        private int size = 0;
+
+        private void write(JsonElement element) {
+            if (element == null || element.isJsonNull()) {
+                writeByte(0xF6);
+            } else if (element.isJsonObject()) {
+                JsonObject object = element.getAsJsonObject();
+                writeHead(5, object.size());
+                for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                    Integer key = KEY_INDEX.get(entry.getKey());
+                    if (key != null) {
+                        writeHead(0, key);
+                    } else {
+                        writeText(entry.getKey());
+                    }
+                    write(entry.getValue());
+                }
+            } else if (element.isJsonArray()) {
+                JsonArray array = element.getAsJsonArray();
+                writeHead(4, array.size());
+                for (JsonElement item : array) {
+                    write(item);
+                }
+            } else {
+                JsonPrimitive primitive = element.getAsJsonPrimitive();
+                if (primitive.isBoolean()) {
+                    writeByte(primitive.getAsBoolean() ? 0xF5 : 0xF4);
+                } else if (primitive.isNumber()) {
+                    writeNumber(primitive.getAsString());
+                } else {
+                    writeText(primitive.getAsString());
+                }
+            }
+        }
+
+        private void writeNumber(String number) {
+            if (isInteger(number)) {
+                try {
+                    long value = Long.parseLong(number);
+                    if (value >= 0) {
+                        writeHead(0, value);
+                    } else {
+                        writeHead(1, -1 - value);
+                    }
+                    return;
+                } catch (NumberFormatException e) {
+                    // Doesn't fit a long, written as a double like JavaScript would read it anyway.
+                }
+            }
+            double value = Double.parseDouble(number);
+            float single = (float) value;
+            if (single == value) {
+                writeByte(0xFA);
+                writeBits(Float.floatToIntBits(single), 4);
+            } else {
+                writeByte(0xFB);
+                writeBits(Double.doubleToLongBits(value), 8);
+            }
+        }
+
+        private void writeText(String text) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            writeHead(3, utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, buffer, size, utf8.length);
+            size += utf8.length;
+        }
+
+        /**
+         * @param value Unsigned argument of the data item
+         */
+        private void writeHead(int major, long value) {
+            int type = major << 5;
+            if (value < 24) {
+                writeByte(type | (int) value);
+            } else if (value < 0x100) {
+                writeByte(type | 24);
+                writeBits(value, 1);
+            } else if (value < 0x10000) {
+                writeByte(type | 25);
+                writeBits(value, 2);
+            } else if (value < 0x100000000L) {
+                writeByte(type | 26);
+                writeBits(value, 4);
+            } else {
+                writeByte(type | 27);
+                writeBits(value, 8);
+            }
+        }
+
+        private void writeBits(long bits, int bytes) {
+            ensure(bytes);
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (bits >>> shift);
+            }
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(
+                    buffer,
+                    Math.max(buffer.length * 2, size + extra)
+                );
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private static boolean isInteger(String number) {
+            for (int i = 0; i < number.length(); i++) {
+                char c = number.charAt(i);
+                if ((c < '0' || c > '9') && !(i == 0 && c == '-')) {
+                    return false;
+                }
+            }
+            return !number.isEmpty();
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private int position = 0;
+
+        private Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private JsonElement read() {
+            int initial = (int) readUnsigned(1);
+            int major = initial >>> 5;
+            int info = initial & 0x1F;
+            return switch (major) {
+                case 0 -> new JsonPrimitive(readArgument(info));
+                case 1 -> new JsonPrimitive(-1 - readArgument(info));
+                case 3 -> new JsonPrimitive(readText(readLength(info)));
+                case 4 -> {
+                    int length = readLength(info);
+                    JsonArray array = new JsonArray(length);
+                    for (int i = 0; i < length; i++) {
+                        array.add(read());
+                    }
+                    yield array;
+                }
+                case 5 -> {
+                    int length = readLength(info);
+                    JsonObject object = new JsonObject();
+                    for (int i = 0; i < length; i++) {
+                        String key = readKey();
+                        object.add(key, read());
+                    }
+                    yield object;
+                }
+                case 7 -> switch (info) {
+                    case 20 -> new JsonPrimitive(false);
+                    case 21 -> new JsonPrimitive(true);
+                    case 22 -> JsonNull.INSTANCE;
+                    case 26 -> new JsonPrimitive(
+                        Float.intBitsToFloat((int) readUnsigned(4))
+                    );
+                    case 27 -> new JsonPrimitive(
+                        Double.longBitsToDouble(readUnsigned(8))
+                    );
+                    default -> throw new IllegalArgumentException(
+                        "Unsupported simple value " + info
+                    );
+                };
+                default -> throw new IllegalArgumentException(
+                    "Unsupported major type " + major
+                );
+            };
+        }
+
+        private String readKey() {
+            int initial = (int) readUnsigned(1);
+            if (initial >>> 5 == 3) {
+                return readText(readLength(initial & 0x1F));
+            }
+            if (initial >>> 5 != 0) {
+                throw new IllegalArgumentException("Unsupported map key");
+            }
+            long index = readArgument(initial & 0x1F);
+            if (index >= KEYS.size()) {
+                throw new IllegalArgumentException("Unknown key " + index);
+            }
+            return KEYS.get((int) index);
+        }
+
+        private String readText(int length) {
+            if (length > bytes.length - position) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            String text = new String(
+                bytes,
+                position,
+                length,
+                StandardCharsets.UTF_8
+            );
+            position += length;
+            return text;
+        }
+
+        private int readLength(int info) {
+            long length = readArgument(info);
+            if (length > bytes.length - position) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            return (int) length;
+        }
+
+        private long readArgument(int info) {
+            return switch (info) {
+                case 24 -> readUnsigned(1);
+                case 25 -> readUnsigned(2);
+                case 26 -> readUnsigned(4);
+                case 27 -> readUnsigned(8);
+                default -> {
+                    if (info >= 24) {
+                        throw new IllegalArgumentException(
+                            "Indefinite lengths are not supported"
+                        );
+                    }
+                    yield info;
+                }
+            };
+        }
+
+        private long readUnsigned(int count) {
+            if (count > bytes.length - position) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package dev.creesch.websocket;
+
+import io.javalin.websocket.WsContext;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * State the web interface keeps per connected browser.
+ */
+public class ClientConnection {
+
+    // The browser asks for the head page itself after a join, a pushed page covers that request for a little while.
+    private static final long PUSHED_HISTORY_VALID_MILLIS = 10_000;
+
+    // Key of heartbeat frames in the latest lane of the outbound queue.
+    public static final String HEARTBEAT_FRAME_KEY = "heartbeat";
+
+    @Getter
+    private final WsContext context;
+
+    @Getter
+    private final long connectedAt = System.currentTimeMillis();
+
+    // Address the connection came from, for the per address connection limit.
+    @Getter
+    private final String remoteAddress;
+
+    // Guarded by this.
+    private long heartbeatId;
+    private long heartbeatSentNanos;
+    private boolean awaitingHeartbeat;
+    private int missedHeartbeats;
+    private long writesAtHeartbeat;
+
+    // Time between sending the last answered heartbeat and its answer, -1 before the first answer.
+    @Getter
+    private volatile long heartbeatRoundTripMillis = -1;
+
+    private String pushedHistoryServerId;
+    private int pushedHistoryLimit;
+    private long pushedHistoryAt;
+
+    @Getter
+    private final OutboundQueue outbound;
+
+    // Replaced as a whole when the browser subscribes, read on every broadcast.
+    @Getter
+    @Setter
+    private volatile SubscriptionFilter filter = SubscriptionFilter.ALL;
+
+    /**
+     * @param outboundBytesChanged Told about every change in bytes queued for this connection
+     */
+    public ClientConnection(
+        WsContext context,
+        LongConsumer outboundBytesChanged
+    ) {
+        this.context = context;
+        this.remoteAddress = addressOf(context);
+        this.outbound = new OutboundQueue(
+            context.session,
+            FrameEncoding.negotiate(
+                context.session
+                    .getUpgradeRequest()
+                    .getHeader(FrameEncoding.SUBPROTOCOL_HEADER)
+            ),
+            outboundBytesChanged
+        );
+    }
+
+    /**
+     * Queues a frame for this browser, see {@link OutboundQueue}.
+     *
+     * @return False when the connection is closing and the frame was dropped
+     */
+    public boolean send(String frame) {
+        return outbound.enqueue(frame);
+    }
+
+    /**
+     * Queues a snapshot frame for this browser, replacing an unsent one with the same key. See {@link OutboundQueue}.
+     *
+     * @return False when the connection is closing and the frame was dropped
+     */
+    public boolean sendLatest(String key, String frame) {
+        return outbound.enqueueLatest(key, frame);
+    }
+
+    /**
+     * Notes that a heartbeat is about to be queued. A heartbeat that is still unanswered by then counts as missed,
+     * unless it is still waiting behind a backlog that the browser is reading. A browser busy with a large history
+     * page can't answer a heartbeat it didn't get yet, while one that went away stops taking frames.
+     *
+     * @return Heartbeats missed in a row
+     */
+    public synchronized int heartbeatSent(long id) {
+        long writes = outbound.writesCompleted();
+        if (awaitingHeartbeat) {
+            boolean queuedBehindProgress =
+                outbound.hasLatest(HEARTBEAT_FRAME_KEY) &&
+                writes > writesAtHeartbeat;
+            if (!queuedBehindProgress) {
+                missedHeartbeats++;
+            }
+        }
+        writesAtHeartbeat = writes;
+        heartbeatId = id;
+        heartbeatSentNanos = System.nanoTime();
+        awaitingHeartbeat = true;
+        return missedHeartbeats;
+    }
+
+    /**
+     * Called for every message from the browser. Anything it sends shows it's alive, only the answer to the latest
+     * heartbeat gives a round trip time.
+     *
+     * @param answeredHeartbeatId Id the browser echoed, null when the message wasn't a heartbeat
+     */
+    public synchronized void received(Long answeredHeartbeatId) {
+        missedHeartbeats = 0;
+        if (
+            awaitingHeartbeat &&
+            answeredHeartbeatId != null &&
+            answeredHeartbeatId == heartbeatId
+        ) {
+            awaitingHeartbeat = false;
+            heartbeatRoundTripMillis = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - heartbeatSentNanos
+            );
+        }
+    }
+
+    /**
+     * Remembers that the first history page was pushed to this connection without it asking.
+     */
+    public synchronized void markHistoryPushed(String serverId, int limit) {
+        pushedHistoryServerId = serverId;
+        pushedHistoryLimit = limit;
+        pushedHistoryAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes back {@link #markHistoryPushed(String, int)} for a push that isn't going to happen.
+     *
+     * @return False when the browser's own request already came in and was skipped because of the push
+     */
+    public synchronized boolean unmarkHistoryPushed(String serverId) {
+        if (!serverId.equals(pushedHistoryServerId)) {
+            return false;
+        }
+        pushedHistoryServerId = null;
+        return true;
+    }
+
+    /**
+     * Checks whether a head page request from the browser was already answered by a push. Only the first matching
+     * request is covered, any later one is a real request.
+     *
+     * @return True if the request can be skipped
+     */
+    public synchronized boolean consumePushedHistory(String serverId, int limit) {
+        boolean covered =
+            serverId != null &&
+            serverId.equals(pushedHistoryServerId) &&
+            limit <= pushedHistoryLimit &&
+            System.currentTimeMillis() - pushedHistoryAt <=
+            PUSHED_HISTORY_VALID_MILLIS;
+        pushedHistoryServerId = null;
+        return covered;
+    }
+
+    /**
+     * @return IP address of the browser, the full socket address if it isn't an IP connection
+     */
+    public static String addressOf(WsContext context) {
+        SocketAddress address = context.session.getRemoteAddress();
+        if (
+            address instanceof InetSocketAddress inetAddress &&
+            inetAddress.getAddress() != null
+        ) {
+            return inetAddress.getAddress().getHostAddress();
+        }
+        return String.valueOf(address);
+    }
+}
@@ -0,0 +1,55 @@
+package dev.creesch.websocket;
+
+import dev.creesch.config.ModConfig;
+
+/**
+ * How frames are encoded for one connection, picked from the subprotocols the browser offers when connecting. JSON
+ * text unless it offers {@link #CBOR_SUBPROTOCOL}, see {@link CborFrames}.
+ *
+ * Browsers drop the connection when they offered subprotocols and the server doesn't pick one, so the web interface
+ * offers {@link #JSON_SUBPROTOCOL} as a fallback for when binary frames are turned off.
+ */
+public enum FrameEncoding {
+    JSON,
+    CBOR;
+
+    public static final String SUBPROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+    public static final String JSON_SUBPROTOCOL = "webchat.json";
+    // Versioned with the key dictionary in CborFrames, a browser with an older copy keeps getting JSON.
+    public static final String CBOR_SUBPROTOCOL = "webchat.cbor.v1";
+
+    /**
+     * @param offered Value of the {@code Sec-WebSocket-Protocol} request header, may be null
+     */
+    public static FrameEncoding negotiate(String offered) {
+        return (
+                ModConfig.HANDLER.instance().websocketBinaryEncoding &&
+                offers(offered, CBOR_SUBPROTOCOL)
+            )
+            ? CBOR
+            : JSON;
+    }
+
+    /**
+     * @param offered Value of the {@code Sec-WebSocket-Protocol} request header, may be null
+     * @return Subprotocol to answer with, null when none of the offered ones is known
+     */
+    public static String acceptedSubprotocol(String offered) {
+        if (negotiate(offered) == CBOR) {
+            return CBOR_SUBPROTOCOL;
+        }
+        return offers(offered, JSON_SUBPROTOCOL) ? JSON_SUBPROTOCOL : null;
+    }
+
+    private static boolean offers(String offered, String subprotocol) {
+        if (offered == null) {
+            return false;
+        }
+        for (String candidate : offered.split(",")) {
+            if (candidate.trim().equals(subprotocol)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,305 @@
+package dev.creesch.websocket;
+
+import dev.creesch.metrics.WebchatMetrics;
+import dev.creesch.util.MemoryBudget;
+import dev.creesch.util.NamedLogger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import lombok.Getter;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Frames waiting to be sent to one browser. Frames go out one at a time, the next one only after Jetty finished
+ * writing the previous one, so a browser that can't keep up builds a backlog here where it can be measured and dropped
+ * instead of somewhere inside Jetty.
+ *
+ * There are two lanes. Ordered frames (chat, state changes, history) are all sent, in the order they were queued.
+ * Latest frames are snapshots like the player list: a newer one replaces an older one with the same key that wasn't
+ * sent yet, and they only go out when no ordered frame is waiting. A browser that fell behind catches up on chat first
+ * and then gets a single up to date snapshot, instead of every stale one in between.
+ *
+ * Frames are queued as JSON and only converted when they are written, for connections that negotiated
+ * {@link FrameEncoding#CBOR}. Snapshots that get replaced are never converted at all.
+ */
+public class OutboundQueue {
+
+    private static final NamedLogger LOGGER = new NamedLogger("web-chat");
+    private static final NamedLogger.RateLimited SEND_FAILURE_LOG =
+        LOGGER.rateLimited(Duration.ofSeconds(10));
+    private static final LongAdder SEND_FAILURES = WebchatMetrics.counter(
+        "websocket.sendFailures"
+    );
+    private static final LongAdder FRAMES_DROPPED = WebchatMetrics.counter(
+        "websocket.framesDropped"
+    );
+    private static final LongAdder FRAMES_REPLACED = WebchatMetrics.counter(
+        "websocket.framesReplaced"
+    );
+
+    private final Session session;
+    @Getter
+    private final FrameEncoding encoding;
+    // Told about every change in queued bytes, positive when frames are added and negative when they leave.
+    private final LongConsumer bytesChanged;
+
+    private final ArrayDeque<String> frames = new ArrayDeque<>();
+    // Insertion ordered, replacing a frame keeps its place.
+    private final LinkedHashMap<String, String> latest = new LinkedHashMap<>();
+    private long queuedBytes = 0;
+    private boolean inFlight = false;
+    private long inFlightBytes = 0;
+    private boolean draining = false;
+    private boolean closed = false;
+    private long writesCompleted = 0;
+
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeSuccess() {
+            synchronized (OutboundQueue.this) {
+                writesCompleted++;
+            }
+            onWriteDone();
+        }
+
+        @Override
+        public void writeFailed(Throwable error) {
+            SEND_FAILURES.increment();
+            SEND_FAILURE_LOG.warn(
+                "Failed to send message to connection: {}",
+                session.getRemoteAddress(),
+                error
+            );
+            onWriteDone();
+        }
+    };
+
+    public OutboundQueue(
+        Session session,
+        FrameEncoding encoding,
+        LongConsumer bytesChanged
+    ) {
+        this.session = session;
+        this.encoding = encoding;
+        this.bytesChanged = bytesChanged;
+    }
+
+    /**
+     * @return False when the queue was closed and the frame is dropped
+     */
+    public boolean enqueue(String frame) {
+        long bytes = bytesOf(frame);
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            frames.addLast(frame);
+            queuedBytes += bytes;
+        }
+        bytesChanged.accept(bytes);
+        drain();
+        return true;
+    }
+
+    /**
+     * Queues a snapshot frame in the latest lane, replacing an unsent one with the same key.
+     *
+     * @param key What the frame is a snapshot of
+     * @return False when the queue was closed and the frame is dropped
+     */
+    public boolean enqueueLatest(String key, String frame) {
+        long bytes = bytesOf(frame);
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            String replaced = latest.put(key, frame);
+            if (replaced != null) {
+                FRAMES_REPLACED.increment();
+                bytes -= bytesOf(replaced);
+            }
+            queuedBytes += bytes;
+        }
+        bytesChanged.accept(bytes);
+        drain();
+        return true;
+    }
+
+    /**
+     * Drops an unsent snapshot frame, for when it no longer applies (for example after leaving a server).
+     */
+    public void dropLatest(String key) {
+        long freed;
+        synchronized (this) {
+            String dropped = latest.remove(key);
+            if (dropped == null) {
+                return;
+            }
+            FRAMES_DROPPED.increment();
+            freed = bytesOf(dropped);
+            queuedBytes -= freed;
+            notifyAll();
+        }
+        bytesChanged.accept(-freed);
+    }
+
+    /**
+     * Queues a frame once the backlog is below the given size, waiting for the browser to catch up first if needed.
+     * For bulk sends like history pages, so they don't pile up in memory faster than the browser reads them.
+     *
+     * @param maxQueuedBytes Backlog to wait for
+     * @param timeoutMillis Longest time to wait before giving up on the frame
+     * @return False when the frame was dropped, because the queue closed or the browser didn't catch up in time
+     */
+    public boolean enqueueWhenBelow(
+        String frame,
+        long maxQueuedBytes,
+        long timeoutMillis
+    ) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (!closed && queuedBytes > maxQueuedBytes) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    FRAMES_DROPPED.increment();
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return enqueue(frame);
+    }
+
+    /**
+     * @return Approximate heap bytes of the frames waiting here, the frame Jetty is writing included
+     */
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return Frames Jetty finished writing so far, a backlog that is going down shows the browser is still reading
+     */
+    public synchronized long writesCompleted() {
+        return writesCompleted;
+    }
+
+    /**
+     * @return True when a snapshot frame with the given key is waiting in the latest lane
+     */
+    public synchronized boolean hasLatest(String key) {
+        return latest.containsKey(key);
+    }
+
+    /**
+     * Drops everything that wasn't sent yet and refuses new frames.
+     *
+     * @return Bytes freed
+     */
+    public long close() {
+        long freed;
+        synchronized (this) {
+            if (closed) {
+                return 0;
+            }
+            closed = true;
+            FRAMES_DROPPED.add(frames.size() + latest.size());
+            frames.clear();
+            latest.clear();
+            // The frame being written is released by its callback.
+            freed = queuedBytes - inFlightBytes;
+            queuedBytes -= freed;
+            notifyAll();
+        }
+        bytesChanged.accept(-freed);
+        return freed;
+    }
+
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        // Jetty may complete a write on the calling thread, looping here keeps that from recursing once per frame.
+        while (true) {
+            String frame;
+            synchronized (this) {
+                if (
+                    inFlight ||
+                    closed ||
+                    (frames.isEmpty() && latest.isEmpty())
+                ) {
+                    draining = false;
+                    return;
+                }
+                frame = frames.isEmpty() ? pollLatest() : frames.pollFirst();
+                inFlight = true;
+                inFlightBytes = bytesOf(frame);
+            }
+            try {
+                if (encoding == FrameEncoding.CBOR) {
+                    session
+                        .getRemote()
+                        .sendBytes(
+                            ByteBuffer.wrap(CborFrames.encode(frame)),
+                            writeCallback
+                        );
+                } else {
+                    session.getRemote().sendString(frame, writeCallback);
+                }
+            } catch (RuntimeException e) {
+                SEND_FAILURES.increment();
+                SEND_FAILURE_LOG.warn(
+                    "Failed to send message to connection: {}",
+                    session.getRemoteAddress(),
+                    e
+                );
+                onWriteDone();
+            }
+        }
+    }
+
+    private void onWriteDone() {
+        long released;
+        boolean resume;
+        synchronized (this) {
+            if (!inFlight) {
+                return;
+            }
+            inFlight = false;
+            released = inFlightBytes;
+            inFlightBytes = 0;
+            queuedBytes -= released;
+            resume = !draining;
+            notifyAll();
+        }
+        bytesChanged.accept(-released);
+        // When the write finished inside the loop in drain(), that loop picks up the next frame itself.
+        if (resume) {
+            drain();
+        }
+    }
+
+    private String pollLatest() {
+        Iterator<String> oldest = latest.values().iterator();
+        String frame = oldest.next();
+        oldest.remove();
+        return frame;
+    }
+
+    private static long bytesOf(String frame) {
+        return MemoryBudget.stringBytes(frame);
+    }
+}
@@ -0,0 +1,185 @@
+package dev.creesch.websocket;
+
+import dev.creesch.model.WebsocketJsonMessage;
+import dev.creesch.util.MemoryBudget;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Numbers broadcast messages and keeps the most recent ones so a client that briefly lost its connection can be sent
+ * only what it missed instead of starting over.
+ *
+ * Sequence numbers are scoped to a session id that is new every time the web interface starts, a client presenting
+ * an unknown session id always needs a full resync.
+ *
+ * Not thread safe on its own, {@link dev.creesch.WebInterface} only uses it while holding its broadcast lock so that
+ * numbering, logging and sending happen in the same order.
+ */
+public class ResumeLog {
+
+    private record Entry(
+        long sequence,
+        String json,
+        int category,
+        String serverId
+    ) {}
+
+    private final String sessionId = UUID.randomUUID().toString();
+    private final int capacity;
+    private final ArrayDeque<Entry> entries;
+    private long sequence = 0;
+    // Highest sequence number that is no longer in the log.
+    private long evictedUpTo = 0;
+    // Sequence number of the last connection state change (join, disconnect, ...).
+    private long lastStateChange = 0;
+    // Approximate heap bytes of the logged frames, read by the memory budget without the lock.
+    private volatile long bytes = 0;
+
+    public ResumeLog(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.entries = new ArrayDeque<>(this.capacity);
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return Sequence number of the last numbered message
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gives the message the next sequence number of this session.
+     */
+    public void number(WebsocketJsonMessage message) {
+        message.setSessionId(sessionId);
+        message.setSequence(++sequence);
+        if (
+            message.getType() ==
+            WebsocketJsonMessage.MessageType.SERVER_CONNECTION_STATE
+        ) {
+            lastStateChange = sequence;
+        }
+    }
+
+    /**
+     * Keeps a numbered message around for replay, dropping the oldest one when the log is full.
+     *
+     * @param message Message previously passed to {@link #number(WebsocketJsonMessage)}
+     * @param json The message exactly as it was sent
+     */
+    public void append(WebsocketJsonMessage message, String json) {
+        if (capacity == 0) {
+            evictedUpTo = message.getSequence();
+            return;
+        }
+        if (entries.size() == capacity) {
+            evictOldest();
+        }
+        bytes += bytesOf(json);
+        entries.addLast(
+            new Entry(
+                message.getSequence(),
+                json,
+                SubscriptionFilter.categoryOf(message),
+                message.getServer() == null
+                    ? null
+                    : message.getServer().getIdentifier()
+            )
+        );
+    }
+
+    /**
+     * @return Approximate heap bytes of the logged frames
+     */
+    public long usedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drops the oldest logged frames. Clients that missed them resume from the database or resync instead.
+     *
+     * @return Bytes freed
+     */
+    public long trim(long wanted) {
+        long freed = 0;
+        while (freed < wanted && !entries.isEmpty()) {
+            freed += evictOldest();
+        }
+        return freed;
+    }
+
+    private long evictOldest() {
+        Entry oldest = entries.removeFirst();
+        evictedUpTo = oldest.sequence();
+        long freed = bytesOf(oldest.json());
+        bytes -= freed;
+        return freed;
+    }
+
+    private static long bytesOf(String json) {
+        return MemoryBudget.stringBytes(json);
+    }
+
+    /**
+     * @param clientSessionId Session id the client last saw
+     * @param after Last sequence number the client saw
+     * @return Whether {@link #missedSince(String, long, SubscriptionFilter)} can cover the gap
+     */
+    public boolean covers(String clientSessionId, long after) {
+        return (
+            sessionId.equals(clientSessionId) &&
+            after <= sequence &&
+            after >= evictedUpTo
+        );
+    }
+
+    /**
+     * @param clientSessionId Session id the client last saw
+     * @param after Last sequence number the client saw
+     * @param filter Subscription of the client, messages it doesn't want are left out
+     * @return Every logged message after {@code after} the filter accepts in order, or null if the log can't cover the
+     *     gap
+     */
+    public List<String> missedSince(
+        String clientSessionId,
+        long after,
+        SubscriptionFilter filter
+    ) {
+        if (!covers(clientSessionId, after)) {
+            return null;
+        }
+
+        List<String> missed = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (
+                entry.sequence() > after &&
+                filter.accepts(entry.category(), entry.serverId())
+            ) {
+                missed.add(entry.json());
+            }
+        }
+        return missed;
+    }
+
+    /**
+     * Chat messages can be read back from the database, connection state changes can't. Only when none of those
+     * happened since the client's last message is a database catch up equivalent to replaying the log.
+     *
+     * @param clientSessionId Session id the client last saw
+     * @param after Last sequence number the client saw
+     * @return True if missed chat messages can be read back from the database instead
+     */
+    public boolean canResumeFromDatabase(String clientSessionId, long after) {
+        return (
+            sessionId.equals(clientSessionId) &&
+            after <= sequence &&
+            lastStateChange <= after
+        );
+    }
+}
@@ -0,0 +1,365 @@
+package dev.creesch.websocket;
+
+import dev.creesch.config.ModConfig;
+import dev.creesch.metrics.WebchatMetrics;
+import jakarta.servlet.ServletContext;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.core.AbstractExtension;
+import org.eclipse.jetty.websocket.core.ExtensionConfig;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+import org.eclipse.jetty.websocket.core.WebSocketComponents;
+import org.eclipse.jetty.websocket.core.WebSocketExtensionRegistry;
+import org.eclipse.jetty.websocket.core.exception.BadPayloadException;
+import org.eclipse.jetty.websocket.core.exception.MessageTooLargeException;
+import org.eclipse.jetty.websocket.core.server.WebSocketServerComponents;
+
+/**
+ * permessage-deflate (RFC 7692) implementation that replaces the one Jetty registers by default.
+ *
+ * Jetty's own extension compresses every frame for every peer. Chat frames range from a few bytes (state changes)
+ * to many kilobytes (history, item hovers), and most users browse from the same machine. So this version:
+ * - Only compresses complete text and binary messages of at least {@link ModConfig#websocketCompressionMinBytes}.
+ * - Skips compression for loopback peers unless {@link ModConfig#websocketCompressLocalhost} is set.
+ * - Records compression ratio and CPU time in {@link WebchatMetrics}.
+ *
+ * Sending a message uncompressed is always allowed, the RSV1 bit simply stays unset for that message.
+ *
+ * Note on window size: {@link Deflater} always uses a 32KB window, so server_max_window_bits can't be honoured.
+ * Like Jetty we don't negotiate it. The memory/ratio trade-off is instead tuned with context takeover.
+ */
+public class SelectiveDeflateExtension extends AbstractExtension {
+
+    public static final String NAME = "permessage-deflate";
+
+    private static final byte[] TAIL_BYTES = {
+        0x00,
+        0x00,
+        (byte) 0xFF,
+        (byte) 0xFF,
+    };
+    // Browsers only ever send small chat and history requests, anything bigger is suspicious.
+    private static final int MAX_INFLATED_MESSAGE_BYTES = 64 * 1024;
+
+    private static final LongAdder FRAMES_COMPRESSED = WebchatMetrics.counter(
+        "websocket.compression.framesCompressed"
+    );
+    private static final LongAdder FRAMES_SKIPPED_SMALL =
+        WebchatMetrics.counter("websocket.compression.framesSkippedSmall");
+    private static final LongAdder FRAMES_SKIPPED_LOCAL =
+        WebchatMetrics.counter("websocket.compression.framesSkippedLocal");
+    private static final LongAdder BYTES_IN = WebchatMetrics.counter(
+        "websocket.compression.bytesIn"
+    );
+    private static final LongAdder BYTES_OUT = WebchatMetrics.counter(
+        "websocket.compression.bytesOut"
+    );
+    private static final LongAdder COMPRESS_NANOS = WebchatMetrics.counter(
+        "websocket.compression.cpuNanos"
+    );
+
+    static {
+        WebchatMetrics.gauge("websocket.compression.ratio", () ->
+            WebchatMetrics.ratio(BYTES_IN, BYTES_OUT)
+        );
+        WebchatMetrics.gauge("websocket.compression.avgNanosPerFrame", () ->
+            WebchatMetrics.ratio(COMPRESS_NANOS, FRAMES_COMPRESSED)
+        );
+    }
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean serverContextTakeover;
+    private boolean clientContextTakeover;
+    private int minFrameBytes;
+    private boolean compressLocalhost;
+    private Boolean loopbackPeer;
+
+    // Incoming compressed messages can span multiple frames, the RSV1 bit is only set on the first.
+    private boolean incomingCompressed = false;
+    private int incomingInflatedBytes = 0;
+
+    /**
+     * Swaps Jetty's default permessage-deflate for this one, or removes compression altogether when disabled. Called
+     * once while the web interface's servlet context starts, the registry is shared by every connection of that server.
+     * Turning compression on or off later means building a new server.
+     *
+     * @param servletContext Servlet context of the web interface
+     * @param enabled Whether compression is offered at all
+     */
+    public static void applyTo(ServletContext servletContext, boolean enabled) {
+        WebSocketExtensionRegistry registry =
+            WebSocketServerComponents.getWebSocketComponents(
+                servletContext
+            ).getExtensionRegistry();
+
+        if (enabled) {
+            registry.register(NAME, SelectiveDeflateExtension.class);
+        } else {
+            registry.unregister(NAME);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isRsv1User() {
+        return true;
+    }
+
+    @Override
+    public void init(ExtensionConfig config, WebSocketComponents components) {
+        ModConfig modConfig = ModConfig.HANDLER.instance();
+        Map<String, String> negotiated = new HashMap<>();
+
+        serverContextTakeover = modConfig.websocketCompressionContextTakeover;
+        clientContextTakeover = true;
+
+        for (String key : config.getParameterKeys()) {
+            switch (key) {
+                case "server_no_context_takeover" -> serverContextTakeover =
+                    false;
+                case "client_no_context_takeover" -> {
+                    clientContextTakeover = false;
+                    negotiated.put(key, null);
+                }
+                case "client_max_window_bits" -> {
+                    // Only allowed in the response when the client offered it.
+                    int windowBits = Math.clamp(
+                        modConfig.websocketCompressionClientWindowBits,
+                        8,
+                        15
+                    );
+                    if (windowBits < 15) {
+                        negotiated.put(key, String.valueOf(windowBits));
+                    }
+                }
+                default -> {
+                    // server_max_window_bits and unknown parameters are not negotiated.
+                }
+            }
+        }
+
+        if (!serverContextTakeover) {
+            negotiated.put("server_no_context_takeover", null);
+        }
+
+        deflater = new Deflater(
+            Math.clamp(modConfig.websocketCompressionLevel, 1, 9),
+            true
+        );
+        inflater = new Inflater(true);
+        minFrameBytes = Math.max(0, modConfig.websocketCompressionMinBytes);
+        compressLocalhost = modConfig.websocketCompressLocalhost;
+
+        super.init(new ExtensionConfig(config.getName(), negotiated), components);
+    }
+
+    @Override
+    public void onFrame(Frame frame, Callback callback) {
+        if (frame.isControlFrame()) {
+            nextIncomingFrame(frame, callback);
+            return;
+        }
+
+        if (frame.getOpCode() != OpCode.CONTINUATION) {
+            incomingCompressed = frame.isRsv1();
+            incomingInflatedBytes = 0;
+        }
+
+        if (!incomingCompressed) {
+            nextIncomingFrame(frame, callback);
+            return;
+        }
+
+        ByteBuffer inflated;
+        try {
+            inflated = inflate(frame.getPayload(), frame.isFin());
+        } catch (DataFormatException e) {
+            callback.failed(new BadPayloadException(e));
+            return;
+        } catch (MessageTooLargeException e) {
+            callback.failed(e);
+            return;
+        }
+
+        if (frame.isFin()) {
+            incomingCompressed = false;
+            if (!clientContextTakeover) {
+                inflater.reset();
+            }
+        }
+
+        nextIncomingFrame(
+            new Frame(frame.getOpCode(), frame.isFin(), inflated),
+            callback
+        );
+    }
+
+    @Override
+    public void sendFrame(Frame frame, Callback callback, boolean batch) {
+        // Only complete data messages are compressed. Everything else passes through untouched, which is always valid.
+        if (
+            (frame.getOpCode() != OpCode.TEXT &&
+                frame.getOpCode() != OpCode.BINARY) ||
+            !frame.isFin() ||
+            frame.getPayloadLength() == 0
+        ) {
+            nextOutgoingFrame(frame, callback, batch);
+            return;
+        }
+
+        if (frame.getPayloadLength() < minFrameBytes) {
+            FRAMES_SKIPPED_SMALL.increment();
+            nextOutgoingFrame(frame, callback, batch);
+            return;
+        }
+
+        if (!compressLocalhost && isLoopbackPeer()) {
+            FRAMES_SKIPPED_LOCAL.increment();
+            nextOutgoingFrame(frame, callback, batch);
+            return;
+        }
+
+        // Multiple threads can broadcast at the same time. The deflater is stateful and frames have to leave in the
+        // same order they were compressed in, so both happen under the same lock.
+        synchronized (this) {
+            long start = System.nanoTime();
+            int originalLength = frame.getPayloadLength();
+            ByteBuffer compressed = deflate(frame.getPayload());
+            COMPRESS_NANOS.add(System.nanoTime() - start);
+            FRAMES_COMPRESSED.increment();
+            BYTES_IN.add(originalLength);
+            BYTES_OUT.add(compressed.remaining());
+
+            Frame compressedFrame = new Frame(
+                frame.getOpCode(),
+                true,
+                compressed
+            );
+            compressedFrame.setRsv1(true);
+            nextOutgoingFrame(compressedFrame, callback, batch);
+        }
+    }
+
+    /**
+     * Frees the native zlib memory of the deflater and inflater, which would otherwise only be released once they
+     * are garbage collected.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private ByteBuffer deflate(ByteBuffer payload) {
+        deflater.setInput(payload.slice());
+
+        byte[] buffer = new byte[Math.max(64, payload.remaining() / 2)];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(
+                buffer,
+                length,
+                buffer.length - length,
+                Deflater.SYNC_FLUSH
+            );
+            if (length < buffer.length) {
+                break;
+            }
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        if (!serverContextTakeover) {
+            deflater.reset();
+        }
+
+        // RFC 7692 7.2.1: remove the 0x00 0x00 0xFF 0xFF tail of the sync flush.
+        if (length >= TAIL_BYTES.length && endsWithTail(buffer, length)) {
+            length -= TAIL_BYTES.length;
+        }
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    private ByteBuffer inflate(ByteBuffer payload, boolean fin)
+        throws DataFormatException {
+        ByteBuffer input = payload == null ? ByteBuffer.allocate(0) : payload;
+        if (fin) {
+            // Put the tail back so the inflater can finish the message.
+            ByteBuffer withTail = ByteBuffer.allocate(
+                input.remaining() + TAIL_BYTES.length
+            );
+            withTail.put(input.slice()).put(TAIL_BYTES).flip();
+            input = withTail;
+        }
+        inflater.setInput(input);
+
+        byte[] buffer = new byte[Math.max(64, input.remaining() * 4)];
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int inflated = inflater.inflate(
+                buffer,
+                length,
+                buffer.length - length
+            );
+            length += inflated;
+            if (incomingInflatedBytes + length > MAX_INFLATED_MESSAGE_BYTES) {
+                throw new MessageTooLargeException(
+                    "Inflated message exceeds " +
+                        MAX_INFLATED_MESSAGE_BYTES +
+                        " bytes"
+                );
+            }
+            if (
+                inflated == 0 &&
+                (inflater.needsInput() || inflater.finished())
+            ) {
+                break;
+            }
+        }
+        incomingInflatedBytes += length;
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    private boolean isLoopbackPeer() {
+        if (loopbackPeer == null) {
+            SocketAddress remoteAddress = getCoreSession().getRemoteAddress();
+            loopbackPeer =
+                remoteAddress instanceof InetSocketAddress inetAddress &&
+                inetAddress.getAddress() != null &&
+                inetAddress.getAddress().isLoopbackAddress();
+        }
+        return loopbackPeer;
+    }
+
+    private static boolean endsWithTail(byte[] buffer, int length) {
+        for (int i = 0; i < TAIL_BYTES.length; i++) {
+            if (buffer[length - TAIL_BYTES.length + i] != TAIL_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
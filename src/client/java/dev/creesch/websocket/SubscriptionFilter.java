@@ -0,0 +1,134 @@
+package dev.creesch.websocket;
+
+import dev.creesch.model.ChatMessagePayload;
+import dev.creesch.model.IncomingWebsocketJsonMessage.SubscribePayload;
+import dev.creesch.model.WebsocketJsonMessage;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * What a connection wants to receive of the broadcast messages, set by the browser with a {@code subscribe} message.
+ * Connections start out with {@link #ALL}.
+ *
+ * A broadcast is put in a category once with {@link #categoryOf(WebsocketJsonMessage)}, after which checking it
+ * against each connection's filter is a couple of bit tests and at most one set lookup.
+ *
+ * Connection state changes, resume and history metadata are always sent, the browser needs those to make sense of
+ * anything else. Explicit history requests are answered regardless of the filter.
+ *
+ * @param playerChat Chat sent by players
+ * @param gameMessages System and game messages (joins, deaths, advancements, command feedback)
+ * @param pingsOnly Only chat and game messages that ping
+ * @param playerList Player list updates
+ * @param servers Server identifiers to receive messages for, empty for all servers
+ */
+public record SubscriptionFilter(
+    boolean playerChat,
+    boolean gameMessages,
+    boolean pingsOnly,
+    boolean playerList,
+    Set<String> servers
+) {
+    public static final int PLAYER_CHAT = 1;
+    public static final int GAME_MESSAGE = 1 << 1;
+    public static final int PING = 1 << 2;
+    public static final int PLAYER_LIST = 1 << 3;
+    public static final int REPEAT = 1 << 4;
+    public static final int ALWAYS = 1 << 5;
+
+    public static final SubscriptionFilter ALL = new SubscriptionFilter(
+        true,
+        true,
+        false,
+        true,
+        Set.of()
+    );
+
+    public SubscriptionFilter {
+        servers = servers == null ? Set.of() : Set.copyOf(servers);
+    }
+
+    /**
+     * Missing fields keep their default, so {@code {}} subscribes to everything again.
+     */
+    public static SubscriptionFilter from(SubscribePayload payload) {
+        if (payload == null) {
+            return ALL;
+        }
+        return new SubscriptionFilter(
+            payload.getPlayerChat() == null || payload.getPlayerChat(),
+            payload.getGameMessages() == null || payload.getGameMessages(),
+            payload.getPingsOnly() != null && payload.getPingsOnly(),
+            payload.getPlayerList() == null || payload.getPlayerList(),
+            payload.getServers() == null
+                ? Set.of()
+                : payload
+                    .getServers()
+                    .stream()
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toUnmodifiableSet())
+        );
+    }
+
+    /**
+     * @return Category bits of a message, done once per broadcast
+     */
+    public static int categoryOf(WebsocketJsonMessage message) {
+        return switch (message.getType()) {
+            case CHAT_MESSAGE -> {
+                if (!(message.getPayload() instanceof ChatMessagePayload payload)) {
+                    yield ALWAYS;
+                }
+                int category =
+                    payload.getSource() == ChatMessagePayload.Source.PLAYER
+                        ? PLAYER_CHAT
+                        : GAME_MESSAGE;
+                yield payload.isPing() ? category | PING : category;
+            }
+            case SERVER_PLAYER_LIST -> PLAYER_LIST;
+            case REPEAT -> REPEAT;
+            case
+                SERVER_CONNECTION_STATE,
+                HISTORY_META_DATA,
+                RESUME,
+                HEARTBEAT -> ALWAYS;
+        };
+    }
+
+    /**
+     * Stored messages don't remember whether a player sent them, read back from storage they all look like game
+     * messages. Only a filter that treats both the same can be applied to them.
+     */
+    public boolean canFilterStored() {
+        return playerChat == gameMessages;
+    }
+
+    public boolean acceptsServer(String serverId) {
+        return servers.isEmpty() || servers.contains(serverId);
+    }
+
+    /**
+     * @param category Bits from {@link #categoryOf(WebsocketJsonMessage)}
+     * @param serverId Server the message is for, may be null
+     */
+    public boolean accepts(int category, String serverId) {
+        if ((category & ALWAYS) != 0) {
+            return true;
+        }
+        if (serverId != null && !acceptsServer(serverId)) {
+            return false;
+        }
+        if ((category & PLAYER_LIST) != 0) {
+            return playerList;
+        }
+        if ((category & REPEAT) != 0) {
+            // The browser ignores repeats of messages it doesn't have.
+            return playerChat || gameMessages;
+        }
+        boolean wanted = (category & PLAYER_CHAT) != 0
+            ? playerChat
+            : gameMessages;
+        return wanted && (!pingsOnly || (category & PING) != 0);
+    }
+}
@@ -11,9 +11,11 @@ import {
 import { serverInfo } from './managers/server_info.mjs';
 import { playerList, toggleSidebar } from './managers/player_list.mjs';
 import { directMessageManager } from './managers/direct_message.mjs';
-import { parseModServerMessage } from './messages/message_types.mjs';
+import { parseModServerMessages } from './messages/message_types.mjs';
+import { CBOR_SUBPROTOCOL, JSON_SUBPROTOCOL } from './messages/cbor.mjs';
 import { faviconManager } from './managers/favicon_manager.mjs';
 import { tabListManager } from './managers/tab_list_manager.mjs';
+import { resumeState } from './managers/resume_state.mjs';
 
 /**
  * Import all types we might need
@@ -21,6 +23,9 @@ import { tabListManager } from './managers/tab_list_manager.mjs';
  * @typedef {import('./messages/message_types.mjs').ChatMessage} ChatMessage
  * @typedef {import('./messages/message_types.mjs').HistoryMetaData} HistoryMetaData
  * @typedef {import('./messages/message_types.mjs').PlayerInfo} PlayerInfo
+ * @typedef {import('./messages/message_types.mjs').Resume} Resume
+ * @typedef {import('./messages/message_types.mjs').Repeat} Repeat
+ * @typedef {import('./messages/message_types.mjs').ModServerMessage} ModServerMessage
  * @typedef {import('./messages/message_types.mjs').ServerConnectionState} ServerConnectionState
  */
 
@@ -237,11 +242,13 @@ function handleChatMessage(message) {
 
     if (!message.payload.history) {
         faviconManager.handleNewMessage(message.payload.isPing);
+        resumeState.trackLiveChat(message.timestamp);
     }
 
     requestAnimationFrame(() => {
         const messageElement = document.createElement('article');
         messageElement.classList.add('message');
+        messageElement.dataset['uuid'] = message.payload.uuid;
 
         if (message.payload.isPing) {
             messageElement.classList.add('ping');
@@ -296,6 +303,14 @@ function handleChatMessage(message) {
             }
         }
 
+        if (message.payload.repeatCount && message.payload.lastSeen) {
+            setRepeatCount(
+                messageElement,
+                message.payload.repeatCount,
+                message.payload.lastSeen,
+            );
+        }
+
         // Storing raw scroll value. To be used to fix the scroll position down the line.
         const scrolledFromTop = messagesElement.scrollTop;
 
@@ -319,6 +334,45 @@ function handleChatMessage(message) {
     });
 }
 
+/**
+ * Shows how often a message was received, after the message text.
+ * @param {HTMLElement} messageElement
+ * @param {number} repeatCount
+ * @param {number} lastSeen
+ */
+function setRepeatCount(messageElement, repeatCount, lastSeen) {
+    let repeatElement = messageElement.querySelector('.message-repeat');
+    if (!repeatElement) {
+        repeatElement = document.createElement('span');
+        repeatElement.className = 'message-repeat';
+        messageElement.appendChild(repeatElement);
+    }
+    repeatElement.textContent = `×${repeatCount}`;
+    repeatElement.title = `Last received ${formatTimestamp(lastSeen).fullDateTime}`;
+}
+
+/**
+ * Handle a repeat of an earlier chat message
+ * @param {Repeat} message
+ */
+function handleRepeat(message) {
+    resumeState.trackLiveChat(message.timestamp);
+    // Same frame as the message itself, a repeat right after it would otherwise find nothing.
+    requestAnimationFrame(() => {
+        const messageElement = messagesElement.querySelector(
+            `.message[data-uuid="${CSS.escape(message.payload.uuid)}"]`,
+        );
+        if (!(messageElement instanceof HTMLElement)) {
+            return;
+        }
+        setRepeatCount(
+            messageElement,
+            message.payload.repeatCount,
+            message.payload.lastSeen,
+        );
+    });
+}
+
 function clearMessageHistory() {
     console.log('clearing history.');
     // empty previously seen messages.
@@ -388,6 +442,25 @@ function handleMinecraftServerConnectionState(message) {
     }
 }
 
+/**
+ * Handle the first message of a connection, telling how the server caught us up after a reconnect.
+ * @param {Resume} message
+ */
+function handleResume(message) {
+    const { mode, replayed, inWorld } = message.payload;
+    console.log(`Resumed connection (${mode}), ${replayed} missed messages.`);
+
+    if (mode === 'resync') {
+        // Treated like a brand new connection, a join event follows if Minecraft is on a server.
+        return;
+    }
+
+    // No join event follows, so restore what the disconnect cleared.
+    if (inWorld) {
+        serverInfo.update(message.server.name, message.server.identifier);
+    }
+}
+
 /**
  * ======================
  *  Websocket related functions
@@ -418,7 +491,20 @@ function updateWebsocketConnectionStatus(connectionStatus) {
 }
 
 function connect() {
-    ws = new WebSocket(`ws://${location.host}/chat`);
+    // `?encoding=cbor` asks for smaller binary frames. JSON is offered as well, for when the mod has them turned off.
+    const binary =
+        new URLSearchParams(location.search).get('encoding') === 'cbor';
+    const url = new URL(resumeState.socketUrl(`ws://${location.host}/chat`));
+    // Sent with the connection rather than after it, so messages replayed on resume are filtered too.
+    const subscription = subscriptionFromUrl(location.search);
+    if (subscription) {
+        url.searchParams.set('subscribe', JSON.stringify(subscription));
+    }
+    ws = new WebSocket(
+        url.toString(),
+        binary ? [CBOR_SUBPROTOCOL, JSON_SUBPROTOCOL] : [],
+    );
+    ws.binaryType = 'arraybuffer';
 
     ws.onopen = function () {
         console.log('Connected to websocket server');
@@ -442,37 +528,13 @@ function connect() {
     };
 
     ws.onmessage = function (event) {
-        /** @type {string} */
-        const rawJson = event.data;
-        console.log('Got websocket message:', rawJson);
+        /** @type {string | ArrayBuffer} */
+        const rawMessage = event.data;
+        console.log('Got websocket message:', rawMessage);
 
         try {
-            const message = parseModServerMessage(rawJson);
-
-            if (modVersion === null) {
-                modVersion = message.modVersion;
-                console.log('Mod version:', modVersion);
-            } else if (modVersion !== message.modVersion) {
-                console.warn(
-                    'Mod version mismatch:',
-                    modVersion,
-                    message.modVersion,
-                );
-                location.reload();
-            }
-
-            switch (message.type) {
-                case 'chatMessage':
-                    handleChatMessage(message);
-                    break;
-                case 'historyMetaData':
-                    handleHistoryMetaData(message);
-                    break;
-                case 'serverConnectionState':
-                    handleMinecraftServerConnectionState(message);
-                    break;
-                case 'serverPlayerList':
-                    playerList.updatePlayerList(message.payload);
+            for (const message of parseModServerMessages(rawMessage)) {
+                handleModServerMessage(message);
             }
         } catch (e) {
             console.error('Error processing message:', e);
@@ -480,6 +542,44 @@ function connect() {
     };
 }
 
+/**
+ * @param {ModServerMessage} message
+ */
+function handleModServerMessage(message) {
+    resumeState.track(message);
+
+    if (modVersion === null) {
+        modVersion = message.modVersion;
+        console.log('Mod version:', modVersion);
+    } else if (modVersion !== message.modVersion) {
+        console.warn('Mod version mismatch:', modVersion, message.modVersion);
+        location.reload();
+    }
+
+    switch (message.type) {
+        case 'chatMessage':
+            handleChatMessage(message);
+            break;
+        case 'historyMetaData':
+            handleHistoryMetaData(message);
+            break;
+        case 'serverConnectionState':
+            handleMinecraftServerConnectionState(message);
+            break;
+        case 'serverPlayerList':
+            playerList.updatePlayerList(message.payload);
+            break;
+        case 'resume':
+            handleResume(message);
+            break;
+        case 'repeat':
+            handleRepeat(message);
+            break;
+        case 'heartbeat':
+            sendWebsocketMessage('heartbeat', message.payload);
+    }
+}
+
 /**
  * History request parameters
  * @typedef {Object} HistoryRequest
@@ -488,10 +588,47 @@ function connect() {
  * @property {number} [before] - Message ID to fetch history before
  */
 
+/**
+ * Subscription filter, fields that are left out keep their default.
+ * @typedef {Object} SubscribeRequest
+ * @property {boolean} [playerChat] - Chat sent by players, default true
+ * @property {boolean} [gameMessages] - System and game messages, default true
+ * @property {boolean} [pingsOnly] - Only messages that ping, default false
+ * @property {boolean} [playerList] - Player list updates, default true
+ * @property {string[]} [servers] - Server identifiers, default all servers
+ */
+
+/**
+ * Reads a subscription from the page URL, for example `?pingsOnly=true&playerList=false` for a mentions only view.
+ * @param {string} search - location.search
+ * @returns {SubscribeRequest | null} Null when the URL doesn't ask for a subset
+ */
+function subscriptionFromUrl(search) {
+    const params = new URLSearchParams(search);
+    /** @type {SubscribeRequest} */
+    const subscription = {};
+    for (const key of /** @type {const} */ ([
+        'playerChat',
+        'gameMessages',
+        'pingsOnly',
+        'playerList',
+    ])) {
+        const value = params.get(key);
+        if (value !== null) {
+            subscription[key] = value === 'true' || value === '1';
+        }
+    }
+    const servers = params.get('servers');
+    if (servers) {
+        subscription.servers = servers.split(',');
+    }
+    return Object.keys(subscription).length > 0 ? subscription : null;
+}
+
 /**
  * Send a message back to minecraft.
- * @param {'chat' | 'history' } type
- * @param {string | HistoryRequest} payload
+ * @param {'chat' | 'history' | 'subscribe' | 'heartbeat' } type
+ * @param {string | number | HistoryRequest | SubscribeRequest} payload
  */
 function sendWebsocketMessage(type, payload) {
     if (ws?.readyState !== WebSocket.OPEN) {
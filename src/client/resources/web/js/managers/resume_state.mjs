@@ -0,0 +1,76 @@
+// @ts-check
+'use strict';
+
+/**
+ * @typedef {import('../messages/message_types.mjs').ModServerMessage} ModServerMessage
+ */
+
+/**
+ * Remembers how far this page got in the server's message stream. On reconnect it is sent along so the server can
+ * replay only the messages missed while disconnected, instead of the page reloading everything.
+ */
+class ResumeState {
+    /** @type {string | null} */
+    #sessionId = null;
+
+    /** @type {number} */
+    #sequence = 0;
+
+    /** @type {number | null} */
+    #lastLiveChatTimestamp = null;
+
+    /**
+     * Keeps track of the sequence number of every numbered message.
+     * @param {ModServerMessage} message
+     */
+    track(message) {
+        if (message.sessionId === undefined || message.sequence === undefined) {
+            return;
+        }
+
+        // The web interface restarted, older sequence numbers mean nothing anymore.
+        if (message.sessionId !== this.#sessionId) {
+            this.#sessionId = message.sessionId;
+            this.#sequence = message.sequence;
+            return;
+        }
+
+        this.#sequence = Math.max(this.#sequence, message.sequence);
+    }
+
+    /**
+     * Used as fallback when the server no longer has all missed messages in memory.
+     * @param {number} timestamp - Timestamp of a live (non history) chat message
+     */
+    trackLiveChat(timestamp) {
+        this.#lastLiveChatTimestamp = Math.max(
+            this.#lastLiveChatTimestamp ?? 0,
+            timestamp,
+        );
+    }
+
+    /**
+     * Builds the websocket URL including resume parameters when there is something to resume.
+     * @param {string} baseUrl
+     * @returns {string}
+     */
+    socketUrl(baseUrl) {
+        if (this.#sessionId === null) {
+            return baseUrl;
+        }
+
+        const url = new URL(baseUrl);
+        url.searchParams.set('session', this.#sessionId);
+        url.searchParams.set('after', this.#sequence.toString());
+        if (this.#lastLiveChatTimestamp !== null) {
+            url.searchParams.set(
+                'since',
+                this.#lastLiveChatTimestamp.toString(),
+            );
+        }
+        return url.toString();
+    }
+}
+
+// Export a singleton instance, there is only one websocket connection per page.
+export const resumeState = new ResumeState();
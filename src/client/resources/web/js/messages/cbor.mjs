@@ -0,0 +1,269 @@
+// @ts-check
+'use strict';
+
+/**
+ * Decoder for the binary frames the mod sends when the page connects with the {@link CBOR_SUBPROTOCOL} subprotocol.
+ * Plain CBOR, except that common object keys are sent as small integers, indexes into {@link KEYS}.
+ * Mirrors CborFrames.java, which only writes definite lengths, integers, 32 and 64 bit floats, text strings,
+ * arrays, maps, booleans and null.
+ */
+
+export const CBOR_SUBPROTOCOL = 'webchat.cbor.v1';
+// Offered next to CBOR_SUBPROTOCOL, the mod picks this one when binary frames are turned off.
+export const JSON_SUBPROTOCOL = 'webchat.json';
+
+/**
+ * Same order as KEYS in CborFrames.java. Only ever appended to.
+ * @type {readonly string[]}
+ */
+export const KEYS = Object.freeze([
+    // Envelope
+    'type',
+    'payload',
+    'timestamp',
+    'server',
+    'name',
+    'identifier',
+    'minecraftVersion',
+    'modVersion',
+    'sessionId',
+    'sequence',
+    // Chat message payload
+    'history',
+    'uuid',
+    'component',
+    'translations',
+    'isPing',
+    'repeatCount',
+    'lastSeen',
+    // Components
+    'text',
+    'translate',
+    'with',
+    'extra',
+    'color',
+    'bold',
+    'italic',
+    'underlined',
+    'strikethrough',
+    'obfuscated',
+    'insertion',
+    'fallback',
+    'shadow_color',
+    'hover_event',
+    'click_event',
+    'action',
+    'id',
+    'count',
+    'components',
+    'contents',
+    'value',
+    'url',
+    'command',
+    'path',
+    'page',
+    'player',
+    'hat',
+    'hoverEvent',
+    'clickEvent',
+    // Player list
+    'playerId',
+    'playerName',
+    'playerDisplayName',
+    'playerTextureUrl',
+    // History metadata and resume
+    'oldestMessageTimestamp',
+    'moreHistoryAvailable',
+    'mode',
+    'replayed',
+    'inWorld',
+]);
+
+const textDecoder = new TextDecoder();
+
+/**
+ * Decode a binary frame into the same value JSON.parse would give for the JSON version of the frame.
+ * @param {ArrayBuffer | Uint8Array} frame
+ * @returns {unknown}
+ */
+export function decodeCborFrame(frame) {
+    const bytes = frame instanceof Uint8Array ? frame : new Uint8Array(frame);
+    const reader = new Reader(bytes);
+    const value = reader.read();
+    if (reader.position !== bytes.length) {
+        throw new Error('Trailing bytes after frame');
+    }
+    return value;
+}
+
+class Reader {
+    /**
+     * @param {Uint8Array} bytes
+     */
+    constructor(bytes) {
+        this.bytes = bytes;
+        this.view = new DataView(
+            bytes.buffer,
+            bytes.byteOffset,
+            bytes.byteLength,
+        );
+        this.position = 0;
+    }
+
+    /**
+     * @returns {unknown}
+     */
+    read() {
+        const initial = this.readUnsigned(1);
+        const major = initial >> 5;
+        const info = initial & 0x1f;
+        switch (major) {
+            case 0:
+                return this.readArgument(info);
+            case 1:
+                return -1 - this.readArgument(info);
+            case 3:
+                return this.readText(this.readLength(info));
+            case 4: {
+                const length = this.readLength(info);
+                const array = new Array(length);
+                for (let i = 0; i < length; i++) {
+                    array[i] = this.read();
+                }
+                return array;
+            }
+            case 5: {
+                const length = this.readLength(info);
+                /** @type {Record<string, unknown>} */
+                const object = {};
+                for (let i = 0; i < length; i++) {
+                    const key = this.readKey();
+                    object[key] = this.read();
+                }
+                return object;
+            }
+            case 7:
+                switch (info) {
+                    case 20:
+                        return false;
+                    case 21:
+                        return true;
+                    case 22:
+                        return null;
+                    case 26: {
+                        this.ensure(4);
+                        const value = this.view.getFloat32(this.position);
+                        this.position += 4;
+                        return value;
+                    }
+                    case 27: {
+                        this.ensure(8);
+                        const value = this.view.getFloat64(this.position);
+                        this.position += 8;
+                        return value;
+                    }
+                }
+                throw new Error(`Unsupported simple value ${info}`);
+        }
+        throw new Error(`Unsupported major type ${major}`);
+    }
+
+    /**
+     * @returns {string}
+     */
+    readKey() {
+        this.ensure(1);
+        const initial = this.bytes[this.position];
+        const major = initial >> 5;
+        if (major === 3) {
+            this.position++;
+            return this.readText(this.readLength(initial & 0x1f));
+        }
+        if (major !== 0) {
+            throw new Error('Unsupported map key');
+        }
+        this.position++;
+        const index = this.readArgument(initial & 0x1f);
+        const key = KEYS[index];
+        if (key === undefined) {
+            throw new Error(`Unknown key ${index}`);
+        }
+        return key;
+    }
+
+    /**
+     * @param {number} length
+     * @returns {string}
+     */
+    readText(length) {
+        this.ensure(length);
+        const text = textDecoder.decode(
+            this.bytes.subarray(this.position, this.position + length),
+        );
+        this.position += length;
+        return text;
+    }
+
+    /**
+     * @param {number} info
+     * @returns {number}
+     */
+    readLength(info) {
+        const length = this.readArgument(info);
+        // Every item takes at least a byte, so anything longer than what's left is a broken frame.
+        this.ensure(length);
+        return length;
+    }
+
+    /**
+     * @param {number} info
+     * @returns {number}
+     */
+    readArgument(info) {
+        switch (info) {
+            case 24:
+                return this.readUnsigned(1);
+            case 25:
+                return this.readUnsigned(2);
+            case 26:
+                return this.readUnsigned(4);
+            case 27: {
+                // Timestamps need more than 32 bits. Past 2^53 this rounds, just like JSON.parse does.
+                const high = this.readUnsigned(4);
+                const low = this.readUnsigned(4);
+                return high * 0x100000000 + low;
+            }
+        }
+        if (info >= 24) {
+            throw new Error('Indefinite lengths are not supported');
+        }
+        return info;
+    }
+
+    /**
+     * @param {1 | 2 | 4} count
+     * @returns {number}
+     */
+    readUnsigned(count) {
+        this.ensure(count);
+        const position = this.position;
+        this.position += count;
+        switch (count) {
+            case 1:
+                return this.view.getUint8(position);
+            case 2:
+                return this.view.getUint16(position);
+            default:
+                return this.view.getUint32(position);
+        }
+    }
+
+    /**
+     * @param {number} count
+     */
+    ensure(count) {
+        if (count > this.bytes.length - this.position) {
+            throw new Error('Truncated frame');
+        }
+    }
+}
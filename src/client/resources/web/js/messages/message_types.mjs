@@ -1,5 +1,6 @@
 // @ts-check
 'use strict';
+import { decodeCborFrame } from './cbor.mjs';
 /**
  * @typedef {import('./message_parsing.mjs').Component} Component
  */
@@ -18,6 +19,8 @@
  * @property {ServerInfo} server
  * @property {string} minecraftVersion
  * @property {string} modVersion
+ * @property {string} [sessionId] - Only set on broadcast messages
+ * @property {number} [sequence] - Only set on broadcast messages, increases by one per broadcast within a session
  */
 
 /**
@@ -30,6 +33,8 @@
  *     translations: Record<string, string>,
  *     uuid: string,
  *     isPing: boolean,
+ *     repeatCount?: number,
+ *     lastSeen?: number,
  *   }
  * }} ChatMessage
  */
@@ -75,7 +80,43 @@
  */
 
 /**
- * @typedef {BaseModServerMessage & (ChatMessage | ServerConnectionState | HistoryMetaData | ServerPlayerList)} ModServerMessage
+ * @typedef {'log' | 'database' | 'resync'} ResumeModes
+ */
+
+/**
+ * First message on every connection, tells how the server caught this client up.
+ * @typedef {BaseModServerMessage & {
+ *   type: 'resume',
+ *   payload: {
+ *     mode: ResumeModes,
+ *     replayed: number,
+ *     inWorld: boolean,
+ *   }
+ * }} Resume
+ */
+
+/**
+ * An earlier chat message was received again, only its counter changes.
+ * @typedef {BaseModServerMessage & {
+ *   type: 'repeat',
+ *   payload: {
+ *     uuid: string,
+ *     repeatCount: number,
+ *     lastSeen: number,
+ *   }
+ * }} Repeat
+ */
+
+/**
+ * Sent every few seconds, the payload is echoed back so the mod knows the connection is still alive.
+ * @typedef {BaseModServerMessage & {
+ *   type: 'heartbeat',
+ *   payload: number
+ * }} Heartbeat
+ */
+
+/**
+ * @typedef {BaseModServerMessage & (ChatMessage | ServerConnectionState | HistoryMetaData | ServerPlayerList | Resume | Repeat | Heartbeat)} ModServerMessage
  */
 
 /**
@@ -96,21 +137,30 @@ export function isModServerMessage(message) {
         message.type === 'chatMessage' ||
         message.type === 'serverConnectionState' ||
         message.type === 'historyMetaData' ||
-        message.type === 'serverPlayerList'
+        message.type === 'serverPlayerList' ||
+        message.type === 'resume' ||
+        message.type === 'repeat' ||
+        message.type === 'heartbeat'
     );
 }
 
 /**
- * Parse message from WebSocket
- * @param {string} rawMessage
- * @returns {ModServerMessage}
+ * Parse a frame from WebSocket. During bursts the mod sends several messages as one array frame.
+ * @param {string | ArrayBuffer} rawMessage - Text for JSON frames, binary when connected with the CBOR subprotocol
+ * @returns {ModServerMessage[]} Messages in the order they were sent
  */
-export function parseModServerMessage(rawMessage) {
-    const message = JSON.parse(rawMessage);
+export function parseModServerMessages(rawMessage) {
+    const parsed =
+        typeof rawMessage === 'string'
+            ? JSON.parse(rawMessage)
+            : decodeCborFrame(rawMessage);
+    const messages = Array.isArray(parsed) ? parsed : [parsed];
 
-    if (!isModServerMessage(message)) {
-        throw new Error('Invalid message type');
+    for (const message of messages) {
+        if (!isModServerMessage(message)) {
+            throw new Error('Invalid message type');
+        }
     }
 
-    return message;
+    return messages;
 }
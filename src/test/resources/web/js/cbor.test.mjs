@@ -0,0 +1,84 @@
+import { expect, test } from 'vitest';
+import { KEYS, decodeCborFrame } from '~/messages/cbor.mjs';
+import { parseModServerMessages } from '~/messages/message_types.mjs';
+
+/**
+ * @param {string} hex
+ * @returns {Uint8Array}
+ */
+function bytes(hex) {
+    const result = new Uint8Array(hex.length / 2);
+    for (let i = 0; i < result.length; i++) {
+        result[i] = parseInt(hex.slice(i * 2, i * 2 + 2), 16);
+    }
+    return result;
+}
+
+// Frames below were written by CborFrames.java for the JSON next to them.
+const CHAT_MESSAGE_JSON =
+    '{"timestamp":1734567890123,"server":{"name":"Test","identifier":"test-server"},"type":"chatMessage","minecraftVersion":"1.21.11","modVersion":"1.0.0","payload":{"history":false,"uuid":"a","component":{"translate":"chat.type.text","with":[{"text":"Steve","color":"gold"},{"text":"hi"}]},"translations":{"chat.type.text":"<%s> %s"},"isPing":false}}';
+const CHAT_MESSAGE_CBOR =
+    'a6021b00000193dc4d8ccb03a2046454657374056b746573742d736572766572006b636861744d6573736167650667312e32312e31310765312e302e3001a50af40b61610ca2126e636861742e747970652e746578741382a2116553746576651564676f6c64a1116268690da16e636861742e747970652e74657874673c25733e2025730ef4';
+
+const VALUE_TYPES_JSON =
+    '{"type":"chatMessage","timestamp":1734567890123,"payload":{"x":-5,"f":1.5,"d":0.1,"n":null,"b":true,"s":"héllo ✓","big":12345678901234567890,"arr":[1,24,255,256,65536,-24,-25]}}';
+const VALUE_TYPES_CBOR =
+    'a3006b636861744d657373616765021b00000193dc4d8ccb01a86178246166fa3fc000006164fb3fb999999999999a616ef66162f561736a68c3a96c6c6f20e29c9363626967fb43e56a95319d63e1636172728701181818ff1901001a00010000373818';
+
+test('decodes a chat message like JSON.parse', () => {
+    expect(decodeCborFrame(bytes(CHAT_MESSAGE_CBOR))).toEqual(
+        JSON.parse(CHAT_MESSAGE_JSON),
+    );
+});
+
+test('binary frame is much smaller than the JSON frame', () => {
+    expect(bytes(CHAT_MESSAGE_CBOR).length).toBeLessThan(
+        new TextEncoder().encode(CHAT_MESSAGE_JSON).length / 2,
+    );
+});
+
+test('decodes integers, floats, null, booleans and UTF-8 text', () => {
+    expect(decodeCborFrame(bytes(VALUE_TYPES_CBOR))).toEqual(
+        JSON.parse(VALUE_TYPES_JSON),
+    );
+});
+
+test('decodes coalesced array frames', () => {
+    expect(decodeCborFrame(bytes('82a11160a11480'))).toEqual([
+        { text: '' },
+        { extra: [] },
+    ]);
+});
+
+test('accepts an ArrayBuffer as well as a Uint8Array', () => {
+    const frame = bytes('a11160');
+    expect(decodeCborFrame(frame.buffer)).toEqual({ text: '' });
+    // A view into a larger buffer only reads its own bytes.
+    const larger = bytes('ffa11160ff');
+    expect(decodeCborFrame(larger.subarray(1, 4))).toEqual({ text: '' });
+});
+
+test('keys are indexes into the key list', () => {
+    expect(KEYS[0]).toBe('type');
+    expect(KEYS[17]).toBe('text');
+    expect(decodeCborFrame(bytes('a1182a60'))).toEqual({ [KEYS[42]]: '' });
+});
+
+test.each([
+    ['truncated frame', 'a3006b6368'],
+    ['trailing bytes', 'a11160ff'],
+    ['unknown key index', 'a118ff60'],
+    ['indefinite length', '9fff'],
+    ['byte strings', '4100'],
+    ['tags', 'c100'],
+])('rejects %s', (_, hex) => {
+    expect(() => decodeCborFrame(bytes(hex))).toThrow();
+});
+
+test('parseModServerMessages reads binary frames', () => {
+    const messages = parseModServerMessages(
+        bytes(CHAT_MESSAGE_CBOR).buffer,
+    );
+    expect(messages).toHaveLength(1);
+    expect(messages[0].type).toBe('chatMessage');
+});
@@ -4,6 +4,7 @@ import {
     assertIsComponent,
     formatMessage,
 } from '~/messages/message_parsing.mjs';
+import { parseModServerMessages } from '~/messages/message_types.mjs';
 /**
  * @typedef {import('~/messages/message_parsing.mjs').Component} Component
  */
@@ -902,3 +903,132 @@ for (const [
         }
     });
 }
+
+/**
+ * Fields every frame from the mod has, as in WebsocketJsonMessage.
+ * @param {string} type
+ * @param {unknown} payload
+ * @returns {Record<string, unknown>}
+ */
+function modServerMessage(type, payload) {
+    return {
+        timestamp: 1734567890123,
+        server: { name: 'Test', identifier: 'test-server' },
+        minecraftVersion: '1.21.11',
+        modVersion: '1.0.0',
+        sessionId: 'session',
+        sequence: 1,
+        type,
+        payload,
+    };
+}
+
+/**
+ * @type {readonly [string, Record<string, unknown>][]}
+ */
+const MOD_SERVER_MESSAGE_TESTS = [
+    [
+        'chat message',
+        modServerMessage('chatMessage', {
+            history: false,
+            component: { text: 'hi' },
+            translations: {},
+            uuid: 'a',
+            isPing: false,
+        }),
+    ],
+    [
+        'repeated chat message from history',
+        modServerMessage('chatMessage', {
+            history: true,
+            component: { text: 'hi' },
+            translations: {},
+            uuid: 'a',
+            isPing: false,
+            repeatCount: 3,
+            lastSeen: 1734567899999,
+        }),
+    ],
+    [
+        'server connection state',
+        modServerMessage('serverConnectionState', 'join'),
+    ],
+    [
+        'history metadata',
+        modServerMessage('historyMetaData', {
+            oldestMessageTimestamp: 1734567890123,
+            moreHistoryAvailable: true,
+        }),
+    ],
+    [
+        'player list',
+        modServerMessage('serverPlayerList', [
+            {
+                playerId: '12345678-1234-1234-1234-123456789abc',
+                playerName: 'Steve',
+                playerDisplayName: { text: 'Steve' },
+                playerTextureUrl: '/img/steve.png',
+            },
+        ]),
+    ],
+    [
+        'resume',
+        modServerMessage('resume', {
+            mode: 'log',
+            replayed: 2,
+            inWorld: true,
+        }),
+    ],
+    [
+        'repeat',
+        modServerMessage('repeat', {
+            uuid: 'a',
+            repeatCount: 2,
+            lastSeen: 1734567899999,
+        }),
+    ],
+    ['heartbeat', modServerMessage('heartbeat', 42)],
+];
+
+for (const [name, message] of MOD_SERVER_MESSAGE_TESTS) {
+    test(`parses ${name} frame`, () => {
+        expect(parseModServerMessages(JSON.stringify(message))).toEqual([
+            message,
+        ]);
+    });
+}
+
+test('parses array frame in the order it was sent', () => {
+    const messages = MOD_SERVER_MESSAGE_TESTS.map(([, message]) => message);
+    expect(parseModServerMessages(JSON.stringify(messages))).toEqual(messages);
+});
+
+test('parses empty array frame as no messages', () => {
+    expect(parseModServerMessages('[]')).toEqual([]);
+});
+
+test('rejects frame with unknown type', () => {
+    expect(() =>
+        parseModServerMessages(
+            JSON.stringify(modServerMessage('somethingElse', null)),
+        ),
+    ).toThrow('Invalid message type');
+});
+
+test('rejects frame without type', () => {
+    expect(() =>
+        parseModServerMessages(JSON.stringify({ payload: 'hi' })),
+    ).toThrow('Invalid message type');
+});
+
+test('rejects array frame when one message is invalid', () => {
+    expect(() =>
+        parseModServerMessages(
+            JSON.stringify([modServerMessage('heartbeat', 1), 'not a message']),
+        ),
+    ).toThrow('Invalid message type');
+});
+
+test('rejects frame that is not JSON', () => {
+    expect(() => parseModServerMessages('{not json')).toThrow();
+});